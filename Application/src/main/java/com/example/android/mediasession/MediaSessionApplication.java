@@ -0,0 +1,169 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession;
+
+import android.app.Application;
+import android.os.Build;
+import android.os.Debug;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Created in every process of the app. By default the UI runs in the main process and
+ * MusicService with the media button receiver in the {@link #PLAYBACK_PROCESS_SUFFIX}
+ * process, so UI garbage collections and crashes do not reach playback and the UI heap is
+ * not kept alive behind a playing notification. Building with {@code -PsingleProcess} puts
+ * everything back in one process, to compare the two.
+ * <p>
+ * Kept to the bare minimum: in the playback process this is on the path of every cold start
+ * of the service, from a media button, Android Auto or Wear.
+ * <p>
+ * 应用入口，两个进程中都会创建
+ */
+public class MediaSessionApplication extends Application {
+
+    private static final String TAG = "MediaSessionApplication";
+
+    // 播放进程名的后缀
+    public static final String PLAYBACK_PROCESS_SUFFIX = ":playback";
+
+    // Android N 以下没有进程开始时间，以本类加载时间代替
+    private static final long sClassLoadedMs = SystemClock.elapsedRealtime();
+    private static String sProcessName;
+
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        sProcessName = readProcessName();
+        Log.d(TAG, "onCreate: " + sProcessName + ", " + getMillisSinceProcessStart()
+                + " ms after the process started");
+    }
+
+    /**
+     * @return 当前进程名
+     */
+    public static String getCurrentProcessName() {
+        return sProcessName;
+    }
+
+    /**
+     * @return 是否为独立的播放进程
+     */
+    public static boolean isPlaybackProcess() {
+        return sProcessName != null && sProcessName.endsWith(PLAYBACK_PROCESS_SUFFIX);
+    }
+
+    /**
+     * @return 进程开始后经过的时间 (ms)
+     */
+    public static long getMillisSinceProcessStart() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            return SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime();
+        }
+        return SystemClock.elapsedRealtime() - sClassLoadedMs;
+    }
+
+    /**
+     * 进程的常驻内存 (kB)，从 /proc/self/status 的 VmRSS 读取
+     *
+     * @return 读取失败时为-1
+     */
+    public static long getResidentSetKb() {
+        return readResidentSetKb("/proc/self/status");
+    }
+
+    /**
+     * 同一应用另一个进程的常驻内存 (kB)，例如测试中读取播放进程
+     *
+     * @param pid 进程id
+     * @return 读取失败时为-1
+     */
+    public static long getResidentSetKb(int pid) {
+        return readResidentSetKb("/proc/" + pid + "/status");
+    }
+
+    /**
+     * @return 进程的PSS (kB)，与其他进程共享的页按比例计算
+     */
+    public static int getProportionalSetKb() {
+        final Debug.MemoryInfo memoryInfo = new Debug.MemoryInfo();
+        Debug.getMemoryInfo(memoryInfo);
+        return memoryInfo.getTotalPss();
+    }
+
+
+    // ##########################################################################################
+
+
+    private static long readResidentSetKb(String statusPath) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(statusPath));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.substring(6).replace("kB", "").trim());
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "getResidentSetKb", e);
+        } finally {
+            close(reader);
+        }
+        return -1;
+    }
+
+    /**
+     * Application.getProcessName() needs Android P.
+     */
+    private static String readProcessName() {
+        InputStream in = null;
+        try {
+            in = new FileInputStream("/proc/self/cmdline");
+            final byte[] buffer = new byte[256];
+            final int length = in.read(buffer);
+            int end = 0;
+            while (end < length && buffer[end] != 0) {
+                end++;
+            }
+            return new String(buffer, 0, end, "UTF-8");
+        } catch (IOException e) {
+            Log.w(TAG, "readProcessName", e);
+            return String.valueOf(Process.myPid());
+        } finally {
+            close(in);
+        }
+    }
+
+    private static void close(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignored
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.client;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Log-linear latency histogram in microseconds: every power of two is split into 8 buckets,
+ * so a percentile is off by at most 12.5%. Recording does not allocate.
+ * <p>
+ * 延迟分布
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] mCounts = new long[64 * SUB_BUCKETS];
+    private long mCount;
+    private long mMaxMicros;
+    private long mTotalMicros;
+
+
+    /**
+     * 记录一次延迟
+     *
+     * @param nanos
+     */
+    public void record(long nanos) {
+        final long micros = Math.max(0, nanos / 1000);
+        mCounts[bucketOf(micros)]++;
+        mCount++;
+        mTotalMicros += micros;
+        mMaxMicros = Math.max(mMaxMicros, micros);
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getMaxMicros() {
+        return mMaxMicros;
+    }
+
+    public long getMeanMicros() {
+        return mCount == 0 ? 0 : mTotalMicros / mCount;
+    }
+
+    /**
+     * @param percentile 0 ~ 100
+     * @return 不小于该百分位数的桶上限 (微秒)
+     */
+    public long getPercentileMicros(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mCount));
+        long seen = 0;
+        for (int bucket = 0; bucket < mCounts.length; bucket++) {
+            seen += mCounts[bucket];
+            if (seen >= rank) {
+                return Math.min(mMaxMicros, lowerBoundOf(bucket + 1) - 1);
+            }
+        }
+        return mMaxMicros;
+    }
+
+    public void reset() {
+        Arrays.fill(mCounts, 0);
+        mCount = 0;
+        mMaxMicros = 0;
+        mTotalMicros = 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "n=%d mean=%.2fms p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms",
+                mCount,
+                getMeanMicros() / 1000f,
+                getPercentileMicros(50) / 1000f,
+                getPercentileMicros(90) / 1000f,
+                getPercentileMicros(99) / 1000f,
+                mMaxMicros / 1000f);
+    }
+
+
+    private static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        final int octave = 63 - Long.numberOfLeadingZeros(micros);
+        final int subBucket = (int) (micros >>> (octave - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (octave - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long lowerBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int octave = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final int subBucket = bucket % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket) << (octave - SUB_BUCKET_BITS);
+    }
+}
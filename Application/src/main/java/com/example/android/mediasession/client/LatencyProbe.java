@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.client;
+
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+
+/**
+ * Measures the client to service round trip of {@link MediaBrowserManager}:
+ * <ul>
+ * <li>{@link #OP_CONNECT}: connect() until the first non-null metadata;</li>
+ * <li>{@link #OP_SKIP}: skipToNext()/skipToPrevious() until onMetadataChanged();</li>
+ * <li>{@link #OP_SEEK}: seekTo() until onPlaybackStateChanged() reports the target;</li>
+ * <li>{@link #OP_COLD_CONNECT}: like {@link #OP_CONNECT}, to a service whose process had
+ * been killed, so the time includes starting the process and the service.</li>
+ * </ul>
+ * Only one operation of each kind is timed at a time; starting it again restarts the clock.
+ * Used on the main thread.
+ * <p>
+ * 客户端到service的往返延迟
+ */
+public final class LatencyProbe {
+
+    public static final int OP_CONNECT = 0;
+    public static final int OP_SKIP = 1;
+    public static final int OP_SEEK = 2;
+    public static final int OP_COLD_CONNECT = 3;
+    private static final String[] OP_NAMES = {"connect", "skip", "seek", "cold-connect"};
+    // 各操作p99的默认上限 (ms)
+    private static final int[] DEFAULT_MAX_P99_MS = {500, 250, 250, 1500};
+
+    // seek后报告的位置与目标的误差
+    private static final long SEEK_TOLERANCE_MS = 1000;
+
+    /**
+     * 完成一次测量的回调
+     */
+    public interface OnLatencyRecordedListener {
+        void onLatencyRecorded(int op, long nanos);
+    }
+
+
+    private final LatencyHistogram[] mHistograms = {
+            new LatencyHistogram(), new LatencyHistogram(), new LatencyHistogram(),
+            new LatencyHistogram()
+    };
+    // 开始时间，0表示没有进行中的测量
+    private final long[] mStartNanos = new long[OP_NAMES.length];
+    private long mSeekTargetMs;
+    private OnLatencyRecordedListener mListener;
+
+
+    public static String getOpName(int op) {
+        return OP_NAMES[op];
+    }
+
+    public static int getDefaultMaxP99Ms(int op) {
+        return DEFAULT_MAX_P99_MS[op];
+    }
+
+    public void setOnLatencyRecordedListener(OnLatencyRecordedListener listener) {
+        mListener = listener;
+    }
+
+    public LatencyHistogram getHistogram(int op) {
+        return mHistograms[op];
+    }
+
+    /**
+     * 开始测量
+     *
+     * @param op
+     */
+    public void start(int op) {
+        mStartNanos[op] = System.nanoTime();
+    }
+
+    /**
+     * 开始测量seek
+     *
+     * @param positionMs 目标位置
+     */
+    public void startSeek(long positionMs) {
+        mSeekTargetMs = positionMs;
+        start(OP_SEEK);
+    }
+
+    /**
+     * 放弃进行中的测量，例如超时
+     */
+    public void cancel(int op) {
+        mStartNanos[op] = 0;
+    }
+
+    void onMetadataChanged(MediaMetadataCompat metadata) {
+        if (metadata == null) {
+            return;
+        }
+        complete(OP_CONNECT);
+        complete(OP_COLD_CONNECT);
+        complete(OP_SKIP);
+    }
+
+    void onPlaybackStateChanged(PlaybackStateCompat state) {
+        if (state != null && mStartNanos[OP_SEEK] != 0
+                && Math.abs(state.getPosition() - mSeekTargetMs) <= SEEK_TOLERANCE_MS) {
+            complete(OP_SEEK);
+        }
+    }
+
+    /**
+     * 测量到的p99是否在上限之内
+     *
+     * @param op
+     * @param maxP99Micros p99上限
+     */
+    public boolean isWithinLimit(int op, long maxP99Micros) {
+        return mHistograms[op].getPercentileMicros(99) <= maxP99Micros;
+    }
+
+    public void reset() {
+        for (int op = 0; op < mHistograms.length; op++) {
+            mHistograms[op].reset();
+            mStartNanos[op] = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        for (int op = 0; op < mHistograms.length; op++) {
+            builder.append(OP_NAMES[op]).append(": ").append(mHistograms[op]).append('\n');
+        }
+        return builder.toString();
+    }
+
+
+    private void complete(int op) {
+        final long startNanos = mStartNanos[op];
+        if (startNanos == 0) {
+            return;
+        }
+        mStartNanos[op] = 0;
+        final long nanos = System.nanoTime() - startNanos;
+        mHistograms[op].record(nanos);
+        if (mListener != null) {
+            mListener.onLatencyRecorded(op, nanos);
+        }
+    }
+}
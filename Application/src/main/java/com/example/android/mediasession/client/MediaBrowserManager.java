@@ -18,6 +18,9 @@ package com.example.android.mediasession.client;
 
 import android.content.ComponentName;
 import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.RemoteException;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -30,17 +33,38 @@ import android.util.Log;
 
 import com.example.android.mediasession.service.MusicService;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
 
 /**
  * MediaBrowserManager for a MediaBrowser that handles connecting, disconnecting,
  * and basic browsing.
+ * <p>
+ * Between onStart() and onStop() it stays connected: when the connection fails, the service
+ * dies or its session is destroyed, it connects again after a backoff that doubles up to
+ * {@link #RECONNECT_MAX_DELAY_MS}, with jitter so that the clients of a crashed service do not
+ * all bind it at the same moment. Transport commands sent meanwhile are kept and sent in
+ * order once connected; when the service was created again, only after the queue has been
+ * sent to it again, as it ignores play, skip and seek with an empty queue.
+ * <p>
+ * On connecting, only the version extras of the session are read; the metadata, with its
+ * bitmap, is fetched only when it changed since this manager last saw it, and the queue is
+ * filled again only when the service was created again.
  */
 public class MediaBrowserManager {
 
     private static final String TAG = "MediaBrowserManager";
 
+    // 重连的退避时间
+    private static final long RECONNECT_MIN_DELAY_MS = 500;
+    private static final long RECONNECT_MAX_DELAY_MS = 30 * 1000;
+    // 断开期间最多保留的命令，超出时丢弃最早的
+    private static final int MAX_PENDING_COMMANDS = 16;
+
 
     private final Context mContext;
 
@@ -53,15 +77,37 @@ public class MediaBrowserManager {
     // MediaControllerCompat
     @Nullable
     private MediaControllerCompat mMediaController;
-    // service 连接回调
-    private final MediaBrowserConnectionCallback mMediaBrowserConnectionCallback =
-            new MediaBrowserConnectionCallback();
+    // service 连接回调，每次连接一个，忽略之前连接的回调
+    private MediaBrowserConnectionCallback mMediaBrowserConnectionCallback;
     // 音频变化回调
     private final MediaControllerCallback mMediaControllerCallback =
             new MediaControllerCallback();
     //
     private final MediaBrowserSubscriptionCallback mMediaBrowserSubscriptionCallback =
             new MediaBrowserSubscriptionCallback();
+    // 往返延迟
+    private final LatencyProbe mLatencyProbe = new LatencyProbe();
+    // 已加入播放列表的音频，扫描中每批新音频都会再次回调onChildrenLoaded；
+    // 连接到重新创建的service时清空
+    private final Set<String> mQueuedMediaIds = new HashSet<>();
+
+    // 重连
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Random mRandom = new Random();
+    // onStart() 之后，onStop() 之前
+    private boolean mStarted;
+    private boolean mReconnectPending;
+    // 连续失败的次数
+    private int mReconnectAttempts;
+    // 断开期间的命令
+    private final ArrayDeque<TransportCommand> mPendingCommands = new ArrayDeque<>();
+    // 连接后等待播放列表重新发送，之后再发送断开期间的命令
+    private boolean mAwaitingQueue;
+
+    // 上次连接时和之后会话extras中的版本，以及对应的metadata
+    private long mSessionInstance;
+    private long mMetadataVersion = -1;
+    private MediaMetadataCompat mMetadata;
 
 
     /**
@@ -77,19 +123,11 @@ public class MediaBrowserManager {
      * 跟随Activity的生命周期
      */
     public void onStart() {
+        mStarted = true;
         //
-        if (mMediaBrowserCompat == null) {
-            // 创建MediaBrowserCompat
-            mMediaBrowserCompat = new MediaBrowserCompat(
-                    mContext,
-                    // 创建ComponentName 连接 MusicService
-                    new ComponentName(mContext, MusicService.class),
-                    // 创建callback
-                    mMediaBrowserConnectionCallback,
-                    //
-                    null);
-            // 链接service
-            mMediaBrowserCompat.connect();
+        if (mMediaBrowserCompat == null && !mReconnectPending) {
+            mLatencyProbe.start(LatencyProbe.OP_CONNECT);
+            connect();
         }
         Log.d(TAG, "onStart: Creating MediaBrowser, and connecting");
     }
@@ -98,21 +136,24 @@ public class MediaBrowserManager {
      * 跟随Activity的生命周期
      */
     public void onStop() {
-        if (mMediaController != null) {
-            mMediaController.unregisterCallback(mMediaControllerCallback);
-            mMediaController = null;
-        }
-        if (mMediaBrowserCompat != null && mMediaBrowserCompat.isConnected()) {
-            mMediaBrowserCompat.disconnect();
-            mMediaBrowserCompat = null;
+        mStarted = false;
+        mHandler.removeCallbacks(mReconnectRunnable);
+        mReconnectPending = false;
+        mReconnectAttempts = 0;
+        if (!mPendingCommands.isEmpty()) {
+            Log.w(TAG, "onStop: dropping " + mPendingCommands.size() + " commands");
+            mPendingCommands.clear();
         }
+        // The queue stays filled: the versions tell on the next connection whether it still is.
+        disconnect();
         // 数据置空
         Log.d(TAG, "onStop: Releasing MediaController, Disconnecting from MediaBrowser");
     }
 
 
     /**
-     * 获取播放控制器 通过该方法控制播放
+     * 获取播放控制器，未连接时抛出异常；
+     * 其他方法发送的命令在断开期间保留，连接后发送
      *
      * @return
      */
@@ -124,6 +165,284 @@ public class MediaBrowserManager {
         return mMediaController.getTransportControls();
     }
 
+    /**
+     * 下一首，测量到 onMetadataChanged 的延迟
+     */
+    public void skipToNext() {
+        mLatencyProbe.start(LatencyProbe.OP_SKIP);
+        send(new TransportCommand() {
+            @Override
+            public void send(MediaControllerCompat.TransportControls controls) {
+                controls.skipToNext();
+            }
+        });
+    }
+
+    /**
+     * 上一首，测量到 onMetadataChanged 的延迟
+     */
+    public void skipToPrevious() {
+        mLatencyProbe.start(LatencyProbe.OP_SKIP);
+        send(new TransportCommand() {
+            @Override
+            public void send(MediaControllerCompat.TransportControls controls) {
+                controls.skipToPrevious();
+            }
+        });
+    }
+
+    /**
+     * seek，测量到 onPlaybackStateChanged 报告目标位置的延迟
+     *
+     * @param position
+     */
+    public void seekTo(final long position) {
+        mLatencyProbe.startSeek(position);
+        send(new TransportCommand() {
+            @Override
+            public void send(MediaControllerCompat.TransportControls controls) {
+                controls.seekTo(position);
+            }
+        });
+    }
+
+    public void play() {
+        send(new TransportCommand() {
+            @Override
+            public void send(MediaControllerCompat.TransportControls controls) {
+                controls.play();
+            }
+        });
+    }
+
+    public void pause() {
+        send(new TransportCommand() {
+            @Override
+            public void send(MediaControllerCompat.TransportControls controls) {
+                controls.pause();
+            }
+        });
+    }
+
+    /**
+     * 是否已连接到service
+     */
+    public boolean isConnected() {
+        return mMediaController != null;
+    }
+
+    public LatencyProbe getLatencyProbe() {
+        return mLatencyProbe;
+    }
+
+    /**
+     * 设置播放速度，音调不变
+     *
+     * @param speed {@link MusicService#MIN_PLAYBACK_SPEED} ~ {@link MusicService#MAX_PLAYBACK_SPEED}
+     */
+    public void setPlaybackSpeed(float speed) {
+        final Bundle extras = new Bundle();
+        extras.putFloat(MusicService.EXTRA_PLAYBACK_SPEED, speed);
+        sendCustomAction(MusicService.ACTION_SET_PLAYBACK_SPEED, extras);
+    }
+
+    /**
+     * 重新扫描保存的目录，例如刚获得存储权限
+     */
+    public void scanLibrary() {
+        sendCustomAction(MusicService.ACTION_SCAN_LIBRARY, null);
+    }
+
+    /**
+     * 播放音频或播放列表，音频不在播放列表中时加到末尾
+     */
+    public void playFromMediaId(final String mediaId) {
+        send(new TransportCommand() {
+            @Override
+            public void send(MediaControllerCompat.TransportControls controls) {
+                controls.playFromMediaId(mediaId, null);
+            }
+        });
+    }
+
+    /**
+     * 播放 {@link MusicService#QUEUE_ROOT} 中的一项
+     *
+     * @param position 在播放列表中的位置，即队列id
+     */
+    public void skipToQueueItem(final long position) {
+        send(new TransportCommand() {
+            @Override
+            public void send(MediaControllerCompat.TransportControls controls) {
+                controls.skipToQueueItem(position);
+            }
+        });
+    }
+
+    /**
+     * @return 根节点，未连接时为null
+     */
+    public String getRoot() {
+        return isConnected() ? mMediaBrowserCompat.getRoot() : null;
+    }
+
+    /**
+     * 订阅节点的一页，见 {@link PagedChildren}
+     *
+     * @param parentId
+     * @param options  {@link MediaBrowserCompat#EXTRA_PAGE} 和
+     *                 {@link MediaBrowserCompat#EXTRA_PAGE_SIZE}
+     * @param callback 每页一个，取消订阅时只取消这一页
+     */
+    public void subscribe(String parentId, Bundle options,
+                          MediaBrowserCompat.SubscriptionCallback callback) {
+        if (!isConnected()) {
+            throw new IllegalStateException("not connected");
+        }
+        mMediaBrowserCompat.subscribe(parentId, options, callback);
+    }
+
+    public void unsubscribe(String parentId, MediaBrowserCompat.SubscriptionCallback callback) {
+        // Subscriptions end with the connection.
+        if (isConnected()) {
+            mMediaBrowserCompat.unsubscribe(parentId, callback);
+        }
+    }
+
+
+    // ############################################连接和重连################################################
+
+
+    private void connect() {
+        mMediaBrowserConnectionCallback = new MediaBrowserConnectionCallback();
+        // 创建MediaBrowserCompat
+        mMediaBrowserCompat = new MediaBrowserCompat(
+                mContext,
+                // 创建ComponentName 连接 MusicService
+                new ComponentName(mContext, MusicService.class),
+                // 创建callback
+                mMediaBrowserConnectionCallback,
+                //
+                null);
+        // 链接service
+        mMediaBrowserCompat.connect();
+    }
+
+    private void disconnect() {
+        if (mMediaController != null) {
+            mMediaController.unregisterCallback(mMediaControllerCallback);
+            mMediaController = null;
+        }
+        if (mMediaBrowserCompat != null) {
+            // Also while still connecting, or onStart() would wait for it.
+            mMediaBrowserCompat.disconnect();
+            mMediaBrowserCompat = null;
+        }
+        mMediaBrowserConnectionCallback = null;
+    }
+
+    /**
+     * 连接失败或断开，退避后重连
+     */
+    private void onConnectionLost(String reason) {
+        final boolean wasConnected = mMediaController != null;
+        disconnect();
+        if (wasConnected) {
+            mMediaControllerCallback.onPlaybackStateChanged(null);
+        }
+        if (!mStarted || mReconnectPending) {
+            return;
+        }
+        // Full backoff after the attempt, half of it as jitter.
+        final long backoffMs = Math.min(RECONNECT_MAX_DELAY_MS,
+                RECONNECT_MIN_DELAY_MS << Math.min(mReconnectAttempts, 16));
+        final long delayMs = backoffMs / 2 + (long) (mRandom.nextDouble() * (backoffMs / 2));
+        mReconnectAttempts++;
+        mReconnectPending = true;
+        Log.w(TAG, reason + ": reconnecting in " + delayMs + " ms, attempt "
+                + mReconnectAttempts);
+        mHandler.postDelayed(mReconnectRunnable, delayMs);
+    }
+
+    private final Runnable mReconnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mReconnectPending = false;
+            connect();
+        }
+    };
+
+    /**
+     * 只读取会话extras中的版本，与上次看到的相同时使用缓存的metadata
+     */
+    private void resync() {
+        final Bundle versions = mMediaController.getExtras();
+        final long instance = versions != null
+                ? versions.getLong(MusicService.EXTRA_SESSION_INSTANCE) : 0;
+        final long metadataVersion = versions != null
+                ? versions.getLong(MusicService.EXTRA_METADATA_VERSION, -1) : -1;
+        if (instance != mSessionInstance) {
+            // A new service: it has none of the items queued by the last one.
+            mQueuedMediaIds.clear();
+        }
+        if (instance == 0 || instance != mSessionInstance
+                || metadataVersion != mMetadataVersion) {
+            mMetadata = mMediaController.getMetadata();
+        } else {
+            Log.d(TAG, "resync: metadata " + metadataVersion + " unchanged");
+        }
+        mSessionInstance = instance;
+        mMetadataVersion = metadataVersion;
+        // Sync existing MediaSession state to the UI.
+        mMediaControllerCallback.onMetadataChanged(mMetadata);
+        mMediaControllerCallback.onPlaybackStateChanged(mMediaController.getPlaybackState());
+    }
+
+    /**
+     * 断开期间保留的命令
+     */
+    private interface TransportCommand {
+        void send(MediaControllerCompat.TransportControls controls);
+    }
+
+    /**
+     * 已连接时立即发送，否则连接后按顺序发送
+     */
+    private void send(TransportCommand command) {
+        if (mMediaController != null && !mAwaitingQueue) {
+            command.send(mMediaController.getTransportControls());
+            return;
+        }
+        if (!mStarted) {
+            // Not to be sent long after, when the UI is back.
+            Log.w(TAG, "send: stopped, dropping a command");
+            return;
+        }
+        if (mPendingCommands.size() == MAX_PENDING_COMMANDS) {
+            Log.w(TAG, "send: too many commands while disconnected, dropping the oldest");
+            mPendingCommands.removeFirst();
+        }
+        mPendingCommands.addLast(command);
+    }
+
+    /**
+     * 按顺序发送断开期间的命令
+     */
+    private void sendPendingCommands() {
+        while (mMediaController != null && !mPendingCommands.isEmpty()) {
+            mPendingCommands.removeFirst().send(mMediaController.getTransportControls());
+        }
+    }
+
+    private void sendCustomAction(final String action, final Bundle extras) {
+        send(new TransportCommand() {
+            @Override
+            public void send(MediaControllerCompat.TransportControls controls) {
+                controls.sendCustomAction(action, extras);
+            }
+        });
+    }
+
 
     // ############################################onConnected CallBack################################################
 
@@ -138,28 +457,54 @@ public class MediaBrowserManager {
         // Happens as a result of onStart().
         @Override
         public void onConnected() {
+            if (this != mMediaBrowserConnectionCallback) {
+                return;
+            }
             try {
                 // 获取MediaControllerCompat
                 // Get a MediaController for the MediaSession.
                 mMediaController = new MediaControllerCompat(
                         mContext,
                         mMediaBrowserCompat.getSessionToken());
-                mMediaController.registerCallback(mMediaControllerCallback);
-
-                /**
-                 * 设置当前数据
-                 */
-                // Sync existing MediaSession state to the UI.
-                mMediaControllerCallback.onMetadataChanged(mMediaController.getMetadata());
-                mMediaControllerCallback.onPlaybackStateChanged(mMediaController.getPlaybackState());
-
-
             } catch (RemoteException e) {
                 Log.d(TAG, String.format("onConnected: Problem: %s", e.toString()));
-                throw new RuntimeException(e);
+                onConnectionLost("onConnected");
+                return;
             }
+            // Registered first: a change after the versions are read is not missed.
+            mMediaController.registerCallback(mMediaControllerCallback);
+            mReconnectAttempts = 0;
+
+            /**
+             * 设置当前数据
+             */
+            resync();
 
             mMediaBrowserCompat.subscribe(mMediaBrowserCompat.getRoot(), mMediaBrowserSubscriptionCallback);
+            for (OnMediaStatusChangeListener callback : mMediaStatusChangeListenerList) {
+                callback.onConnected();
+            }
+            // 断开期间的命令：重新创建的service先要收到播放列表
+            mAwaitingQueue = mQueuedMediaIds.isEmpty();
+            if (!mAwaitingQueue) {
+                sendPendingCommands();
+            }
+        }
+
+        // 连接失败，例如service启动时崩溃
+        @Override
+        public void onConnectionFailed() {
+            if (this == mMediaBrowserConnectionCallback) {
+                onConnectionLost("onConnectionFailed");
+            }
+        }
+
+        // service进程死亡
+        @Override
+        public void onConnectionSuspended() {
+            if (this == mMediaBrowserConnectionCallback) {
+                onConnectionLost("onConnectionSuspended");
+            }
         }
     }
 
@@ -185,13 +530,33 @@ public class MediaBrowserManager {
             if (mMediaController == null) {
                 return;
             }
-            // Queue up all media items for this simple sample.
+            final boolean firstLoad = mQueuedMediaIds.isEmpty();
+            // Queue up all media items for this simple sample; the album and artist nodes
+            // listed next to them are for browsing clients.
             for (final MediaBrowserCompat.MediaItem mediaItem : children) {
-                mMediaController.addQueueItem(mediaItem.getDescription());
+                if (mediaItem.isPlayable() && mQueuedMediaIds.add(mediaItem.getMediaId())) {
+                    mMediaController.addQueueItem(mediaItem.getDescription());
+                }
             }
 
             // Call "playFromMedia" so the UI is updated.
-            mMediaController.getTransportControls().prepare();
+            if (firstLoad) {
+                mMediaController.getTransportControls().prepare();
+            }
+            if (mAwaitingQueue) {
+                // Sent after the queue and the prepare, on the same session, in order.
+                mAwaitingQueue = false;
+                sendPendingCommands();
+            }
+        }
+
+        @Override
+        public void onError(@NonNull String parentId) {
+            // No queue to wait for: the commands are not held any longer.
+            if (mMediaController != null && mAwaitingQueue) {
+                mAwaitingQueue = false;
+                sendPendingCommands();
+            }
         }
     }
 
@@ -206,7 +571,8 @@ public class MediaBrowserManager {
 
         @Override
         public void onMetadataChanged(final MediaMetadataCompat metadata) {
-            //
+            mMetadata = metadata;
+            mLatencyProbe.onMetadataChanged(metadata);
             for (OnMediaStatusChangeListener callback : mMediaStatusChangeListenerList) {
                 callback.onMetadataChanged(metadata);
             }
@@ -214,7 +580,7 @@ public class MediaBrowserManager {
 
         @Override
         public void onPlaybackStateChanged(@Nullable final PlaybackStateCompat state) {
-            //
+            mLatencyProbe.onPlaybackStateChanged(state);
             for (OnMediaStatusChangeListener callback : mMediaStatusChangeListenerList) {
                 callback.onPlaybackStateChanged(state);
             }
@@ -229,11 +595,19 @@ public class MediaBrowserManager {
             }
         }
 
+        // 会话的版本，在metadata之后更新
+        @Override
+        public void onExtrasChanged(Bundle extras) {
+            if (extras != null) {
+                mMetadataVersion = extras.getLong(MusicService.EXTRA_METADATA_VERSION, -1);
+            }
+        }
+
         // service被杀死时调用
         @Override
         public void onSessionDestroyed() {
             // onSessionDestroyed: MusicService is dead!!!
-            onPlaybackStateChanged(null);
+            onConnectionLost("onSessionDestroyed");
         }
 
     }
@@ -269,6 +643,11 @@ public class MediaBrowserManager {
      */
     public interface OnMediaStatusChangeListener {
 
+        /**
+         * 已连接到service，之前的订阅已随上次连接结束
+         */
+        void onConnected();
+
         /**
          * 播放状态修改
          */
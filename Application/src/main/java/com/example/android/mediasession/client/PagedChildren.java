@@ -0,0 +1,255 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.client;
+
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.v4.media.MediaBrowserCompat;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The children of one browse node, loaded a page at a time through the paged
+ * {@code subscribe(parentId, options)}, so a node of 100k items costs the rows that were
+ * scrolled past, not one transaction of all of them.
+ * <p>
+ * {@link #loadAround(int)} is called as rows are bound; it subscribes the page of the row and
+ * the page after it, so the next rows are there before they scroll in. Only the pages around
+ * the last bound row stay subscribed: a change of the node makes the service send each
+ * subscribed page again, and that should not be every page ever loaded. The other pages
+ * keep their items and are subscribed again when they are bound after a change.
+ * <p>
+ * The size is not known until the service sends a short page; until then the list ends one
+ * page after the last one loaded. Used on the main thread.
+ * <p>
+ * 分页加载的节点子项
+ */
+public final class PagedChildren {
+
+    private static final String TAG = "PagedChildren";
+
+    // 保持订阅的页数
+    private static final int SUBSCRIBED_PAGES = 4;
+
+
+    /**
+     * 加载或重新加载了一页
+     */
+    public interface Listener {
+        void onChildrenChanged(PagedChildren children);
+    }
+
+
+    private final MediaBrowserManager mManager;
+    private final String mParentId;
+    private final int mPageSize;
+    private final Listener mListener;
+    // 页号 -> 子项
+    private final SparseArray<List<MediaBrowserCompat.MediaItem>> mPages = new SparseArray<>();
+    // 订阅中的页
+    private final SparseArray<PageCallback> mCallbacks = new SparseArray<>();
+    // 节点变化后还没有重新加载的页
+    private final SparseBooleanArray mStalePages = new SparseBooleanArray();
+    // 最后一页，-1为还没有加载到
+    private int mLastPage = -1;
+    private boolean mReleased;
+
+
+    /**
+     * @param manager  已连接
+     * @param parentId
+     * @param pageSize
+     * @param listener
+     */
+    public PagedChildren(MediaBrowserManager manager, String parentId, int pageSize,
+                         Listener listener) {
+        mManager = manager;
+        mParentId = parentId;
+        mPageSize = pageSize;
+        mListener = listener;
+    }
+
+    public String getParentId() {
+        return mParentId;
+    }
+
+    /**
+     * 加载位置所在的页和下一页
+     *
+     * @param position 正在显示的位置
+     */
+    public void loadAround(int position) {
+        if (mReleased) {
+            return;
+        }
+        final int page = position / mPageSize;
+        load(page, page);
+        load(page + 1, page);
+    }
+
+    /**
+     * 当前的子项数，最后一页加载前多出还没有加载的一页
+     */
+    public int size() {
+        if (mLastPage >= 0) {
+            return mLastPage * mPageSize + mPages.get(mLastPage).size();
+        }
+        final int loadedPages = mPages.size() > 0 ? mPages.keyAt(mPages.size() - 1) + 1 : 0;
+        return loadedPages == 0 ? 0 : (loadedPages + 1) * mPageSize;
+    }
+
+    /**
+     * 当前子项的快照，之后的加载不会改变它；还没有加载的位置为null
+     *
+     * @return 只读
+     */
+    public List<MediaBrowserCompat.MediaItem> snapshot() {
+        final int size = size();
+        final List<List<MediaBrowserCompat.MediaItem>> pages = new ArrayList<>();
+        for (int page = 0; page * mPageSize < size; page++) {
+            // The lists themselves are never changed, only replaced.
+            pages.add(mPages.get(page));
+        }
+        return new AbstractList<MediaBrowserCompat.MediaItem>() {
+            @Override
+            public MediaBrowserCompat.MediaItem get(int index) {
+                if (index < 0 || index >= size) {
+                    throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+                }
+                final List<MediaBrowserCompat.MediaItem> page = pages.get(index / mPageSize);
+                final int offset = index % mPageSize;
+                return page != null && offset < page.size() ? page.get(offset) : null;
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * 取消所有订阅，之后不再回调
+     */
+    public void release() {
+        mReleased = true;
+        for (int i = 0; i < mCallbacks.size(); i++) {
+            mManager.unsubscribe(mParentId, mCallbacks.valueAt(i));
+        }
+        mCallbacks.clear();
+    }
+
+
+    // ##########################################################################################
+
+
+    private void load(int page, int anchorPage) {
+        if (mLastPage >= 0 && page > mLastPage) {
+            return;
+        }
+        if (mCallbacks.get(page) != null
+                || (mPages.get(page) != null && !mStalePages.get(page))) {
+            return;
+        }
+        while (mCallbacks.size() >= SUBSCRIBED_PAGES) {
+            unsubscribeFarthest(anchorPage);
+        }
+        final PageCallback callback = new PageCallback(page);
+        mCallbacks.put(page, callback);
+        final Bundle options = new Bundle();
+        options.putInt(MediaBrowserCompat.EXTRA_PAGE, page);
+        options.putInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, mPageSize);
+        mManager.subscribe(mParentId, options, callback);
+    }
+
+    private void unsubscribeFarthest(int anchorPage) {
+        int farthest = 0;
+        for (int i = 1; i < mCallbacks.size(); i++) {
+            if (Math.abs(mCallbacks.keyAt(i) - anchorPage)
+                    > Math.abs(mCallbacks.keyAt(farthest) - anchorPage)) {
+                farthest = i;
+            }
+        }
+        mManager.unsubscribe(mParentId, mCallbacks.valueAt(farthest));
+        mCallbacks.removeAt(farthest);
+    }
+
+    private void onPageLoaded(int page, List<MediaBrowserCompat.MediaItem> children,
+                              boolean reload) {
+        if (reload) {
+            // The node changed: the pages that are not subscribed may be out of date.
+            for (int i = 0; i < mPages.size(); i++) {
+                if (mCallbacks.get(mPages.keyAt(i)) == null) {
+                    mStalePages.put(mPages.keyAt(i), true);
+                }
+            }
+        }
+        mPages.put(page, children);
+        mStalePages.delete(page);
+        if (children.size() < mPageSize) {
+            // The node ends here; pages after it are from before it shrank.
+            mLastPage = page;
+            while (mPages.size() > 0 && mPages.keyAt(mPages.size() - 1) > page) {
+                mPages.removeAt(mPages.size() - 1);
+            }
+        } else if (page >= mLastPage) {
+            // It grew past the page that was the last one.
+            mLastPage = -1;
+        }
+        mListener.onChildrenChanged(this);
+    }
+
+    /**
+     * 一页的订阅回调
+     */
+    private final class PageCallback extends MediaBrowserCompat.SubscriptionCallback {
+
+        private final int mPage;
+        private boolean mLoaded;
+
+        PageCallback(int page) {
+            mPage = page;
+        }
+
+        @Override
+        public void onChildrenLoaded(@NonNull String parentId,
+                                     @NonNull List<MediaBrowserCompat.MediaItem> children,
+                                     @NonNull Bundle options) {
+            if (mReleased || mCallbacks.get(mPage) != this) {
+                return;
+            }
+            final boolean reload = mLoaded;
+            mLoaded = true;
+            onPageLoaded(mPage, children, reload);
+        }
+
+        @Override
+        public void onError(@NonNull String parentId, @NonNull Bundle options) {
+            Log.w(TAG, "onError: " + parentId + " page " + mPage);
+            if (mCallbacks.get(mPage) == this) {
+                // Tried again when one of its rows is bound.
+                mManager.unsubscribe(mParentId, this);
+                mCallbacks.remove(mPage);
+            }
+        }
+    }
+}
@@ -18,23 +18,61 @@ package com.example.android.mediasession.service;
 
 import android.app.Notification;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.v4.content.ContextCompat;
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaBrowserServiceCompat;
 import android.support.v4.media.MediaDescriptionCompat;
 import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.MediaSessionManager;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.util.Log;
 
+import com.example.android.mediasession.MediaSessionApplication;
+import com.example.android.mediasession.service.clients.BrowseClient;
+import com.example.android.mediasession.service.clients.ClientRegistry;
+import com.example.android.mediasession.service.contentcatalogs.BrowseCache;
+import com.example.android.mediasession.service.contentcatalogs.CatalogFile;
 import com.example.android.mediasession.service.contentcatalogs.MusicLibrary;
+import com.example.android.mediasession.service.loudness.LoudnessAnalyzer;
+import com.example.android.mediasession.service.memory.MemoryGovernor;
 import com.example.android.mediasession.service.notifications.MediaNotificationManager;
+import com.example.android.mediasession.service.player.CodecPlayerManager;
 import com.example.android.mediasession.service.player.MediaPlayerManager;
+import com.example.android.mediasession.service.player.PlayerAdapter;
+import com.example.android.mediasession.service.player.StartBufferCache;
+import com.example.android.mediasession.service.player.source.DataSourceFactory;
+import com.example.android.mediasession.service.player.source.MediaCache;
+import com.example.android.mediasession.service.playlist.PlaylistImporter;
+import com.example.android.mediasession.service.playlist.PlaylistStore;
+import com.example.android.mediasession.service.prefetch.MediaPrefetcher;
+import com.example.android.mediasession.service.recorder.FlightRecorder;
+import com.example.android.mediasession.service.scanner.LibraryScanner;
+import com.example.android.mediasession.service.scanner.TrackInfo;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
 
 
 /**
@@ -45,9 +83,146 @@ public class MusicService extends MediaBrowserServiceCompat {
     private static final String TAG = "MusicService";
 
 
+    // 播放器的实现
+    public static final String ACTION_SET_PLAYER_BACKEND =
+            "com.example.android.mediasession.SET_PLAYER_BACKEND";
+    public static final String EXTRA_PLAYER_BACKEND = "player_backend";
+    public static final String PLAYER_BACKEND_MEDIA_PLAYER = "media_player";
+    public static final String PLAYER_BACKEND_CODEC = "codec";
+
+    // 播放速度，音调不变
+    public static final String ACTION_SET_PLAYBACK_SPEED =
+            "com.example.android.mediasession.SET_PLAYBACK_SPEED";
+    public static final String EXTRA_PLAYBACK_SPEED = "playback_speed";
+    public static final float MIN_PLAYBACK_SPEED = 0.5f;
+    public static final float MAX_PLAYBACK_SPEED = 3.0f;
+
+    // 交叉淡入淡出时长，0为关闭，最长 PlayerAdapter.MAX_CROSSFADE_MS
+    public static final String ACTION_SET_CROSSFADE =
+            "com.example.android.mediasession.SET_CROSSFADE";
+    public static final String EXTRA_CROSSFADE_MS = "crossfade_ms";
+
+    // 扫描目录中的音频，目录为空时使用上次的目录
+    public static final String ACTION_SCAN_LIBRARY =
+            "com.example.android.mediasession.SCAN_LIBRARY";
+    public static final String EXTRA_SCAN_DIRECTORIES = "scan_directories";
+
+    // 导入播放列表 (M3U/M3U8、PLS、XSPF)：替换播放列表，第一个找到的音频开始播放
+    public static final String ACTION_IMPORT_PLAYLIST =
+            "com.example.android.mediasession.IMPORT_PLAYLIST";
+    public static final String EXTRA_PLAYLIST_URI = "playlist_uri";
+
+    // 用户播放列表。播放列表由其节点id (MusicLibrary.PLAYLIST_PREFIX + id) 指定，
+    // 用 playFromMediaId 播放
+    // 新建，没有音频id时保存当前的播放列表
+    public static final String ACTION_CREATE_PLAYLIST =
+            "com.example.android.mediasession.CREATE_PLAYLIST";
+    public static final String ACTION_RENAME_PLAYLIST =
+            "com.example.android.mediasession.RENAME_PLAYLIST";
+    public static final String ACTION_DELETE_PLAYLIST =
+            "com.example.android.mediasession.DELETE_PLAYLIST";
+    // 添加到末尾
+    public static final String ACTION_ADD_TO_PLAYLIST =
+            "com.example.android.mediasession.ADD_TO_PLAYLIST";
+    public static final String ACTION_MOVE_PLAYLIST_ITEM =
+            "com.example.android.mediasession.MOVE_PLAYLIST_ITEM";
+    public static final String ACTION_REMOVE_PLAYLIST_ITEM =
+            "com.example.android.mediasession.REMOVE_PLAYLIST_ITEM";
+    public static final String EXTRA_PLAYLIST_ID = "playlist_id";
+    public static final String EXTRA_PLAYLIST_NAME = "playlist_name";
+    // String[]
+    public static final String EXTRA_MEDIA_IDS = "media_ids";
+    // 移动的原位置和新位置，移除的位置
+    public static final String EXTRA_FROM_INDEX = "from_index";
+    public static final String EXTRA_TO_INDEX = "to_index";
+    public static final String EXTRA_INDEX = "index";
+
+    // 会话的extras，只有版本号：客户端重新连接时与缓存比较，没有变化时不再获取metadata
+    // 本次service的随机id，service重新创建后播放列表和metadata都不再有效
+    public static final String EXTRA_SESSION_INSTANCE =
+            "com.example.android.mediasession.SESSION_INSTANCE";
+    // 每次设置metadata加一
+    public static final String EXTRA_METADATA_VERSION =
+            "com.example.android.mediasession.METADATA_VERSION";
+
+    // 音频波形文件的路径，测量完成后加入当前音频的metadata，由 WaveformFile.open() 读取
+    public static final String METADATA_KEY_WAVEFORM =
+            "com.example.android.mediasession.WAVEFORM";
+
+    // 播放列表的节点，不在根节点下列出；按页订阅，播放列表变化时通知
+    public static final String QUEUE_ROOT = "__QUEUE__";
+
+    // 最近播放和推荐的根节点，分别给请求 EXTRA_RECENT 和 EXTRA_SUGGESTED 的客户端
+    private static final String RECENT_ROOT = "__RECENT__";
+    private static final String SUGGESTED_ROOT = "__SUGGESTED__";
+
+    // 包内可见：测试在启动 service 前修改设置
+    static final String PREFS_NAME = "music_service";
+    // 最后准备播放的音频，用于最近播放
+    private static final String PREF_LAST_MEDIA_ID = "last_media_id";
+    // 扫描记录，保存在应用私有目录
+    private static final String SCAN_JOURNAL_FILE = "scan_journal";
+    // 响度测量结果，与扫描记录放在一起
+    private static final String LOUDNESS_FILE = "loudness";
+    // 波形文件目录
+    private static final String WAVEFORM_DIR = "waveforms";
+    // 音频开头的PCM缓存目录，在缓存目录下
+    static final String START_BUFFER_DIR = "start_buffers";
+    // 音频目录快照
+    private static final String CATALOG_FILE = "catalog";
+    // 用户播放列表的日志
+    private static final String PLAYLISTS_FILE = "playlists";
+    // 音频目录变化后延迟写入快照
+    private static final long CATALOG_WRITE_DELAY_MS = 2000;
+    // http音频的磁盘缓存上限
+    private static final long MEDIA_CACHE_BYTES = 256L * 1024 * 1024;
+    // 音频开头的PCM缓存上限，每首约500 kB
+    private static final long START_BUFFER_CACHE_BYTES = 32L * 1024 * 1024;
+
+
     //
-    private MediaPlayerManager mMediaPlayerManager;
+    private PlayerAdapter mPlayerAdapter;
+    private MediaPlayerListener mPlayerListener;
     private MediaNotificationManager mMediaNotificationManager;
+    // 播放工作线程
+    private HandlerThread mPlaybackWorker;
+    private Handler mWorkerHandler;
+    // 预取前后音频
+    private MediaPrefetcher mMediaPrefetcher;
+    // http音频的磁盘缓存
+    private MediaCache mMediaCache;
+    // 音频开头的PCM缓存，第一次创建解码播放器时创建
+    private StartBufferCache mStartBufferCache;
+    // 播放器共用的数据源
+    private DataSourceFactory mDataSourceFactory;
+    private LoudnessAnalyzer mLoudnessAnalyzer;
+    // 播放速度，切换播放器后保持不变
+    private float mPlaybackSpeed;
+    private long mCrossfadeMs;
+    // 设置的播放器，以及实际使用的：设置不支持的功能打开时改用 CodecPlayerManager
+    private String mPlayerBackend;
+    private String mActiveBackend;
+    // 扫描音频文件
+    private LibraryScanner mLibraryScanner;
+    // 冷启动时查找扫描还未恢复的音频，第一次扫描完成后丢弃
+    private CatalogFile mCatalogFile;
+    // 导入播放列表，第一次导入时创建
+    private PlaylistImporter mPlaylistImporter;
+    // 用户播放列表
+    private PlaylistStore mPlaylistStore;
+    // 启动各阶段的时间
+    private final StartupTrace mStartupTrace = new StartupTrace();
+    // 浏览节点的子项，所有客户端共用
+    private final BrowseCache mBrowseCache = new BrowseCache();
+    // 连接的客户端
+    private ClientRegistry mClientRegistry;
+    // 内存不足时释放缓存和暂停的播放器
+    private final MemoryGovernor mMemoryGovernor = new MemoryGovernor();
+    // 延迟发送超出速率的浏览结果
+    private final Handler mBrowseHandler = new Handler();
+    // 会话extras中的版本
+    private final long mSessionInstance = new Random().nextLong();
+    private long mMetadataVersion;
 
     private boolean mServiceInStartedState;
 
@@ -57,34 +232,356 @@ public class MusicService extends MediaBrowserServiceCompat {
      */
     // 与MediaControl交互的MediaSessionCompat
     private MediaSessionCompat mMediaSessionCompat;
+    private MediaSessionCallback mMediaSessionCallback;
 
     @Override
     public void onCreate() {
         super.onCreate();
+        mStartupTrace.mark("onCreate");
 
         /**
          * MediaSessionCompat
          */
+        // Only what onGetRoot() and the controllers need is created here; the player, the
+        // notification, the worker thread and the library follow on first use, so the
+        // service binds and answers onGetRoot() without waiting for any of them.
         // 创建MediaSessionCompat
         mMediaSessionCompat = new MediaSessionCompat(this, "MusicService");
         // setCallBack
-        mMediaSessionCompat.setCallback(new MediaSessionCallback());
+        mMediaSessionCallback = new MediaSessionCallback();
+        mMediaSessionCompat.setCallback(mMediaSessionCallback);
         mMediaSessionCompat.setFlags(
                 MediaSessionCompat.FLAG_HANDLES_MEDIA_BUTTONS |
                         MediaSessionCompat.FLAG_HANDLES_QUEUE_COMMANDS |
                         MediaSessionCompat.FLAG_HANDLES_TRANSPORT_CONTROLS);
+        // 与PlaybackQueue的默认模式一致
+        mMediaSessionCompat.setRepeatMode(PlaybackStateCompat.REPEAT_MODE_ALL);
+        mMediaSessionCompat.setShuffleMode(PlaybackStateCompat.SHUFFLE_MODE_NONE);
+        publishVersions();
         // setSessionToken
         setSessionToken(mMediaSessionCompat.getSessionToken());
+        mClientRegistry = new ClientRegistry(getPackageName());
+        mMemoryGovernor.register("BrowseCache", mBrowseCache);
 
-        /**
-         * MediaNotificationManager
-         */
-        mMediaNotificationManager = new MediaNotificationManager(this);
+        // Browsers usually load children right after onGetRoot(); if none does, the library
+        // starts once the main thread has nothing else to do.
+        Looper.myQueue().addIdleHandler(mStartLibraryWhenIdle);
+        mStartupTrace.mark("onCreate done");
+    }
 
-        /**
-         * MediaPlayerManager
-         */
-        mMediaPlayerManager = new MediaPlayerManager(this, new MediaPlayerListener());
+    /**
+     * 主线程第一次空闲时开始扫描
+     */
+    private final MessageQueue.IdleHandler mStartLibraryWhenIdle = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            startLibrary();
+            return false;
+        }
+    };
+
+    /**
+     * 第一次需要音频目录时开始扫描：第一次浏览、搜索或准备播放，或主线程第一次空闲时
+     */
+    private void startLibrary() {
+        if (mLibraryScanner == null) {
+            scanLibrary(null);
+            // Replays the playlist log on the worker thread, before it is browsed.
+            getPlaylistStore();
+        }
+    }
+
+    /**
+     * @return 扫描器，第一次调用时创建并打开音频目录快照
+     */
+    private LibraryScanner getLibraryScanner() {
+        if (mLibraryScanner == null) {
+            final long beginMs = mStartupTrace.begin();
+            mCatalogFile = CatalogFile.open(new File(getFilesDir(), CATALOG_FILE));
+            mLibraryScanner = new LibraryScanner(new File(getFilesDir(), SCAN_JOURNAL_FILE),
+                    new LibraryScannerCallback());
+            mStartupTrace.end("LibraryScanner", beginMs);
+        }
+        return mLibraryScanner;
+    }
+
+    /**
+     * @return 用户播放列表，第一次调用时创建并在工作线程读取
+     */
+    private PlaylistStore getPlaylistStore() {
+        if (mPlaylistStore == null) {
+            final long beginMs = mStartupTrace.begin();
+            mPlaylistStore = new PlaylistStore(new File(getFilesDir(), PLAYLISTS_FILE),
+                    getWorkerHandler().getLooper());
+            mStartupTrace.end("PlaylistStore", beginMs);
+        }
+        return mPlaylistStore;
+    }
+
+    /**
+     * @return 通知，第一次开始播放时创建
+     */
+    private MediaNotificationManager getNotificationManager() {
+        if (mMediaNotificationManager == null) {
+            final long beginMs = mStartupTrace.begin();
+            mMediaNotificationManager = new MediaNotificationManager(this);
+            mStartupTrace.end("MediaNotificationManager", beginMs);
+        }
+        return mMediaNotificationManager;
+    }
+
+    /**
+     * @return 播放工作线程的Handler，第一次调用时启动线程
+     */
+    private Handler getWorkerHandler() {
+        if (mWorkerHandler == null) {
+            final long beginMs = mStartupTrace.begin();
+            mPlaybackWorker =
+                    new HandlerThread("PlaybackWorker", Process.THREAD_PRIORITY_BACKGROUND);
+            mPlaybackWorker.start();
+            mWorkerHandler = new Handler(mPlaybackWorker.getLooper());
+            mStartupTrace.end("PlaybackWorker", beginMs);
+        }
+        return mWorkerHandler;
+    }
+
+    /**
+     * @return 预取前后音频，第一次准备播放时创建
+     */
+    private MediaPrefetcher getMediaPrefetcher() {
+        if (mMediaPrefetcher == null) {
+            final Looper looper = getWorkerHandler().getLooper();
+            final long beginMs = mStartupTrace.begin();
+            mMediaPrefetcher = new MediaPrefetcher(this, looper);
+            mMemoryGovernor.register("MediaPrefetcher", mMediaPrefetcher);
+            mStartupTrace.end("MediaPrefetcher", beginMs);
+        }
+        return mMediaPrefetcher;
+    }
+
+    private MediaCache getMediaCache() {
+        if (mMediaCache == null) {
+            mMediaCache = new MediaCache(new File(getCacheDir(), "media"), MEDIA_CACHE_BYTES);
+        }
+        return mMediaCache;
+    }
+
+    /**
+     * @return 播放器共用的数据源，第一次创建播放器时创建
+     */
+    private DataSourceFactory getDataSourceFactory() {
+        if (mDataSourceFactory == null) {
+            final MediaPrefetcher prefetcher = getMediaPrefetcher();
+            final long beginMs = mStartupTrace.begin();
+            mDataSourceFactory = new DataSourceFactory(this, getMediaCache(), prefetcher);
+            mStartupTrace.end("DataSourceFactory", beginMs);
+        }
+        return mDataSourceFactory;
+    }
+
+    /**
+     * @return 音频开头的PCM缓存
+     */
+    private StartBufferCache getStartBufferCache() {
+        if (mStartBufferCache == null) {
+            // Without the prefetcher: decoding ahead must not take the descriptors it prefetched.
+            mStartBufferCache = new StartBufferCache(new File(getCacheDir(), START_BUFFER_DIR),
+                    START_BUFFER_CACHE_BYTES, new DataSourceFactory(this, getMediaCache(), null),
+                    getWorkerHandler().getLooper());
+        }
+        return mStartBufferCache;
+    }
+
+    /**
+     * @return 响度测量，第一次准备播放或扫描到音频时创建
+     */
+    private LoudnessAnalyzer getLoudnessAnalyzer() {
+        if (mLoudnessAnalyzer == null) {
+            final long beginMs = mStartupTrace.begin();
+            // Without the prefetcher: the analyser must not take the descriptors it prefetched.
+            mLoudnessAnalyzer = new LoudnessAnalyzer(new File(getFilesDir(), LOUDNESS_FILE),
+                    new File(getFilesDir(), WAVEFORM_DIR),
+                    new DataSourceFactory(this, getMediaCache(), null),
+                    new LoudnessAnalyzer.Listener() {
+                        @Override
+                        public void onAnalyzed(String filename) {
+                            mMediaSessionCallback.onAnalyzed(filename);
+                        }
+                    });
+            mStartupTrace.end("LoudnessAnalyzer", beginMs);
+        }
+        return mLoudnessAnalyzer;
+    }
+
+    /**
+     * @return 播放器，第一次播放时按保存的设置创建
+     */
+    private PlayerAdapter getPlayerAdapter() {
+        if (mPlayerAdapter == null) {
+            final DataSourceFactory dataSourceFactory = getDataSourceFactory();
+            final long beginMs = mStartupTrace.begin();
+            final SharedPreferences preferences = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+            mPlaybackSpeed = preferences.getFloat(EXTRA_PLAYBACK_SPEED, 1.0f);
+            mCrossfadeMs = preferences.getLong(EXTRA_CROSSFADE_MS, 0);
+            mPlayerBackend =
+                    preferences.getString(EXTRA_PLAYER_BACKEND, PLAYER_BACKEND_MEDIA_PLAYER);
+            mPlayerAdapter = createPlayerAdapter(getEffectiveBackend(), dataSourceFactory);
+            mStartupTrace.end("PlayerAdapter", beginMs);
+        }
+        return mPlayerAdapter;
+    }
+
+    /**
+     * 扫描音频文件
+     *
+     * @param directories 要扫描的目录并保存；为null时使用保存的目录，默认为公共的Music目录
+     */
+    private void scanLibrary(String[] directories) {
+        final SharedPreferences preferences = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        Set<String> paths;
+        if (directories != null) {
+            paths = new HashSet<>();
+            for (String directory : directories) {
+                paths.add(directory);
+            }
+            preferences.edit().putStringSet(EXTRA_SCAN_DIRECTORIES, paths).apply();
+        } else {
+            paths = preferences.getStringSet(EXTRA_SCAN_DIRECTORIES, null);
+            if (paths == null) {
+                paths = new HashSet<>();
+                paths.add(Environment.getExternalStoragePublicDirectory(
+                        Environment.DIRECTORY_MUSIC).getAbsolutePath());
+            }
+        }
+        final List<File> files = new ArrayList<>();
+        for (String path : paths) {
+            files.add(new File(path));
+        }
+        getLibraryScanner().scan(files);
+    }
+
+    /**
+     * 创建播放器
+     *
+     * @param backend           {@link #PLAYER_BACKEND_MEDIA_PLAYER} 或 {@link #PLAYER_BACKEND_CODEC}
+     * @param dataSourceFactory
+     * @return
+     */
+    private PlayerAdapter createPlayerAdapter(String backend,
+                                              DataSourceFactory dataSourceFactory) {
+        // Every player gets its own listener, so that a replaced player can't move the
+        // service out of the started state when it is stopped.
+        mPlayerListener = new MediaPlayerListener();
+        final PlayerAdapter playerAdapter;
+        if (PLAYER_BACKEND_CODEC.equals(backend)) {
+            playerAdapter = new CodecPlayerManager(this, mPlayerListener, dataSourceFactory,
+                    getStartBufferCache());
+        } else {
+            playerAdapter = new MediaPlayerManager(this, mPlayerListener, dataSourceFactory);
+        }
+        mActiveBackend = backend;
+        if (mPlaybackSpeed != 1.0f) {
+            playerAdapter.setPlaybackSpeed(mPlaybackSpeed);
+        }
+        playerAdapter.setCrossfadeDuration(mCrossfadeMs);
+        playerAdapter.setGainSource(getLoudnessAnalyzer().getStore());
+        mMemoryGovernor.register("PlayerAdapter", playerAdapter);
+        return playerAdapter;
+    }
+
+    /**
+     * @return 实际使用的播放器。MediaPlayer 在 Android M 以下不能变速、O 以下不能交叉淡入淡出，
+     * 这时使用 CodecPlayerManager，设置的播放器不变，关闭后再换回
+     */
+    private String getEffectiveBackend() {
+        if (PLAYER_BACKEND_CODEC.equals(mPlayerBackend)) {
+            return mPlayerBackend;
+        }
+        if (mPlaybackSpeed != 1.0f && Build.VERSION.SDK_INT < Build.VERSION_CODES.M
+                || mCrossfadeMs > 0 && Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            return PLAYER_BACKEND_CODEC;
+        }
+        return mPlayerBackend;
+    }
+
+    /**
+     * 设置播放速度并保存
+     *
+     * @param speed
+     */
+    private void setPlaybackSpeed(float speed) {
+        mPlaybackSpeed = Math.max(MIN_PLAYBACK_SPEED, Math.min(MAX_PLAYBACK_SPEED, speed));
+        getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+                .putFloat(EXTRA_PLAYBACK_SPEED, mPlaybackSpeed)
+                .apply();
+        // A player created later reads the saved value.
+        if (mPlayerAdapter == null) {
+            return;
+        }
+        final String backend = getEffectiveBackend();
+        if (!backend.equals(mActiveBackend)) {
+            // The new player is created with the speed.
+            replacePlayerAdapter(backend);
+        } else {
+            mPlayerAdapter.setPlaybackSpeed(mPlaybackSpeed);
+        }
+    }
+
+    /**
+     * 设置交叉淡入淡出时长并保存
+     *
+     * @param durationMs
+     */
+    private void setCrossfadeDuration(long durationMs) {
+        mCrossfadeMs = Math.max(0, Math.min(PlayerAdapter.MAX_CROSSFADE_MS, durationMs));
+        getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+                .putLong(EXTRA_CROSSFADE_MS, mCrossfadeMs)
+                .apply();
+        if (mPlayerAdapter == null) {
+            return;
+        }
+        final String backend = getEffectiveBackend();
+        if (!backend.equals(mActiveBackend)) {
+            // The new player is created with the duration.
+            replacePlayerAdapter(backend);
+        } else {
+            mPlayerAdapter.setCrossfadeDuration(mCrossfadeMs);
+        }
+    }
+
+    /**
+     * 设置播放器并保存，运行时替换，保留当前音频和播放状态
+     *
+     * @param backend
+     */
+    private void switchPlayerAdapter(String backend) {
+        getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+                .putString(EXTRA_PLAYER_BACKEND, backend)
+                .apply();
+        if (mPlayerAdapter == null) {
+            return;
+        }
+        mPlayerBackend = backend;
+        replacePlayerAdapter(getEffectiveBackend());
+    }
+
+    /**
+     * 替换播放器，保留当前音频和播放状态
+     *
+     * @param backend
+     */
+    private void replacePlayerAdapter(String backend) {
+        final PlayerAdapter oldPlayer = mPlayerAdapter;
+        final MediaMetadataCompat currentMedia = oldPlayer.getCurrentMedia();
+        final boolean wasPlaying = oldPlayer.isPlaying();
+        mPlayerListener.detach();
+        mPlayerAdapter = createPlayerAdapter(backend, getDataSourceFactory());
+        oldPlayer.stop();
+        mMemoryGovernor.unregister(oldPlayer);
+        Log.d(TAG, "replacePlayerAdapter: " + backend + " for " + mPlayerBackend);
+        if (wasPlaying && currentMedia != null) {
+            mPlayerAdapter.playFromMedia(currentMedia);
+        }
     }
 
     @Override
@@ -95,24 +592,354 @@ public class MusicService extends MediaBrowserServiceCompat {
 
     @Override
     public void onDestroy() {
-        mMediaNotificationManager.onDestroy();
-        mMediaPlayerManager.stop();
+        // Only what was used was created.
+        Looper.myQueue().removeIdleHandler(mStartLibraryWhenIdle);
+        if (mLibraryScanner != null) {
+            mLibraryScanner.release();
+        }
+        if (mLoudnessAnalyzer != null) {
+            mLoudnessAnalyzer.release();
+        }
+        if (mPlaylistImporter != null) {
+            mPlaylistImporter.cancel();
+        }
+        if (mPlaylistStore != null) {
+            mPlaylistStore.release();
+        }
+        mBrowseHandler.removeCallbacksAndMessages(null);
+        if (mMediaNotificationManager != null) {
+            mMediaNotificationManager.onDestroy();
+        }
+        if (mPlayerAdapter != null) {
+            mPlayerAdapter.stop();
+        }
         mMediaSessionCompat.release();
+        if (mMediaPrefetcher != null) {
+            mMediaPrefetcher.release();
+        }
+        if (mPlaybackWorker != null) {
+            mWorkerHandler.removeCallbacks(mWriteCatalog);
+            // Playlist edits already posted are still written.
+            mPlaybackWorker.quitSafely();
+        }
         Log.d(TAG, "onDestroy: MediaPlayerManager stopped, and MediaSession released");
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        mMemoryGovernor.onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        mMemoryGovernor.onLowMemory();
+    }
+
+    /**
+     * 根据客户端请求的root hints返回最近播放、离线或推荐的根节点
+     */
     @Override
     public BrowserRoot onGetRoot(@NonNull String clientPackageName,
                                  int clientUid,
                                  Bundle rootHints) {
-        return new BrowserRoot(MusicLibrary.getRoot(), null);
+        final BrowseClient client = mClientRegistry.onGetRoot(clientPackageName, clientUid);
+        Log.d(TAG, "onGetRoot: " + clientPackageName + " (" + client.getClientClass() + ")");
+        mStartupTrace.markFirst("onGetRoot");
+        if (rootHints != null) {
+            if (rootHints.getBoolean(BrowserRoot.EXTRA_RECENT)) {
+                return new BrowserRoot(RECENT_ROOT, createRootExtras(BrowserRoot.EXTRA_RECENT));
+            } else if (rootHints.getBoolean(BrowserRoot.EXTRA_OFFLINE)) {
+                return new BrowserRoot(MusicLibrary.OFFLINE_ROOT,
+                        createRootExtras(BrowserRoot.EXTRA_OFFLINE));
+            } else if (rootHints.getBoolean(BrowserRoot.EXTRA_SUGGESTED)) {
+                return new BrowserRoot(SUGGESTED_ROOT,
+                        createRootExtras(BrowserRoot.EXTRA_SUGGESTED));
+            }
+        }
+        // The root ids are constants, which do not initialise MusicLibrary.
+        return new BrowserRoot(MusicLibrary.ROOT, null);
+    }
+
+    /**
+     * The service confirms a root of the requested kind by setting the same flag.
+     */
+    private static Bundle createRootExtras(String flag) {
+        final Bundle extras = new Bundle();
+        extras.putBoolean(flag, true);
+        return extras;
     }
 
     @Override
     public void onLoadChildren(
             @NonNull final String parentMediaId,
             @NonNull final Result<List<MediaBrowserCompat.MediaItem>> result) {
-        result.sendResult(MusicLibrary.getMediaItems());
+        onLoadChildren(parentMediaId, result, null);
+    }
+
+    @Override
+    public void onLoadChildren(
+            @NonNull final String parentMediaId,
+            @NonNull final Result<List<MediaBrowserCompat.MediaItem>> result,
+            final Bundle options) {
+        final BrowseClient client = getCurrentClient();
+        client.onLoadChildren();
+        mStartupTrace.markFirst("onLoadChildren");
+        startLibrary();
+        dispatch(client, new BrowseRequest(result) {
+            @Override
+            List<MediaBrowserCompat.MediaItem> load() {
+                return client.page(getChildren(parentMediaId), options);
+            }
+        });
+    }
+
+    @Override
+    public void onSearch(@NonNull final String query, final Bundle extras,
+                         @NonNull final Result<List<MediaBrowserCompat.MediaItem>> result) {
+        final BrowseClient client = getCurrentClient();
+        client.onSearch();
+        startLibrary();
+        dispatch(client, new BrowseRequest(result) {
+            @Override
+            List<MediaBrowserCompat.MediaItem> load() {
+                return MusicLibrary.search(query, client.getPageSizeLimit());
+            }
+        });
+    }
+
+    /**
+     * 输出进程的内存、预取命中率和每个客户端的请求计数：adb shell dumpsys activity service MusicService
+     * ，参数为 recorder [json] 时输出播放事件记录
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        // dumpsys activity service .service.MusicService recorder [json]
+        if (args != null && args.length > 0 && "recorder".equals(args[0])) {
+            FlightRecorder.dump(writer, args.length > 1 && "json".equals(args[1]));
+            return;
+        }
+        final Runtime runtime = Runtime.getRuntime();
+        writer.println("Process " + MediaSessionApplication.getCurrentProcessName()
+                + (MediaSessionApplication.isPlaybackProcess() ? " (playback only)" : " (shared)"));
+        writer.println("  RSS " + MediaSessionApplication.getResidentSetKb() + " kB, PSS "
+                + MediaSessionApplication.getProportionalSetKb() + " kB, Java heap "
+                + (runtime.totalMemory() - runtime.freeMemory()) / 1024 + " kB");
+        mStartupTrace.dump(writer);
+        mMemoryGovernor.dump(writer);
+        if (mMediaPrefetcher != null) {
+            mMediaPrefetcher.dump(writer);
+        } else {
+            writer.println("Prefetch: not started");
+        }
+        mClientRegistry.dump(writer);
+        writer.println("Flight recorder: " + FlightRecorder.getRecordedCount()
+                + " events recorded; dump with the argument 'recorder [json]'");
+    }
+
+    /**
+     * 工作线程：写入音频目录快照
+     */
+    private final Runnable mWriteCatalog = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                CatalogFile.write(new File(getFilesDir(), CATALOG_FILE));
+            } catch (IOException e) {
+                Log.w(TAG, "write catalog", e);
+            }
+        }
+    };
+
+    /**
+     * 音频目录变化，合并一段时间内的变化后写入快照
+     */
+    private void scheduleCatalogWrite() {
+        final Handler workerHandler = getWorkerHandler();
+        workerHandler.removeCallbacks(mWriteCatalog);
+        workerHandler.postDelayed(mWriteCatalog, CATALOG_WRITE_DELAY_MS);
+    }
+
+    /**
+     * 设置会话的metadata，之后更新其版本
+     */
+    private void setSessionMetadata(MediaMetadataCompat metadata) {
+        // The version follows the metadata: a client that has the new version has seen it.
+        mMediaSessionCompat.setMetadata(metadata);
+        mMetadataVersion++;
+        publishVersions();
+    }
+
+    private void publishVersions() {
+        final Bundle extras = new Bundle();
+        extras.putLong(EXTRA_SESSION_INSTANCE, mSessionInstance);
+        extras.putLong(EXTRA_METADATA_VERSION, mMetadataVersion);
+        mMediaSessionCompat.setExtras(extras);
+    }
+
+    /**
+     * 通知订阅了播放列表的客户端
+     */
+    private final Runnable mNotifyQueueChanged = new Runnable() {
+        @Override
+        public void run() {
+            notifyChildrenChanged(QUEUE_ROOT);
+        }
+    };
+
+    /**
+     * 播放列表变化，合并同一轮消息中的变化后通知，例如客户端逐个加入音频时
+     */
+    private void scheduleQueueNotify() {
+        mBrowseHandler.removeCallbacks(mNotifyQueueChanged);
+        mBrowseHandler.post(mNotifyQueueChanged);
+    }
+
+    /**
+     * 冷启动时音频可能还没有从扫描记录恢复，从快照中加入
+     *
+     * @return 是否加入
+     */
+    private boolean adoptFromCatalog(String mediaId) {
+        if (mCatalogFile == null) {
+            return false;
+        }
+        final MediaMetadataCompat metadata = mCatalogFile.getMetadata(mediaId);
+        final String filename = mCatalogFile.getMusicFilename(mediaId);
+        if (metadata == null || filename == null) {
+            return false;
+        }
+        Log.d(TAG, "adoptFromCatalog: " + mediaId + " before the library was restored");
+        final Set<String> changedNodes = new HashSet<>();
+        MusicLibrary.putMusic(metadata, filename, changedNodes);
+        for (String parentId : changedNodes) {
+            notifyChildrenChanged(parentId);
+        }
+        return true;
+    }
+
+    /**
+     * 当前请求的客户端
+     */
+    private BrowseClient getCurrentClient() {
+        final MediaSessionManager.RemoteUserInfo browser;
+        try {
+            browser = getCurrentBrowserInfo();
+        } catch (IllegalStateException e) {
+            // Not inside a browser call, e.g. a result sent later.
+            return mClientRegistry.getClient(null, -1);
+        }
+        return mClientRegistry.getClient(browser.getPackageName(), browser.getUid());
+    }
+
+    /**
+     * 节点的子项，最近播放和推荐按播放记录构造，用户播放列表来自 PlaylistStore，其他来自缓存
+     */
+    private List<MediaBrowserCompat.MediaItem> getChildren(String parentMediaId) {
+        if (QUEUE_ROOT.equals(parentMediaId)) {
+            // Only the page the client asked for is looked up; the queue id is the position.
+            return MusicLibrary.getPlayableItems(mMediaSessionCallback.mQueue.getMediaIds());
+        }
+        if (MusicLibrary.PLAYLISTS.equals(parentMediaId)) {
+            final List<PlaylistStore.Playlist> playlists = getPlaylistStore().getPlaylists();
+            final List<MediaBrowserCompat.MediaItem> result = new ArrayList<>(playlists.size());
+            for (PlaylistStore.Playlist playlist : playlists) {
+                // Browsable to list the tracks, playable to play them all.
+                result.add(new MediaBrowserCompat.MediaItem(new MediaDescriptionCompat.Builder()
+                        .setMediaId(MusicLibrary.PLAYLIST_PREFIX + playlist.getId())
+                        .setTitle(playlist.getName())
+                        .setSubtitle(playlist.size() + " tracks")
+                        .build(), MediaBrowserCompat.MediaItem.FLAG_BROWSABLE
+                        | MediaBrowserCompat.MediaItem.FLAG_PLAYABLE));
+            }
+            return result;
+        }
+        final long playlistId = toPlaylistId(parentMediaId);
+        if (playlistId >= 0) {
+            final List<String> mediaIds = getPlaylistStore().getMediaIds(playlistId);
+            // Only the page the client asked for is looked up.
+            return mediaIds != null ? MusicLibrary.getPlayableItems(mediaIds)
+                    : Collections.<MediaBrowserCompat.MediaItem>emptyList();
+        }
+        if (RECENT_ROOT.equals(parentMediaId) || SUGGESTED_ROOT.equals(parentMediaId)) {
+            final String lastMediaId = getSharedPreferences(PREFS_NAME, MODE_PRIVATE)
+                    .getString(PREF_LAST_MEDIA_ID, null);
+            final MediaMetadataCompat lastMedia = lastMediaId != null
+                    ? MusicLibrary.getMetadataWithoutBitmap(lastMediaId) : null;
+            if (RECENT_ROOT.equals(parentMediaId)) {
+                return lastMedia == null
+                        ? Collections.<MediaBrowserCompat.MediaItem>emptyList()
+                        : Collections.singletonList(new MediaBrowserCompat.MediaItem(
+                                lastMedia.getDescription(),
+                                MediaBrowserCompat.MediaItem.FLAG_PLAYABLE));
+            }
+            // Suggest the album of the last track, or the whole library.
+            final String albumNode =
+                    lastMedia != null ? MusicLibrary.getAlbumNode(lastMediaId) : null;
+            return mBrowseCache.getChildren(albumNode != null ? albumNode
+                    : MusicLibrary.getOfflineRoot());
+        }
+        return mBrowseCache.getChildren(parentMediaId);
+    }
+
+    /**
+     * @return 播放列表节点对应的播放列表id，其他节点为-1
+     */
+    private static long toPlaylistId(String mediaId) {
+        if (mediaId == null || !mediaId.startsWith(MusicLibrary.PLAYLIST_PREFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(mediaId.substring(MusicLibrary.PLAYLIST_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static boolean isPlaylistAction(String action) {
+        return ACTION_CREATE_PLAYLIST.equals(action) || ACTION_RENAME_PLAYLIST.equals(action)
+                || ACTION_DELETE_PLAYLIST.equals(action) || ACTION_ADD_TO_PLAYLIST.equals(action)
+                || ACTION_MOVE_PLAYLIST_ITEM.equals(action)
+                || ACTION_REMOVE_PLAYLIST_ITEM.equals(action);
+    }
+
+    /**
+     * 按客户端的令牌桶发送：有令牌时立即发送，否则延迟到令牌补充；积压太多时返回错误。
+     * Each client waits for its own tokens only, so one client flooding the service with
+     * loads delays its own results without holding up the others.
+     */
+    private void dispatch(BrowseClient client, BrowseRequest request) {
+        final long delayMs = client.reserve(SystemClock.elapsedRealtime());
+        if (delayMs == 0) {
+            request.run();
+        } else if (delayMs < 0) {
+            Log.w(TAG, "dispatch: rejected a request of " + client.getPackageName());
+            // The browser gets onError.
+            request.mResult.sendResult(null);
+        } else {
+            request.mResult.detach();
+            mBrowseHandler.postDelayed(request, delayMs);
+        }
+    }
+
+    /**
+     * 一次浏览请求，立即或延迟发送结果
+     */
+    private abstract static class BrowseRequest implements Runnable {
+
+        final Result<List<MediaBrowserCompat.MediaItem>> mResult;
+
+        BrowseRequest(Result<List<MediaBrowserCompat.MediaItem>> result) {
+            mResult = result;
+        }
+
+        abstract List<MediaBrowserCompat.MediaItem> load();
+
+        @Override
+        public void run() {
+            mResult.sendResult(load());
+        }
     }
 
 
@@ -127,46 +954,142 @@ public class MusicService extends MediaBrowserServiceCompat {
      */
     public class MediaSessionCallback extends MediaSessionCompat.Callback {
         // 播放列表
-        private final List<MediaSessionCompat.QueueItem> mPlaylist = new ArrayList<>();
-        private int mQueueIndex = -1;
+        private final PlaybackQueue mQueue = new PlaybackQueue();
+        // 随机播放顺序的种子
+        private final Random mShuffleRandom = new Random();
+        private final Handler mHandler = new Handler();
         // 准备播放的音频数据
         private MediaMetadataCompat mPreparedMedia;
+        // 播放器创建前收到的seek，开始播放时使用
+        private long mPendingSeekMs = -1;
 
         @Override
         public void onAddQueueItem(MediaDescriptionCompat description) {
             //
-            mPlaylist.add(new MediaSessionCompat.QueueItem(description, description.hashCode()));
-            //
-            mQueueIndex = (mQueueIndex == -1) ? 0 : mQueueIndex;
+            mQueue.add(description);
+            FlightRecorder.record(FlightRecorder.EVENT_COMMAND,
+                    FlightRecorder.COMMAND_ADD_QUEUE_ITEM, mQueue.size());
+            scheduleQueueNotify();
         }
 
         @Override
         public void onRemoveQueueItem(MediaDescriptionCompat description) {
-            mPlaylist.remove(new MediaSessionCompat.QueueItem(description, description.hashCode()));
-            mQueueIndex = (mPlaylist.isEmpty()) ? -1 : mQueueIndex;
+            mQueue.remove(description);
+            FlightRecorder.record(FlightRecorder.EVENT_COMMAND,
+                    FlightRecorder.COMMAND_REMOVE_QUEUE_ITEM, mQueue.size());
+            scheduleQueueNotify();
+        }
+
+        /**
+         * 播放用户播放列表，替换当前的播放列表
+         */
+        @Override
+        public void onPlayFromMediaId(String mediaId, Bundle extras) {
+            final long playlistId = toPlaylistId(mediaId);
+            FlightRecorder.record(FlightRecorder.EVENT_COMMAND,
+                    FlightRecorder.COMMAND_PLAY_FROM_MEDIA_ID, playlistId);
+            if (playlistId < 0) {
+                playTrack(mediaId);
+                return;
+            }
+            final List<String> mediaIds = getPlaylistStore().getMediaIds(playlistId);
+            if (mediaIds == null || mediaIds.isEmpty()) {
+                return;
+            }
+            if (mPlaylistImporter != null) {
+                // Its later batches would be added to this playlist.
+                mPlaylistImporter.cancel();
+            }
+            mQueue.clear();
+            // Only the ids are copied; a description is looked up when its track is prepared.
+            mQueue.addMediaIds(mediaIds);
+            scheduleQueueNotify();
+            mPreparedMedia = null;
+            onPlay();
+        }
+
+        /**
+         * 播放一首音频，不在播放列表中时加到末尾
+         */
+        private void playTrack(String mediaId) {
+            int index = mQueue.indexOf(mediaId);
+            if (index < 0) {
+                final MediaMetadataCompat metadata =
+                        MusicLibrary.getMetadataWithoutBitmap(mediaId);
+                if (metadata == null) {
+                    Log.w(TAG, "playTrack: not in the library: " + mediaId);
+                    return;
+                }
+                mQueue.add(metadata.getDescription());
+                scheduleQueueNotify();
+                index = mQueue.size() - 1;
+            }
+            mQueue.skipToIndex(index);
+            mPreparedMedia = null;
+            onPlay();
+        }
+
+        @Override
+        public void onSkipToQueueItem(long id) {
+            final boolean skipped = mQueue.skipToIndex((int) id);
+            FlightRecorder.record(FlightRecorder.EVENT_COMMAND,
+                    FlightRecorder.COMMAND_SKIP_TO_QUEUE_ITEM, skipped ? id : -1);
+            if (!skipped) {
+                // The queue changed since the client listed it.
+                return;
+            }
+            mPreparedMedia = null;
+            onPlay();
         }
 
         @Override
         public void onPrepare() {
-            if (mQueueIndex < 0 && mPlaylist.isEmpty()) {
+            FlightRecorder.record(FlightRecorder.EVENT_COMMAND,
+                    FlightRecorder.COMMAND_PREPARE, mQueue.isEmpty() ? -1 : mQueue.getIndex());
+            if (mQueue.isEmpty()) {
                 // Nothing to play.
                 return;
             }
 
-            final String mediaId = mPlaylist.get(mQueueIndex).getDescription().getMediaId();
-            // 根据音频 获取音频数据
-            mPreparedMedia = MusicLibrary.getMetadata(MusicService.this, mediaId);
+            final String mediaId = mQueue.getCurrentMediaId();
+            mPendingSeekMs = -1;
+            startLibrary();
+            // 最近播放
+            getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit()
+                    .putString(PREF_LAST_MEDIA_ID, mediaId)
+                    .apply();
+            // 优先使用预取的音频数据，未命中时再同步获取
+            mPreparedMedia = getMediaPrefetcher().getMetadata(mediaId);
+            if (mPreparedMedia == null) {
+                mPreparedMedia = MusicLibrary.getMetadata(MusicService.this, mediaId);
+            }
+            if (mPreparedMedia == null && adoptFromCatalog(mediaId)) {
+                mPreparedMedia = MusicLibrary.getMetadata(MusicService.this, mediaId);
+            }
+            if (mPreparedMedia == null) {
+                // Deleted from the library by a rescan while still queued.
+                Log.w(TAG, "onPrepare: " + mediaId + " is no longer in the library");
+                return;
+            }
+            mPreparedMedia = withWaveform(mPreparedMedia, MusicLibrary.getMusicFilename(mediaId));
+            // Measured in time for the next time it plays, if not already.
+            getLoudnessAnalyzer().analyze(MusicLibrary.getMusicFilename(mediaId), true);
             // 设置音频数据
             // 该方法将回调到 Client 的 MediaControllerCallback.onMetadataChanged
-            mMediaSessionCompat.setMetadata(mPreparedMedia);
+            setSessionMetadata(mPreparedMedia);
             // 激活mediaSession
             if (!mMediaSessionCompat.isActive()) {
                 mMediaSessionCompat.setActive(true);
             }
+            // 预取前后的音频
+            mMediaPrefetcher.onQueueIndexChanged(mQueue);
+            // 支持无缝播放的播放器会在当前音频结束后直接播放下一首
+            updateNextMedia();
         }
 
         @Override
         public void onPlay() {
+            FlightRecorder.record(FlightRecorder.EVENT_COMMAND, FlightRecorder.COMMAND_PLAY, 0);
             //
             if (!isReadyToPlay()) {
                 // Nothing to play.
@@ -175,40 +1098,322 @@ public class MusicService extends MediaBrowserServiceCompat {
             // 准备数据
             if (mPreparedMedia == null) {
                 onPrepare();
+                if (mPreparedMedia == null) {
+                    return;
+                }
+            }
+            // 第一次播放时创建播放器，并告诉它下一首
+            if (mPlayerAdapter == null) {
+                getPlayerAdapter();
+                updateNextMedia();
             }
             // 播放
-            mMediaPlayerManager.playFromMedia(mPreparedMedia);
+            mPlayerAdapter.playFromMedia(mPreparedMedia);
+            if (mPendingSeekMs >= 0) {
+                // The players hold a seek issued while they prepare.
+                mPlayerAdapter.seekTo(mPendingSeekMs);
+                mPendingSeekMs = -1;
+            }
             Log.d(TAG, "onPlayFromMediaId: MediaSession active");
         }
 
         @Override
         public void onPause() {
-            mMediaPlayerManager.pause();
+            FlightRecorder.record(FlightRecorder.EVENT_COMMAND, FlightRecorder.COMMAND_PAUSE, 0);
+            if (mPlayerAdapter != null) {
+                mPlayerAdapter.pause();
+            }
         }
 
         @Override
         public void onStop() {
-            mMediaPlayerManager.stop();
+            FlightRecorder.record(FlightRecorder.EVENT_COMMAND, FlightRecorder.COMMAND_STOP, 0);
+            if (mPlayerAdapter != null) {
+                mPlayerAdapter.stop();
+            }
             mMediaSessionCompat.setActive(false);
         }
 
         @Override
         public void onSkipToNext() {
-            mQueueIndex = (++mQueueIndex % mPlaylist.size());
+            final boolean skipped = mQueue.skipToNext();
+            FlightRecorder.record(FlightRecorder.EVENT_COMMAND,
+                    FlightRecorder.COMMAND_SKIP_TO_NEXT, skipped ? mQueue.getIndex() : -1);
+            if (!skipped) {
+                // Last item and repeat is off.
+                return;
+            }
             mPreparedMedia = null;
             onPlay();
         }
 
         @Override
         public void onSkipToPrevious() {
-            mQueueIndex = mQueueIndex > 0 ? mQueueIndex - 1 : mPlaylist.size() - 1;
+            final boolean skipped = mQueue.skipToPrevious();
+            FlightRecorder.record(FlightRecorder.EVENT_COMMAND,
+                    FlightRecorder.COMMAND_SKIP_TO_PREVIOUS, skipped ? mQueue.getIndex() : -1);
+            if (!skipped) {
+                return;
+            }
             mPreparedMedia = null;
             onPlay();
         }
 
         @Override
         public void onSeekTo(long pos) {
-            mMediaPlayerManager.seekTo(pos);
+            FlightRecorder.record(FlightRecorder.EVENT_COMMAND,
+                    FlightRecorder.COMMAND_SEEK_TO, pos);
+            if (mPlayerAdapter != null) {
+                mPlayerAdapter.seekTo(pos);
+            } else if (mPreparedMedia != null) {
+                // A client replaying its commands after this process was restarted seeks in
+                // the prepared item before it plays it.
+                mPendingSeekMs = pos;
+            }
+        }
+
+        @Override
+        public void onSetRepeatMode(int repeatMode) {
+            FlightRecorder.record(FlightRecorder.EVENT_COMMAND,
+                    FlightRecorder.COMMAND_SET_REPEAT_MODE, repeatMode);
+            mQueue.setRepeatMode(repeatMode);
+            mMediaSessionCompat.setRepeatMode(mQueue.getRepeatMode());
+            onPlayOrderChanged();
+        }
+
+        @Override
+        public void onSetShuffleMode(int shuffleMode) {
+            FlightRecorder.record(FlightRecorder.EVENT_COMMAND,
+                    FlightRecorder.COMMAND_SET_SHUFFLE_MODE, shuffleMode);
+            final boolean enabled = shuffleMode != PlaybackStateCompat.SHUFFLE_MODE_NONE;
+            // A new seed every time shuffle is turned on, like a new shuffle.
+            mQueue.setShuffleEnabled(enabled, mShuffleRandom.nextLong());
+            mMediaSessionCompat.setShuffleMode(enabled
+                    ? PlaybackStateCompat.SHUFFLE_MODE_ALL
+                    : PlaybackStateCompat.SHUFFLE_MODE_NONE);
+            onPlayOrderChanged();
+        }
+
+        @Override
+        public void onCustomAction(String action, Bundle extras) {
+            if (ACTION_SET_PLAYER_BACKEND.equals(action) && extras != null) {
+                FlightRecorder.record(FlightRecorder.EVENT_COMMAND,
+                        FlightRecorder.COMMAND_SET_PLAYER_BACKEND, 0);
+                switchPlayerAdapter(extras.getString(EXTRA_PLAYER_BACKEND));
+                updateNextMedia();
+            } else if (ACTION_SET_PLAYBACK_SPEED.equals(action) && extras != null) {
+                // MediaSessionCompat has no onSetPlaybackSpeed() in this support library.
+                final float speed = extras.getFloat(EXTRA_PLAYBACK_SPEED, 1.0f);
+                FlightRecorder.record(FlightRecorder.EVENT_COMMAND,
+                        FlightRecorder.COMMAND_SET_PLAYBACK_SPEED, Math.round(speed * 1000));
+                setPlaybackSpeed(speed);
+            } else if (ACTION_SET_CROSSFADE.equals(action) && extras != null) {
+                final long durationMs = extras.getLong(EXTRA_CROSSFADE_MS, 0);
+                FlightRecorder.record(FlightRecorder.EVENT_COMMAND,
+                        FlightRecorder.COMMAND_SET_CROSSFADE, durationMs);
+                setCrossfadeDuration(durationMs);
+            } else if (ACTION_SCAN_LIBRARY.equals(action)) {
+                FlightRecorder.record(FlightRecorder.EVENT_COMMAND,
+                        FlightRecorder.COMMAND_SCAN_LIBRARY, 0);
+                scanLibrary(extras != null ? extras.getStringArray(EXTRA_SCAN_DIRECTORIES) : null);
+            } else if (ACTION_IMPORT_PLAYLIST.equals(action) && extras != null
+                    && extras.getString(EXTRA_PLAYLIST_URI) != null) {
+                FlightRecorder.record(FlightRecorder.EVENT_COMMAND,
+                        FlightRecorder.COMMAND_IMPORT_PLAYLIST, 0);
+                importPlaylist(Uri.parse(extras.getString(EXTRA_PLAYLIST_URI)));
+            } else if (isPlaylistAction(action) && extras != null) {
+                editPlaylist(action, extras);
+            }
+        }
+
+        /**
+         * 修改用户播放列表，并通知浏览的客户端
+         */
+        private void editPlaylist(String action, Bundle extras) {
+            final PlaylistStore store = getPlaylistStore();
+            final String[] mediaIds = extras.getStringArray(EXTRA_MEDIA_IDS);
+            if (ACTION_CREATE_PLAYLIST.equals(action)) {
+                final long id = store.create(extras.getString(EXTRA_PLAYLIST_NAME));
+                FlightRecorder.record(FlightRecorder.EVENT_COMMAND,
+                        FlightRecorder.COMMAND_EDIT_PLAYLIST, id);
+                // Without ids, the queue as it is now is saved.
+                store.append(id, mediaIds != null ? Arrays.asList(mediaIds)
+                        : mQueue.getMediaIds());
+                notifyChildrenChanged(MusicLibrary.PLAYLISTS);
+                return;
+            }
+            final long id = toPlaylistId(extras.getString(EXTRA_PLAYLIST_ID));
+            FlightRecorder.record(FlightRecorder.EVENT_COMMAND,
+                    FlightRecorder.COMMAND_EDIT_PLAYLIST, id);
+            final boolean changed;
+            if (ACTION_RENAME_PLAYLIST.equals(action)) {
+                changed = store.rename(id, extras.getString(EXTRA_PLAYLIST_NAME));
+            } else if (ACTION_DELETE_PLAYLIST.equals(action)) {
+                changed = store.delete(id);
+            } else if (ACTION_ADD_TO_PLAYLIST.equals(action)) {
+                changed = mediaIds != null && store.append(id, Arrays.asList(mediaIds));
+            } else if (ACTION_MOVE_PLAYLIST_ITEM.equals(action)) {
+                changed = store.move(id, extras.getInt(EXTRA_FROM_INDEX, -1),
+                        extras.getInt(EXTRA_TO_INDEX, -1));
+            } else {
+                changed = store.remove(id, extras.getInt(EXTRA_INDEX, -1));
+            }
+            if (!changed) {
+                Log.w(TAG, "editPlaylist: " + action + " failed for playlist " + id);
+                return;
+            }
+            // The playlists node shows the names and sizes.
+            notifyChildrenChanged(MusicLibrary.PLAYLISTS);
+            if (!ACTION_DELETE_PLAYLIST.equals(action)) {
+                notifyChildrenChanged(MusicLibrary.PLAYLIST_PREFIX + id);
+            }
+        }
+
+        /**
+         * 导入播放列表，结果由 onItemsImported 加入播放列表
+         */
+        private void importPlaylist(Uri uri) {
+            // Opens the catalog snapshot when the library is not restored yet.
+            startLibrary();
+            if (mPlaylistImporter == null) {
+                mPlaylistImporter = new PlaylistImporter(MusicService.this,
+                        new PlaylistImporter.Callback() {
+                            @Override
+                            public void onItemsImported(List<MediaDescriptionCompat> items,
+                                                        boolean first) {
+                                onPlaylistItemsImported(items, first);
+                            }
+
+                            @Override
+                            public void onImportFinished(int importedCount, int skippedCount,
+                                                         long elapsedMs) {
+                                Log.d(TAG, "onImportFinished: " + importedCount + " imported, "
+                                        + skippedCount + " not in the library, "
+                                        + elapsedMs + " ms");
+                            }
+                        });
+            }
+            mPlaylistImporter.start(uri, mCatalogFile);
+        }
+
+        /**
+         * 第一批替换播放列表并开始播放，之后的追加到末尾
+         */
+        private void onPlaylistItemsImported(List<MediaDescriptionCompat> items, boolean first) {
+            if (first) {
+                mQueue.clear();
+                mQueue.addAll(items);
+                scheduleQueueNotify();
+                mPreparedMedia = null;
+                onPlay();
+                return;
+            }
+            final int nextIndex = mQueue.getNextIndex();
+            mQueue.addAll(items);
+            scheduleQueueNotify();
+            // The next item only changes when the end was reached, or with shuffle on.
+            if (mQueue.getNextIndex() != nextIndex) {
+                onPlayOrderChanged();
+            }
+        }
+
+        /**
+         * 当前音频测量完成后，把波形加入metadata
+         */
+        void onAnalyzed(String filename) {
+            if (mPreparedMedia == null || mQueue.isEmpty()
+                    || !filename.equals(MusicLibrary.getMusicFilename(mQueue.getCurrentMediaId()))
+                    || mPreparedMedia.containsKey(METADATA_KEY_WAVEFORM)) {
+                return;
+            }
+            mPreparedMedia = withWaveform(mPreparedMedia, filename);
+            setSessionMetadata(mPreparedMedia);
+        }
+
+        /**
+         * @return 有波形文件时加入其路径
+         */
+        private MediaMetadataCompat withWaveform(MediaMetadataCompat metadata, String filename) {
+            final File waveform =
+                    filename != null ? getLoudnessAnalyzer().getWaveformFile(filename) : null;
+            if (waveform == null) {
+                return metadata;
+            }
+            return new MediaMetadataCompat.Builder(metadata)
+                    .putString(METADATA_KEY_WAVEFORM, waveform.getPath())
+                    .build();
+        }
+
+        /**
+         * 播放器已无缝切换到下一首，同步播放位置和音频数据
+         *
+         * @param metadata 播放器实际切换到的音频
+         */
+        void onMediaTransition(MediaMetadataCompat metadata) {
+            if (mQueue.isEmpty()) {
+                return;
+            }
+            final String mediaId = metadata.getDescription().getMediaId();
+            final int nextIndex = mQueue.getNextIndex();
+            final int index = nextIndex >= 0 && mediaId.equals(mQueue.getMediaId(nextIndex))
+                    ? nextIndex : mQueue.indexOf(mediaId);
+            if (index < 0) {
+                // Removed from the queue after the player took it: shown while it plays, the
+                // queue goes on from where it was.
+                mPreparedMedia = metadata;
+                setSessionMetadata(metadata);
+                updateNextMedia();
+                return;
+            }
+            // The queue may have changed after the player took the next item: follow the player.
+            mQueue.skipToIndex(index);
+            mPreparedMedia = null;
+            onPrepare();
+        }
+
+        /**
+         * 播放器没有无缝播放下一首，按循环模式继续播放
+         */
+        void onPlaybackCompleted() {
+            if (!mQueue.advance()) {
+                return;
+            }
+            mPreparedMedia = null;
+            // After the player has reported the paused state of the completed item.
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onPlay();
+                }
+            });
+        }
+
+        /**
+         * 随机播放或循环模式变化，前后的音频随之变化
+         */
+        private void onPlayOrderChanged() {
+            if (mPreparedMedia != null) {
+                mMediaPrefetcher.onQueueIndexChanged(mQueue);
+                updateNextMedia();
+            }
+        }
+
+        /**
+         * 告诉播放器下一首音频
+         */
+        private void updateNextMedia() {
+            if (mPlayerAdapter == null) {
+                // onPlay() calls again once it has created the player.
+                return;
+            }
+            final int nextIndex = mQueue.getNextIndex();
+            if (nextIndex < 0) {
+                mPlayerAdapter.setNextMedia(null);
+                return;
+            }
+            final String nextMediaId = mQueue.getMediaId(nextIndex);
+            getLoudnessAnalyzer().analyze(MusicLibrary.getMusicFilename(nextMediaId), true);
+            mPlayerAdapter.setNextMedia(MusicLibrary.getMetadataWithoutBitmap(nextMediaId));
         }
 
         /**
@@ -217,7 +1422,56 @@ public class MusicService extends MediaBrowserServiceCompat {
          * @return
          */
         private boolean isReadyToPlay() {
-            return (!mPlaylist.isEmpty());
+            return (!mQueue.isEmpty());
+        }
+    }
+
+
+    // #################################################################################
+
+
+    /**
+     * 扫描到的变化应用到MusicLibrary，每批通知一次订阅者
+     */
+    private class LibraryScannerCallback implements LibraryScanner.Callback {
+
+        @Override
+        public void onTracksScanned(List<TrackInfo> tracks) {
+            final Set<String> changedNodes = new HashSet<>();
+            for (TrackInfo track : tracks) {
+                MusicLibrary.putMusic(track.toMetadata(), track.getMusicFilename(), changedNodes);
+                // Measured tracks are skipped after a stat.
+                getLoudnessAnalyzer().analyze(track.getMusicFilename(), false);
+            }
+            notifyNodesChanged(changedNodes);
+            scheduleCatalogWrite();
+        }
+
+        @Override
+        public void onTracksRemoved(List<String> mediaIds) {
+            final Set<String> changedNodes = new HashSet<>();
+            for (String mediaId : mediaIds) {
+                MusicLibrary.removeMusic(mediaId, changedNodes);
+            }
+            notifyNodesChanged(changedNodes);
+            scheduleCatalogWrite();
+        }
+
+        /**
+         * 只通知变化的节点，其他节点的订阅者继续使用缓存
+         */
+        private void notifyNodesChanged(Set<String> changedNodes) {
+            for (String parentId : changedNodes) {
+                notifyChildrenChanged(parentId);
+            }
+        }
+
+        @Override
+        public void onScanFinished(int trackCount, long elapsedMs) {
+            Log.d(TAG, "onScanFinished: " + trackCount + " tracks read in " + elapsedMs + " ms");
+            mStartupTrace.markFirst("onScanFinished");
+            // The library is complete now; the snapshot is only needed before that.
+            mCatalogFile = null;
         }
     }
 
@@ -231,13 +1485,24 @@ public class MusicService extends MediaBrowserServiceCompat {
     public class MediaPlayerListener extends PlaybackInfoListener {
 
         private final ServiceManager mServiceManager;
+        // 播放器已被替换
+        private boolean mDetached;
 
         MediaPlayerListener() {
             mServiceManager = new ServiceManager();
         }
 
+        void detach() {
+            mDetached = true;
+        }
+
         @Override
         public void onPlaybackStateChange(PlaybackStateCompat state) {
+            if (mDetached) {
+                return;
+            }
+            FlightRecorder.record(FlightRecorder.EVENT_STATE, state.getState(),
+                    state.getPosition());
             // 最终回调到Client 的 MediaControllerCallback.onPlaybackStateChanged
             mMediaSessionCompat.setPlaybackState(state);
 
@@ -257,7 +1522,16 @@ public class MusicService extends MediaBrowserServiceCompat {
 
         @Override
         public void onPlaybackCompleted() {
+            if (!mDetached) {
+                mMediaSessionCallback.onPlaybackCompleted();
+            }
+        }
 
+        @Override
+        public void onMediaTransition(MediaMetadataCompat metadata) {
+            if (!mDetached) {
+                mMediaSessionCallback.onMediaTransition(metadata);
+            }
         }
 
         class ServiceManager {
@@ -267,8 +1541,8 @@ public class MusicService extends MediaBrowserServiceCompat {
             private void moveServiceToStartedState(PlaybackStateCompat state) {
                 //
                 Notification notification =
-                        mMediaNotificationManager.getNotification(
-                                mMediaPlayerManager.getCurrentMedia(), state, getSessionToken());
+                        getNotificationManager().getNotification(
+                                mPlayerAdapter.getCurrentMedia(), state, getSessionToken());
                 //
                 if (!mServiceInStartedState) {
                     ContextCompat.startForegroundService(
@@ -278,6 +1552,8 @@ public class MusicService extends MediaBrowserServiceCompat {
                 }
                 //
                 startForeground(MediaNotificationManager.NOTIFICATION_ID, notification);
+                FlightRecorder.record(FlightRecorder.EVENT_NOTIFICATION,
+                        FlightRecorder.NOTIFICATION_FOREGROUND, state.getState());
             }
 
             /**
@@ -286,10 +1562,12 @@ public class MusicService extends MediaBrowserServiceCompat {
             private void updateNotificationForPause(PlaybackStateCompat state) {
                 stopForeground(false);
                 Notification notification =
-                        mMediaNotificationManager.getNotification(
-                                mMediaPlayerManager.getCurrentMedia(), state, getSessionToken());
-                mMediaNotificationManager.getNotificationManager()
+                        getNotificationManager().getNotification(
+                                mPlayerAdapter.getCurrentMedia(), state, getSessionToken());
+                getNotificationManager().getNotificationManager()
                         .notify(MediaNotificationManager.NOTIFICATION_ID, notification);
+                FlightRecorder.record(FlightRecorder.EVENT_NOTIFICATION,
+                        FlightRecorder.NOTIFICATION_UPDATE, state.getState());
             }
 
             /**
@@ -299,6 +1577,8 @@ public class MusicService extends MediaBrowserServiceCompat {
                 stopForeground(true);
                 stopSelf();
                 mServiceInStartedState = false;
+                FlightRecorder.record(FlightRecorder.EVENT_NOTIFICATION,
+                        FlightRecorder.NOTIFICATION_REMOVE, state.getState());
             }
         }
 
@@ -16,6 +16,7 @@
 
 package com.example.android.mediasession.service;
 
+import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 
@@ -40,4 +41,12 @@ public abstract class PlaybackInfoListener {
      */
     public void onPlaybackCompleted() {
     }
+
+    /**
+     * 无缝切换到了下一首音频（见 {@link com.example.android.mediasession.service.player.PlayerAdapter#setNextMedia}）
+     *
+     * @param metadata 正在播放的音频
+     */
+    public void onMediaTransition(MediaMetadataCompat metadata) {
+    }
 }
\ No newline at end of file
@@ -0,0 +1,373 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service;
+
+import android.support.v4.media.MediaDescriptionCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The play queue of {@link MusicService.MediaSessionCallback}: the media ids of the queue
+ * items, the index of the current one, and the shuffle and repeat modes.
+ * <p>
+ * Only the ids are kept, so a whole playlist goes into the queue as a copy of its id list;
+ * the descriptions are looked up when an item is played or listed.
+ * <p>
+ * Shuffle never reorders the items: a {@link ShuffleOrder} maps play positions to indices on
+ * demand, so turning it on or off, or changing the queue, costs the same for any queue size.
+ * Adding or removing items keeps the order of the others.
+ * <p>
+ * {@link #indexOf} and {@link #remove} look ids up in an index of the first position of each,
+ * built lazily up to the position asked for: appending does not touch it, and removing an
+ * item only drops what follows it.
+ * Skipping wraps around at both ends unless the repeat mode is
+ * {@link PlaybackStateCompat#REPEAT_MODE_NONE}.
+ * <p>
+ * 播放列表
+ */
+public class PlaybackQueue {
+
+    // 播放列表的音频id
+    private final ArrayList<String> mMediaIds = new ArrayList<>();
+    // 当前音频的位置，-1表示列表为空
+    private int mIndex = -1;
+    // 音频id第一次出现的位置；只有小于 mIndexedCount 的值有效，其后的位置还未加入
+    private final HashMap<String, Integer> mFirstIndices = new HashMap<>();
+    private int mIndexedCount;
+
+    // 循环模式，默认列表循环
+    private int mRepeatMode = PlaybackStateCompat.REPEAT_MODE_ALL;
+    private boolean mShuffleEnabled;
+    private long mShuffleSeed;
+    // 随机播放顺序，未开启随机播放或列表为空时为null
+    private ShuffleOrder mShuffleOrder;
+
+
+    /**
+     * 添加到列表末尾
+     *
+     * @param description
+     */
+    public void add(MediaDescriptionCompat description) {
+        mMediaIds.add(description.getMediaId());
+        mIndex = (mIndex == -1) ? 0 : mIndex;
+        onAppended(1);
+    }
+
+    /**
+     * 添加到列表末尾，随机顺序只更新一次
+     *
+     * @param descriptions
+     */
+    public void addAll(List<MediaDescriptionCompat> descriptions) {
+        if (descriptions.isEmpty()) {
+            return;
+        }
+        mMediaIds.ensureCapacity(mMediaIds.size() + descriptions.size());
+        for (MediaDescriptionCompat description : descriptions) {
+            mMediaIds.add(description.getMediaId());
+        }
+        mIndex = (mIndex == -1) ? 0 : mIndex;
+        onAppended(descriptions.size());
+    }
+
+    /**
+     * 按音频id添加到末尾，例如播放用户的播放列表时
+     *
+     * @param mediaIds 只复制id
+     */
+    public void addMediaIds(Collection<String> mediaIds) {
+        if (mediaIds.isEmpty()) {
+            return;
+        }
+        mMediaIds.addAll(mediaIds);
+        mIndex = (mIndex == -1) ? 0 : mIndex;
+        onAppended(mediaIds.size());
+    }
+
+    /**
+     * 清空列表
+     */
+    public void clear() {
+        mMediaIds.clear();
+        mFirstIndices.clear();
+        mIndexedCount = 0;
+        mIndex = -1;
+        updateShuffleOrder();
+    }
+
+    /**
+     * 按音频id移除
+     *
+     * @param description
+     * @return 是否移除
+     */
+    public boolean remove(MediaDescriptionCompat description) {
+        final String mediaId = description.getMediaId();
+        final int i = mediaId != null ? indexOf(mediaId) : -1;
+        if (i < 0) {
+            return false;
+        }
+        mMediaIds.remove(i);
+        // The items after it moved; a later copy of the id becomes the first when indexed.
+        mFirstIndices.remove(mediaId);
+        mIndexedCount = i;
+        if (mMediaIds.isEmpty()) {
+            mIndex = -1;
+        } else if (i < mIndex || mIndex == mMediaIds.size()) {
+            // Keep pointing at the same item, or wrap when the last one was removed.
+            mIndex = i < mIndex ? mIndex - 1 : 0;
+        }
+        if (mMediaIds.isEmpty()) {
+            mShuffleOrder = null;
+        } else if (mShuffleOrder != null) {
+            mShuffleOrder.remove(i);
+        }
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return mMediaIds.isEmpty();
+    }
+
+    public int size() {
+        return mMediaIds.size();
+    }
+
+    /**
+     * @return 当前音频的位置，-1表示列表为空
+     */
+    public int getIndex() {
+        return mIndex;
+    }
+
+    /**
+     * @return 当前音频的id，列表为空时为null
+     */
+    public String getCurrentMediaId() {
+        return mIndex < 0 ? null : mMediaIds.get(mIndex);
+    }
+
+    /**
+     * 当前音频播放完后自动播放的音频，单曲循环时是当前音频
+     *
+     * @return 下一首的位置，没有下一首或列表为空时为-1
+     */
+    public int getNextIndex() {
+        if (mMediaIds.isEmpty()) {
+            return -1;
+        }
+        if (mRepeatMode == PlaybackStateCompat.REPEAT_MODE_ONE) {
+            return mIndex;
+        }
+        return getIndexAtOffset(1);
+    }
+
+    /**
+     * 按播放顺序，距离当前音频offset的音频
+     *
+     * @param offset 正数向后，负数向前
+     * @return 列表中的位置，不循环且超出列表时为-1
+     */
+    public int getIndexAtOffset(int offset) {
+        final int size = mMediaIds.size();
+        if (size == 0) {
+            return -1;
+        }
+        long position = (long) positionOf(mIndex) + offset;
+        if (position < 0 || position >= size) {
+            if (mRepeatMode == PlaybackStateCompat.REPEAT_MODE_NONE) {
+                return -1;
+            }
+            position = (position % size + size) % size;
+        }
+        return indexAt((int) position);
+    }
+
+    /**
+     * @return 指定位置的音频id
+     */
+    public String getMediaId(int index) {
+        return mMediaIds.get(index);
+    }
+
+    /**
+     * 下一首，到末尾后回到开头；不循环时停在末尾
+     *
+     * @return 是否切换
+     */
+    public boolean skipToNext() {
+        return moveTo(getIndexAtOffset(1));
+    }
+
+    /**
+     * 上一首，到开头后回到末尾；不循环时停在开头
+     *
+     * @return 是否切换
+     */
+    public boolean skipToPrevious() {
+        return moveTo(getIndexAtOffset(-1));
+    }
+
+    /**
+     * @return 音频第一次出现的位置，不在播放列表中时为-1
+     */
+    public int indexOf(String mediaId) {
+        final Integer index = mFirstIndices.get(mediaId);
+        if (index != null && index < mIndexedCount) {
+            return index;
+        }
+        // Not before mIndexedCount: index the rest until it is found.
+        while (mIndexedCount < mMediaIds.size()) {
+            final int position = mIndexedCount++;
+            final String id = mMediaIds.get(position);
+            final Integer first = mFirstIndices.get(id);
+            if (first == null || first >= position) {
+                mFirstIndices.put(id, position);
+                if (id == null ? mediaId == null : id.equals(mediaId)) {
+                    return position;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 切换到指定位置，例如在播放列表界面中点击
+     *
+     * @return 是否切换，位置无效时不切换
+     */
+    public boolean skipToIndex(int index) {
+        return index < mMediaIds.size() && moveTo(index);
+    }
+
+    /**
+     * 当前音频播放完成，按循环模式切换
+     *
+     * @return 是否还有要播放的音频
+     */
+    public boolean advance() {
+        return moveTo(getNextIndex());
+    }
+
+    /**
+     * @param repeatMode {@link PlaybackStateCompat#REPEAT_MODE_NONE},
+     *                   {@link PlaybackStateCompat#REPEAT_MODE_ONE} 或
+     *                   {@link PlaybackStateCompat#REPEAT_MODE_ALL}，GROUP按ALL处理
+     */
+    public void setRepeatMode(@PlaybackStateCompat.RepeatMode int repeatMode) {
+        mRepeatMode = repeatMode == PlaybackStateCompat.REPEAT_MODE_GROUP
+                ? PlaybackStateCompat.REPEAT_MODE_ALL
+                : repeatMode;
+    }
+
+    @PlaybackStateCompat.RepeatMode
+    public int getRepeatMode() {
+        return mRepeatMode;
+    }
+
+    /**
+     * 开关随机播放。当前音频不变，开启后排在随机顺序的第一位；之后列表变化时不重新排列。
+     *
+     * @param enabled
+     * @param seed    随机顺序的种子，相同的列表和种子得到相同的顺序
+     */
+    public void setShuffleEnabled(boolean enabled, long seed) {
+        mShuffleEnabled = enabled;
+        mShuffleSeed = seed;
+        updateShuffleOrder();
+    }
+
+    public boolean isShuffleEnabled() {
+        return mShuffleEnabled;
+    }
+
+    /**
+     * @return 只读的音频id，随列表变化
+     */
+    public List<String> getMediaIds() {
+        return Collections.unmodifiableList(mMediaIds);
+    }
+
+    /**
+     * 只读的播放列表，取出时才创建每一项
+     *
+     * @return 每一项只有音频id，队列id为位置
+     */
+    public List<MediaSessionCompat.QueueItem> getItems() {
+        return new AbstractList<MediaSessionCompat.QueueItem>() {
+            @Override
+            public MediaSessionCompat.QueueItem get(int index) {
+                return new MediaSessionCompat.QueueItem(new MediaDescriptionCompat.Builder()
+                        .setMediaId(mMediaIds.get(index))
+                        .build(), index);
+            }
+
+            @Override
+            public int size() {
+                return mMediaIds.size();
+            }
+        };
+    }
+
+
+    private boolean moveTo(int index) {
+        if (index < 0) {
+            return false;
+        }
+        mIndex = index;
+        return true;
+    }
+
+    /**
+     * 添加到末尾后，已有的随机顺序不变，新的音频排在后面
+     */
+    private void onAppended(int count) {
+        if (mShuffleOrder != null) {
+            mShuffleOrder.append(count);
+        } else {
+            // The queue was empty: the order starts with the first item.
+            updateShuffleOrder();
+        }
+    }
+
+    /**
+     * The order is anchored on the current item. It is only built when shuffle is turned on
+     * or the queue starts over; changes to the queue update it in place, so the items played
+     * so far are not shuffled back in.
+     */
+    private void updateShuffleOrder() {
+        mShuffleOrder = mShuffleEnabled && !mMediaIds.isEmpty()
+                ? new ShuffleOrder(mMediaIds.size(), mShuffleSeed, mIndex)
+                : null;
+    }
+
+    private int indexAt(int position) {
+        return mShuffleOrder != null ? mShuffleOrder.indexAt(position) : position;
+    }
+
+    private int positionOf(int index) {
+        return mShuffleOrder != null ? mShuffleOrder.positionOf(index) : index;
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service;
+
+import java.util.Arrays;
+
+/**
+ * A seeded pseudo-random permutation of the queue indices {@code [0, size)}, evaluated one
+ * element at a time. A balanced Feistel network permutes the smallest power-of-four range
+ * that covers the queue, and cycle walking skips the values outside it, so both directions
+ * take a few rounds on average and nothing is stored per item: creating an order for a queue
+ * of a million items is as cheap as for ten.
+ * <p>
+ * The anchor item is moved to the first position, so that turning shuffle on keeps playing
+ * the current item and plays every other item exactly once after it.
+ * <p>
+ * Changing the queue does not reshuffle it: the items played so far keep their positions.
+ * Items appended later get an order of their own that plays after the items already there,
+ * and a removed item leaves its position out. Positions and indices are counted on a virtual
+ * queue that still holds the removed items, so a lookup costs a pass over the removals;
+ * turning shuffle on again starts over from the current queue.
+ * <p>
+ * 随机播放顺序
+ */
+final class ShuffleOrder {
+
+    private static final int ROUNDS = 4;
+
+    private final long mSeed;
+    // 依次添加的各段，第一段为开启随机播放时的列表
+    private Segment[] mSegments = new Segment[4];
+    private int mSegmentCount;
+    // 包括已移除的音频的长度
+    private int mVirtualSize;
+    // 已移除音频的虚拟位置：列表中的和播放顺序中的，各自升序
+    private int[] mRemovedIndices = new int[4];
+    private int[] mRemovedPositions = new int[4];
+    private int mRemovedCount;
+
+
+    /**
+     * @param size        列表长度，大于0
+     * @param seed        相同的seed得到相同的顺序
+     * @param anchorIndex 排在第一位的音频
+     */
+    ShuffleOrder(int size, long seed, int anchorIndex) {
+        if (size <= 0 || anchorIndex < 0 || anchorIndex >= size) {
+            throw new IllegalArgumentException("size " + size + ", anchor " + anchorIndex);
+        }
+        mSeed = seed;
+        addSegment(size, anchorIndex);
+    }
+
+    int size() {
+        return mVirtualSize - mRemovedCount;
+    }
+
+    /**
+     * @param position 播放顺序中的位置
+     * @return 列表中的位置
+     */
+    int indexAt(int position) {
+        final int virtualPosition = toVirtual(position, mRemovedPositions);
+        final Segment segment = segmentAt(virtualPosition);
+        final int virtualIndex =
+                segment.mStart + segment.indexAt(virtualPosition - segment.mStart);
+        return virtualIndex - rank(mRemovedIndices, virtualIndex);
+    }
+
+    /**
+     * @param index 列表中的位置
+     * @return 播放顺序中的位置
+     */
+    int positionOf(int index) {
+        final int virtualIndex = toVirtual(index, mRemovedIndices);
+        final Segment segment = segmentAt(virtualIndex);
+        final int virtualPosition =
+                segment.mStart + segment.positionOf(virtualIndex - segment.mStart);
+        return virtualPosition - rank(mRemovedPositions, virtualPosition);
+    }
+
+    /**
+     * 列表末尾添加了音频，排在已有的音频之后，已有的顺序不变
+     *
+     * @param count 添加的数量
+     */
+    void append(int count) {
+        if (count > 0) {
+            addSegment(count, 0);
+        }
+    }
+
+    /**
+     * 列表中移除了一首音频，其他音频的顺序不变
+     *
+     * @param index 移除前在列表中的位置
+     */
+    void remove(int index) {
+        final int virtualIndex = toVirtual(index, mRemovedIndices);
+        final Segment segment = segmentAt(virtualIndex);
+        final int virtualPosition =
+                segment.mStart + segment.positionOf(virtualIndex - segment.mStart);
+        if (mRemovedCount == mRemovedIndices.length) {
+            mRemovedIndices = Arrays.copyOf(mRemovedIndices, mRemovedCount * 2);
+            mRemovedPositions = Arrays.copyOf(mRemovedPositions, mRemovedCount * 2);
+        }
+        insertSorted(mRemovedIndices, mRemovedCount, virtualIndex);
+        insertSorted(mRemovedPositions, mRemovedCount, virtualPosition);
+        mRemovedCount++;
+        // An appended segment that is all removed again is dropped, e.g. add then remove.
+        while (mSegmentCount > 1) {
+            final int start = mSegments[mSegmentCount - 1].mStart;
+            if (mRemovedCount - rank(mRemovedIndices, start) < mVirtualSize - start) {
+                break;
+            }
+            // Indices and positions of the last segment are both in [start, mVirtualSize).
+            mRemovedCount = rank(mRemovedIndices, start);
+            mVirtualSize = start;
+            mSegments[--mSegmentCount] = null;
+        }
+    }
+
+
+    // ##########################################################################################
+
+
+    private void addSegment(int size, int anchorIndex) {
+        if (mSegmentCount == mSegments.length) {
+            mSegments = Arrays.copyOf(mSegments, mSegmentCount * 2);
+        }
+        // Every segment gets its own seed: appended runs of one size are not ordered alike.
+        final long seed = mSeed + mSegmentCount * 0x9E3779B97F4A7C15L;
+        mSegments[mSegmentCount++] = new Segment(mVirtualSize, size, seed, anchorIndex);
+        mVirtualSize += size;
+    }
+
+    /**
+     * 包含虚拟位置的段，各段按起点升序
+     */
+    private Segment segmentAt(int virtual) {
+        int low = 0;
+        int high = mSegmentCount - 1;
+        while (low < high) {
+            final int middle = (low + high + 1) >>> 1;
+            if (mSegments[middle].mStart <= virtual) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return mSegments[low];
+    }
+
+    /**
+     * 跳过已移除的虚拟位置，第value个未移除的虚拟位置
+     */
+    private int toVirtual(int value, int[] removed) {
+        int virtual = value;
+        for (int i = 0; i < mRemovedCount && removed[i] <= virtual; i++) {
+            virtual++;
+        }
+        return virtual;
+    }
+
+    /**
+     * @return removed 中小于 virtual 的个数
+     */
+    private int rank(int[] removed, int virtual) {
+        final int i = Arrays.binarySearch(removed, 0, mRemovedCount, virtual);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    private static void insertSorted(int[] values, int count, int value) {
+        int i = Arrays.binarySearch(values, 0, count, value);
+        i = i >= 0 ? i : -i - 1;
+        System.arraycopy(values, i, values, i + 1, count - i);
+        values[i] = value;
+    }
+
+    /**
+     * 一段连续添加的音频的随机顺序，位置和下标都相对于段的起点
+     */
+    private static final class Segment {
+
+        // 段在虚拟列表中的起点，段内的位置也从这里开始
+        final int mStart;
+        private final int mSize;
+        private final long mSeed;
+        private final int mHalfBits;
+        private final long mHalfMask;
+
+        // 交换到第一位的音频，以及它原来的位置
+        private final int mAnchorIndex;
+        private final int mAnchorPosition;
+        // 原来在第一位的音频
+        private final int mFirstIndex;
+
+        Segment(int start, int size, long seed, int anchorIndex) {
+            mStart = start;
+            mSize = size;
+            mSeed = seed;
+            final int bits = 32 - Integer.numberOfLeadingZeros(size - 1);
+            mHalfBits = (bits + 1) / 2;
+            mHalfMask = (1L << mHalfBits) - 1;
+            mAnchorIndex = anchorIndex;
+            mAnchorPosition = permute(anchorIndex, false);
+            mFirstIndex = permute(0, true);
+        }
+
+        int indexAt(int position) {
+            if (position == 0) {
+                return mAnchorIndex;
+            }
+            if (position == mAnchorPosition) {
+                return mFirstIndex;
+            }
+            return permute(position, true);
+        }
+
+        int positionOf(int index) {
+            if (index == mAnchorIndex) {
+                return 0;
+            }
+            if (index == mFirstIndex) {
+                return mAnchorPosition;
+            }
+            return permute(index, false);
+        }
+
+        /**
+         * Cycle walking: the network permutes [0, 4^halfBits), so repeating it from a value
+         * inside [0, size) always comes back into [0, size).
+         *
+         * @param value
+         * @param forward true: 位置到列表位置；false: 反向
+         */
+        private int permute(int value, boolean forward) {
+            long x = value;
+            do {
+                x = forward ? encrypt(x) : decrypt(x);
+            } while (x >= mSize);
+            return (int) x;
+        }
+
+        private long encrypt(long x) {
+            long left = x >>> mHalfBits;
+            long right = x & mHalfMask;
+            for (int round = 0; round < ROUNDS; round++) {
+                final long next = left ^ (mix(right, round) & mHalfMask);
+                left = right;
+                right = next;
+            }
+            return (left << mHalfBits) | right;
+        }
+
+        private long decrypt(long x) {
+            long left = x >>> mHalfBits;
+            long right = x & mHalfMask;
+            for (int round = ROUNDS - 1; round >= 0; round--) {
+                final long previous = right ^ (mix(left, round) & mHalfMask);
+                right = left;
+                left = previous;
+            }
+            return (left << mHalfBits) | right;
+        }
+
+        /**
+         * Feistel round function, the SplitMix64 finalizer keyed with the seed and the round.
+         */
+        private long mix(long value, int round) {
+            long h = value * 0x9E3779B97F4A7C15L + mSeed + round * 0xBF58476D1CE4E5B9L;
+            h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+            h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+            return h ^ (h >>> 31);
+        }
+    }
+}
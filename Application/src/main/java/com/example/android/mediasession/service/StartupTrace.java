@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.mediasession.MediaSessionApplication;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * The start-up timeline of {@link MusicService}: when each step happened, counted from the
+ * start of the process, and how long the steps that create something took. Every event is
+ * logged under the tag {@value #TAG} as it happens, and the timeline is printed by
+ * {@code adb shell dumpsys activity service .service.MusicService}.
+ * <p>
+ * Only the first {@link #MAX_EVENTS} events are kept; after start-up nothing is recorded.
+ * Used on the main thread.
+ * <p>
+ * 启动时间记录
+ */
+final class StartupTrace {
+
+    private static final String TAG = "StartupTrace";
+
+    // 最多记录的事件数
+    private static final int MAX_EVENTS = 32;
+
+    // 进程开始的时间 (elapsedRealtime)
+    private final long mOriginMs =
+            SystemClock.elapsedRealtime() - MediaSessionApplication.getMillisSinceProcessStart();
+    private final List<String> mEvents = new ArrayList<>();
+    // 只记录第一次的事件
+    private final Set<String> mOnce = new HashSet<>();
+
+
+    /**
+     * 记录一个时刻
+     *
+     * @param event 事件名
+     */
+    void mark(String event) {
+        record(event, -1);
+    }
+
+    /**
+     * 只记录第一次，例如第一次 onGetRoot
+     */
+    void markFirst(String event) {
+        if (mOnce.add(event)) {
+            record(event, -1);
+        }
+    }
+
+    /**
+     * @return 一个步骤的开始时间，传给 {@link #end}
+     */
+    long begin() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * 一个步骤结束，记录结束时刻和用时
+     *
+     * @param event   事件名
+     * @param beginMs {@link #begin} 的返回值
+     */
+    void end(String event, long beginMs) {
+        record(event, SystemClock.elapsedRealtime() - beginMs);
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println("Start-up (ms after the process started):");
+        for (String event : mEvents) {
+            writer.println("  " + event);
+        }
+    }
+
+
+    // ##########################################################################################
+
+
+    private void record(String event, long durationMs) {
+        if (mEvents.size() >= MAX_EVENTS) {
+            return;
+        }
+        final long atMs = SystemClock.elapsedRealtime() - mOriginMs;
+        final String line = durationMs < 0
+                ? String.format(Locale.US, "%6d  %s", atMs, event)
+                : String.format(Locale.US, "%6d  %s (%d ms)", atMs, event, durationMs);
+        mEvents.add(line);
+        Log.d(TAG, line);
+    }
+}
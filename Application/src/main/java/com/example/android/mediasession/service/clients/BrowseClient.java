@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.clients;
+
+import android.os.Bundle;
+import android.support.v4.media.MediaBrowserCompat;
+
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One connected browser, identified by package and uid: the limits of its
+ * {@link ClientRegistry client class}, its own token bucket and its request counters.
+ * <p>
+ * Used on the main thread only.
+ * <p>
+ * 浏览服务的客户端
+ */
+public final class BrowseClient {
+
+    // 令牌不足时最多延迟的时间，超过时返回错误
+    private static final long MAX_DELAY_MS = 5000;
+
+    private final String mPackageName;
+    private final int mUid;
+    private final String mClientClass;
+    // 每次最多返回的子项数
+    private final int mPageSizeLimit;
+    private final TokenBucket mTokenBucket;
+
+    // 请求计数
+    private int mRootCount;
+    private int mLoadCount;
+    private int mSearchCount;
+    private int mDelayedCount;
+    private int mRejectedCount;
+
+
+    BrowseClient(String packageName, int uid, String clientClass, int pageSizeLimit,
+                 TokenBucket tokenBucket) {
+        mPackageName = packageName;
+        mUid = uid;
+        mClientClass = clientClass;
+        mPageSizeLimit = pageSizeLimit;
+        mTokenBucket = tokenBucket;
+    }
+
+    public String getPackageName() {
+        return mPackageName;
+    }
+
+    public String getClientClass() {
+        return mClientClass;
+    }
+
+    public int getPageSizeLimit() {
+        return mPageSizeLimit;
+    }
+
+    void onGetRoot() {
+        mRootCount++;
+    }
+
+    public void onLoadChildren() {
+        mLoadCount++;
+    }
+
+    public void onSearch() {
+        mSearchCount++;
+    }
+
+    /**
+     * 为一次请求取令牌
+     *
+     * @param nowMs
+     * @return 需要延迟的时间，0为立即；-1为拒绝
+     */
+    public long reserve(long nowMs) {
+        final long delayMs = mTokenBucket.reserve(nowMs, MAX_DELAY_MS);
+        if (delayMs > 0) {
+            mDelayedCount++;
+        } else if (delayMs < 0) {
+            mRejectedCount++;
+        }
+        return delayMs;
+    }
+
+    /**
+     * 按请求的分页和客户端的上限截取子项。
+     * <p>
+     * A requested page keeps the offset the client computed from its own page size; only the
+     * length is capped, so a client asking for more than its class allows gets short pages
+     * rather than shifted ones. Without paging the first page of the limit is returned.
+     *
+     * @param children
+     * @param options  {@link MediaBrowserCompat#EXTRA_PAGE} 和
+     *                 {@link MediaBrowserCompat#EXTRA_PAGE_SIZE}，可以为null
+     * @return
+     */
+    public List<MediaBrowserCompat.MediaItem> page(List<MediaBrowserCompat.MediaItem> children,
+                                                   Bundle options) {
+        long from = 0;
+        int length = mPageSizeLimit;
+        if (options != null) {
+            final int page = options.getInt(MediaBrowserCompat.EXTRA_PAGE, -1);
+            final int pageSize = options.getInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, -1);
+            if (page >= 0 && pageSize > 0) {
+                from = (long) page * pageSize;
+                length = Math.min(pageSize, mPageSizeLimit);
+            }
+        }
+        if (from >= children.size()) {
+            return from == 0 ? children : Collections.<MediaBrowserCompat.MediaItem>emptyList();
+        }
+        final int to = (int) Math.min(children.size(), from + length);
+        return from == 0 && to == children.size()
+                ? children : children.subList((int) from, to);
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println("  " + mPackageName + " (uid " + mUid + ", " + mClientClass
+                + ", page " + mPageSizeLimit + "): roots=" + mRootCount
+                + " loads=" + mLoadCount + " searches=" + mSearchCount
+                + " delayed=" + mDelayedCount + " rejected=" + mRejectedCount);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.clients;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The browsers that connected to the service, each classified by package into a client
+ * class that sets its page size and request rate. Each client has a bucket of its own, so a
+ * client that floods the service with loads only delays its own results.
+ * <p>
+ * {@code onLoadChildren} and {@code onSearch} get no caller, so the service looks up the
+ * browser of the current call with {@code getCurrentBrowserInfo()} and passes its package and
+ * uid to {@link #getClient}, which finds the client {@link #onGetRoot} registered for them.
+ * The root hints cannot carry the caller: on Android L and above the support library hands
+ * back the hints the browser sent, not the bundle {@code onGetRoot} was given. Callers that
+ * did not connect through {@code onGetRoot}, like framework browsers before Android P, which
+ * are reported without a uid, share one anonymous client of the default class.
+ * <p>
+ * Used on the main thread only.
+ * <p>
+ * 客户端分类和计数
+ */
+public final class ClientRegistry {
+
+    private static final String CLASS_SELF = "self";
+    private static final String CLASS_AUTO = "auto";
+    private static final String CLASS_WEAR = "wear";
+    private static final String CLASS_SYSTEM = "system";
+    private static final String CLASS_OTHER = "other";
+
+    private static final String AUTO_PACKAGE = "com.google.android.projection.gearhead";
+    private static final String WEAR_PACKAGE = "com.google.android.wearable.app";
+    private static final String SYSTEM_UI_PACKAGE = "com.android.systemui";
+
+
+    private final String mOwnPackageName;
+    // 客户端标识 -> 客户端，按连接顺序
+    private final Map<String, BrowseClient> mClients = new LinkedHashMap<>();
+    private final BrowseClient mAnonymousClient;
+
+
+    /**
+     * @param ownPackageName 本应用的包名，本应用的界面不受分页限制
+     */
+    public ClientRegistry(String ownPackageName) {
+        mOwnPackageName = ownPackageName;
+        mAnonymousClient = createClient("unknown", -1, CLASS_OTHER);
+    }
+
+    /**
+     * 客户端连接时调用
+     *
+     * @param packageName
+     * @param uid
+     * @return
+     */
+    public BrowseClient onGetRoot(String packageName, int uid) {
+        final String key = getKey(packageName, uid);
+        BrowseClient client = mClients.get(key);
+        if (client == null) {
+            client = createClient(packageName, uid, classify(packageName, uid));
+            mClients.put(key, client);
+        }
+        client.onGetRoot();
+        return client;
+    }
+
+    /**
+     * @param packageName getCurrentBrowserInfo() 的包名，不知道调用者时为null
+     * @param uid
+     * @return 没有连接过时为共用的匿名客户端
+     */
+    public BrowseClient getClient(String packageName, int uid) {
+        final BrowseClient client =
+                packageName != null ? mClients.get(getKey(packageName, uid)) : null;
+        return client != null ? client : mAnonymousClient;
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("Browse clients:");
+        for (BrowseClient client : mClients.values()) {
+            client.dump(writer);
+        }
+        mAnonymousClient.dump(writer);
+    }
+
+
+    // ##########################################################################################
+
+
+    private static String getKey(String packageName, int uid) {
+        return packageName + "/" + uid;
+    }
+
+    private String classify(String packageName, int uid) {
+        if (mOwnPackageName.equals(packageName)) {
+            return CLASS_SELF;
+        } else if (AUTO_PACKAGE.equals(packageName)) {
+            return CLASS_AUTO;
+        } else if (WEAR_PACKAGE.equals(packageName)) {
+            return CLASS_WEAR;
+        } else if (uid == Process.SYSTEM_UID || SYSTEM_UI_PACKAGE.equals(packageName)) {
+            return CLASS_SYSTEM;
+        }
+        return CLASS_OTHER;
+    }
+
+    /**
+     * 分页上限和令牌桶按客户端类型：
+     * 本应用不限；Auto和Wear按屏幕能显示的列表长度；系统界面只需要最近播放的一首
+     */
+    private static BrowseClient createClient(String packageName, int uid, String clientClass) {
+        final long nowMs = SystemClock.elapsedRealtime();
+        switch (clientClass) {
+            case CLASS_SELF:
+                return new BrowseClient(packageName, uid, clientClass, Integer.MAX_VALUE,
+                        new TokenBucket(100, 50, nowMs));
+            case CLASS_AUTO:
+                return new BrowseClient(packageName, uid, clientClass, 100,
+                        new TokenBucket(20, 10, nowMs));
+            case CLASS_WEAR:
+                return new BrowseClient(packageName, uid, clientClass, 25,
+                        new TokenBucket(10, 4, nowMs));
+            case CLASS_SYSTEM:
+                return new BrowseClient(packageName, uid, clientClass, 10,
+                        new TokenBucket(10, 2, nowMs));
+            default:
+                return new BrowseClient(packageName, uid, clientClass, 200,
+                        new TokenBucket(10, 5, nowMs));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.clients;
+
+/**
+ * Token bucket that schedules rather than drops. A request that finds the bucket empty still
+ * takes a token, driving the balance below zero, and is told how long to wait until that token
+ * has been refilled; later requests queue up behind it. Only a request that would have to wait
+ * longer than the caller accepts is refused, and it takes nothing.
+ * <p>
+ * 令牌桶
+ */
+final class TokenBucket {
+
+    private final double mCapacity;
+    private final double mTokensPerMs;
+    // 可以为负，表示已预约的令牌
+    private double mTokens;
+    private long mLastRefillMs;
+
+
+    /**
+     * @param capacity        突发请求数
+     * @param tokensPerSecond 持续请求速率
+     * @param nowMs
+     */
+    TokenBucket(int capacity, int tokensPerSecond, long nowMs) {
+        mCapacity = capacity;
+        mTokensPerMs = tokensPerSecond / 1000.0;
+        mTokens = capacity;
+        mLastRefillMs = nowMs;
+    }
+
+    /**
+     * 取一个令牌
+     *
+     * @param nowMs
+     * @param maxDelayMs 最多等待的时间
+     * @return 需要等待的时间，0为立即；超过maxDelayMs时为-1，不取令牌
+     */
+    long reserve(long nowMs, long maxDelayMs) {
+        mTokens = Math.min(mCapacity, mTokens + (nowMs - mLastRefillMs) * mTokensPerMs);
+        mLastRefillMs = nowMs;
+        if (mTokens >= 1) {
+            mTokens -= 1;
+            return 0;
+        }
+        final long delayMs = (long) Math.ceil((1 - mTokens) / mTokensPerMs);
+        if (delayMs > maxDelayMs) {
+            return -1;
+        }
+        mTokens -= 1;
+        return delayMs;
+    }
+}
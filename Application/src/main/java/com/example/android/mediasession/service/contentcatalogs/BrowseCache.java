@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.contentcatalogs;
+
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.util.Log;
+
+import com.example.android.mediasession.service.memory.Trimmable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Immutable snapshots of the children of each browse node, so every subscribed client (the
+ * app, Auto, Wear) loading the same node gets the same list instead of one built per load.
+ * A snapshot keeps the {@link MusicLibrary#getGeneration generation} its node had when it was
+ * built and is rebuilt on the first load after the node changed; nodes the change did not
+ * touch keep their snapshots. From moderate memory pressure on, all snapshots are dropped:
+ * rebuilding one costs a walk of the library on the next load. Hiding the UI alone keeps them.
+ * <p>
+ * Used on the main thread only.
+ * <p>
+ * 浏览节点子项的缓存
+ */
+public final class BrowseCache implements Trimmable {
+
+    private static final String TAG = "BrowseCache";
+    // 每个子项除字符串外的大约字节数
+    private static final int ITEM_OVERHEAD_BYTES = 200;
+
+
+    /**
+     * 一个节点的子项
+     */
+    private static final class Snapshot {
+        final long generation;
+        final List<MediaBrowserCompat.MediaItem> children;
+
+        Snapshot(long generation, List<MediaBrowserCompat.MediaItem> children) {
+            this.generation = generation;
+            this.children = children;
+        }
+    }
+
+
+    // 节点id -> 子项
+    private final HashMap<String, Snapshot> mSnapshots = new HashMap<>();
+    private int mHitCount;
+    private int mMissCount;
+
+
+    /**
+     * 节点的子项，节点变化后重新构造
+     *
+     * @param parentId
+     * @return 不可修改的列表
+     */
+    public List<MediaBrowserCompat.MediaItem> getChildren(String parentId) {
+        // Read before building: a change made meanwhile leaves the snapshot looking stale,
+        // never a stale snapshot looking current.
+        final long generation = MusicLibrary.getGeneration(parentId);
+        final Snapshot snapshot = mSnapshots.get(parentId);
+        if (snapshot != null && snapshot.generation == generation) {
+            mHitCount++;
+            return snapshot.children;
+        }
+        mMissCount++;
+        final List<MediaBrowserCompat.MediaItem> children =
+                Collections.unmodifiableList(MusicLibrary.getChildren(parentId));
+        if (generation == 0) {
+            // No such node, or no longer: nothing worth keeping.
+            mSnapshots.remove(parentId);
+        } else {
+            mSnapshots.put(parentId, new Snapshot(generation, children));
+        }
+        Log.d(TAG, "getChildren: built " + parentId + ", " + children.size() + " items, "
+                + mHitCount + " hits / " + mMissCount + " misses");
+        return children;
+    }
+
+    @Override
+    public long onTrimMemory(int pressure) {
+        if (pressure < Trimmable.PRESSURE_MODERATE) {
+            // The browser UI was just hidden and reconnects to the same snapshots.
+            return 0;
+        }
+        long bytes = 0;
+        for (Snapshot snapshot : mSnapshots.values()) {
+            for (MediaBrowserCompat.MediaItem item : snapshot.children) {
+                bytes += estimateBytes(item.getDescription());
+            }
+        }
+        mSnapshots.clear();
+        return bytes;
+    }
+
+
+    // ##########################################################################################
+
+
+    private static long estimateBytes(MediaDescriptionCompat description) {
+        return ITEM_OVERHEAD_BYTES + 2 * (length(description.getMediaId())
+                + length(description.getTitle()) + length(description.getSubtitle()));
+    }
+
+    private static int length(CharSequence text) {
+        return text != null ? text.length() : 0;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.contentcatalogs;
+
+import android.support.annotation.Nullable;
+import android.support.v4.media.MediaMetadataCompat;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * A snapshot of {@link MusicLibrary} in a file that is read through a memory-mapped buffer.
+ * <p>
+ * When MusicService starts in a fresh playback process, a media button or a car can ask for
+ * the last track before the scanner has restored the library from its journal. Rather than
+ * rebuilding the library first, the service maps this file and looks the one track up: the
+ * records are sorted by media id and found by binary search in place, so opening it costs a
+ * page or two of reads however large the library is, and the pages are shared with the page
+ * cache instead of copied into the heap.
+ * <p>
+ * 音频目录快照
+ */
+public final class CatalogFile {
+
+    private static final String TAG = "CatalogFile";
+
+    // 格式："CATG" 版本 个数 各记录的位置 (按mediaId排序) 记录
+    private static final int MAGIC = 0x43415447;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 12;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+
+    private final ByteBuffer mBuffer;
+    private final int mCount;
+
+
+    private CatalogFile(ByteBuffer buffer, int count) {
+        mBuffer = buffer;
+        mCount = count;
+    }
+
+    /**
+     * 工作线程：写入MusicLibrary的当前内容，先写临时文件再替换
+     *
+     * @param file 快照文件
+     */
+    public static void write(File file) throws IOException {
+        // Sorted the way String.compareTo sorts, which is how open() searches.
+        final List<String> mediaIds = MusicLibrary.getMediaIds();
+        final int[] offsets = new int[mediaIds.size()];
+        final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        final DataOutputStream recordOut = new DataOutputStream(records);
+        int count = 0;
+        for (String mediaId : mediaIds) {
+            final MediaMetadataCompat metadata = MusicLibrary.getMetadataWithoutBitmap(mediaId);
+            final String filename = MusicLibrary.getMusicFilename(mediaId);
+            if (metadata == null || filename == null) {
+                // Removed since the ids were listed.
+                continue;
+            }
+            offsets[count++] = HEADER_BYTES + 4 * mediaIds.size() + recordOut.size();
+            writeString(recordOut, mediaId);
+            writeString(recordOut, filename);
+            writeString(recordOut, metadata.getString(MediaMetadataCompat.METADATA_KEY_TITLE));
+            writeString(recordOut, metadata.getString(MediaMetadataCompat.METADATA_KEY_ARTIST));
+            writeString(recordOut, metadata.getString(MediaMetadataCompat.METADATA_KEY_ALBUM));
+            writeString(recordOut, metadata.getString(MediaMetadataCompat.METADATA_KEY_GENRE));
+            writeString(recordOut,
+                    metadata.getString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI));
+            recordOut.writeLong(metadata.getLong(MediaMetadataCompat.METADATA_KEY_DURATION));
+        }
+
+        final File temp = new File(file.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            // Room was left for every listed id; skipped ones leave unused slots.
+            for (int i = 0; i < mediaIds.size(); i++) {
+                out.writeInt(i < count ? offsets[i] : 0);
+            }
+            records.writeTo(out);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Cannot rename " + temp);
+        }
+        Log.d(TAG, "write: " + count + " tracks, " + file.length() + " bytes");
+    }
+
+    /**
+     * 映射快照文件
+     *
+     * @return 文件不存在或格式不对时为null
+     */
+    @Nullable
+    public static CatalogFile open(File file) {
+        if (!file.exists()) {
+            // First run.
+            return null;
+        }
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(file, "r");
+            // The mapping stays valid after the file is closed.
+            final ByteBuffer buffer =
+                    in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+            if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC
+                    || buffer.getInt(4) != VERSION
+                    || HEADER_BYTES + 4L * buffer.getInt(8) > buffer.capacity()) {
+                Log.w(TAG, "open: not a catalog of this version: " + file);
+                return null;
+            }
+            return new CatalogFile(buffer, buffer.getInt(8));
+        } catch (IOException e) {
+            Log.w(TAG, "open: " + file, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignored
+                }
+            }
+        }
+    }
+
+    /**
+     * @return 音频个数
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * 音频地址
+     *
+     * @return 不在快照中时为null
+     */
+    @Nullable
+    public String getMusicFilename(String mediaId) {
+        final ByteBuffer record = find(mediaId);
+        return record != null ? readString(record) : null;
+    }
+
+    /**
+     * 不带图片的音频数据
+     *
+     * @return 不在快照中时为null
+     */
+    @Nullable
+    public MediaMetadataCompat getMetadata(String mediaId) {
+        final ByteBuffer record = find(mediaId);
+        if (record == null) {
+            return null;
+        }
+        // The filename
+        readString(record);
+        final String title = readString(record);
+        final String artist = readString(record);
+        final String album = readString(record);
+        final String genre = readString(record);
+        final String artUri = readString(record);
+        return new MediaMetadataCompat.Builder()
+                .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, mediaId)
+                .putString(MediaMetadataCompat.METADATA_KEY_TITLE, title)
+                .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, artist)
+                .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, album)
+                .putString(MediaMetadataCompat.METADATA_KEY_GENRE, genre)
+                .putString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI, artUri)
+                .putString(MediaMetadataCompat.METADATA_KEY_DISPLAY_ICON_URI, artUri)
+                .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, record.getLong())
+                .build();
+    }
+
+
+    // ##########################################################################################
+
+
+    /**
+     * 二分查找记录
+     *
+     * @return 位于mediaId之后的记录，不存在时为null
+     */
+    @Nullable
+    private ByteBuffer find(String mediaId) {
+        // Each lookup reads through its own view, so lookups need no lock.
+        final ByteBuffer record = mBuffer.duplicate();
+        int low = 0;
+        int high = mCount - 1;
+        try {
+            while (low <= high) {
+                final int middle = (low + high) >>> 1;
+                record.position(mBuffer.getInt(HEADER_BYTES + 4 * middle));
+                final int comparison = readString(record).compareTo(mediaId);
+                if (comparison < 0) {
+                    low = middle + 1;
+                } else if (comparison > 0) {
+                    high = middle - 1;
+                } else {
+                    return record;
+                }
+            }
+        } catch (RuntimeException e) {
+            // A truncated file: the offsets point past its end.
+            Log.w(TAG, "find: corrupt catalog", e);
+        }
+        return null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @Nullable
+    private static String readString(ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
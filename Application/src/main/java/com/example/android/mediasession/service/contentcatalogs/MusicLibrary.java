@@ -20,19 +20,41 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.support.annotation.VisibleForTesting;
 import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
 import android.support.v4.media.MediaMetadataCompat;
 
 import com.example.android.mediasession.BuildConfig;
 import com.example.android.mediasession.R;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
 
 
+/**
+ * The catalog: the two built-in tracks, plus whatever the library scanner adds at runtime.
+ * Read from the main thread and the prefetch worker while the scanner adds to it, so every
+ * access to the maps holds the class lock.
+ * <p>
+ * Browse tree: the root lists the albums, artists and playlists nodes followed by every track;
+ * those list one node per album, artist or playlist, which lists its tracks. The playlists
+ * belong to the user and are listed by MusicService, so only their ids are defined here. Each
+ * node has a generation that
+ * is bumped whenever its children change, so cached listings can tell whether they are stale
+ * (see {@link BrowseCache}), and every mutation reports the nodes it changed. A separate
+ * offline root lists only the tracks that play without a network.
+ * <p>
+ * 音频目录
+ */
 public class MusicLibrary {
 
 
@@ -45,6 +67,29 @@ public class MusicLibrary {
     private static final HashMap<String, Integer> albumRes = new HashMap<>();
     // 音频名称
     private static final HashMap<String, String> musicFileName = new HashMap<>();
+    // 按音频名称查找音频id
+    private static final HashMap<String, String> mediaIdByFileName = new HashMap<>();
+
+    // 浏览节点
+    private static final String ALBUMS = "__ALBUMS__";
+    private static final String ARTISTS = "__ARTISTS__";
+    private static final String ALBUM_PREFIX = "__ALBUM__/";
+    private static final String ARTIST_PREFIX = "__ARTIST__/";
+    // 不需要网络的音频
+    private static final String OFFLINE = "__OFFLINE__";
+    // 根节点id。Constants, so that reading them does not run the static initialiser.
+    public static final String ROOT = "root";
+    public static final String OFFLINE_ROOT = OFFLINE;
+    // 用户播放列表，子项为 PLAYLIST_PREFIX + 播放列表id
+    public static final String PLAYLISTS = "__PLAYLISTS__";
+    public static final String PLAYLIST_PREFIX = "__PLAYLIST__/";
+    // 专辑 -> 音频id
+    private static final TreeMap<String, TreeSet<String>> albums = new TreeMap<>();
+    // 作者 -> 音频id
+    private static final TreeMap<String, TreeSet<String>> artists = new TreeMap<>();
+    // 节点id -> 版本，子项变化时增加；不存在的节点为0
+    private static final HashMap<String, Long> generations = new HashMap<>();
+    private static long lastGeneration;
 
     /**
      * 构造音频数据
@@ -85,7 +130,30 @@ public class MusicLibrary {
     }
 
     public static String getRoot() {
-        return "root";
+        return ROOT;
+    }
+
+    /**
+     * 只包含本地音频的根节点
+     */
+    public static String getOfflineRoot() {
+        return OFFLINE_ROOT;
+    }
+
+    /**
+     * @param mediaId
+     * @return 音频所在的专辑节点，没有专辑时为null
+     */
+    public static synchronized String getAlbumNode(String mediaId) {
+        final MediaMetadataCompat metadata = music.get(mediaId);
+        final String album = metadata != null
+                ? metadata.getString(MediaMetadataCompat.METADATA_KEY_ALBUM) : null;
+        return album != null && albums.containsKey(album) ? ALBUM_PREFIX + album : null;
+    }
+
+    private static boolean isLocal(String musicFilename) {
+        return musicFilename != null && !musicFilename.startsWith("http://")
+                && !musicFilename.startsWith("https://");
     }
 
     private static String getAlbumArtUri(String albumArtResName) {
@@ -93,11 +161,17 @@ public class MusicLibrary {
                 BuildConfig.APPLICATION_ID + "/drawable/" + albumArtResName;
     }
 
-    public static String getMusicFilename(String mediaId) {
+    /**
+     * 音频地址：assets中的文件名，或 file://、content://、http(s):// 地址
+     *
+     * @param mediaId
+     * @return
+     */
+    public static synchronized String getMusicFilename(String mediaId) {
         return musicFileName.containsKey(mediaId) ? musicFileName.get(mediaId) : null;
     }
 
-    private static int getAlbumRes(String mediaId) {
+    private static synchronized int getAlbumRes(String mediaId) {
         return albumRes.containsKey(mediaId) ? albumRes.get(mediaId) : 0;
     }
 
@@ -109,20 +183,200 @@ public class MusicLibrary {
      * @return
      */
     public static Bitmap getAlbumBitmap(Context context, String mediaId) {
-        //
-        return BitmapFactory.decodeResource(context.getResources(), MusicLibrary.getAlbumRes(mediaId));
+        final int resId = MusicLibrary.getAlbumRes(mediaId);
+        // Scanned files have no album art resource.
+        return resId == 0 ? null : BitmapFactory.decodeResource(context.getResources(), resId);
+    }
+
+    /**
+     * 根据id 获取指定尺寸的图片，按2的幂缩小采样，避免解码原图
+     *
+     * @param context
+     * @param mediaId
+     * @param reqWidth  需要的宽度
+     * @param reqHeight 需要的高度
+     * @return
+     */
+    public static Bitmap getAlbumBitmap(Context context, String mediaId, int reqWidth, int reqHeight) {
+        final int resId = MusicLibrary.getAlbumRes(mediaId);
+        if (resId == 0) {
+            return null;
+        }
+        // 只读取图片尺寸
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeResource(context.getResources(), resId, options);
+        // 计算采样率
+        int inSampleSize = 1;
+        while (options.outWidth / (inSampleSize * 2) >= reqWidth
+                && options.outHeight / (inSampleSize * 2) >= reqHeight) {
+            inSampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = inSampleSize;
+        return BitmapFactory.decodeResource(context.getResources(), resId, options);
     }
 
-    public static List<MediaBrowserCompat.MediaItem> getMediaItems() {
+    /**
+     * 节点的版本，子项变化后不同
+     *
+     * @param parentId
+     * @return 不存在的节点为0
+     */
+    public static synchronized long getGeneration(String parentId) {
+        final Long generation = generations.get(parentId);
+        return generation != null ? generation : 0;
+    }
+
+    /**
+     * 构造节点的子项
+     *
+     * @param parentId
+     * @return 不存在的节点为空
+     */
+    public static synchronized List<MediaBrowserCompat.MediaItem> getChildren(String parentId) {
+        if (getRoot().equals(parentId)) {
+            final List<MediaBrowserCompat.MediaItem> result = new ArrayList<>(music.size() + 3);
+            result.add(createBrowsableItem(ALBUMS, "Albums"));
+            result.add(createBrowsableItem(ARTISTS, "Artists"));
+            result.add(createBrowsableItem(PLAYLISTS, "Playlists"));
+            result.addAll(getMediaItems());
+            return result;
+        }
+        final List<MediaBrowserCompat.MediaItem> result = new ArrayList<>();
+        if (OFFLINE.equals(parentId)) {
+            for (Map.Entry<String, MediaMetadataCompat> entry : music.entrySet()) {
+                if (isLocal(musicFileName.get(entry.getKey()))) {
+                    result.add(createPlayableItem(entry.getValue()));
+                }
+            }
+        } else if (ALBUMS.equals(parentId) || ARTISTS.equals(parentId)) {
+            final boolean isAlbums = ALBUMS.equals(parentId);
+            final String prefix = isAlbums ? ALBUM_PREFIX : ARTIST_PREFIX;
+            for (String name : (isAlbums ? albums : artists).keySet()) {
+                result.add(createBrowsableItem(prefix + name, name));
+            }
+        } else if (parentId.startsWith(ALBUM_PREFIX) || parentId.startsWith(ARTIST_PREFIX)) {
+            final TreeSet<String> mediaIds = parentId.startsWith(ALBUM_PREFIX)
+                    ? albums.get(parentId.substring(ALBUM_PREFIX.length()))
+                    : artists.get(parentId.substring(ARTIST_PREFIX.length()));
+            if (mediaIds != null) {
+                for (String mediaId : mediaIds) {
+                    result.add(createPlayableItem(music.get(mediaId)));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 标题、作者或专辑包含query的音频
+     *
+     * @param query 为空时返回前limit个音频
+     * @param limit 最多返回的个数
+     * @return
+     */
+    public static synchronized List<MediaBrowserCompat.MediaItem> search(String query,
+                                                                         int limit) {
+        final String needle = query != null ? query.trim().toLowerCase(Locale.ROOT) : "";
+        final List<MediaBrowserCompat.MediaItem> result = new ArrayList<>();
+        for (MediaMetadataCompat metadata : music.values()) {
+            if (result.size() >= limit) {
+                break;
+            }
+            if (needle.isEmpty()
+                    || contains(metadata, MediaMetadataCompat.METADATA_KEY_TITLE, needle)
+                    || contains(metadata, MediaMetadataCompat.METADATA_KEY_ARTIST, needle)
+                    || contains(metadata, MediaMetadataCompat.METADATA_KEY_ALBUM, needle)) {
+                result.add(createPlayableItem(metadata));
+            }
+        }
+        return result;
+    }
+
+    private static boolean contains(MediaMetadataCompat metadata, String key, String needle) {
+        final String value = metadata.getString(key);
+        return value != null && value.toLowerCase(Locale.ROOT).contains(needle);
+    }
+
+    /**
+     * 按路径或地址查找音频，一批只加一次锁，例如导入播放列表时
+     *
+     * @param locations 扫描到的音频的路径 (即音频id)，或音频地址 (见 getMusicFilename)
+     * @return 与locations对应的不带图片的音频数据，找不到时为null
+     */
+    public static synchronized List<MediaMetadataCompat> findMusic(List<String> locations) {
+        final List<MediaMetadataCompat> result = new ArrayList<>(locations.size());
+        for (String location : locations) {
+            MediaMetadataCompat metadata = music.get(location);
+            if (metadata == null) {
+                final String mediaId = mediaIdByFileName.get(location);
+                metadata = mediaId != null ? music.get(mediaId) : null;
+            }
+            result.add(metadata);
+        }
+        return result;
+    }
+
+    /**
+     * @return 所有音频的id，按id排序
+     */
+    public static synchronized List<String> getMediaIds() {
+        return new ArrayList<>(music.keySet());
+    }
+
+    public static synchronized List<MediaBrowserCompat.MediaItem> getMediaItems() {
         List<MediaBrowserCompat.MediaItem> result = new ArrayList<>();
         for (MediaMetadataCompat metadata : music.values()) {
-            result.add(
-                    new MediaBrowserCompat.MediaItem(
-                            metadata.getDescription(), MediaBrowserCompat.MediaItem.FLAG_PLAYABLE));
+            result.add(createPlayableItem(metadata));
         }
         return result;
     }
 
+    /**
+     * 按音频id列出音频，取出时才创建每一项，例如分页浏览很长的播放列表时
+     *
+     * @param mediaIds 不在目录中的音频只有id
+     * @return 只读，随mediaIds变化
+     */
+    public static List<MediaBrowserCompat.MediaItem> getPlayableItems(
+            final List<String> mediaIds) {
+        return new AbstractList<MediaBrowserCompat.MediaItem>() {
+            @Override
+            public MediaBrowserCompat.MediaItem get(int index) {
+                final String mediaId = mediaIds.get(index);
+                final MediaMetadataCompat metadata = getMetadataWithoutBitmap(mediaId);
+                if (metadata != null) {
+                    return createPlayableItem(metadata);
+                }
+                // Removed from the library since it was added to the list.
+                return new MediaBrowserCompat.MediaItem(
+                        new MediaDescriptionCompat.Builder().setMediaId(mediaId).build(),
+                        MediaBrowserCompat.MediaItem.FLAG_PLAYABLE);
+            }
+
+            @Override
+            public int size() {
+                return mediaIds.size();
+            }
+        };
+    }
+
+    private static MediaBrowserCompat.MediaItem createPlayableItem(MediaMetadataCompat metadata) {
+        return new MediaBrowserCompat.MediaItem(
+                metadata.getDescription(), MediaBrowserCompat.MediaItem.FLAG_PLAYABLE);
+    }
+
+    private static MediaBrowserCompat.MediaItem createBrowsableItem(String mediaId,
+                                                                    String title) {
+        return new MediaBrowserCompat.MediaItem(
+                new MediaDescriptionCompat.Builder()
+                        .setMediaId(mediaId)
+                        .setTitle(title)
+                        .build(),
+                MediaBrowserCompat.MediaItem.FLAG_BROWSABLE);
+    }
+
 
     /**
      * 拷贝一份音频数据
@@ -132,10 +386,157 @@ public class MusicLibrary {
      * @return
      */
     public static MediaMetadataCompat getMetadata(Context context, String mediaId) {
+        return buildMetadata(mediaId, getAlbumBitmap(context, mediaId));
+    }
+
+    /**
+     * 拷贝一份音频数据，图片按指定尺寸解码
+     *
+     * @param context
+     * @param mediaId
+     * @param artWidth  图片宽度
+     * @param artHeight 图片高度
+     * @return
+     */
+    public static MediaMetadataCompat getMetadata(Context context, String mediaId,
+                                                  int artWidth, int artHeight) {
+        return buildMetadata(mediaId, getAlbumBitmap(context, mediaId, artWidth, artHeight));
+    }
+
+    /**
+     * 不带图片的音频数据，不需要解码图片时使用
+     *
+     * @param mediaId
+     * @return
+     */
+    public static synchronized MediaMetadataCompat getMetadataWithoutBitmap(String mediaId) {
+        return music.get(mediaId);
+    }
+
+    /**
+     * 添加或替换音频，例如扫描到的文件
+     *
+     * @param metadata      不带图片的音频数据
+     * @param musicFilename 音频地址
+     * @param changedNodes  加入子项变化的节点id
+     */
+    public static synchronized void putMusic(MediaMetadataCompat metadata, String musicFilename,
+                                             Collection<String> changedNodes) {
+        final String mediaId = metadata.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID);
+        final MediaMetadataCompat previous = music.put(mediaId, metadata);
+        final String previousFilename = musicFileName.put(mediaId, musicFilename);
+        unmapFileName(previousFilename, mediaId);
+        mediaIdByFileName.put(musicFilename, mediaId);
+        if (previous != null) {
+            unindex(mediaId, previous, changedNodes);
+        }
+        index(mediaId, metadata, changedNodes);
+        invalidate(getRoot(), changedNodes);
+        if (isLocal(musicFilename) || isLocal(previousFilename)) {
+            invalidate(OFFLINE, changedNodes);
+        }
+    }
+
+    /**
+     * 移除音频
+     *
+     * @param mediaId
+     * @param changedNodes 加入子项变化的节点id
+     * @return 是否存在
+     */
+    public static synchronized boolean removeMusic(String mediaId,
+                                                   Collection<String> changedNodes) {
+        albumRes.remove(mediaId);
+        final String previousFilename = musicFileName.remove(mediaId);
+        unmapFileName(previousFilename, mediaId);
+        final MediaMetadataCompat previous = music.remove(mediaId);
+        if (previous == null) {
+            return false;
+        }
+        unindex(mediaId, previous, changedNodes);
+        invalidate(getRoot(), changedNodes);
+        if (isLocal(previousFilename)) {
+            invalidate(OFFLINE, changedNodes);
+        }
+        return true;
+    }
+
+    /**
+     * 音频名称不再指向这个音频，除非已被另一个音频使用
+     */
+    private static void unmapFileName(String musicFilename, String mediaId) {
+        if (musicFilename != null && mediaId.equals(mediaIdByFileName.get(musicFilename))) {
+            mediaIdByFileName.remove(musicFilename);
+        }
+    }
+
+    /**
+     * 加入专辑和作者节点
+     */
+    private static void index(String mediaId, MediaMetadataCompat metadata,
+                              Collection<String> changedNodes) {
+        addToNode(albums, ALBUMS, ALBUM_PREFIX,
+                metadata.getString(MediaMetadataCompat.METADATA_KEY_ALBUM), mediaId, changedNodes);
+        addToNode(artists, ARTISTS, ARTIST_PREFIX,
+                metadata.getString(MediaMetadataCompat.METADATA_KEY_ARTIST), mediaId, changedNodes);
+    }
+
+    /**
+     * 从专辑和作者节点移除
+     */
+    private static void unindex(String mediaId, MediaMetadataCompat metadata,
+                                Collection<String> changedNodes) {
+        removeFromNode(albums, ALBUMS, ALBUM_PREFIX,
+                metadata.getString(MediaMetadataCompat.METADATA_KEY_ALBUM), mediaId, changedNodes);
+        removeFromNode(artists, ARTISTS, ARTIST_PREFIX,
+                metadata.getString(MediaMetadataCompat.METADATA_KEY_ARTIST), mediaId, changedNodes);
+    }
+
+    private static void addToNode(Map<String, TreeSet<String>> index, String listId,
+                                  String prefix, String name, String mediaId,
+                                  Collection<String> changedNodes) {
+        if (name == null || name.isEmpty()) {
+            // Only listed under the root.
+            return;
+        }
+        TreeSet<String> mediaIds = index.get(name);
+        if (mediaIds == null) {
+            mediaIds = new TreeSet<>();
+            index.put(name, mediaIds);
+            invalidate(listId, changedNodes);
+        }
+        mediaIds.add(mediaId);
+        // The track's description may have changed even if it was there before.
+        invalidate(prefix + name, changedNodes);
+    }
+
+    private static void removeFromNode(Map<String, TreeSet<String>> index, String listId,
+                                       String prefix, String name, String mediaId,
+                                       Collection<String> changedNodes) {
+        final TreeSet<String> mediaIds = name != null ? index.get(name) : null;
+        if (mediaIds == null || !mediaIds.remove(mediaId)) {
+            return;
+        }
+        invalidate(prefix + name, changedNodes);
+        if (mediaIds.isEmpty()) {
+            index.remove(name);
+            generations.remove(prefix + name);
+            invalidate(listId, changedNodes);
+        }
+    }
+
+    private static void invalidate(String nodeId, Collection<String> changedNodes) {
+        generations.put(nodeId, ++lastGeneration);
+        changedNodes.add(nodeId);
+    }
+
+    private static MediaMetadataCompat buildMetadata(String mediaId, Bitmap albumArt) {
         // 根据id 音频列表获取音频数据
-        MediaMetadataCompat metadataWithoutBitmap = music.get(mediaId);
-        // 获取音频图片数据
-        Bitmap albumArt = getAlbumBitmap(context, mediaId);
+        MediaMetadataCompat metadataWithoutBitmap = getMetadataWithoutBitmap(mediaId);
+        if (metadataWithoutBitmap == null) {
+            // Removed by a rescan.
+            return null;
+        }
 
         // Since MediaMetadataCompat is immutable, we need to create a copy to set the album art.
         // We don't set it initially on all items so that they don't take unnecessary memory.
@@ -173,7 +574,8 @@ public class MusicLibrary {
      * @param albumArtResId   资源id
      * @param albumArtResName
      */
-    private static void createMediaMetadataCompat(
+    @VisibleForTesting
+    static synchronized void createMediaMetadataCompat(
             String mediaId,
             String title,
             String artist,
@@ -206,5 +608,11 @@ public class MusicLibrary {
         albumRes.put(mediaId, albumArtResId);
         // 音频名称
         musicFileName.put(mediaId, musicFilename);
+        mediaIdByFileName.put(musicFilename, mediaId);
+        // 浏览节点，还没有订阅者
+        final List<String> changedNodes = new ArrayList<>();
+        index(mediaId, music.get(mediaId), changedNodes);
+        invalidate(getRoot(), changedNodes);
+        invalidate(OFFLINE, changedNodes);
     }
 }
\ No newline at end of file
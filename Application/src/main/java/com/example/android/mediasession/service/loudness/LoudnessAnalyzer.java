@@ -0,0 +1,545 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.loudness;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.example.android.mediasession.service.player.source.DataSource;
+import com.example.android.mediasession.service.player.source.DataSourceFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the loudness and the waveform of tracks in the background, keeping the loudness
+ * in a {@link LoudnessStore} and the waveform in a {@link WaveformFile} per track.
+ * <p>
+ * A track is cut into segments of at least {@link #MIN_SEGMENT_US}, up to one per worker.
+ * Each segment is decoded with its own {@link MediaExtractor} and {@link MediaCodec} straight
+ * into a {@link LoudnessMeter} and a {@link WaveformFile.Builder}, one codec buffer at a
+ * time, and the results are merged once the last one is done. A long track is therefore
+ * measured by all workers at once, and the memory used is a few codec buffers per worker
+ * whatever the length of the track.
+ * <p>
+ * Tracks about to be played are measured first. Remote tracks are not measured: they would be
+ * downloaded twice.
+ * <p>
+ * 响度分析
+ */
+public final class LoudnessAnalyzer {
+
+    private static final String TAG = "LoudnessAnalyzer";
+
+    // 每段的最短时长
+    private static final long MIN_SEGMENT_US = 60L * 1000 * 1000;
+    // 段开始前只经过滤波器的时长
+    private static final long PREROLL_US = 100L * 1000;
+    private static final long DEQUEUE_TIMEOUT_US = 10000;
+
+
+    /**
+     * 在主线程回调
+     */
+    public interface Listener {
+
+        /**
+         * 一个音频测量完成，波形文件已写入
+         *
+         * @param filename 音频文件名
+         */
+        void onAnalyzed(String filename);
+    }
+
+
+    private final LoudnessStore mStore;
+    // 波形文件目录
+    private final File mWaveformDirectory;
+    private final DataSourceFactory mDataSourceFactory;
+    private final Listener mListener;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final int mThreads;
+    private final ThreadPoolExecutor mExecutor;
+    // 音频文件名 -> 排队或正在测量的任务，避免重复
+    private final ConcurrentHashMap<String, PlanTask> mPending = new ConcurrentHashMap<>();
+    // 任务的顺序，同优先级先进先出
+    private final AtomicLong mSequence = new AtomicLong();
+    private volatile boolean mReleased;
+
+
+    /**
+     * 构造方法
+     *
+     * @param file              测量结果的保存位置
+     * @param waveformDirectory 波形文件目录
+     * @param dataSourceFactory 不应使用播放器预取的文件描述符
+     * @param listener
+     */
+    public LoudnessAnalyzer(File file, File waveformDirectory,
+                            DataSourceFactory dataSourceFactory, Listener listener) {
+        mStore = new LoudnessStore(file);
+        mWaveformDirectory = waveformDirectory;
+        mDataSourceFactory = dataSourceFactory;
+        mListener = listener;
+        // Leave a core to the UI and the decoder.
+        mThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        final ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, TAG + "-" + mCount.incrementAndGet());
+            }
+        };
+        // Tasks are Comparable: the queue hands out urgent ones first.
+        mExecutor = new ThreadPoolExecutor(mThreads, mThreads, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), threadFactory);
+        execute(new Task(true) {
+            @Override
+            public void run() {
+                mStore.load();
+                if (!mWaveformDirectory.isDirectory() && !mWaveformDirectory.mkdirs()) {
+                    Log.w(TAG, "Cannot create " + mWaveformDirectory);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return 测量结果，播放器由此得到增益
+     */
+    public LoudnessStore getStore() {
+        return mStore;
+    }
+
+    /**
+     * 音频的波形文件
+     *
+     * @param filename 音频文件名
+     * @return 还没有测量时为null
+     */
+    @Nullable
+    public File getWaveformFile(String filename) {
+        final File file = WaveformFile.getFile(mWaveformDirectory, filename);
+        return file.exists() ? file : null;
+    }
+
+    /**
+     * 主线程：测量一个音频，已测量且文件没有变化时忽略
+     *
+     * @param filename 音频文件名
+     * @param urgent   即将播放，排在其他音频之前
+     */
+    public void analyze(String filename, boolean urgent) {
+        if (filename == null || mReleased) {
+            return;
+        }
+        final PlanTask queued = mPending.get(filename);
+        // A queued background request is overtaken by an urgent one, which it then skips.
+        if (queued != null && (!urgent || queued.isUrgent() || queued.mStarted)) {
+            return;
+        }
+        final PlanTask task = new PlanTask(filename, urgent);
+        mPending.put(filename, task);
+        execute(task);
+    }
+
+    /**
+     * 主线程：取消未开始的测量，保存结果
+     */
+    public void release() {
+        mReleased = true;
+        mExecutor.getQueue().clear();
+        // Runs once the segments being decoded have noticed the release.
+        execute(new Task(true) {
+            @Override
+            public void run() {
+                mStore.save();
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+
+    // ##########################################################################################
+
+
+    private void execute(Task task) {
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Released.
+        }
+    }
+
+    /**
+     * 工作线程：队列空闲时保存，而不是每个结果保存一次
+     */
+    private void saveIfIdle() {
+        if (mExecutor.getQueue().isEmpty()) {
+            mStore.save();
+        }
+    }
+
+
+    /**
+     * 按优先级排序的任务
+     */
+    private abstract class Task implements Runnable, Comparable<Task> {
+
+        private final boolean mUrgent;
+        private final long mSequenceNumber = mSequence.incrementAndGet();
+
+        Task(boolean urgent) {
+            mUrgent = urgent;
+        }
+
+        boolean isUrgent() {
+            return mUrgent;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (mUrgent != other.mUrgent) {
+                return mUrgent ? -1 : 1;
+            }
+            return mSequenceNumber < other.mSequenceNumber ? -1
+                    : (mSequenceNumber == other.mSequenceNumber ? 0 : 1);
+        }
+    }
+
+    /**
+     * 检查是否需要测量，并把音频分段
+     */
+    private final class PlanTask extends Task {
+
+        private final String mFilename;
+        private volatile boolean mStarted;
+
+        PlanTask(String filename, boolean urgent) {
+            super(urgent);
+            mFilename = filename;
+        }
+
+        @Override
+        public void run() {
+            if (mPending.get(mFilename) != this) {
+                // Overtaken by an urgent request.
+                return;
+            }
+            mStarted = true;
+            mStore.load();
+            final DataSource source;
+            try {
+                source = mDataSourceFactory.create(mFilename);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "analyze: " + e.getMessage());
+                mPending.remove(mFilename, this);
+                return;
+            }
+            if (source.isRemote() || (!mStore.needsAnalysis(mFilename)
+                    && WaveformFile.getFile(mWaveformDirectory, mFilename).exists())) {
+                source.close();
+                mPending.remove(mFilename, this);
+                return;
+            }
+            long durationUs = 0;
+            MediaExtractor extractor = null;
+            try {
+                extractor = new MediaExtractor();
+                source.setDataSource(extractor);
+                final MediaFormat format = selectAudioTrack(extractor);
+                if (format.containsKey(MediaFormat.KEY_DURATION)) {
+                    durationUs = format.getLong(MediaFormat.KEY_DURATION);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "analyze: cannot open " + mFilename, e);
+                mPending.remove(mFilename, this);
+                return;
+            } finally {
+                if (extractor != null) {
+                    extractor.release();
+                }
+                source.close();
+            }
+            final int segments = (int) Math.max(1, Math.min(mThreads, durationUs / MIN_SEGMENT_US));
+            final Job job = new Job(this, segments, durationUs);
+            for (int i = 0; i < segments; i++) {
+                final long startUs = durationUs * i / segments;
+                // The last segment runs to the end, whatever the duration said.
+                final long endUs = i == segments - 1
+                        ? Long.MAX_VALUE : durationUs * (i + 1) / segments;
+                execute(new SegmentTask(job, i, startUs, endUs));
+            }
+        }
+    }
+
+    /**
+     * 一个音频的所有分段，最后一段完成后合并
+     */
+    private final class Job {
+
+        private final PlanTask mPlan;
+        private final long mDurationUs;
+        private final LoudnessMeter[] mMeters;
+        private final WaveformFile.Builder[] mWaveforms;
+        private final AtomicInteger mRemaining;
+        private final AtomicLong mCpuMs = new AtomicLong();
+        private final long mStartMs = SystemClock.elapsedRealtime();
+        private volatile boolean mFailed;
+
+        Job(PlanTask plan, int segments, long durationUs) {
+            mPlan = plan;
+            mDurationUs = durationUs;
+            mMeters = new LoudnessMeter[segments];
+            mWaveforms = new WaveformFile.Builder[segments];
+            mRemaining = new AtomicInteger(segments);
+        }
+
+        void onSegmentDone(int index, LoudnessMeter meter, WaveformFile.Builder waveform,
+                           long cpuMs) {
+            // The arrays are read after the counter reaches zero, which orders the writes.
+            mMeters[index] = meter;
+            mWaveforms[index] = waveform;
+            mCpuMs.addAndGet(cpuMs);
+            mFailed |= meter == null;
+            if (mRemaining.decrementAndGet() == 0) {
+                finish();
+            }
+        }
+
+        private void finish() {
+            mPending.remove(mPlan.mFilename, mPlan);
+            if (mFailed) {
+                return;
+            }
+            final LoudnessMeter meter = mMeters[0];
+            final WaveformFile.Builder waveform = mWaveforms[0];
+            for (int i = 1; i < mMeters.length; i++) {
+                meter.merge(mMeters[i]);
+                waveform.merge(mWaveforms[i]);
+            }
+            try {
+                waveform.write(WaveformFile.getFile(mWaveformDirectory, mPlan.mFilename));
+            } catch (IOException e) {
+                // Measured again next time, the loudness is kept meanwhile.
+                Log.w(TAG, "analyze: cannot write waveform", e);
+            }
+            mStore.put(mPlan.mFilename, meter.getIntegratedLoudness(), meter.getSamplePeak());
+            Log.d(TAG, "analyze: " + mPlan.mFilename + " " + meter.getIntegratedLoudness()
+                    + " LUFS, peak " + meter.getSamplePeak() + ", " + mMeters.length
+                    + " segments in " + (SystemClock.elapsedRealtime() - mStartMs) + " ms, "
+                    + mCpuMs.get() + " ms CPU");
+            saveIfIdle();
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mReleased) {
+                        mListener.onAnalyzed(mPlan.mFilename);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * 测量一段
+     */
+    private final class SegmentTask extends Task {
+
+        private final Job mJob;
+        private final int mIndex;
+        private final long mStartUs;
+        private final long mEndUs;
+
+        SegmentTask(Job job, int index, long startUs, long endUs) {
+            super(job.mPlan.isUrgent());
+            mJob = job;
+            mIndex = index;
+            mStartUs = startUs;
+            mEndUs = endUs;
+        }
+
+        @Override
+        public void run() {
+            final long cpuStartMs = SystemClock.currentThreadTimeMillis();
+            final WaveformFile.Builder waveform = new WaveformFile.Builder(mJob.mDurationUs);
+            LoudnessMeter meter = null;
+            try {
+                meter = measure(mJob.mPlan.mFilename, mStartUs, mEndUs, waveform);
+            } catch (Exception e) {
+                Log.w(TAG, "analyze: cannot decode " + mJob.mPlan.mFilename, e);
+            }
+            mJob.onSegmentDone(mIndex, meter, waveform,
+                    SystemClock.currentThreadTimeMillis() - cpuStartMs);
+        }
+    }
+
+
+    // ##########################################################################################
+
+
+    /**
+     * 解码并测量 [startUs, endUs) 之间的音频
+     *
+     * @return 已释放时为null
+     */
+    private LoudnessMeter measure(String filename, long startUs, long endUs,
+                                  WaveformFile.Builder waveform) throws IOException {
+        final DataSource source = mDataSourceFactory.create(filename);
+        MediaExtractor extractor = null;
+        MediaCodec codec = null;
+        try {
+            extractor = new MediaExtractor();
+            source.setDataSource(extractor);
+            final MediaFormat format = selectAudioTrack(extractor);
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+            if (startUs > 0) {
+                extractor.seekTo(Math.max(0, startUs - PREROLL_US),
+                        MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+            }
+            return decode(extractor, codec, format, startUs, endUs, waveform);
+        } finally {
+            if (codec != null) {
+                codec.release();
+            }
+            if (extractor != null) {
+                extractor.release();
+            }
+            source.close();
+        }
+    }
+
+    /**
+     * 解码循环：段开始前的帧只经过滤波器，段结束后的帧丢弃
+     */
+    private LoudnessMeter decode(MediaExtractor extractor, MediaCodec codec, MediaFormat format,
+                                 long startUs, long endUs, WaveformFile.Builder waveform) {
+        final ByteBuffer[] inputBuffers = codec.getInputBuffers();
+        ByteBuffer[] outputBuffers = codec.getOutputBuffers();
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        int channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        LoudnessMeter meter = new LoudnessMeter(sampleRate, channelCount);
+        // 复用同一个数组
+        short[] chunk = new short[0];
+        boolean inputDone = false;
+        while (!mReleased) {
+            if (!inputDone) {
+                final int inputIndex = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+                if (inputIndex >= 0) {
+                    final int size = extractor.readSampleData(inputBuffers[inputIndex], 0);
+                    final long sampleUs = extractor.getSampleTime();
+                    if (size < 0 || sampleUs >= endUs) {
+                        codec.queueInputBuffer(inputIndex, 0, 0, 0,
+                                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        inputDone = true;
+                    } else {
+                        codec.queueInputBuffer(inputIndex, 0, size, sampleUs, 0);
+                        extractor.advance();
+                    }
+                }
+            }
+
+            final int outputIndex = codec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
+            if (outputIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                outputBuffers = codec.getOutputBuffers();
+            } else if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                final MediaFormat outputFormat = codec.getOutputFormat();
+                sampleRate = outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                channelCount = outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                // Reported before the first buffer, so nothing has been measured yet.
+                meter = new LoudnessMeter(sampleRate, channelCount);
+            } else if (outputIndex >= 0) {
+                final ByteBuffer buffer = outputBuffers[outputIndex];
+                final int samples = info.size / 2;
+                if (chunk.length < samples) {
+                    chunk = new short[samples];
+                }
+                buffer.position(info.offset);
+                buffer.limit(info.offset + info.size);
+                buffer.order(ByteOrder.nativeOrder()).asShortBuffer().get(chunk, 0, samples);
+                codec.releaseOutputBuffer(outputIndex, false);
+
+                final int frames = samples / channelCount;
+                final int first = framesUntil(startUs, info.presentationTimeUs, sampleRate, frames);
+                final int end = Math.max(first,
+                        framesUntil(endUs, info.presentationTimeUs, sampleRate, frames));
+                meter.prime(chunk, 0, first);
+                meter.process(chunk, first * channelCount, end - first);
+                waveform.process(chunk, first * channelCount, end - first, channelCount,
+                        info.presentationTimeUs + first * 1000000L / sampleRate, sampleRate);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return meter;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return 从ptsUs开始的帧中，在targetUs之前的帧数
+     */
+    private static int framesUntil(long targetUs, long ptsUs, int sampleRate, int frames) {
+        final long deltaUs = targetUs - ptsUs;
+        if (deltaUs <= 0) {
+            return 0;
+        }
+        // Checked before multiplying, targetUs may be Long.MAX_VALUE.
+        if (deltaUs >= frames * 1000000L / sampleRate + 1) {
+            return frames;
+        }
+        return (int) Math.min(frames, deltaUs * sampleRate / 1000000);
+    }
+
+    private static MediaFormat selectAudioTrack(MediaExtractor extractor) throws IOException {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            final MediaFormat format = extractor.getTrackFormat(i);
+            final String mime = format.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("audio/")) {
+                extractor.selectTrack(i);
+                return format;
+            }
+        }
+        throw new IOException("No audio track");
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.loudness;
+
+/**
+ * EBU R128 (ITU-R BS.1770) integrated loudness and sample peak of interleaved 16 bit PCM.
+ * <p>
+ * Every channel is K-weighted (a high shelf and a high pass biquad), the mean square of each
+ * 400 ms block is taken every 100 ms, and the blocks pass an absolute gate at -70 LUFS and a
+ * relative gate 10 LU below the loudness of the blocks above the absolute gate. Blocks are
+ * kept in a histogram of 0.1 LU bins, which also holds each bin's exact energy sum, so the
+ * memory used does not grow with the length of the audio and only the gate itself is
+ * rounded to a bin.
+ * <p>
+ * The histograms of meters that measured consecutive segments of one track can be
+ * {@link #merge merged}, so a track can be measured by several threads at once. The blocks
+ * straddling a boundary are lost, three per boundary, which does not move the result of a
+ * track of minutes measurably.
+ * <p>
+ * Not thread safe; has no Android dependencies.
+ * <p>
+ * 响度测量
+ */
+public final class LoudnessMeter {
+
+    // 绝对门限、相对门限 (LU)
+    private static final double ABSOLUTE_GATE = -70.0;
+    private static final double RELATIVE_GATE = -10.0;
+    // 直方图：-70 到 +30 LUFS，每格0.1 LU
+    private static final int BINS_PER_LU = 10;
+    private static final int BINS = 100 * BINS_PER_LU;
+    // 每块由4个100ms的子块组成，相邻块重叠75%
+    private static final int SUB_BLOCKS = 4;
+
+
+    private final int mChannels;
+    private final int mSubBlockFrames;
+    // 各声道的权重，LFE为0
+    private final double[] mChannelWeights;
+
+    // K计权的两级滤波器系数和各声道的状态
+    private final double mShelfB0, mShelfB1, mShelfB2, mShelfA1, mShelfA2;
+    private final double mPassA1, mPassA2;
+    private final double[] mShelfZ1, mShelfZ2, mPassZ1, mPassZ2;
+
+    // 当前子块已加权的平方和和帧数
+    private double mSubBlockEnergy;
+    private int mSubBlockFill;
+    // 最近4个子块的平方和
+    private final double[] mSubBlocks = new double[SUB_BLOCKS];
+    private int mSubBlockCount;
+
+    private final long[] mBinCounts = new long[BINS];
+    private final double[] mBinEnergies = new double[BINS];
+    private int mPeak;
+    private long mFrames;
+
+
+    /**
+     * 构造方法
+     *
+     * @param sampleRate 采样率
+     * @param channels   声道数
+     */
+    public LoudnessMeter(int sampleRate, int channels) {
+        mChannels = channels;
+        mSubBlockFrames = sampleRate / 10;
+        mChannelWeights = new double[channels];
+        for (int channel = 0; channel < channels; channel++) {
+            // 5.1: L R C LFE Ls Rs; the surround channels count 1.5 dB more.
+            if (channels >= 6 && channel == 3) {
+                mChannelWeights[channel] = 0.0;
+            } else if (channels >= 6 && (channel == 4 || channel == 5)) {
+                mChannelWeights[channel] = 1.41;
+            } else {
+                mChannelWeights[channel] = 1.0;
+            }
+        }
+
+        // The BS.1770 filters, designed for 48 kHz, recomputed for the sample rate.
+        double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+        double q = 0.7071752369554196;
+        final double vh = Math.pow(10.0, 3.999843853973347 / 20.0);
+        final double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1.0 + k / q + k * k;
+        mShelfB0 = (vh + vb * k / q + k * k) / a0;
+        mShelfB1 = 2.0 * (k * k - vh) / a0;
+        mShelfB2 = (vh - vb * k / q + k * k) / a0;
+        mShelfA1 = 2.0 * (k * k - 1.0) / a0;
+        mShelfA2 = (1.0 - k / q + k * k) / a0;
+
+        k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+        q = 0.5003270373238773;
+        a0 = 1.0 + k / q + k * k;
+        mPassA1 = 2.0 * (k * k - 1.0) / a0;
+        mPassA2 = (1.0 - k / q + k * k) / a0;
+
+        mShelfZ1 = new double[channels];
+        mShelfZ2 = new double[channels];
+        mPassZ1 = new double[channels];
+        mPassZ2 = new double[channels];
+    }
+
+    /**
+     * 测量一段PCM
+     *
+     * @param samples 交错排列的采样
+     * @param offset  第一帧的位置 (采样数)
+     * @param frames  帧数
+     */
+    public void process(short[] samples, int offset, int frames) {
+        filter(samples, offset, frames, true);
+    }
+
+    /**
+     * 只经过滤波器，不计入测量。分段测量时，用段开始前的一小段音频让滤波器进入稳定状态。
+     */
+    public void prime(short[] samples, int offset, int frames) {
+        filter(samples, offset, frames, false);
+    }
+
+    /**
+     * 合并另一段的测量结果，两者的采样率和声道数必须相同
+     */
+    public void merge(LoudnessMeter other) {
+        for (int bin = 0; bin < BINS; bin++) {
+            mBinCounts[bin] += other.mBinCounts[bin];
+            mBinEnergies[bin] += other.mBinEnergies[bin];
+        }
+        mPeak = Math.max(mPeak, other.mPeak);
+        mFrames += other.mFrames;
+    }
+
+    /**
+     * @return 已测量的帧数
+     */
+    public long getFrames() {
+        return mFrames;
+    }
+
+    /**
+     * @return 综合响度 (LUFS)；没有高于门限的音频时为负无穷
+     */
+    public double getIntegratedLoudness() {
+        long count = 0;
+        double energy = 0;
+        for (int bin = 0; bin < BINS; bin++) {
+            count += mBinCounts[bin];
+            energy += mBinEnergies[bin];
+        }
+        if (count == 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        final double gate = toLoudness(energy / count) + RELATIVE_GATE;
+        count = 0;
+        energy = 0;
+        for (int bin = Math.max(0, toBin(gate)); bin < BINS; bin++) {
+            count += mBinCounts[bin];
+            energy += mBinEnergies[bin];
+        }
+        return count == 0 ? Double.NEGATIVE_INFINITY : toLoudness(energy / count);
+    }
+
+    /**
+     * @return 采样峰值，0~1之间
+     */
+    public float getSamplePeak() {
+        return mPeak / 32768f;
+    }
+
+
+    // ##########################################################################################
+
+
+    private void filter(short[] samples, int offset, int frames, boolean measure) {
+        final int channels = mChannels;
+        final double b0 = mShelfB0, b1 = mShelfB1, b2 = mShelfB2, a1 = mShelfA1, a2 = mShelfA2;
+        final double p1 = mPassA1, p2 = mPassA2;
+        int index = offset;
+        for (int frame = 0; frame < frames; frame++) {
+            double frameEnergy = 0;
+            for (int channel = 0; channel < channels; channel++) {
+                final int sample = samples[index++];
+                // Transposed direct form II: the shelf, then the high pass (b = 1, -2, 1).
+                final double x = sample / 32768.0;
+                final double y = b0 * x + mShelfZ1[channel];
+                mShelfZ1[channel] = b1 * x - a1 * y + mShelfZ2[channel];
+                mShelfZ2[channel] = b2 * x - a2 * y;
+                final double z = y + mPassZ1[channel];
+                mPassZ1[channel] = -2.0 * y - p1 * z + mPassZ2[channel];
+                mPassZ2[channel] = y - p2 * z;
+                if (measure) {
+                    frameEnergy += mChannelWeights[channel] * z * z;
+                    final int magnitude = sample < 0 ? -sample : sample;
+                    if (magnitude > mPeak) {
+                        mPeak = magnitude;
+                    }
+                }
+            }
+            if (measure) {
+                mSubBlockEnergy += frameEnergy;
+                if (++mSubBlockFill == mSubBlockFrames) {
+                    endSubBlock();
+                }
+            }
+        }
+        if (measure) {
+            mFrames += frames;
+        }
+    }
+
+    /**
+     * 一个子块结束，已有4个子块时得到一个400ms的块
+     */
+    private void endSubBlock() {
+        mSubBlocks[mSubBlockCount++ % SUB_BLOCKS] = mSubBlockEnergy;
+        mSubBlockEnergy = 0;
+        mSubBlockFill = 0;
+        if (mSubBlockCount < SUB_BLOCKS) {
+            return;
+        }
+        double sum = 0;
+        for (double subBlock : mSubBlocks) {
+            sum += subBlock;
+        }
+        final double energy = sum / (SUB_BLOCKS * mSubBlockFrames);
+        final double loudness = toLoudness(energy);
+        if (loudness < ABSOLUTE_GATE) {
+            return;
+        }
+        final int bin = Math.min(BINS - 1, toBin(loudness));
+        mBinCounts[bin]++;
+        mBinEnergies[bin] += energy;
+    }
+
+    private static double toLoudness(double energy) {
+        return -0.691 + 10.0 * Math.log10(energy);
+    }
+
+    private static int toBin(double loudness) {
+        return (int) Math.floor((loudness - ABSOLUTE_GATE) * BINS_PER_LU);
+    }
+}
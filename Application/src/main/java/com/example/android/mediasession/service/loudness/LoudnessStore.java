@@ -0,0 +1,231 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.loudness;
+
+import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.example.android.mediasession.service.player.PlayerAdapter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The measured loudness of every analysed track, persisted to a private file next to the
+ * scan journal, and the gain the players apply for it.
+ * <p>
+ * The gain brings a track to {@link #TARGET_LOUDNESS}, the ReplayGain 2.0 reference, but
+ * never above full scale: the players can only attenuate, and a peak pushed over 1.0 would
+ * clip. Quieter tracks therefore play at their own level.
+ * <p>
+ * {@link #getGain} is called by the players on the main thread and never touches the disk;
+ * everything else runs on the analysis workers.
+ * <p>
+ * 响度记录
+ */
+public final class LoudnessStore implements PlayerAdapter.GainSource {
+
+    private static final String TAG = "LoudnessStore";
+
+    // 格式变化时增加，旧文件将被忽略
+    private static final int VERSION = 1;
+    // 目标响度 (LUFS)
+    public static final double TARGET_LOUDNESS = -18.0;
+
+
+    /**
+     * 一个音频的测量结果，文件大小或修改时间变化后重新测量
+     */
+    static final class Entry {
+        final long size;
+        final long lastModified;
+        // 综合响度 (LUFS)，静音时为负无穷
+        final double loudness;
+        final float peak;
+
+        Entry(long size, long lastModified, double loudness, float peak) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.loudness = loudness;
+            this.peak = peak;
+        }
+    }
+
+
+    private final File mFile;
+    // 音频文件名 -> 测量结果
+    private final Map<String, Entry> mEntries = new ConcurrentHashMap<>();
+    private boolean mLoaded;
+    private volatile boolean mDirty;
+
+
+    LoudnessStore(File file) {
+        mFile = file;
+    }
+
+    /**
+     * 主线程：播放开始时的增益
+     *
+     * @param filename 音频文件名
+     * @return 0~1之间，未测量时为1
+     */
+    @Override
+    public float getGain(String filename) {
+        final Entry entry = filename != null ? mEntries.get(filename) : null;
+        if (entry == null || Double.isInfinite(entry.loudness)) {
+            return 1.0f;
+        }
+        double gain = Math.pow(10.0, (TARGET_LOUDNESS - entry.loudness) / 20.0);
+        if (entry.peak > 0) {
+            gain = Math.min(gain, 1.0 / entry.peak);
+        }
+        return (float) Math.min(1.0, gain);
+    }
+
+    /**
+     * 工作线程：是否需要测量，没有记录或文件已变化
+     */
+    boolean needsAnalysis(String filename) {
+        final Entry entry = mEntries.get(filename);
+        if (entry == null) {
+            return true;
+        }
+        final File file = getLocalFile(filename);
+        return file != null
+                && (file.length() != entry.size || file.lastModified() != entry.lastModified);
+    }
+
+    /**
+     * 工作线程：保存一个测量结果
+     */
+    void put(String filename, double loudness, float peak) {
+        final File file = getLocalFile(filename);
+        mEntries.put(filename, new Entry(file != null ? file.length() : 0,
+                file != null ? file.lastModified() : 0, loudness, peak));
+        mDirty = true;
+    }
+
+    /**
+     * 工作线程：读取保存的记录，只在第一次调用时读取
+     */
+    synchronized void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != VERSION) {
+                Log.i(TAG, "load: ignoring results of an older version");
+                return;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String filename = in.readUTF();
+                mEntries.put(filename, new Entry(in.readLong(), in.readLong(),
+                        in.readDouble(), in.readFloat()));
+            }
+            Log.d(TAG, "load: " + count + " tracks");
+        } catch (FileNotFoundException e) {
+            // First run.
+        } catch (IOException e) {
+            Log.w(TAG, "load: corrupt results, analysing again", e);
+            mEntries.clear();
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * 工作线程：有变化时保存，先写临时文件再替换
+     */
+    synchronized void save() {
+        if (!mDirty) {
+            return;
+        }
+        mDirty = false;
+        final File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            // The map may change while it is written; the count comes from the snapshot.
+            final List<Map.Entry<String, Entry>> snapshot = new ArrayList<>(mEntries.entrySet());
+            out.writeInt(VERSION);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Entry> mapEntry : snapshot) {
+                final Entry entry = mapEntry.getValue();
+                out.writeUTF(mapEntry.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.lastModified);
+                out.writeDouble(entry.loudness);
+                out.writeFloat(entry.peak);
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Cannot rename " + temp);
+            }
+            Log.d(TAG, "save: " + snapshot.size() + " tracks");
+        } catch (IOException e) {
+            Log.w(TAG, "save", e);
+            mDirty = true;
+        } finally {
+            close(out);
+        }
+    }
+
+
+    // ##########################################################################################
+
+
+    /**
+     * Only file:// tracks can change in place; assets change with the app, content:// URIs
+     * cannot be stat'ed cheaply.
+     */
+    @Nullable
+    private static File getLocalFile(String filename) {
+        if (!filename.startsWith("file://")) {
+            return null;
+        }
+        final String path = Uri.parse(filename).getPath();
+        return path != null ? new File(path) : null;
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignored
+            }
+        }
+    }
+}
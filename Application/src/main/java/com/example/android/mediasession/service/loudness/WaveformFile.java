@@ -0,0 +1,214 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.loudness;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The waveform of a track: the peak of each of {@link #BUCKETS} equal slices of it, one byte
+ * each, so every file is the same 1 KB whatever the length of the track.
+ * <p>
+ * Written once by {@link LoudnessAnalyzer} from the same decode pass as the loudness, and
+ * read by the seek bar through a memory-mapped buffer: drawing reads the bytes in place.
+ * <p>
+ * 波形峰值文件
+ */
+public final class WaveformFile {
+
+    private static final String TAG = "WaveformFile";
+
+    // 格式："WAVE" 峰值个数 峰值 (0~255)
+    private static final int MAGIC = 0x57415645;
+    private static final int HEADER_BYTES = 8;
+    // 峰值个数
+    public static final int BUCKETS = 1024;
+
+
+    /**
+     * 测量一段音频的峰值，各段的结果合并
+     */
+    static final class Builder {
+
+        private final long mDurationUs;
+        private final byte[] mPeaks;
+
+        /**
+         * @param durationUs 音频的总时长，0表示未知，不生成波形
+         */
+        Builder(long durationUs) {
+            mDurationUs = durationUs;
+            mPeaks = new byte[durationUs > 0 ? BUCKETS : 0];
+        }
+
+        /**
+         * @param ptsUs 第一帧的时间
+         */
+        void process(short[] samples, int offset, int frames, int channels, long ptsUs,
+                     int sampleRate) {
+            if (mPeaks.length == 0 || frames == 0) {
+                return;
+            }
+            // Frames per bucket, and the frame at which the next bucket starts.
+            final double bucketFrames = (double) mDurationUs * sampleRate / 1000000 / BUCKETS;
+            int bucket = (int) Math.min(BUCKETS - 1, ptsUs * BUCKETS / mDurationUs);
+            long startFrame = ptsUs * sampleRate / 1000000;
+            long nextBucketFrame = (long) Math.ceil((bucket + 1) * bucketFrames);
+            int peak = mPeaks[bucket] & 0xff;
+            int index = offset;
+            for (int frame = 0; frame < frames; frame++) {
+                if (startFrame + frame >= nextBucketFrame && bucket < BUCKETS - 1) {
+                    mPeaks[bucket] = (byte) peak;
+                    bucket++;
+                    nextBucketFrame = (long) Math.ceil((bucket + 1) * bucketFrames);
+                    peak = mPeaks[bucket] & 0xff;
+                }
+                for (int channel = 0; channel < channels; channel++) {
+                    final int sample = samples[index++];
+                    // 0~32768 to 0~255
+                    final int magnitude = (sample < 0 ? -sample : sample) >> 7;
+                    if (magnitude > peak) {
+                        peak = Math.min(255, magnitude);
+                    }
+                }
+            }
+            mPeaks[bucket] = (byte) peak;
+        }
+
+        void merge(Builder other) {
+            for (int i = 0; i < mPeaks.length; i++) {
+                if ((other.mPeaks[i] & 0xff) > (mPeaks[i] & 0xff)) {
+                    mPeaks[i] = other.mPeaks[i];
+                }
+            }
+        }
+
+        /**
+         * 工作线程：先写临时文件再替换
+         */
+        void write(File file) throws IOException {
+            final File temp = new File(file.getPath() + ".tmp");
+            final DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(mPeaks.length);
+                out.write(mPeaks);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Cannot rename " + temp);
+            }
+        }
+    }
+
+
+    private final ByteBuffer mBuffer;
+    private final int mBucketCount;
+
+
+    private WaveformFile(ByteBuffer buffer, int bucketCount) {
+        mBuffer = buffer;
+        mBucketCount = bucketCount;
+    }
+
+    /**
+     * 音频的波形文件位置，以音频文件名的SHA-1命名
+     *
+     * @param directory 波形文件目录
+     * @param filename  音频文件名
+     */
+    static File getFile(File directory, String filename) {
+        try {
+            final byte[] digest =
+                    MessageDigest.getInstance("SHA-1").digest(filename.getBytes("UTF-8"));
+            final StringBuilder name = new StringBuilder(digest.length * 2 + 6);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return new File(directory, name.append(".peaks").toString());
+        } catch (NoSuchAlgorithmException | IOException e) {
+            // Every Android device has SHA-1 and UTF-8.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 映射波形文件
+     *
+     * @param path 波形文件路径
+     * @return 文件不存在或格式不对时为null
+     */
+    @Nullable
+    public static WaveformFile open(String path) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(path, "r");
+            // The mapping stays valid after the file is closed.
+            final ByteBuffer buffer =
+                    file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC
+                    || buffer.getInt(4) != buffer.capacity() - HEADER_BYTES) {
+                Log.w(TAG, "open: not a waveform: " + path);
+                return null;
+            }
+            return new WaveformFile(buffer, buffer.getInt(4));
+        } catch (IOException e) {
+            Log.w(TAG, "open: " + path, e);
+            return null;
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // Ignored
+                }
+            }
+        }
+    }
+
+    /**
+     * @return 峰值个数，时长未知的音频为0
+     */
+    public int getBucketCount() {
+        return mBucketCount;
+    }
+
+    /**
+     * [from, to) 之间的最大峰值，不分配内存
+     *
+     * @return 0~1之间
+     */
+    public float getPeak(int from, int to) {
+        int peak = 0;
+        for (int bucket = Math.max(0, from); bucket < Math.min(to, mBucketCount); bucket++) {
+            peak = Math.max(peak, mBuffer.get(HEADER_BYTES + bucket) & 0xff);
+        }
+        return peak / 255f;
+    }
+}
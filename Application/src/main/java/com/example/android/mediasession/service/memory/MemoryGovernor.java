@@ -0,0 +1,181 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.memory;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.os.Debug;
+import android.support.v4.media.MediaMetadataCompat;
+import android.util.Log;
+
+import com.example.android.mediasession.MediaSessionApplication;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Passes {@code onTrimMemory()} and {@code onLowMemory()} of the service on to everything
+ * that holds memory it can do without: caches drop what they can rebuild, paused players
+ * give up their decoders. The playback process then stays small enough to survive in the
+ * background on a low-RAM device, instead of being killed and cold started on the next
+ * media button.
+ * <p>
+ * The trim levels are mapped to one {@link Trimmable#PRESSURE_MODERATE pressure} scale,
+ * because the levels a running service gets (RUNNING_*) and those a cached process gets
+ * (BACKGROUND and above) are not ordered by severity: RUNNING_CRITICAL is numerically below
+ * BACKGROUND. UI_HIDDEN only says the activity went away, which for a music app is the
+ * usual state while playing, so it maps to the lowest pressure rather than to a real shortage.
+ * <p>
+ * Each trim is logged under the tag {@value #TAG} with the bytes the participants estimate
+ * they freed and the measured heap and RSS before and after; the totals are printed by
+ * {@code dumpsys}. Used on the main thread.
+ * <p>
+ * 内存管理
+ */
+public final class MemoryGovernor {
+
+    private static final String TAG = "MemoryGovernor";
+
+    private static final String[] PRESSURE_NAMES = {"none", "low", "moderate", "high",
+            "critical"};
+
+
+    private final List<String> mNames = new ArrayList<>();
+    private final List<Trimmable> mTrimmables = new ArrayList<>();
+    // 统计
+    private int mTrimCount;
+    private int mLastLevel = -1;
+    private long mEstimatedBytes;
+    private long mMeasuredBytes;
+
+
+    /**
+     * 注册，同一对象只注册一次
+     *
+     * @param name      输出日志时的名字
+     * @param trimmable
+     */
+    public void register(String name, Trimmable trimmable) {
+        if (!mTrimmables.contains(trimmable)) {
+            mNames.add(name);
+            mTrimmables.add(trimmable);
+        }
+    }
+
+    public void unregister(Trimmable trimmable) {
+        final int index = mTrimmables.indexOf(trimmable);
+        if (index >= 0) {
+            mNames.remove(index);
+            mTrimmables.remove(index);
+        }
+    }
+
+    /**
+     * @param level ComponentCallbacks2 的 TRIM_MEMORY_* 级别
+     */
+    public void onTrimMemory(int level) {
+        final int pressure = toPressure(level);
+        if (pressure == 0) {
+            return;
+        }
+        final long heapBefore = getHeapBytes();
+        final long rssBefore = MediaSessionApplication.getResidentSetKb();
+        long estimated = 0;
+        final StringBuilder details = new StringBuilder();
+        for (int i = 0; i < mTrimmables.size(); i++) {
+            final long bytes = mTrimmables.get(i).onTrimMemory(pressure);
+            estimated += bytes;
+            details.append(i == 0 ? "" : ", ").append(mNames.get(i)).append(' ')
+                    .append(bytes / 1024).append(" kB");
+        }
+        // Freed objects are only collected later; the heap figure shows what is already gone.
+        final long measured = heapBefore - getHeapBytes();
+        mTrimCount++;
+        mLastLevel = level;
+        mEstimatedBytes += estimated;
+        mMeasuredBytes += Math.max(0, measured);
+        Log.i(TAG, "onTrimMemory: level " + level + " (" + PRESSURE_NAMES[pressure] + "), "
+                + estimated / 1024 + " kB freed: " + details + "; heap -" + measured / 1024
+                + " kB, RSS " + rssBefore + " -> " + MediaSessionApplication.getResidentSetKb()
+                + " kB");
+    }
+
+    /**
+     * 系统内存严重不足，与最高级别相同
+     */
+    public void onLowMemory() {
+        onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("Memory: " + mTrimCount + " trims, last level " + mLastLevel + ", "
+                + mEstimatedBytes / 1024 + " kB estimated freed, heap -"
+                + mMeasuredBytes / 1024 + " kB; registered " + mNames);
+    }
+
+    /**
+     * 音频数据中图片占用的字节数，其他内容相比可以忽略
+     */
+    public static long estimateBytes(MediaMetadataCompat metadata) {
+        if (metadata == null) {
+            return 0;
+        }
+        long bytes = 0;
+        for (String key : new String[]{
+                MediaMetadataCompat.METADATA_KEY_ALBUM_ART,
+                MediaMetadataCompat.METADATA_KEY_ART,
+                MediaMetadataCompat.METADATA_KEY_DISPLAY_ICON}) {
+            final Bitmap bitmap = metadata.getBitmap(key);
+            if (bitmap != null) {
+                bytes += bitmap.getAllocationByteCount();
+            }
+        }
+        return bytes;
+    }
+
+
+    // ##########################################################################################
+
+
+    private static int toPressure(int level) {
+        switch (level) {
+            case ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN:
+                return Trimmable.PRESSURE_LOW;
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE:
+            case ComponentCallbacks2.TRIM_MEMORY_BACKGROUND:
+                return Trimmable.PRESSURE_MODERATE;
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW:
+            case ComponentCallbacks2.TRIM_MEMORY_MODERATE:
+                return Trimmable.PRESSURE_HIGH;
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL:
+            case ComponentCallbacks2.TRIM_MEMORY_COMPLETE:
+                return Trimmable.PRESSURE_CRITICAL;
+            default:
+                // Levels added after this was written are at least moderate.
+                return level > 0 ? Trimmable.PRESSURE_MODERATE : 0;
+        }
+    }
+
+    /**
+     * Java堆和native堆 (Android O 起图片在native堆) 已使用的字节数
+     */
+    private static long getHeapBytes() {
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory() + Debug.getNativeHeapAllocatedSize();
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.memory;
+
+/**
+ * Something that can give memory back when {@link MemoryGovernor} asks, registered with it.
+ * <p>
+ * 可以在内存不足时释放内存的对象
+ */
+public interface Trimmable {
+
+    // 界面不可见：内存并不紧张，只释放界面才用的
+    int PRESSURE_LOW = 1;
+    // 内存压力：后台进程刚进入缓存，或service运行中内存开始紧张
+    int PRESSURE_MODERATE = 2;
+    // 内存紧张：只保留马上要用的
+    int PRESSURE_HIGH = 3;
+    // 内存严重不足：释放所有可以重建的
+    int PRESSURE_CRITICAL = 4;
+
+    /**
+     * 主线程：按内存压力释放内存
+     *
+     * @param pressure {@link #PRESSURE_LOW}、{@link #PRESSURE_MODERATE}、
+     *                 {@link #PRESSURE_HIGH} 或 {@link #PRESSURE_CRITICAL}
+     * @return 估计释放的字节数
+     */
+    long onTrimMemory(int pressure);
+}
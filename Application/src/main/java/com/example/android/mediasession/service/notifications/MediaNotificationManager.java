@@ -22,6 +22,7 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.os.Build;
 import android.support.annotation.NonNull;
@@ -161,7 +162,7 @@ public class MediaNotificationManager {
                 .setContentTitle(description.getTitle())
                 // Subtitle - Usually Artist name.
                 .setContentText(description.getSubtitle())
-                .setLargeIcon(MusicLibrary.getAlbumBitmap(mContext, description.getMediaId()))
+                .setLargeIcon(getLargeIcon(description))
                 // When notification is deleted (when playback is paused and notification can be
                 // deleted) fire MediaButtonPendingIntent with ACTION_STOP.
                 .setDeleteIntent(MediaButtonReceiver.buildMediaButtonPendingIntent(
@@ -184,6 +185,19 @@ public class MediaNotificationManager {
         return builder;
     }
 
+    /**
+     * 优先使用音频数据中已解码的图片
+     *
+     * @param description
+     * @return
+     */
+    private Bitmap getLargeIcon(MediaDescriptionCompat description) {
+        final Bitmap iconBitmap = description.getIconBitmap();
+        return iconBitmap != null
+                ? iconBitmap
+                : MusicLibrary.getAlbumBitmap(mContext, description.getMediaId());
+    }
+
     // Does nothing on versions of Android earlier than O.
     @RequiresApi(Build.VERSION_CODES.O)
     private void createChannel() {
@@ -0,0 +1,1752 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.player;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.PlaybackParams;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+import android.util.Log;
+
+import com.example.android.mediasession.service.PlaybackInfoListener;
+import com.example.android.mediasession.service.contentcatalogs.MusicLibrary;
+import com.example.android.mediasession.service.memory.Trimmable;
+import com.example.android.mediasession.service.recorder.FlightRecorder;
+import com.example.android.mediasession.service.player.source.DataSource;
+import com.example.android.mediasession.service.player.source.DataSourceFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * {@link PlayerAdapter} that decodes with {@link MediaExtractor} and {@link MediaCodec} and
+ * writes the PCM to an {@link AudioTrack} on its own thread.
+ * <p>
+ * Compared to {@link MediaPlayerManager} it:
+ * <ul>
+ * <li>starts decoding on the decoder thread right away, without a blocking prepare() on the
+ * main thread, and with a small AudioTrack buffer;</li>
+ * <li>seeks precisely: the extractor seeks to the previous sync sample and the decoded
+ * frames before the target are dropped;</li>
+ * <li>plays gaplessly: when the next track (see {@link #setNextMedia}) has the same mime,
+ * rate, channels and codec-specific data, its samples are fed to the same codec right after
+ * the current ones; otherwise a new codec is opened for it. At the join the encoder padding
+ * of the current track and the encoder delay of the next one, as the extractor reports them
+ * (LAME header, iTunSMPB), are cut from the PCM; the codec is configured without them, so
+ * that its output stays aligned with the timestamps. The delay at the start of the first
+ * track and the padding at the end of the last one are played;</li>
+ * <li>hands the codec's own (direct) output buffers to the AudioTrack without copying them
+ * on Android L and above;</li>
+ * <li>changes the speed without changing the pitch, with {@link PlaybackParams} on Android M
+ * and above and with {@link TimeStretcher} on the PCM before that;</li>
+ * <li>starts a track it has played or decoded ahead before at once, from the PCM of its first
+ * seconds in the {@link StartBufferCache}, while the codec is prepared; the codec takes over
+ * where that PCM ends;</li>
+ * <li>crossfades (see {@link #setCrossfadeDuration}) on every API level: the next track is
+ * prepared on a second codec shortly before the fade, and its PCM is mixed into the current
+ * one per frame with equal power curves. If the two put out another rate or channel count,
+ * the tracks change at the end as without a crossfade.</li>
+ * </ul>
+ * The time from playFile() to the first PCM written to the playing AudioTrack is recorded
+ * as {@link FlightRecorder#EVENT_FIRST_AUDIO}, with the start buffer or without.
+ * 基于MediaCodec解码、AudioTrack输出的播放器
+ */
+public final class CodecPlayerManager extends PlayerAdapter {
+
+    private static final String TAG = "CodecPlayerManager";
+
+    private static final long DEQUEUE_TIMEOUT_US = 10 * 1000;
+    // 变速后每次写入AudioTrack的最大帧数
+    private static final int STRETCH_CHUNK_FRAMES = 2048;
+    // 每次写入AudioTrack的缓存开头的帧数，之间检查暂停和seek
+    private static final int START_BUFFER_CHUNK_FRAMES = 1024;
+    // 从缓存的开头切换到解码器时，从稍前的位置开始解码
+    private static final long PREROLL_US = 100L * 1000;
+    // 交叉淡入淡出开始前多久准备下一首
+    private static final long CROSSFADE_PREPARE_US = 2L * 1000 * 1000;
+    // MediaFormat 中的 codec-specific data
+    private static final String CSD_0 = "csd-0";
+    private static final String CSD_1 = "csd-1";
+    // 编码器在开头和结尾加入的帧数，MediaFormat 的常量在 Android R 才公开
+    private static final String KEY_ENCODER_DELAY = "encoder-delay";
+    private static final String KEY_ENCODER_PADDING = "encoder-padding";
+
+
+    /**
+     *
+     */
+    // 播放信息回调
+    private final PlaybackInfoListener mPlaybackInfoListener;
+    // 数据源
+    private final DataSourceFactory mDataSourceFactory;
+    // 音频开头的PCM缓存
+    private final StartBufferCache mStartBufferCache;
+    // 解码线程的回调切换到主线程
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     *
+     */
+    // 当前音频信息
+    private MediaMetadataCompat mCurrentMedia;
+    // 下一首音频信息
+    private MediaMetadataCompat mNextMedia;
+    // 当前音频文件
+    private String mFilename;
+    // 当前音频的增益，开始播放时取得
+    private float mTrackGain = 1.0f;
+    // 当前的播放状态
+    @PlaybackStateCompat.State
+    private int mState;
+    // 是否播放完成
+    private boolean mCurrentMediaPlayedToCompletion;
+    // 播放速度
+    private float mPlaybackSpeed = 1.0f;
+    // 交叉淡入淡出的时长，0为关闭
+    private long mCrossfadeMs;
+    // 生成播放状态，省略重复的通知
+    private final PlaybackStateReducer mStateReducer = new PlaybackStateReducer();
+    // 解码线程
+    private Decoder mDecoder;
+    // 内存不足时释放了暂停的解码线程，恢复播放时从此位置重新开始；-1表示没有释放
+    private long mTrimmedPositionMs = -1;
+    // 合并seek请求
+    private final SeekScheduler mSeekScheduler = new SeekScheduler(new SeekScheduler.Seeker() {
+        @Override
+        public void performSeek(long positionMs, boolean precise) {
+            mDecoder.seekTo(positionMs, precise);
+        }
+    });
+
+
+    /**
+     * 构造方法
+     *
+     * @param context
+     * @param listener
+     * @param dataSourceFactory
+     * @param startBufferCache  音频开头的PCM缓存
+     */
+    public CodecPlayerManager(Context context, PlaybackInfoListener listener,
+                              DataSourceFactory dataSourceFactory,
+                              StartBufferCache startBufferCache) {
+        super(context);
+        mPlaybackInfoListener = listener;
+        mDataSourceFactory = dataSourceFactory;
+        mStartBufferCache = startBufferCache;
+    }
+
+
+    @Override
+    public void playFromMedia(MediaMetadataCompat metadata) {
+        mCurrentMedia = metadata;
+        final String mediaId = metadata.getDescription().getMediaId();
+        playFile(MusicLibrary.getMusicFilename(mediaId));
+    }
+
+    @Override
+    public MediaMetadataCompat getCurrentMedia() {
+        return mCurrentMedia;
+    }
+
+    @Override
+    public boolean isPlaying() {
+        return mDecoder != null && mState == PlaybackStateCompat.STATE_PLAYING;
+    }
+
+    @Override
+    public void setNextMedia(MediaMetadataCompat metadata) {
+        mNextMedia = metadata;
+        if (mDecoder != null) {
+            mDecoder.setNextItem(createNextItem());
+        }
+        final String nextFilename = metadata != null
+                ? MusicLibrary.getMusicFilename(metadata.getDescription().getMediaId()) : null;
+        if (nextFilename != null) {
+            // A skip to it starts at once too.
+            mStartBufferCache.prefill(nextFilename);
+        }
+    }
+
+    @Override
+    public long onTrimMemory(int pressure) {
+        if (pressure < Trimmable.PRESSURE_HIGH || mDecoder == null
+                || mState != PlaybackStateCompat.STATE_PAUSED || mSeekScheduler.isSeeking()) {
+            return 0;
+        }
+        final long positionMs = mDecoder.getPositionMs();
+        final long bytes = mDecoder.getBufferBytes();
+        release();
+        mTrimmedPositionMs = positionMs;
+        Log.d(TAG, "onTrimMemory: released the paused decoder at " + positionMs + " ms");
+        // The codec's own buffers are shared memory, not counted here.
+        return bytes;
+    }
+
+    @Override
+    protected void onPlay() {
+        if (mDecoder == null && mTrimmedPositionMs >= 0) {
+            // Released while paused: started again where it was.
+            startDecoder(mTrimmedPositionMs);
+        }
+        if (mDecoder != null && mState != PlaybackStateCompat.STATE_PLAYING) {
+            mDecoder.setPaused(false);
+            setNewState(PlaybackStateCompat.STATE_PLAYING);
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        if (isPlaying()) {
+            mDecoder.setPaused(true);
+            setNewState(PlaybackStateCompat.STATE_PAUSED);
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        // Regardless of whether or not the decoder has been created / started, the state must
+        // be updated, so that MediaNotificationManager can take down the notification.
+        setNewState(PlaybackStateCompat.STATE_STOPPED);
+        release();
+        mTrimmedPositionMs = -1;
+    }
+
+    @Override
+    public void seekTo(long position) {
+        if (mDecoder != null && mSeekScheduler.seekTo(position)) {
+            // Set the state (to the current state) because the position changed and should
+            // be reported to clients. Coalesced seeks are reported once they complete.
+            setNewState(mState);
+        } else if (mDecoder == null && mTrimmedPositionMs >= 0) {
+            mTrimmedPositionMs = position;
+            setNewState(mState);
+        }
+    }
+
+    @Override
+    public void setVolume(float volume) {
+        if (mDecoder != null) {
+            mDecoder.setVolume(volume * mTrackGain);
+        }
+    }
+
+    @Override
+    public void setPlaybackSpeed(float speed) {
+        mPlaybackSpeed = speed;
+        if (mDecoder != null) {
+            mDecoder.setSpeed(speed);
+            setNewState(mState);
+        }
+    }
+
+    @Override
+    public void setCrossfadeDuration(long durationMs) {
+        mCrossfadeMs = Math.max(0, Math.min(MAX_CROSSFADE_MS, durationMs));
+        if (mDecoder != null) {
+            mDecoder.setCrossfadeDuration(mCrossfadeMs);
+        }
+    }
+
+
+    // ##########################################################################################
+
+
+    /**
+     * 根据音频文件进行播放
+     *
+     * @param filename
+     */
+    private void playFile(String filename) {
+        boolean mediaChanged = (mFilename == null || !filename.equals(mFilename));
+        if (mCurrentMediaPlayedToCompletion) {
+            // Last audio file was played to completion, the decoder was released, so force a
+            // reload of the media file for playback.
+            mediaChanged = true;
+            mCurrentMediaPlayedToCompletion = false;
+        }
+        if (!mediaChanged) {
+            if (!isPlaying()) {
+                play();
+            }
+            return;
+        }
+        release();
+        mFilename = filename;
+        mStateReducer.invalidate();
+        mTrackGain = getTrackGain(filename);
+        startDecoder(0);
+        play();
+    }
+
+    /**
+     * 创建并启动当前音频的解码线程，解码在解码线程中进行，这里不会阻塞
+     *
+     * @param positionMs 开始的位置
+     */
+    private void startDecoder(long positionMs) {
+        mTrimmedPositionMs = -1;
+        mDecoder = new Decoder(mDataSourceFactory.create(mFilename), mFilename, positionMs == 0,
+                mTrackGain);
+        mDecoder.setNextItem(createNextItem());
+        mDecoder.setSpeed(mPlaybackSpeed);
+        mDecoder.setCrossfadeDuration(mCrossfadeMs);
+        // Still ducked if focus was lost to a transient sound meanwhile.
+        mDecoder.setVolume(getFocusVolume() * mTrackGain);
+        if (positionMs > 0) {
+            mDecoder.seekTo(positionMs, true);
+        }
+        FlightRecorder.record(FlightRecorder.EVENT_PREPARE_START,
+                FlightRecorder.PREPARE_DECODER, positionMs);
+        mDecoder.start();
+    }
+
+    private NextItem createNextItem() {
+        if (mNextMedia == null) {
+            return null;
+        }
+        final String filename =
+                MusicLibrary.getMusicFilename(mNextMedia.getDescription().getMediaId());
+        return new NextItem(mNextMedia, filename, mDataSourceFactory.create(filename),
+                getTrackGain(filename));
+    }
+
+    /**
+     * 播放状态
+     *
+     * @param newPlayerState
+     */
+    private void setNewState(@PlaybackStateCompat.State int newPlayerState) {
+        mState = newPlayerState;
+        if (mState == PlaybackStateCompat.STATE_STOPPED) {
+            mCurrentMediaPlayedToCompletion = true;
+        }
+        final long reportPosition = mDecoder != null ? mDecoder.getPositionMs()
+                : Math.max(0, mTrimmedPositionMs);
+        final PlaybackStateCompat state = mStateReducer.reduce(mState,
+                reportPosition,
+                mPlaybackSpeed,
+                SystemClock.elapsedRealtime());
+        if (state != null) {
+            mPlaybackInfoListener.onPlaybackStateChange(state);
+        }
+    }
+
+    /**
+     * 释放解码线程
+     */
+    private void release() {
+        if (mDecoder != null) {
+            mDecoder.release();
+            mDecoder = null;
+        }
+        mSeekScheduler.reset();
+    }
+
+    /**
+     * 解码线程：音频播放到结尾
+     */
+    private void onDecoderCompleted(Decoder decoder) {
+        if (decoder != mDecoder) {
+            return;
+        }
+        mPlaybackInfoListener.onPlaybackCompleted();
+        release();
+        mCurrentMediaPlayedToCompletion = true;
+        // Same as MediaPlayerManager: paused is the state that allows play() again.
+        setNewState(PlaybackStateCompat.STATE_PAUSED);
+    }
+
+    /**
+     * 解码线程：已经开始播放下一首
+     *
+     * @param item 解码器实际连接的下一首，之后设置的下一首可能已经不同
+     */
+    private void onDecoderTransition(Decoder decoder, NextItem item) {
+        if (decoder != mDecoder) {
+            return;
+        }
+        mCurrentMedia = item.mMedia;
+        mFilename = item.mFilename;
+        mStateReducer.invalidate();
+        if (mNextMedia == item.mMedia) {
+            mNextMedia = null;
+        }
+        // Posted when the first frame of the next item is due to play. During a crossfade
+        // the decoder scales the outgoing item to this gain from there on.
+        mTrackGain = item.mGain;
+        mDecoder.setVolume(getFocusVolume() * mTrackGain);
+        mPlaybackInfoListener.onMediaTransition(mCurrentMedia);
+        setNewState(mState);
+    }
+
+    /**
+     * 解码线程：seek后的第一帧已写入AudioTrack，或暂停时已定位到目标位置
+     */
+    private void onDecoderSeekComplete(Decoder decoder) {
+        if (decoder == mDecoder && mSeekScheduler.onSeekComplete()) {
+            setNewState(mState);
+        }
+    }
+
+    /**
+     * 解码线程：出错
+     */
+    private void onDecoderError(Decoder decoder, Exception e) {
+        Log.e(TAG, "Failed to decode " + mFilename, e);
+        if (decoder == mDecoder) {
+            stop();
+        }
+    }
+
+
+    // ##########################################################################################
+
+
+    /**
+     * 解码线程。AudioTrack只在该线程中操作，主线程通过加锁的标志位控制暂停、seek、音量和速度。
+     */
+    private final class Decoder extends Thread {
+
+        private final Object mLock = new Object();
+        // 当前音频的数据源
+        private final DataSource mSource;
+        // 当前音频文件，缓存开头的键
+        private final String mFilename;
+        // 是否从头开始，只有这时使用和记录缓存的开头
+        private final boolean mFromStart;
+        // 创建的时间，用于记录第一次输出的用时
+        private final long mCreatedMs = SystemClock.elapsedRealtime();
+
+        // 以下字段由 mLock 保护
+        private NextItem mNextItem;
+        private boolean mPaused = true;
+        private boolean mReleased;
+        private long mPendingSeekMs = -1;
+        private boolean mPendingSeekPrecise;
+        private float mVolume = 1.0f;
+        private float mSpeed = 1.0f;
+        private long mCrossfadeMs;
+
+        // 播放位置 = mBasePositionMs + (播放头 - mHeadBase) 对应的时长 * mPositionScale
+        private volatile AudioTrack mTrack;
+        private volatile long mBasePositionMs;
+        private volatile long mHeadBase;
+        private volatile int mSampleRate;
+        // 每次seek加一，用于丢弃seek之前发出的切换通知
+        private volatile int mSeekGeneration;
+        // 经过TimeStretcher后，AudioTrack的一帧对应 mPositionScale 帧原始音频
+        private volatile float mPositionScale = 1.0f;
+
+        // 以下字段只在解码线程中使用
+        // Android M 以下的变速，速度为1.0且从未变速时为null
+        private TimeStretcher mStretcher;
+        // AudioTrack自身的播放速度 (PlaybackParams)
+        private float mTrackSpeed = 1.0f;
+        private short[] mStretchInput;
+        private short[] mStretchOutput;
+        private boolean mFirstAudioRecorded;
+        // 已连接到解码器的下一首，以及正在解码的连接的音频；null 表示 mSource
+        private NextItem mChainedItem;
+        private NextItem mCurrentItem;
+        // 正在解码的音频的增益，淡入淡出时换算淡出音频的音量
+        private float mGain;
+        // 交叉淡入淡出：正在准备的下一首，以及正在淡入的
+        private NextItem mFadeItem;
+        private FutureTask<Fade> mFadePreparing;
+        private Fade mFade;
+        private short[] mMixOutgoing;
+        private short[] mMixIncoming;
+
+        Decoder(DataSource source, String filename, boolean fromStart, float gain) {
+            super("CodecPlayer");
+            mSource = source;
+            mFilename = filename;
+            mFromStart = fromStart;
+            mGain = gain;
+        }
+
+        void setPaused(boolean paused) {
+            synchronized (mLock) {
+                mPaused = paused;
+                mLock.notifyAll();
+            }
+        }
+
+        /**
+         * @param positionMs 目标位置
+         * @param precise    false时不丢弃同步帧到目标之间的数据，定位更快
+         */
+        void seekTo(long positionMs, boolean precise) {
+            mSeekGeneration++;
+            synchronized (mLock) {
+                mPendingSeekMs = positionMs;
+                mPendingSeekPrecise = precise;
+                mLock.notifyAll();
+            }
+            // Report the target right away, the decoder catches up asynchronously.
+            mBasePositionMs = positionMs;
+            mHeadBase = mTrack != null ? mTrack.getPlaybackHeadPosition() : 0;
+        }
+
+        void setVolume(float volume) {
+            synchronized (mLock) {
+                mVolume = volume;
+            }
+        }
+
+        void setSpeed(float speed) {
+            synchronized (mLock) {
+                mSpeed = speed;
+            }
+        }
+
+        void setCrossfadeDuration(long durationMs) {
+            synchronized (mLock) {
+                mCrossfadeMs = durationMs;
+            }
+        }
+
+        void setNextItem(NextItem item) {
+            synchronized (mLock) {
+                if (mNextItem != null) {
+                    mNextItem.close();
+                }
+                mNextItem = item;
+            }
+        }
+
+        void release() {
+            synchronized (mLock) {
+                mReleased = true;
+                mLock.notifyAll();
+            }
+        }
+
+        long getPositionMs() {
+            final AudioTrack track = mTrack;
+            final int sampleRate = mSampleRate;
+            if (track == null || sampleRate == 0) {
+                return mBasePositionMs;
+            }
+            final long frames = track.getPlaybackHeadPosition() - mHeadBase;
+            return mBasePositionMs
+                    + (long) (Math.max(0, frames) * 1000 * mPositionScale / sampleRate);
+        }
+
+        /**
+         * 变速缓冲区的大约字节数，内存统计用，不需要精确
+         */
+        long getBufferBytes() {
+            final short[] input = mStretchInput;
+            final short[] output = mStretchOutput;
+            final short[] outgoing = mMixOutgoing;
+            final short[] incoming = mMixIncoming;
+            return 2L * ((input != null ? input.length : 0) + (output != null ? output.length : 0)
+                    + (outgoing != null ? outgoing.length : 0)
+                    + (incoming != null ? incoming.length : 0));
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+            final StartBufferCache.StartBuffer start =
+                    mFromStart ? mStartBufferCache.open(mFilename) : null;
+            Prepared prepared = null;
+            try {
+                long startFrames = 0;
+                if (start != null) {
+                    // The cached start plays while the codec is prepared on another thread.
+                    final FutureTask<Prepared> preparing =
+                            new FutureTask<>(new Callable<Prepared>() {
+                                @Override
+                                public Prepared call() throws IOException {
+                                    return prepare(mSource);
+                                }
+                            });
+                    new Thread(preparing, "CodecPlayerPrepare").start();
+                    try {
+                        startFrames = writeStartBuffer(start);
+                    } finally {
+                        // Waited for even when released, so that it is released below.
+                        prepared = await(preparing);
+                    }
+                } else {
+                    prepared = prepare(mSource);
+                }
+                if (startFrames >= 0) {
+                    decode(prepared, startFrames, start == null && mFromStart);
+                }
+            } catch (final Exception e) {
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onDecoderError(Decoder.this, e);
+                    }
+                });
+            } finally {
+                if (prepared != null) {
+                    prepared.release();
+                }
+                if (mTrack != null) {
+                    mTrack.release();
+                    mTrack = null;
+                }
+                mSource.close();
+                if (mCurrentItem != null) {
+                    mCurrentItem.close();
+                }
+                if (mChainedItem != null) {
+                    mChainedItem.close();
+                }
+                releaseFade();
+                synchronized (mLock) {
+                    if (mNextItem != null) {
+                        mNextItem.close();
+                        mNextItem = null;
+                    }
+                }
+            }
+        }
+
+        /**
+         * 打开音频并启动解码器，可能在另一个线程中
+         */
+        private Prepared prepare(DataSource source) throws IOException {
+            final Prepared prepared = new Prepared();
+            try {
+                prepared.mExtractor = new MediaExtractor();
+                source.setDataSource(prepared.mExtractor);
+                prepared.mFormat = selectAudioTrack(prepared.mExtractor);
+                prepared.mPaddingFrames = getEncoderFrames(prepared.mFormat, KEY_ENCODER_PADDING);
+                // Cut at the joins by decode(). A codec that cut them too would hold back the
+                // padding, and its output would lag behind the timestamps.
+                prepared.mFormat.setInteger(KEY_ENCODER_DELAY, 0);
+                prepared.mFormat.setInteger(KEY_ENCODER_PADDING, 0);
+                prepared.mCodec = MediaCodec.createDecoderByType(
+                        prepared.mFormat.getString(MediaFormat.KEY_MIME));
+                prepared.mCodec.configure(prepared.mFormat, null, null, 0);
+                prepared.mCodec.start();
+            } catch (IOException | RuntimeException e) {
+                prepared.release();
+                throw e;
+            }
+            // Recorded when the codec is ready to take input.
+            FlightRecorder.record(FlightRecorder.EVENT_PREPARE_END,
+                    FlightRecorder.PREPARE_DECODER, 0);
+            return prepared;
+        }
+
+        private <T> T await(FutureTask<T> preparing) throws IOException, InterruptedException {
+            try {
+                return preparing.get();
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+
+        /**
+         * 把缓存的开头写入AudioTrack，与播放时一样响应暂停；seek或变速时交给解码循环
+         *
+         * @return 写入的帧数，已释放时为-1
+         */
+        private long writeStartBuffer(StartBufferCache.StartBuffer start)
+                throws InterruptedException {
+            createTrack(start.mSampleRate, start.mChannelCount);
+            final int frameSize = 2 * start.mChannelCount;
+            final ByteBuffer pcm = start.mPcm.duplicate();
+            // Android L 以下没有 write(ByteBuffer)
+            byte[] chunk = null;
+            float appliedVolume = -1;
+            long frames = 0;
+            while (pcm.hasRemaining()) {
+                final float volume;
+                synchronized (mLock) {
+                    while (mPaused && !mReleased && mPendingSeekMs < 0) {
+                        if (mTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING) {
+                            mTrack.pause();
+                        }
+                        mLock.wait();
+                    }
+                    if (mReleased) {
+                        return -1;
+                    }
+                    if (mPendingSeekMs >= 0 || mSpeed != 1.0f) {
+                        break;
+                    }
+                    volume = mVolume;
+                }
+                if (mTrack.getPlayState() != AudioTrack.PLAYSTATE_PLAYING) {
+                    mTrack.play();
+                }
+                if (volume != appliedVolume) {
+                    applyVolume(volume);
+                    appliedVolume = volume;
+                }
+                final int size = Math.min(pcm.remaining(), START_BUFFER_CHUNK_FRAMES * frameSize);
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                    // Straight from the mapped file.
+                    final ByteBuffer slice = pcm.duplicate();
+                    slice.limit(pcm.position() + size);
+                    mTrack.write(slice, size, AudioTrack.WRITE_BLOCKING);
+                    pcm.position(pcm.position() + size);
+                } else {
+                    if (chunk == null) {
+                        chunk = new byte[START_BUFFER_CHUNK_FRAMES * frameSize];
+                    }
+                    pcm.get(chunk, 0, size);
+                    mTrack.write(chunk, 0, size);
+                }
+                frames += size / frameSize;
+                recordFirstAudio(FlightRecorder.PREPARE_START_BUFFER);
+            }
+            return frames;
+        }
+
+        private void recordFirstAudio(int source) {
+            if (mFirstAudioRecorded) {
+                return;
+            }
+            mFirstAudioRecorded = true;
+            final long elapsedMs = SystemClock.elapsedRealtime() - mCreatedMs;
+            FlightRecorder.record(FlightRecorder.EVENT_FIRST_AUDIO, source, elapsedMs);
+            Log.d(TAG, "First audio after " + elapsedMs + " ms" + (source
+                    == FlightRecorder.PREPARE_START_BUFFER ? " from the start buffer" : ""));
+        }
+
+        /**
+         * 解码循环
+         *
+         * @param startFrames  已从缓存的开头写入的帧数，从其后开始解码
+         * @param captureStart 是否记录开头的PCM
+         */
+        private void decode(Prepared prepared, long startFrames, boolean captureStart)
+                throws IOException, InterruptedException {
+            MediaExtractor extractor = prepared.mExtractor;
+            MediaCodec codec = prepared.mCodec;
+            MediaFormat format = prepared.mFormat;
+            ByteBuffer[] inputBuffers = codec.getInputBuffers();
+            ByteBuffer[] outputBuffers = codec.getOutputBuffers();
+            final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            // Android L 以下没有 write(ByteBuffer)，复用同一个数组
+            byte[] chunk = null;
+
+            int channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            if (mTrack == null) {
+                createTrack(sampleRate, channelCount);
+            } else {
+                // Created for the start buffer, in the format the codec put out before.
+                sampleRate = mTrack.getSampleRate();
+                channelCount = mTrack.getChannelCount();
+            }
+
+            // Gapless: samples of the next track are shifted by the duration of the current
+            // one; mBoundaryUs is where the next track starts in that shared timeline.
+            long ptsOffsetUs = 0;
+            long boundaryUs = Long.MAX_VALUE;
+            // Before the chained track was reached: where the current one starts, its padding.
+            long currentStartUs = 0;
+            long currentPaddingFrames = 0;
+            // The encoder padding and delay around the join, cut from the PCM.
+            long paddingFrames = prepared.mPaddingFrames;
+            long cutStartUs = -1;
+            long cutEndUs = -1;
+            // Where the track being played ends and where the chained one will, for the
+            // crossfade; -1 when the duration is not known.
+            long trackEndUs = getDurationUs(format);
+            long chainedEndUs = -1;
+            // 本首已尝试过淡入下一首；淡出的音频已结束，由淡入的接替
+            boolean fadeTried = false;
+            boolean outgoingEnded = false;
+            long skipUntilUs = -1;
+            long framesWritten = 0;
+            boolean inputDone = false;
+            float appliedVolume = -1;
+            float appliedSpeed = 1.0f;
+            boolean trackPlaying = mTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING;
+            // seek后还没有通知主线程
+            boolean seekCompletePending = false;
+            // 记录中的开头的PCM
+            StartBufferCache.Capture capture = null;
+            if (startFrames > 0) {
+                // Like a precise seek to the end of the start buffer, decoded from a little
+                // earlier: frames can depend on the ones before them (the MP3 bit reservoir).
+                final long startUs = startFrames * 1000000 / sampleRate;
+                extractor.seekTo(Math.max(0, startUs - PREROLL_US),
+                        MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                skipUntilUs = startUs;
+                framesWritten = startFrames;
+            }
+
+            while (true) {
+                long seekMs;
+                boolean seekPrecise;
+                float volume;
+                float speed;
+                long crossfadeMs;
+                synchronized (mLock) {
+                    while (mPaused && !mReleased && mPendingSeekMs < 0) {
+                        if (trackPlaying) {
+                            mTrack.pause();
+                            trackPlaying = false;
+                        }
+                        if (seekCompletePending) {
+                            // Paused: the seek is done once the extractor is positioned.
+                            postSeekComplete();
+                            seekCompletePending = false;
+                        }
+                        mLock.wait();
+                    }
+                    if (mReleased) {
+                        return;
+                    }
+                    seekMs = mPendingSeekMs;
+                    seekPrecise = mPendingSeekPrecise;
+                    mPendingSeekMs = -1;
+                    volume = mVolume;
+                    speed = mSpeed;
+                    crossfadeMs = mCrossfadeMs;
+                    if (!mPaused && !trackPlaying) {
+                        mTrack.play();
+                        trackPlaying = true;
+                    }
+                }
+
+                if (volume != appliedVolume) {
+                    applyVolume(volume);
+                    appliedVolume = volume;
+                }
+                if (speed != appliedSpeed) {
+                    applySpeed(speed, sampleRate, channelCount);
+                    appliedSpeed = speed;
+                }
+
+                if (mFade != null && (outgoingEnded || seekMs >= 0 && mFade.mDelivered)) {
+                    // The incoming item goes on alone, in place of the one that faded out.
+                    final Fade fade = mFade;
+                    mFade = null;
+                    prepared.release();
+                    prepared.mExtractor = fade.mPrepared.mExtractor;
+                    prepared.mCodec = fade.mPrepared.mCodec;
+                    prepared.mFormat = fade.mPrepared.mFormat;
+                    prepared.mPaddingFrames = fade.mPrepared.mPaddingFrames;
+                    extractor = prepared.mExtractor;
+                    codec = prepared.mCodec;
+                    format = prepared.mFormat;
+                    inputBuffers = codec.getInputBuffers();
+                    outputBuffers = codec.getOutputBuffers();
+                    inputDone = fade.mInputDone;
+                    ptsOffsetUs = 0;
+                    currentStartUs = 0;
+                    boundaryUs = Long.MAX_VALUE;
+                    paddingFrames = prepared.mPaddingFrames;
+                    cutStartUs = -1;
+                    cutEndUs = -1;
+                    trackEndUs = getDurationUs(format);
+                    fadeTried = false;
+                    outgoingEnded = false;
+                    if (mCurrentItem != null) {
+                        mCurrentItem.close();
+                    }
+                    mCurrentItem = fade.mItem;
+                    mGain = fade.mItem.mGain;
+                    fade.mSwapped = true;
+                    if (seekMs < 0) {
+                        framesWritten += writeFadeRest(fade, channelCount);
+                        if (fade.mOutputDone) {
+                            drainAndComplete(framesWritten, sampleRate);
+                            return;
+                        }
+                    }
+                } else if (mFade != null && seekMs >= 0) {
+                    // Not transitioned yet: the seek is in the outgoing item, which plays on
+                    // alone.
+                    cancelFade();
+                }
+
+                if (seekMs >= 0) {
+                    if (mChainedItem != null) {
+                        // The next track was already chained but not reached: go back to the
+                        // current one and chain again when its end is reached.
+                        extractor.release();
+                        extractor = new MediaExtractor();
+                        prepared.mExtractor = extractor;
+                        (mCurrentItem != null ? mCurrentItem.mSource : mSource)
+                                .setDataSource(extractor);
+                        selectAudioTrack(extractor);
+                        restoreNextItem(mChainedItem);
+                        mChainedItem = null;
+                        ptsOffsetUs = currentStartUs;
+                        paddingFrames = currentPaddingFrames;
+                        boundaryUs = Long.MAX_VALUE;
+                        cutStartUs = -1;
+                        cutEndUs = -1;
+                    }
+                    // Extractor timestamps are relative to the track, the codec's are shifted
+                    // by ptsOffsetUs once a chained track has been reached.
+                    extractor.seekTo(seekMs * 1000, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                    codec.flush();
+                    mTrack.pause();
+                    mTrack.flush();
+                    if (mStretcher != null) {
+                        mStretcher.flush();
+                    }
+                    trackPlaying = false;
+                    captureStart = false;
+                    capture = null;
+                    fadeTried = false;
+                    skipUntilUs = seekPrecise ? ptsOffsetUs + seekMs * 1000 : -1;
+                    seekCompletePending = true;
+                    inputDone = false;
+                    framesWritten = 0;
+                    mHeadBase = 0;
+                    mBasePositionMs = seekMs;
+                    continue;
+                }
+
+                // 输入
+                if (!inputDone) {
+                    final int inputIndex = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+                    if (inputIndex >= 0) {
+                        int size = extractor.readSampleData(inputBuffers[inputIndex], 0);
+                        // Not while the next item is being faded in on its own codec.
+                        if (size < 0 && mChainedItem == null && mFade == null
+                                && mFadePreparing == null) {
+                            final NextItem next = takeNextItem();
+                            final MediaExtractor nextExtractor =
+                                    next != null ? openChained(next.mSource, format) : null;
+                            if (nextExtractor != null) {
+                                final long durationUs = extractor.getTrackFormat(
+                                        getSelectedTrack(extractor)).getLong(MediaFormat.KEY_DURATION);
+                                final MediaFormat nextFormat = nextExtractor.getTrackFormat(
+                                        getSelectedTrack(nextExtractor));
+                                extractor.release();
+                                extractor = nextExtractor;
+                                prepared.mExtractor = extractor;
+                                currentStartUs = ptsOffsetUs;
+                                currentPaddingFrames = paddingFrames;
+                                ptsOffsetUs += durationUs;
+                                boundaryUs = ptsOffsetUs;
+                                chainedEndUs = ptsOffsetUs + getDurationUs(nextFormat);
+                                cutStartUs = boundaryUs - framesToUs(paddingFrames, sampleRate);
+                                cutEndUs = boundaryUs + framesToUs(getEncoderFrames(
+                                        nextFormat, KEY_ENCODER_DELAY), sampleRate);
+                                paddingFrames = getEncoderFrames(nextFormat, KEY_ENCODER_PADDING);
+                                mChainedItem = next;
+                                size = extractor.readSampleData(inputBuffers[inputIndex], 0);
+                            } else if (next != null) {
+                                next.close();
+                            }
+                        }
+                        if (size < 0) {
+                            codec.queueInputBuffer(inputIndex, 0, 0, 0,
+                                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            codec.queueInputBuffer(inputIndex, 0, size,
+                                    ptsOffsetUs + extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+
+                // 输出
+                final int outputIndex = codec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
+                if (outputIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    outputBuffers = codec.getOutputBuffers();
+                } else if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    final MediaFormat outputFormat = codec.getOutputFormat();
+                    final int newRate = outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    final int newChannels = outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                    if (newRate != sampleRate || newChannels != channelCount) {
+                        sampleRate = newRate;
+                        channelCount = newChannels;
+                        mTrack.release();
+                        createTrack(sampleRate, channelCount);
+                        appliedVolume = -1;
+                        // The new track plays at normal speed, apply the speed again.
+                        mStretcher = null;
+                        mTrackSpeed = 1.0f;
+                        mPositionScale = 1.0f;
+                        appliedSpeed = 1.0f;
+                        trackPlaying = false;
+                        framesWritten = 0;
+                        mHeadBase = 0;
+                        capture = null;
+                    }
+                } else if (outputIndex >= 0) {
+                    final ByteBuffer buffer = outputBuffers[outputIndex];
+                    final int frameSize = 2 * channelCount;
+                    int offset = info.offset;
+                    int size = info.size;
+                    // Precise seek: drop the frames between the sync sample and the target.
+                    if (skipUntilUs > info.presentationTimeUs && size > 0) {
+                        final long skipFrames =
+                                (skipUntilUs - info.presentationTimeUs) * sampleRate / 1000000;
+                        final int skipBytes = (int) Math.min(size, skipFrames * frameSize);
+                        offset += skipBytes;
+                        size -= skipBytes;
+                    }
+                    if (size > 0) {
+                        skipUntilUs = -1;
+                        if (info.presentationTimeUs >= boundaryUs) {
+                            boundaryUs = Long.MAX_VALUE;
+                            if (mCurrentItem != null) {
+                                mCurrentItem.close();
+                            }
+                            mCurrentItem = mChainedItem;
+                            mChainedItem = null;
+                            mGain = mCurrentItem.mGain;
+                            trackEndUs = chainedEndUs;
+                            fadeTried = false;
+                            postTransition(framesWritten, sampleRate, mCurrentItem, null);
+                            if (capture != null) {
+                                // A track shorter than the start buffer.
+                                capture.finish();
+                                capture = null;
+                            }
+                        }
+                        if (crossfadeMs > 0 && mFade == null && mChainedItem == null
+                                && !fadeTried && trackEndUs > ptsOffsetUs) {
+                            // At most half of the track fades, so that the fade in of the track
+                            // and the fade out do not overlap.
+                            final long fadeUs = Math.min(crossfadeMs * 1000,
+                                    (trackEndUs - ptsOffsetUs) / 2);
+                            final long remainingUs = trackEndUs - info.presentationTimeUs;
+                            if (mFadePreparing == null
+                                    && remainingUs <= fadeUs + CROSSFADE_PREPARE_US) {
+                                startPreparingFade();
+                            }
+                            if (mFadePreparing != null && mFadePreparing.isDone()
+                                    && remainingUs <= fadeUs && remainingUs > 0) {
+                                fadeTried = true;
+                                if (startFade(remainingUs * sampleRate / 1000000,
+                                        sampleRate, channelCount)) {
+                                    postTransition(framesWritten, sampleRate, mFade.mItem, mFade);
+                                    if (capture != null) {
+                                        capture.finish();
+                                        capture = null;
+                                    }
+                                }
+                            }
+                        }
+                        // Up to two parts: the frames before and after the cut at a join.
+                        int cutFrom = size;
+                        int cutTo = size;
+                        if (cutEndUs > cutStartUs) {
+                            final long firstUs = info.presentationTimeUs
+                                    + framesToUs((offset - info.offset) / frameSize, sampleRate);
+                            final int frames = size / frameSize;
+                            cutFrom = frameSize
+                                    * framesBefore(firstUs, cutStartUs, sampleRate, frames);
+                            cutTo = frameSize
+                                    * framesBefore(firstUs, cutEndUs, sampleRate, frames);
+                        }
+                        for (int part = 0; part < 2; part++) {
+                            final int partOffset = part == 0 ? offset : offset + cutTo;
+                            final int partSize = part == 0 ? cutFrom : size - cutTo;
+                            if (partSize <= 0) {
+                                continue;
+                            }
+                            buffer.position(partOffset);
+                            buffer.limit(partOffset + partSize);
+                            if (captureStart) {
+                                capture = mStartBufferCache.capture(mFilename, sampleRate,
+                                        channelCount);
+                                captureStart = false;
+                            }
+                            if (capture != null && capture.append(buffer)) {
+                                capture = null;
+                            }
+                            if (mFade != null) {
+                                framesWritten += writeMixed(buffer, partSize, channelCount);
+                            } else if (mStretcher != null) {
+                                framesWritten += writeStretched(buffer, partSize, channelCount);
+                            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                                // Zero-copy: the codec's direct buffer goes straight to the track.
+                                mTrack.write(buffer, partSize, AudioTrack.WRITE_BLOCKING);
+                            } else {
+                                if (chunk == null || chunk.length < partSize) {
+                                    chunk = new byte[partSize];
+                                }
+                                buffer.get(chunk, 0, partSize);
+                                mTrack.write(chunk, 0, partSize);
+                            }
+                            if (mFade == null && mStretcher == null) {
+                                framesWritten += partSize / frameSize;
+                            }
+                        }
+                        recordFirstAudio(FlightRecorder.PREPARE_DECODER);
+                        if (seekCompletePending) {
+                            postSeekComplete();
+                            seekCompletePending = false;
+                        }
+                    }
+                    codec.releaseOutputBuffer(outputIndex, false);
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        if (capture != null) {
+                            capture.finish();
+                            capture = null;
+                        }
+                        if (mFade != null) {
+                            // Swapped for the incoming item at the top of the loop.
+                            outgoingEnded = true;
+                        } else {
+                            // Prepared too late to fade in: started after the completion.
+                            releaseFade();
+                            drainAndComplete(framesWritten, sampleRate);
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+
+        private void createTrack(int sampleRate, int channelCount) {
+            final int channelConfig = channelCount == 1
+                    ? AudioFormat.CHANNEL_OUT_MONO
+                    : AudioFormat.CHANNEL_OUT_STEREO;
+            final int minBufferSize = AudioTrack.getMinBufferSize(
+                    sampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT);
+            // A small buffer keeps the start-up latency low; twice the minimum avoids
+            // underruns on slow devices.
+            mTrack = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, channelConfig,
+                    AudioFormat.ENCODING_PCM_16BIT, minBufferSize * 2, AudioTrack.MODE_STREAM);
+            mSampleRate = sampleRate;
+        }
+
+        @SuppressWarnings("deprecation")
+        private void applyVolume(float volume) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                mTrack.setVolume(volume);
+            } else {
+                mTrack.setStereoVolume(volume, volume);
+            }
+        }
+
+        /**
+         * 变速。先以当前位置为基准，之后的播放头按新速度换算。
+         */
+        private void applySpeed(float speed, int sampleRate, int channelCount) {
+            final long positionMs = getPositionMs();
+            mHeadBase = mTrack.getPlaybackHeadPosition();
+            mBasePositionMs = positionMs;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && mStretcher == null) {
+                try {
+                    // The playback head keeps counting frames of the original audio.
+                    mTrack.setPlaybackParams(new PlaybackParams().setSpeed(speed));
+                    mTrackSpeed = speed;
+                    return;
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "applySpeed: PlaybackParams rejected " + speed
+                            + ", falling back to TimeStretcher", e);
+                }
+            }
+            if (mStretcher == null) {
+                mStretcher = new TimeStretcher(sampleRate, channelCount);
+            }
+            mStretcher.setSpeed(speed);
+            // The track plays stretched frames: each one stands for `speed` original frames.
+            mPositionScale = mStretcher.getSpeed();
+        }
+
+        /**
+         * 经过TimeStretcher写入AudioTrack
+         *
+         * @return 写入的帧数
+         */
+        private int writeStretched(ByteBuffer buffer, int size, int channelCount) {
+            final int samples = size / 2;
+            if (mStretchInput == null || mStretchInput.length < samples) {
+                mStretchInput = new short[samples];
+            }
+            buffer.order(ByteOrder.nativeOrder()).asShortBuffer().get(mStretchInput, 0, samples);
+            return writeStretched(mStretchInput, samples / channelCount, channelCount);
+        }
+
+        private int writeStretched(short[] pcm, int frames, int channelCount) {
+            final int outputSamples = STRETCH_CHUNK_FRAMES * channelCount;
+            if (mStretchOutput == null || mStretchOutput.length < outputSamples) {
+                mStretchOutput = new short[outputSamples];
+            }
+            mStretcher.putSamples(pcm, 0, frames);
+            int written = 0;
+            int received;
+            while ((received = mStretcher.receiveSamples(
+                    mStretchOutput, 0, STRETCH_CHUNK_FRAMES)) > 0) {
+                mTrack.write(mStretchOutput, 0, received * channelCount);
+                written += received;
+            }
+            return written;
+        }
+
+        /**
+         * 写入AudioTrack，变速时经过TimeStretcher
+         *
+         * @return 写入的帧数
+         */
+        private int writeShorts(short[] pcm, int frames, int channelCount) {
+            if (mStretcher != null) {
+                return writeStretched(pcm, frames, channelCount);
+            }
+            mTrack.write(pcm, 0, frames * channelCount);
+            return frames;
+        }
+
+        /**
+         * 淡出的音频与淡入的下一首同样长的一段混合后写入
+         *
+         * @return 写入的帧数
+         */
+        private int writeMixed(ByteBuffer buffer, int size, int channelCount) {
+            final int samples = size / 2;
+            final int frames = samples / channelCount;
+            ensureMixBuffers(samples);
+            buffer.order(ByteOrder.nativeOrder()).asShortBuffer().get(mMixOutgoing, 0, samples);
+            final int read = mFade.read(mMixIncoming, frames);
+            // The incoming item can be shorter than the fade.
+            Arrays.fill(mMixIncoming, read * channelCount, samples, (short) 0);
+            mFade.mix(mMixOutgoing, mMixIncoming, frames);
+            return writeShorts(mMixIncoming, frames, channelCount);
+        }
+
+        /**
+         * 接替时淡入的下一首已解码还没有写入的部分；淡出的音频提前结束时，其余的淡入在这里
+         *
+         * @return 写入的帧数
+         */
+        private int writeFadeRest(Fade fade, int channelCount) {
+            final int frames = fade.getBufferedFrames();
+            if (frames == 0) {
+                return 0;
+            }
+            ensureMixBuffers(frames * channelCount);
+            fade.read(mMixIncoming, frames);
+            fade.mix(null, mMixIncoming, frames);
+            return writeShorts(mMixIncoming, frames, channelCount);
+        }
+
+        private void ensureMixBuffers(int samples) {
+            if (mMixOutgoing == null || mMixOutgoing.length < samples) {
+                mMixOutgoing = new short[samples];
+                mMixIncoming = new short[samples];
+            }
+        }
+
+        /**
+         * 取下一首，在另一个线程中打开并解码到第一个输出
+         */
+        private void startPreparingFade() {
+            final NextItem item = takeNextItem();
+            if (item == null) {
+                return;
+            }
+            mFadeItem = item;
+            mFadePreparing = new FutureTask<>(new Callable<Fade>() {
+                @Override
+                public Fade call() throws IOException {
+                    final Fade fade = new Fade(item, prepare(item.mSource));
+                    try {
+                        fade.prime();
+                    } catch (RuntimeException e) {
+                        fade.mPrepared.release();
+                        throw e;
+                    }
+                    return fade;
+                }
+            });
+            new Thread(mFadePreparing, "CodecPlayerPrepare").start();
+        }
+
+        /**
+         * 准备好的下一首开始淡入
+         *
+         * @param frames 淡入淡出的帧数
+         * @return 准备失败或输出格式不同时为false，下一首在当前音频结束后开始
+         */
+        private boolean startFade(long frames, int sampleRate, int channelCount)
+                throws InterruptedException {
+            final NextItem item = mFadeItem;
+            final FutureTask<Fade> preparing = mFadePreparing;
+            mFadeItem = null;
+            mFadePreparing = null;
+            final Fade fade;
+            try {
+                fade = await(preparing);
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "startFade: Failed to prepare " + item.mFilename, e);
+                restoreNextItem(item);
+                return false;
+            }
+            if (fade.mSampleRate != sampleRate || fade.mChannelCount != channelCount) {
+                Log.d(TAG, "startFade: Format differs, not crossfading");
+                fade.mPrepared.release();
+                restoreNextItem(item);
+                return false;
+            }
+            fade.mFrames = Math.max(1, frames);
+            // The track's volume changes to the gain of the incoming item at the transition.
+            fade.mOutScale = item.mGain > 0 ? mGain / item.mGain : 1.0f;
+            mFade = fade;
+            return true;
+        }
+
+        /**
+         * 还没有切换时seek：放弃淡入，下一首留到当前音频结束
+         */
+        private void cancelFade() {
+            mFade.mPrepared.release();
+            restoreNextItem(mFade.mItem);
+            mFade = null;
+        }
+
+        /**
+         * 释放淡入的下一首，以及正在准备的
+         */
+        private void releaseFade() {
+            if (mFade != null) {
+                mFade.release();
+                mFade = null;
+            }
+            if (mFadePreparing != null) {
+                try {
+                    // Waited for, so that the codec it opens is released.
+                    await(mFadePreparing).mPrepared.release();
+                } catch (IOException | RuntimeException | InterruptedException e) {
+                    // Failed to prepare, nothing to release.
+                }
+                mFadePreparing = null;
+            }
+            if (mFadeItem != null) {
+                mFadeItem.close();
+                mFadeItem = null;
+            }
+        }
+
+        /**
+         * 已写入但还没有播放的时长
+         */
+        private long getBufferedMs(long framesWritten, int sampleRate) {
+            final long frames = Math.max(0, framesWritten - mTrack.getPlaybackHeadPosition());
+            return (long) (frames * 1000 / sampleRate / mTrackSpeed);
+        }
+
+        private NextItem takeNextItem() {
+            synchronized (mLock) {
+                final NextItem next = mNextItem;
+                mNextItem = null;
+                return next;
+            }
+        }
+
+        /**
+         * 连接后又回到当前音频的下一首，主线程之后没有设置新的下一首时再次使用
+         */
+        private void restoreNextItem(NextItem item) {
+            synchronized (mLock) {
+                if (mNextItem == null) {
+                    mNextItem = item;
+                    return;
+                }
+            }
+            item.close();
+        }
+
+        /**
+         * 打开下一首，编码格式与解码器的配置相同时才能连续解码
+         *
+         * @param codecFormat 配置解码器的格式
+         * @return 格式不同或打开失败时为null，由调用者为下一首创建新的解码器
+         */
+        private MediaExtractor openChained(DataSource next, MediaFormat codecFormat) {
+            final MediaExtractor extractor = new MediaExtractor();
+            try {
+                next.setDataSource(extractor);
+                if (isSameConfig(selectAudioTrack(extractor), codecFormat)) {
+                    return extractor;
+                }
+                Log.d(TAG, "openChained: Format differs, not playing gaplessly");
+            } catch (IOException e) {
+                Log.d(TAG, "openChained: " + e);
+            }
+            extractor.release();
+            return null;
+        }
+
+        /**
+         * 下一首的第一帧已写入AudioTrack，等缓冲的数据播放完后通知主线程
+         */
+        private void postTransition(final long framesWritten, int sampleRate,
+                                    final NextItem item, final Fade fade) {
+            final long bufferedMs = getBufferedMs(framesWritten, sampleRate);
+            final int seekGeneration = mSeekGeneration;
+            mMainHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    if (seekGeneration == mSeekGeneration) {
+                        // The position of the next track starts where its first frame was
+                        // written.
+                        mHeadBase = framesWritten;
+                        mBasePositionMs = 0;
+                    } else if (fade == null || !fade.mSwapped) {
+                        // Seeked back into the current track.
+                        return;
+                    }
+                    if (fade != null) {
+                        fade.mDelivered = true;
+                    }
+                    onDecoderTransition(Decoder.this, item);
+                }
+            }, bufferedMs);
+        }
+
+        private void postSeekComplete() {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onDecoderSeekComplete(Decoder.this);
+                }
+            });
+        }
+
+        /**
+         * 等缓冲的数据播放完后通知主线程
+         */
+        private void drainAndComplete(long framesWritten, int sampleRate)
+                throws InterruptedException {
+            final long bufferedMs = getBufferedMs(framesWritten, sampleRate);
+            synchronized (mLock) {
+                if (!mReleased) {
+                    mLock.wait(bufferedMs + 1);
+                }
+            }
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onDecoderCompleted(Decoder.this);
+                }
+            });
+        }
+    }
+
+
+    /**
+     * 准备好的音频和解码器
+     */
+    private static final class Prepared {
+
+        MediaExtractor mExtractor;
+        MediaCodec mCodec;
+        MediaFormat mFormat;
+        // 音频结尾的编码器填充帧数
+        long mPaddingFrames;
+
+        void release() {
+            if (mCodec != null) {
+                mCodec.release();
+            }
+            if (mExtractor != null) {
+                mExtractor.release();
+            }
+        }
+    }
+
+
+    /**
+     * 下一首：解码线程连接它时使用的数据源，以及切换时通知主线程的音频信息
+     */
+    private static final class NextItem {
+
+        final MediaMetadataCompat mMedia;
+        final String mFilename;
+        final DataSource mSource;
+        // 增益在主线程取得，淡入淡出时解码线程也要用
+        final float mGain;
+
+        NextItem(MediaMetadataCompat media, String filename, DataSource source, float gain) {
+            mMedia = media;
+            mFilename = filename;
+            mSource = source;
+            mGain = gain;
+        }
+
+        void close() {
+            mSource.close();
+        }
+    }
+
+
+    /**
+     * 交叉淡入淡出中淡入的下一首：用自己的解码器解码，解码线程把它逐帧混合进淡出的音频
+     */
+    private static final class Fade {
+
+        final NextItem mItem;
+        final Prepared mPrepared;
+        private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+        private ByteBuffer[] mInputBuffers;
+        private ByteBuffer[] mOutputBuffers;
+        // 解码器输出的格式，第一次输出后已知
+        int mSampleRate;
+        int mChannelCount;
+        boolean mInputDone;
+        boolean mOutputDone;
+        // 已解码还没有混合的PCM
+        private short[] mPcm = new short[0];
+        private int mPcmStart;
+        private int mPcmEnd;
+        // 淡入淡出的帧数、已混合的帧数，以及淡出的音频相对下一首的增益
+        long mFrames;
+        long mPosition;
+        float mOutScale = 1.0f;
+        // 切换已通知主线程；淡出的音频结束后已由下一首接替
+        volatile boolean mDelivered;
+        volatile boolean mSwapped;
+
+        Fade(NextItem item, Prepared prepared) {
+            mItem = item;
+            mPrepared = prepared;
+        }
+
+        /**
+         * 解码到第一个输出，之后输出的格式已知
+         */
+        void prime() {
+            mInputBuffers = mPrepared.mCodec.getInputBuffers();
+            mOutputBuffers = mPrepared.mCodec.getOutputBuffers();
+            while (mPcmStart == mPcmEnd && !mOutputDone) {
+                decode();
+            }
+            // HE-AAC, for one, puts out twice the rate of the extractor's format.
+            final MediaFormat output = mPrepared.mCodec.getOutputFormat();
+            mSampleRate = output.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            mChannelCount = output.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        }
+
+        /**
+         * 读取PCM，按需解码
+         *
+         * @return 读取的帧数，只在结尾时少于 frames
+         */
+        int read(short[] pcm, int frames) {
+            final int samples = frames * mChannelCount;
+            int read = 0;
+            while (read < samples) {
+                if (mPcmStart == mPcmEnd) {
+                    if (mOutputDone) {
+                        break;
+                    }
+                    decode();
+                    continue;
+                }
+                final int count = Math.min(samples - read, mPcmEnd - mPcmStart);
+                System.arraycopy(mPcm, mPcmStart, pcm, read, count);
+                mPcmStart += count;
+                read += count;
+            }
+            return read / mChannelCount;
+        }
+
+        /**
+         * @return 已解码还没有读取的帧数
+         */
+        int getBufferedFrames() {
+            return (mPcmEnd - mPcmStart) / mChannelCount;
+        }
+
+        /**
+         * 按等功率曲线混合：淡出 cos、淡入 sin，cos² + sin² = 1
+         *
+         * @param outgoing 淡出的音频，null表示已结束
+         * @param incoming 淡入的音频，混合的结果也写在这里
+         */
+        void mix(short[] outgoing, short[] incoming, int frames) {
+            // The angle advances by a rotation per frame, and is exact again at every call.
+            final double step = Math.PI / 2 / mFrames;
+            final double stepCos = Math.cos(step);
+            final double stepSin = Math.sin(step);
+            final double angle = Math.min(mPosition, mFrames) * step;
+            double cos = Math.cos(angle);
+            double sin = Math.sin(angle);
+            for (int frame = 0; frame < frames; frame++) {
+                final boolean done = mPosition + frame >= mFrames;
+                final double outGain = done ? 0 : cos * mOutScale;
+                final double inGain = done ? 1 : sin;
+                final int end = (frame + 1) * mChannelCount;
+                for (int i = frame * mChannelCount; i < end; i++) {
+                    double value = incoming[i] * inGain;
+                    if (outgoing != null) {
+                        value += outgoing[i] * outGain;
+                    }
+                    incoming[i] = (short) Math.max(Short.MIN_VALUE,
+                            Math.min(Short.MAX_VALUE, value));
+                }
+                final double nextCos = cos * stepCos - sin * stepSin;
+                sin = sin * stepCos + cos * stepSin;
+                cos = nextCos;
+            }
+            mPosition += frames;
+        }
+
+        void release() {
+            mPrepared.release();
+            mItem.close();
+        }
+
+        /**
+         * 送入一个输入，取出一个输出（如果有），只在读完之前的PCM后调用
+         */
+        private void decode() {
+            final MediaCodec codec = mPrepared.mCodec;
+            final MediaExtractor extractor = mPrepared.mExtractor;
+            if (!mInputDone) {
+                final int inputIndex = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+                if (inputIndex >= 0) {
+                    final int size = extractor.readSampleData(mInputBuffers[inputIndex], 0);
+                    if (size < 0) {
+                        codec.queueInputBuffer(inputIndex, 0, 0, 0,
+                                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        mInputDone = true;
+                    } else {
+                        codec.queueInputBuffer(inputIndex, 0, size, extractor.getSampleTime(), 0);
+                        extractor.advance();
+                    }
+                }
+            }
+            final int outputIndex = codec.dequeueOutputBuffer(mInfo, DEQUEUE_TIMEOUT_US);
+            if (outputIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                mOutputBuffers = codec.getOutputBuffers();
+            } else if (outputIndex >= 0) {
+                final int samples = mInfo.size / 2;
+                if (mPcm.length < samples) {
+                    mPcm = new short[samples];
+                }
+                final ByteBuffer buffer = mOutputBuffers[outputIndex];
+                buffer.position(mInfo.offset);
+                buffer.limit(mInfo.offset + mInfo.size);
+                buffer.order(ByteOrder.nativeOrder()).asShortBuffer().get(mPcm, 0, samples);
+                mPcmStart = 0;
+                mPcmEnd = samples;
+                codec.releaseOutputBuffer(outputIndex, false);
+                if ((mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    mOutputDone = true;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * 选中第一条音轨
+     *
+     * @return 音轨格式
+     * @throws IOException
+     */
+    private static MediaFormat selectAudioTrack(MediaExtractor extractor) throws IOException {
+        final int track = getSelectedTrack(extractor);
+        if (track < 0) {
+            throw new IOException("No audio track");
+        }
+        extractor.selectTrack(track);
+        return extractor.getTrackFormat(track);
+    }
+
+    /**
+     * 能否用同一个解码器连续解码：mime、采样率、声道数相同，codec-specific data逐字节相同
+     */
+    private static boolean isSameConfig(MediaFormat format, MediaFormat codecFormat) {
+        // Same rate and channels are not enough: e.g. AAC-LC after HE-AAC, or a FLAC with
+        // another STREAMINFO, decodes to noise with the codec configured for the other one.
+        final String mime = format.getString(MediaFormat.KEY_MIME);
+        return mime != null && mime.equals(codecFormat.getString(MediaFormat.KEY_MIME))
+                && format.getInteger(MediaFormat.KEY_SAMPLE_RATE)
+                == codecFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE)
+                && format.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
+                == codecFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
+                && isSameBuffer(format, codecFormat, CSD_0)
+                && isSameBuffer(format, codecFormat, CSD_1);
+    }
+
+    private static boolean isSameBuffer(MediaFormat format, MediaFormat codecFormat, String key) {
+        final ByteBuffer buffer = format.containsKey(key) ? format.getByteBuffer(key) : null;
+        final ByteBuffer codecBuffer =
+                codecFormat.containsKey(key) ? codecFormat.getByteBuffer(key) : null;
+        // ByteBuffer.equals compares the remaining bytes and leaves the positions alone.
+        return buffer == null ? codecBuffer == null : buffer.equals(codecBuffer);
+    }
+
+    /**
+     * @return 格式中编码器加入的帧数，没有时为0
+     */
+    private static long getEncoderFrames(MediaFormat format, String key) {
+        return format.containsKey(key) ? Math.max(0, format.getInteger(key)) : 0;
+    }
+
+    /**
+     * @return 音轨的时长，没有时为-1
+     */
+    private static long getDurationUs(MediaFormat format) {
+        return format.containsKey(MediaFormat.KEY_DURATION)
+                ? format.getLong(MediaFormat.KEY_DURATION) : -1;
+    }
+
+    private static long framesToUs(long frames, int sampleRate) {
+        return frames * 1000000 / sampleRate;
+    }
+
+    /**
+     * 从 firstUs 开始的 frames 帧中，早于 untilUs 的帧数
+     */
+    private static int framesBefore(long firstUs, long untilUs, int sampleRate, int frames) {
+        final long before = ((untilUs - firstUs) * sampleRate + 999999) / 1000000;
+        return (int) Math.max(0, Math.min(frames, before));
+    }
+
+    private static int getSelectedTrack(MediaExtractor extractor) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            final String mime = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("audio/")) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
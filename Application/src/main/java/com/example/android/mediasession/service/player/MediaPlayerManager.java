@@ -17,22 +17,43 @@
 package com.example.android.mediasession.service.player;
 
 import android.content.Context;
-import android.content.res.AssetFileDescriptor;
 import android.media.MediaPlayer;
+import android.media.VolumeShaper;
+import android.os.Build;
+import android.os.Handler;
 import android.os.SystemClock;
+import android.support.annotation.RequiresApi;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
+import android.util.Log;
 
 import com.example.android.mediasession.service.PlaybackInfoListener;
 import com.example.android.mediasession.service.contentcatalogs.MusicLibrary;
+import com.example.android.mediasession.service.memory.Trimmable;
+import com.example.android.mediasession.service.recorder.FlightRecorder;
+import com.example.android.mediasession.service.player.source.DataSource;
+import com.example.android.mediasession.service.player.source.DataSourceFactory;
 import com.example.android.mediasession.ui.MainActivity;
 
 /**
  * Exposes the functionality of the {@link MediaPlayer} and implements the {@link PlayerAdapter}
  * so that {@link MainActivity} can control music playback.
+ * <p>
+ * Crossfade (Android O and later): with a {@link #setCrossfadeDuration duration} and a
+ * {@link #setNextMedia next item} set, a single timer fires when the remaining play time of
+ * the current item equals the duration. The next item is then prepared asynchronously on a
+ * second player; once it is prepared it starts, and both are ramped with equal power curves
+ * by {@link VolumeShaper}s, which the mixer applies per sample with no further callbacks.
+ * The outgoing player is released when it completes. The ramps are multiplied with the
+ * {@link #getFocusVolume() focus volume}, so ducking keeps working during a fade. Remote
+ * items are not crossfaded, as buffering would stall the fade. Before O there is no per
+ * sample ramp on a MediaPlayer, and volume steps from a timer are audible as zipper noise:
+ * while a crossfade is set there, MusicService plays with {@link CodecPlayerManager}, which
+ * mixes the two items per frame.
  */
 public final class MediaPlayerManager extends PlayerAdapter {
 
+    private static final String TAG = "MediaPlayerManager";
 
     /**
      *
@@ -43,6 +64,10 @@ public final class MediaPlayerManager extends PlayerAdapter {
     private MediaPlayer mMediaPlayer;
     // 播放信息回调
     private PlaybackInfoListener mPlaybackInfoListener;
+    // 数据源
+    private final DataSourceFactory mDataSourceFactory;
+    // 当前音频的数据源
+    private DataSource mDataSource;
 
     /**
      *
@@ -51,15 +76,67 @@ public final class MediaPlayerManager extends PlayerAdapter {
     private MediaMetadataCompat mCurrentMedia;
     // 当前音频id
     private String mFilename;
+    // 当前音频的增益，开始播放时取得
+    private float mTrackGain = 1.0f;
     // 当前的播放状态
     @PlaybackStateCompat.State
     private int mState;
     // 是否播放完成
     private boolean mCurrentMediaPlayedToCompletion;
+    // 播放速度
+    private float mPlaybackSpeed = 1.0f;
+    // 生成播放状态，省略重复的通知
+    private final PlaybackStateReducer mStateReducer = new PlaybackStateReducer();
+
+    /**
+     * 交叉淡入淡出
+     */
+    private final Handler mHandler = new Handler();
+    // 时长，0为关闭
+    private long mCrossfadeMs;
+    // 下一首，淡入淡出开始时播放
+    private MediaMetadataCompat mNextMedia;
+    // 淡出中的播放器和它的数据源，淡出结束后释放
+    private MediaPlayer mFadingPlayer;
+    private DataSource mFadingDataSource;
+    private float mFadingTrackGain = 1.0f;
+    private VolumeShaper mFadeInShaper;
+    private VolumeShaper mFadeOutShaper;
+    // 异步准备中的下一首，准备好后开始淡入淡出
+    private MediaPlayer mIncomingPlayer;
+    private DataSource mIncomingDataSource;
+    private MediaMetadataCompat mIncomingMedia;
+
+    private final Runnable mCrossfadeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // Only scheduled with a crossfade duration, which is only set on O and later.
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                prepareCrossfade();
+            }
+        }
+    };
 
     // Work-around for a MediaPlayer bug related to the behavior of MediaPlayer.seekTo()
     // while not playing.
     private int mSeekWhileNotPlaying = -1;
+    // 远程音频异步准备中：不能seek，目标记在 mSeekWhileNotPlaying，准备好后执行
+    private boolean mPreparing;
+    // 内存不足时释放了暂停的播放器，恢复播放时从 mSeekWhileNotPlaying 重新打开
+    private String mTrimmedFilename;
+    // 合并seek请求
+    private final SeekScheduler mSeekScheduler = new SeekScheduler(new SeekScheduler.Seeker() {
+        @Override
+        public void performSeek(long positionMs, boolean precise) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                mMediaPlayer.seekTo(positionMs, precise
+                        ? MediaPlayer.SEEK_CLOSEST
+                        : MediaPlayer.SEEK_PREVIOUS_SYNC);
+            } else {
+                mMediaPlayer.seekTo((int) positionMs);
+            }
+        }
+    });
 
 
     /**
@@ -67,13 +144,17 @@ public final class MediaPlayerManager extends PlayerAdapter {
      *
      * @param context
      * @param listener
+     * @param dataSourceFactory
      */
-    public MediaPlayerManager(Context context, PlaybackInfoListener listener) {
+    public MediaPlayerManager(Context context, PlaybackInfoListener listener,
+                              DataSourceFactory dataSourceFactory) {
         super(context);
         // 上下文对象
         mContext = context.getApplicationContext();
         // 播放信息回调
         mPlaybackInfoListener = listener;
+        // 数据源
+        mDataSourceFactory = dataSourceFactory;
     }
 
 
@@ -92,6 +173,29 @@ public final class MediaPlayerManager extends PlayerAdapter {
         return mCurrentMedia;
     }
 
+    @Override
+    public void setNextMedia(MediaMetadataCompat metadata) {
+        mNextMedia = metadata;
+        scheduleCrossfade();
+    }
+
+    /**
+     * 需要 {@link VolumeShaper}，Android O 以下不支持，MusicService 这时改用
+     * {@link CodecPlayerManager}
+     *
+     * @param durationMs
+     */
+    @Override
+    public void setCrossfadeDuration(long durationMs) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            Log.w(TAG, "setCrossfadeDuration: VolumeShaper requires Android O, ignoring "
+                    + durationMs);
+            return;
+        }
+        mCrossfadeMs = Math.max(0, Math.min(MAX_CROSSFADE_MS, durationMs));
+        scheduleCrossfade();
+    }
+
 
     /**
      * 音频是否在播放
@@ -103,21 +207,53 @@ public final class MediaPlayerManager extends PlayerAdapter {
         return mMediaPlayer != null && mMediaPlayer.isPlaying();
     }
 
+    @Override
+    public long onTrimMemory(int pressure) {
+        if (pressure < Trimmable.PRESSURE_HIGH || mMediaPlayer == null
+                || mState != PlaybackStateCompat.STATE_PAUSED || mSeekScheduler.isSeeking()) {
+            return 0;
+        }
+        final int positionMs = mSeekWhileNotPlaying >= 0
+                ? mSeekWhileNotPlaying : mMediaPlayer.getCurrentPosition();
+        final String filename = mFilename;
+        release();
+        mFilename = null;
+        mTrimmedFilename = filename;
+        // Reported as the position until it plays again.
+        mSeekWhileNotPlaying = positionMs;
+        Log.d(TAG, "onTrimMemory: released the paused player at " + positionMs + " ms");
+        // Its decoder and buffers live in the media server, not in this process.
+        return 0;
+    }
+
 
     /**
      * 播放音频
      */
     @Override
     protected void onPlay() {
+        if (mMediaPlayer == null && mTrimmedFilename != null) {
+            // Released while paused: opened again, and played once prepared.
+            playFile(mTrimmedFilename);
+            return;
+        }
         if (mMediaPlayer != null && !mMediaPlayer.isPlaying()) {
             mMediaPlayer.start();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                applyPlaybackSpeed();
+            }
             setNewState(PlaybackStateCompat.STATE_PLAYING);
+            scheduleCrossfade();
         }
     }
 
     @Override
     protected void onPause() {
         if (mMediaPlayer != null && mMediaPlayer.isPlaying()) {
+            // A fade is not resumed: the outgoing item ends here.
+            finishCrossfade();
+            mHandler.removeCallbacks(mCrossfadeRunnable);
+            cancelIncoming();
             mMediaPlayer.pause();
             setNewState(PlaybackStateCompat.STATE_PAUSED);
         }
@@ -130,6 +266,7 @@ public final class MediaPlayerManager extends PlayerAdapter {
         // be updated, so that MediaNotificationManager can take down the notification.
         setNewState(PlaybackStateCompat.STATE_STOPPED);
         release();
+        mTrimmedFilename = null;
     }
 
 
@@ -140,16 +277,28 @@ public final class MediaPlayerManager extends PlayerAdapter {
      */
     @Override
     public void seekTo(long position) {
-        if (mMediaPlayer != null) {
+        if (mMediaPlayer != null && mPreparing) {
+            // MediaPlayer.seekTo() fails before it is prepared, and the seek would never
+            // complete; it is issued from onPrepared.
+            mSeekWhileNotPlaying = (int) position;
+            setNewState(mState);
+        } else if (mMediaPlayer != null) {
             // 音频未播放
             if (!mMediaPlayer.isPlaying()) {
                 mSeekWhileNotPlaying = (int) position;
             }
-            // seek to
-            mMediaPlayer.seekTo((int) position);
-
-            // Set the state (to the current state) because the position changed and should
-            // be reported to clients.
+            finishCrossfade();
+            mHandler.removeCallbacks(mCrossfadeRunnable);
+            cancelIncoming();
+            // seek to，执行中的seek完成前只记录最新的目标
+            if (mSeekScheduler.seekTo(position)) {
+                // Set the state (to the current state) because the position changed and should
+                // be reported to clients. Coalesced seeks are reported once they complete.
+                setNewState(mState);
+            }
+        } else if (mTrimmedFilename != null) {
+            // Released while paused: played from here when it is opened again.
+            mSeekWhileNotPlaying = (int) position;
             setNewState(mState);
         }
     }
@@ -162,8 +311,29 @@ public final class MediaPlayerManager extends PlayerAdapter {
      */
     @Override
     public void setVolume(float volume) {
-        if (mMediaPlayer != null) {
-            mMediaPlayer.setVolume(volume, volume);
+        // The volume is the focus volume; the fades are applied on top of it.
+        applyVolumes();
+    }
+
+    /**
+     * 通过 {@link android.media.PlaybackParams} 变速，Android M 以下不支持，MusicService 这时改用
+     * {@link CodecPlayerManager}
+     *
+     * @param speed
+     */
+    @Override
+    public void setPlaybackSpeed(float speed) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            Log.w(TAG, "setPlaybackSpeed: PlaybackParams requires Android M, ignoring " + speed);
+            return;
+        }
+        mPlaybackSpeed = speed;
+        // A non-zero speed starts a paused MediaPlayer, so a paused player picks the speed
+        // up in onPlay() instead.
+        if (mMediaPlayer != null && mMediaPlayer.isPlaying()) {
+            applyPlaybackSpeed();
+            setNewState(mState);
+            scheduleCrossfade();
         }
     }
 
@@ -182,25 +352,69 @@ public final class MediaPlayerManager extends PlayerAdapter {
     private void initializeMediaPlayer() {
         // 创建MediaPlayer
         if (mMediaPlayer == null) {
-            mMediaPlayer = new MediaPlayer();
-            // 音频播放完成的回调
-            mMediaPlayer.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
-                @Override
-                public void onCompletion(MediaPlayer mediaPlayer) {
-                    // 回调音频播放完成
-                    mPlaybackInfoListener.onPlaybackCompleted();
-
-                    // Set the state to "paused" because it most closely matches the state
-                    // in MediaPlayer with regards to available state transitions compared
-                    // to "stop".
-                    // Paused allows: seekTo(), start(), pause(), stop()
-                    // Stop allows: stop()
-                    setNewState(PlaybackStateCompat.STATE_PAUSED);
-                }
-            });
+            mMediaPlayer = createMediaPlayer();
         }
     }
 
+    /**
+     * 创建MediaPlayer，当前的和淡入的播放器都由此创建
+     */
+    private MediaPlayer createMediaPlayer() {
+        final MediaPlayer mediaPlayer = new MediaPlayer();
+        // 音频播放完成的回调
+        mediaPlayer.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
+            @Override
+            public void onCompletion(MediaPlayer mediaPlayer) {
+                if (mediaPlayer == mFadingPlayer) {
+                    // The faded out item ended: the crossfade is over.
+                    finishCrossfade();
+                    return;
+                }
+                if (mediaPlayer != mMediaPlayer) {
+                    return;
+                }
+                // 回调音频播放完成
+                mPlaybackInfoListener.onPlaybackCompleted();
+
+                // Set the state to "paused" because it most closely matches the state
+                // in MediaPlayer with regards to available state transitions compared
+                // to "stop".
+                // Paused allows: seekTo(), start(), pause(), stop()
+                // Stop allows: stop()
+                setNewState(PlaybackStateCompat.STATE_PAUSED);
+            }
+        });
+        // 出错的回调：未完成的seek不会再完成
+        mediaPlayer.setOnErrorListener(new MediaPlayer.OnErrorListener() {
+            @Override
+            public boolean onError(MediaPlayer mediaPlayer, int what, int extra) {
+                Log.w(TAG, "onError: what " + what + ", extra " + extra);
+                if (mediaPlayer == mIncomingPlayer) {
+                    // The current item plays to its end and the next one starts after it.
+                    cancelIncoming();
+                    return true;
+                }
+                if (mediaPlayer == mMediaPlayer) {
+                    mPreparing = false;
+                    mSeekScheduler.reset();
+                }
+                // Not handled: onCompletion follows, as without a listener.
+                return false;
+            }
+        });
+        // seek完成的回调
+        mediaPlayer.setOnSeekCompleteListener(new MediaPlayer.OnSeekCompleteListener() {
+            @Override
+            public void onSeekComplete(MediaPlayer mediaPlayer) {
+                if (mediaPlayer == mMediaPlayer && mSeekScheduler.onSeekComplete()) {
+                    setNewState(mState);
+                    scheduleCrossfade();
+                }
+            }
+        });
+        return mediaPlayer;
+    }
+
 
     /**
      * 根据音频id进行音频播放
@@ -208,6 +422,9 @@ public final class MediaPlayerManager extends PlayerAdapter {
      * @param filename
      */
     private void playFile(String filename) {
+        // 内存不足时释放的音频从原来的位置继续
+        final int resumePositionMs = filename.equals(mTrimmedFilename) ? mSeekWhileNotPlaying : -1;
+        mTrimmedFilename = null;
         // 音频是否发生变化
         boolean mediaChanged = (mFilename == null || !filename.equals(mFilename));
         // 音频是否播放完成
@@ -231,24 +448,55 @@ public final class MediaPlayerManager extends PlayerAdapter {
         }
         // 变化后的音频id
         mFilename = filename;
+        mStateReducer.invalidate();
+        mTrackGain = getTrackGain(filename);
         // 创建MediaPlayer
         initializeMediaPlayer();
+        // Still ducked if focus was lost to a transient sound meanwhile.
+        applyVolumes();
         // 设置要播放的音频文件
+        mDataSource = mDataSourceFactory.create(mFilename);
         try {
-            AssetFileDescriptor assetFileDescriptor = mContext.getAssets().openFd(mFilename);
-            mMediaPlayer.setDataSource(
-                    assetFileDescriptor.getFileDescriptor(),
-                    assetFileDescriptor.getStartOffset(),
-                    assetFileDescriptor.getLength());
+            mDataSource.setDataSource(mMediaPlayer);
         } catch (Exception e) {
             throw new RuntimeException("Failed to open file: " + mFilename, e);
         }
+        // 远程音频异步准备，避免阻塞主线程
+        if (mDataSource.isRemote()) {
+            mMediaPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
+                @Override
+                public void onPrepared(MediaPlayer mediaPlayer) {
+                    FlightRecorder.record(FlightRecorder.EVENT_PREPARE_END,
+                            FlightRecorder.PREPARE_REMOTE, 0);
+                    mPreparing = false;
+                    // A seek requested while preparing wins over the resume position.
+                    final int seekMs = mSeekWhileNotPlaying >= 0
+                            ? mSeekWhileNotPlaying : resumePositionMs;
+                    if (seekMs > 0) {
+                        mSeekScheduler.seekTo(seekMs);
+                    }
+                    play();
+                }
+            });
+            FlightRecorder.record(FlightRecorder.EVENT_PREPARE_START,
+                    FlightRecorder.PREPARE_REMOTE, resumePositionMs);
+            mPreparing = true;
+            mMediaPlayer.prepareAsync();
+            setNewState(PlaybackStateCompat.STATE_BUFFERING);
+            return;
+        }
         // 准备播放
+        FlightRecorder.record(FlightRecorder.EVENT_PREPARE_START,
+                FlightRecorder.PREPARE_LOCAL, resumePositionMs);
         try {
             mMediaPlayer.prepare();
         } catch (Exception e) {
             throw new RuntimeException("Failed to open file: " + mFilename, e);
         }
+        FlightRecorder.record(FlightRecorder.EVENT_PREPARE_END, FlightRecorder.PREPARE_LOCAL, 0);
+        if (resumePositionMs > 0) {
+            mMediaPlayer.seekTo(resumePositionMs);
+        }
         // 播放
         play();
     }
@@ -281,64 +529,256 @@ public final class MediaPlayerManager extends PlayerAdapter {
             if (mState == PlaybackStateCompat.STATE_PLAYING) {
                 mSeekWhileNotPlaying = -1;
             }
+        } else if (mSeekScheduler.isSeeking()) {
+            // getCurrentPosition() is not reliable until the seek has completed.
+            reportPosition = mSeekScheduler.getTargetPosition();
         } else {
             reportPosition = mMediaPlayer == null ? 0 : mMediaPlayer.getCurrentPosition();
         }
-        // 回调播放状态
-        final PlaybackStateCompat.Builder stateBuilder = new PlaybackStateCompat.Builder();
-        stateBuilder.setActions(getAvailableActions());
-        stateBuilder.setState(mState,
+        // 回调播放状态，与客户端已知的相同时为null
+        final PlaybackStateCompat state = mStateReducer.reduce(mState,
                 reportPosition,
-                1.0f,
+                mPlaybackSpeed,
                 SystemClock.elapsedRealtime());
         // 播放状态回调
-        mPlaybackInfoListener.onPlaybackStateChange(stateBuilder.build());
+        if (state != null) {
+            mPlaybackInfoListener.onPlaybackStateChange(state);
+        }
+    }
+
+    @RequiresApi(Build.VERSION_CODES.M)
+    private void applyPlaybackSpeed() {
+        try {
+            mMediaPlayer.setPlaybackParams(
+                    mMediaPlayer.getPlaybackParams().setSpeed(mPlaybackSpeed));
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "applyPlaybackSpeed: Unsupported speed " + mPlaybackSpeed, e);
+            mPlaybackSpeed = mMediaPlayer.getPlaybackParams().getSpeed();
+        }
+    }
+
+    /**
+     * 在剩余播放时间等于淡入淡出时长时开始，只有一个定时任务；已在准备的下一首作废
+     */
+    private void scheduleCrossfade() {
+        mHandler.removeCallbacks(mCrossfadeRunnable);
+        cancelIncoming();
+        if (mCrossfadeMs == 0 || mNextMedia == null || mFadingPlayer != null
+                || mMediaPlayer == null || !mMediaPlayer.isPlaying()
+                || mSeekScheduler.isSeeking() || mDataSource == null || mDataSource.isRemote()) {
+            return;
+        }
+        final long durationMs = mMediaPlayer.getDuration();
+        if (durationMs <= 0) {
+            return;
+        }
+        // Short items fade over half of their length at most.
+        final long fadeMs = Math.min(mCrossfadeMs, durationMs / 2);
+        final long remainingMs = durationMs - mMediaPlayer.getCurrentPosition();
+        mHandler.postDelayed(mCrossfadeRunnable,
+                Math.max(0, (long) ((remainingMs - fadeMs) / mPlaybackSpeed)));
     }
 
     /**
-     * Set the current capabilities available on this session. Note: If a capability is not
-     * listed in the bitmask of capabilities then the MediaSession will not handle it. For
-     * example, if you don't want ACTION_STOP to be handled by the MediaSession, then don't
-     * included it in the bitmask that's returned.
+     * 异步准备下一首，准备好后开始淡入淡出
      */
-    @PlaybackStateCompat.Actions
-    private long getAvailableActions() {
-        long actions = PlaybackStateCompat.ACTION_PLAY_FROM_MEDIA_ID
-                | PlaybackStateCompat.ACTION_PLAY_FROM_SEARCH
-                | PlaybackStateCompat.ACTION_SKIP_TO_NEXT
-                | PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS;
-        switch (mState) {
-            case PlaybackStateCompat.STATE_STOPPED:
-                actions |= PlaybackStateCompat.ACTION_PLAY
-                        | PlaybackStateCompat.ACTION_PAUSE;
-                break;
-            case PlaybackStateCompat.STATE_PLAYING:
-                actions |= PlaybackStateCompat.ACTION_STOP
-                        | PlaybackStateCompat.ACTION_PAUSE
-                        | PlaybackStateCompat.ACTION_SEEK_TO;
-                break;
-            case PlaybackStateCompat.STATE_PAUSED:
-                actions |= PlaybackStateCompat.ACTION_PLAY
-                        | PlaybackStateCompat.ACTION_STOP;
-                break;
-            default:
-                actions |= PlaybackStateCompat.ACTION_PLAY
-                        | PlaybackStateCompat.ACTION_PLAY_PAUSE
-                        | PlaybackStateCompat.ACTION_STOP
-                        | PlaybackStateCompat.ACTION_PAUSE;
-        }
-        return actions;
+    @RequiresApi(Build.VERSION_CODES.O)
+    private void prepareCrossfade() {
+        final MediaMetadataCompat nextMedia = mNextMedia;
+        if (nextMedia == null || mMediaPlayer == null || !mMediaPlayer.isPlaying()) {
+            return;
+        }
+        final String filename =
+                MusicLibrary.getMusicFilename(nextMedia.getDescription().getMediaId());
+        if (filename == null) {
+            return;
+        }
+        final DataSource dataSource = mDataSourceFactory.create(filename);
+        if (dataSource.isRemote()) {
+            // Buffering would stall the fade; play it after a hard stop instead.
+            dataSource.close();
+            return;
+        }
+        final MediaPlayer incoming = createMediaPlayer();
+        // Preparing on the main thread would hold it for the whole open and probe of the file.
+        incoming.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
+            @Override
+            public void onPrepared(MediaPlayer mediaPlayer) {
+                if (mediaPlayer == mIncomingPlayer) {
+                    FlightRecorder.record(FlightRecorder.EVENT_PREPARE_END,
+                            FlightRecorder.PREPARE_CROSSFADE, 0);
+                    startCrossfade();
+                }
+            }
+        });
+        FlightRecorder.record(FlightRecorder.EVENT_PREPARE_START,
+                FlightRecorder.PREPARE_CROSSFADE, 0);
+        try {
+            dataSource.setDataSource(incoming);
+            incoming.prepareAsync();
+        } catch (Exception e) {
+            Log.w(TAG, "prepareCrossfade: Failed to open file: " + filename, e);
+            incoming.release();
+            dataSource.close();
+            return;
+        }
+        mIncomingPlayer = incoming;
+        mIncomingDataSource = dataSource;
+        mIncomingMedia = nextMedia;
     }
 
+    /**
+     * 准备好的下一首开始播放并淡入，当前音频淡出
+     */
+    @RequiresApi(Build.VERSION_CODES.O)
+    private void startCrossfade() {
+        final MediaPlayer incoming = mIncomingPlayer;
+        final DataSource dataSource = mIncomingDataSource;
+        final MediaMetadataCompat nextMedia = mIncomingMedia;
+        mIncomingPlayer = null;
+        mIncomingDataSource = null;
+        mIncomingMedia = null;
+        if (mMediaPlayer == null || !mMediaPlayer.isPlaying()) {
+            incoming.release();
+            dataSource.close();
+            return;
+        }
+        final String filename =
+                MusicLibrary.getMusicFilename(nextMedia.getDescription().getMediaId());
+        // The fade ends with the outgoing item, however long the prepare took.
+        final long remainingMs = mMediaPlayer.getDuration() - mMediaPlayer.getCurrentPosition();
+        final long fadeMs = Math.max(1, Math.min(mCrossfadeMs, remainingMs));
+        Log.d(TAG, "startCrossfade: " + fadeMs + " ms into " + filename);
+
+        // The outgoing player keeps playing until it completes.
+        mFadingPlayer = mMediaPlayer;
+        mFadingDataSource = mDataSource;
+        mFadingTrackGain = mTrackGain;
+        mMediaPlayer = incoming;
+        mDataSource = dataSource;
+        mFilename = filename;
+        mStateReducer.invalidate();
+        mTrackGain = getTrackGain(filename);
+        mCurrentMedia = nextMedia;
+        mNextMedia = null;
+        mSeekScheduler.reset();
+        mSeekWhileNotPlaying = -1;
+
+        // The shapers scale the volume of their player.
+        applyVolumes();
+        startVolumeShapers(fadeMs);
+        mMediaPlayer.start();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            applyPlaybackSpeed();
+        }
+        mPlaybackInfoListener.onMediaTransition(mCurrentMedia);
+        setNewState(PlaybackStateCompat.STATE_PLAYING);
+    }
+
+    /**
+     * Both shapers run on their player's media time, so they stay aligned at any speed.
+     * The fade in is applied before the incoming player starts, so it starts silent.
+     */
+    @RequiresApi(Build.VERSION_CODES.O)
+    private void startVolumeShapers(long fadeMs) {
+        final VolumeShaper.Configuration fadeIn =
+                new VolumeShaper.Configuration.Builder(VolumeShaper.Configuration.SINE_RAMP)
+                        .setDuration(fadeMs)
+                        .build();
+        // sin rising becomes cos falling: together they keep the power constant.
+        final VolumeShaper.Configuration fadeOut =
+                new VolumeShaper.Configuration.Builder(VolumeShaper.Configuration.SINE_RAMP)
+                        .reflectTimes()
+                        .setDuration(fadeMs)
+                        .build();
+        mFadeInShaper = mMediaPlayer.createVolumeShaper(fadeIn);
+        mFadeOutShaper = mFadingPlayer.createVolumeShaper(fadeOut);
+        mFadeInShaper.apply(VolumeShaper.Operation.PLAY);
+        mFadeOutShaper.apply(VolumeShaper.Operation.PLAY);
+    }
+
+    /**
+     * 设置两个播放器的音量：焦点音量乘以音频的增益，淡入淡出的增益由 VolumeShaper 相乘
+     */
+    private void applyVolumes() {
+        final float focusVolume = getFocusVolume();
+        if (mMediaPlayer != null) {
+            final float volume = focusVolume * mTrackGain;
+            mMediaPlayer.setVolume(volume, volume);
+        }
+        if (mFadingPlayer != null) {
+            final float volume = focusVolume * mFadingTrackGain;
+            mFadingPlayer.setVolume(volume, volume);
+        }
+    }
+
+    /**
+     * 结束淡入淡出：释放淡出的播放器，当前播放器恢复为焦点音量
+     * <p>
+     * Callers that stop playing remove the timer this schedules.
+     */
+    private void finishCrossfade() {
+        if (mFadingPlayer != null) {
+            mFadingPlayer.release();
+            mFadingPlayer = null;
+        }
+        if (mFadingDataSource != null) {
+            mFadingDataSource.close();
+            mFadingDataSource = null;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            closeVolumeShapers();
+        }
+        applyVolumes();
+        // The item that faded in may fade into the one after it.
+        scheduleCrossfade();
+    }
+
+    /**
+     * 放弃准备中的下一首
+     */
+    private void cancelIncoming() {
+        if (mIncomingPlayer != null) {
+            mIncomingPlayer.release();
+            mIncomingPlayer = null;
+            mIncomingMedia = null;
+        }
+        if (mIncomingDataSource != null) {
+            mIncomingDataSource.close();
+            mIncomingDataSource = null;
+        }
+    }
+
+    @RequiresApi(Build.VERSION_CODES.O)
+    private void closeVolumeShapers() {
+        // Closing a shaper drops its gain, so an interrupted fade in jumps to full volume.
+        if (mFadeInShaper != null) {
+            mFadeInShaper.close();
+            mFadeInShaper = null;
+        }
+        if (mFadeOutShaper != null) {
+            mFadeOutShaper.close();
+            mFadeOutShaper = null;
+        }
+    }
 
     /**
      * 释放 MediaPlayer
      */
     private void release() {
+        finishCrossfade();
+        mHandler.removeCallbacks(mCrossfadeRunnable);
+        cancelIncoming();
         if (mMediaPlayer != null) {
             mMediaPlayer.release();
             mMediaPlayer = null;
         }
+        mPreparing = false;
+        mSeekScheduler.reset();
+        if (mDataSource != null) {
+            mDataSource.close();
+            mDataSource = null;
+        }
     }
 
 }
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.player;
+
+import android.support.annotation.Nullable;
+import android.support.v4.media.session.PlaybackStateCompat;
+
+/**
+ * Turns the players' state changes into the {@link PlaybackStateCompat} objects sent to the
+ * session, without the garbage: the actions of every state are computed once into a table,
+ * one builder is reused, and a change that tells the clients nothing new is not sent at all.
+ * <p>
+ * A change is a duplicate when the state and speed are those last sent and the position is
+ * within {@link #POSITION_BUCKET_MS} of where the clients already put it, counting on from
+ * the last update at the last speed while playing. Actions follow from the state, so they
+ * are unchanged too. Such a change costs no allocation; only real changes build a state,
+ * because the session keeps and parcels the object it is given.
+ * <p>
+ * Used on the thread that drives the player.
+ * <p>
+ * 播放状态生成
+ */
+final class PlaybackStateReducer {
+
+    // 报告的位置与客户端推算的位置相差小于此值时不必通知
+    static final long POSITION_BUCKET_MS = 100;
+
+    // 各状态可用的操作，以状态值为下标 (STATE_NONE 到 STATE_SKIPPING_TO_QUEUE_ITEM)
+    private static final long[] ACTIONS = new long[12];
+
+    static {
+        for (int state = 0; state < ACTIONS.length; state++) {
+            ACTIONS[state] = PlayerAdapter.getAvailableActions(state);
+        }
+    }
+
+
+    // The built states share the builder's (empty) custom action list, which is never changed.
+    private final PlaybackStateCompat.Builder mBuilder = new PlaybackStateCompat.Builder();
+    // 上次通知的状态，mSent为false时无效
+    private boolean mSent;
+    private int mState;
+    private long mPosition;
+    private float mSpeed;
+    private long mUpdateTime;
+
+
+    /**
+     * @param state    新状态
+     * @param position 当前位置
+     * @param speed    播放速度
+     * @param nowMs    SystemClock.elapsedRealtime()
+     * @return 要通知的状态，与客户端已知的相同时为null
+     */
+    @Nullable
+    PlaybackStateCompat reduce(@PlaybackStateCompat.State int state, long position, float speed,
+                               long nowMs) {
+        if (mSent && state == mState && speed == mSpeed) {
+            final long expected = state == PlaybackStateCompat.STATE_PLAYING
+                    ? mPosition + (long) ((nowMs - mUpdateTime) * speed)
+                    : mPosition;
+            if (Math.abs(position - expected) < POSITION_BUCKET_MS) {
+                return null;
+            }
+        }
+        mSent = true;
+        mState = state;
+        mPosition = position;
+        mSpeed = speed;
+        mUpdateTime = nowMs;
+        return mBuilder.setActions(getActions(state))
+                .setState(state, position, speed, nowMs)
+                .build();
+    }
+
+    /**
+     * 换了音频，下一个状态总是通知
+     */
+    void invalidate() {
+        mSent = false;
+    }
+
+
+    // ##########################################################################################
+
+
+    @PlaybackStateCompat.Actions
+    private static long getActions(@PlaybackStateCompat.State int state) {
+        return state >= 0 && state < ACTIONS.length
+                ? ACTIONS[state] : PlayerAdapter.getAvailableActions(state);
+    }
+}
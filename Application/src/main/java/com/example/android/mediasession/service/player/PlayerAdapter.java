@@ -23,18 +23,39 @@ import android.content.IntentFilter;
 import android.media.AudioManager;
 import android.support.annotation.NonNull;
 import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+
+import com.example.android.mediasession.service.memory.Trimmable;
+import com.example.android.mediasession.service.recorder.FlightRecorder;
 
 /**
  * Abstract player implementation that handles playing music with proper handling of headphones
  * and audio focus.
  */
-public abstract class PlayerAdapter {
+public abstract class PlayerAdapter implements Trimmable {
 
 
     // 默认的音量 0~1之间
     private static final float MEDIA_VOLUME_DEFAULT = 1.0f;
     // 失去焦点时，降低音量后的音量
     private static final float MEDIA_VOLUME_DUCK = 0.2f;
+    // 交叉淡入淡出的最大时长
+    public static final long MAX_CROSSFADE_MS = 12000;
+
+
+    /**
+     * 音频的音量增益，如按响度计算的增益
+     */
+    public interface GainSource {
+
+        /**
+         * 主线程：音频开始播放时调用，不应阻塞
+         *
+         * @param filename 音频文件名
+         * @return 0~1之间，没有增益时为1
+         */
+        float getGain(String filename);
+    }
 
 
     /**
@@ -68,6 +89,53 @@ public abstract class PlayerAdapter {
 
     public abstract boolean isPlaying();
 
+    /**
+     * 设置下一首音频。支持无缝播放的实现会在当前音频结束后直接播放下一首，并通过
+     * {@link com.example.android.mediasession.service.PlaybackInfoListener#onMediaTransition}
+     * 通知；默认不支持。
+     *
+     * @param metadata 下一首音频，null表示没有下一首
+     */
+    public void setNextMedia(MediaMetadataCompat metadata) {
+    }
+
+    /**
+     * 设置交叉淡入淡出的时长。支持的实现在当前音频结束前开始播放
+     * {@link #setNextMedia 下一首}，两者重叠这段时间；默认不支持。
+     *
+     * @param durationMs 0 到 {@link #MAX_CROSSFADE_MS}，0为关闭
+     */
+    public void setCrossfadeDuration(long durationMs) {
+    }
+
+    /**
+     * 内存不足时调用。支持的实现在暂停时释放解码器，恢复播放时从原来的位置重新打开；
+     * 默认不释放。
+     *
+     * @return 估计释放的字节数
+     */
+    @Override
+    public long onTrimMemory(int pressure) {
+        return 0;
+    }
+
+    /**
+     * 设置音频的增益来源。增益在音频开始播放时取得，播放中不变，与
+     * {@link #getFocusVolume() 焦点音量}相乘。
+     *
+     * @param gainSource null表示没有增益
+     */
+    public final void setGainSource(GainSource gainSource) {
+        mGainSource = gainSource;
+    }
+
+    /**
+     * @return 音频的增益，没有增益来源时为1
+     */
+    protected final float getTrackGain(String filename) {
+        return mGainSource != null && filename != null ? mGainSource.getGain(filename) : 1.0f;
+    }
+
 
     /**
      * 播放音频
@@ -134,18 +202,82 @@ public abstract class PlayerAdapter {
     public abstract void seekTo(long position);
 
     /**
-     * 设置音频播放音量
+     * 设置音频播放音量。音频焦点变化时以 {@link #getFocusVolume()} 调用；
+     * 实现中的淡入淡出等音量变化应与它相乘，新创建的播放器也应使用它。
      *
      * @param volume
      */
     public abstract void setVolume(float volume);
 
+    /**
+     * @return 按音频焦点的音量，被降低时小于1
+     */
+    protected final float getFocusVolume() {
+        return mFocusVolume;
+    }
+
+    /**
+     * 设置播放速度，音调不变。切换音频后保持不变，通过
+     * {@link PlaybackStateCompat#getPlaybackSpeed()} 报告给客户端。
+     *
+     * @param speed 1.0为正常速度
+     */
+    public abstract void setPlaybackSpeed(float speed);
+
+    /**
+     * Set the current capabilities available on this session. Note: If a capability is not
+     * listed in the bitmask of capabilities then the MediaSession will not handle it. For
+     * example, if you don't want ACTION_STOP to be handled by the MediaSession, then don't
+     * included it in the bitmask that's returned.
+     */
+    @PlaybackStateCompat.Actions
+    protected static long getAvailableActions(@PlaybackStateCompat.State int state) {
+        long actions = PlaybackStateCompat.ACTION_PLAY_FROM_MEDIA_ID
+                | PlaybackStateCompat.ACTION_PLAY_FROM_SEARCH
+                | PlaybackStateCompat.ACTION_SKIP_TO_NEXT
+                | PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS
+                | PlaybackStateCompat.ACTION_SKIP_TO_QUEUE_ITEM
+                | PlaybackStateCompat.ACTION_SET_REPEAT_MODE
+                | PlaybackStateCompat.ACTION_SET_SHUFFLE_MODE;
+        switch (state) {
+            case PlaybackStateCompat.STATE_STOPPED:
+                actions |= PlaybackStateCompat.ACTION_PLAY
+                        | PlaybackStateCompat.ACTION_PAUSE;
+                break;
+            case PlaybackStateCompat.STATE_PLAYING:
+                actions |= PlaybackStateCompat.ACTION_STOP
+                        | PlaybackStateCompat.ACTION_PAUSE
+                        | PlaybackStateCompat.ACTION_SEEK_TO;
+                break;
+            case PlaybackStateCompat.STATE_PAUSED:
+                actions |= PlaybackStateCompat.ACTION_PLAY
+                        | PlaybackStateCompat.ACTION_STOP;
+                break;
+            default:
+                actions |= PlaybackStateCompat.ACTION_PLAY
+                        | PlaybackStateCompat.ACTION_PLAY_PAUSE
+                        | PlaybackStateCompat.ACTION_STOP
+                        | PlaybackStateCompat.ACTION_PAUSE;
+        }
+        return actions;
+    }
+
 
     // ##########################################获取焦点帮助类###############################################
 
 
     // 是否失去焦点时，停止了音频播放
     private boolean mPlayingOnAudioFocusLoss = false;
+    // 按音频焦点的音量
+    private float mFocusVolume = MEDIA_VOLUME_DEFAULT;
+    // 音频的增益来源
+    private GainSource mGainSource;
+
+
+    private void setFocusVolume(float volume) {
+        mFocusVolume = volume;
+        setVolume(volume);
+    }
 
 
     /**
@@ -166,6 +298,7 @@ public abstract class PlayerAdapter {
             final int result = mAudioManager.requestAudioFocus(this,
                     AudioManager.STREAM_MUSIC,
                     AudioManager.AUDIOFOCUS_GAIN);
+            FlightRecorder.record(FlightRecorder.EVENT_FOCUS_REQUEST, result, 0);
             return result == AudioManager.AUDIOFOCUS_REQUEST_GRANTED;
         }
 
@@ -173,6 +306,7 @@ public abstract class PlayerAdapter {
          * 放弃音频焦点
          */
         public void abandonAudioFocus() {
+            FlightRecorder.record(FlightRecorder.EVENT_FOCUS_ABANDON, 0, 0);
             mAudioManager.abandonAudioFocus(this);
         }
 
@@ -184,22 +318,21 @@ public abstract class PlayerAdapter {
          */
         @Override
         public void onAudioFocusChange(int focusChange) {
+            FlightRecorder.record(FlightRecorder.EVENT_FOCUS_CHANGE, focusChange, 0);
             switch (focusChange) {
                 // 获取到音频焦点
                 case AudioManager.AUDIOFOCUS_GAIN:
+                    // Undo any ducking first, so a resumed player starts at full volume.
+                    setFocusVolume(MEDIA_VOLUME_DEFAULT);
                     // 没有播放&&焦点失去时停止过播放 则播放
                     if (mPlayingOnAudioFocusLoss && !isPlaying()) {
                         play();
                     }
-                    // 正在播放
-                    else if (isPlaying()) {
-                        setVolume(MEDIA_VOLUME_DEFAULT);
-                    }
                     mPlayingOnAudioFocusLoss = false;
                     break;
                 // 播放中失去焦点，可降低播放质量，来维持播放
                 case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
-                    setVolume(MEDIA_VOLUME_DUCK);
+                    setFocusVolume(MEDIA_VOLUME_DUCK);
                     break;
                 // 失去焦点
                 case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
@@ -239,6 +372,7 @@ public abstract class PlayerAdapter {
                 public void onReceive(Context context, Intent intent) {
                     // 耳机插拔变化等的监听
                     if (AudioManager.ACTION_AUDIO_BECOMING_NOISY.equals(intent.getAction())) {
+                        FlightRecorder.record(FlightRecorder.EVENT_NOISY, isPlaying() ? 1 : 0, 0);
                         // 正在播放，则停止播放
                         if (isPlaying()) {
                             pause();
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.player;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Keeps at most one seek in flight per player. Requests that arrive while a seek is running
+ * only replace the pending target, so scrubbing the seek bar or a burst of remote commands
+ * costs the decoder one seek per completion instead of one per request.
+ * <p>
+ * The first seek of a burst, and a single request that waited for one, are precise. While
+ * several requests keep replacing each other the intermediate seeks only go to the previous
+ * sync frame, and once the burst is over a final precise seek lands on the last target.
+ * <p>
+ * Not thread safe, used on the main thread.
+ * <p>
+ * 合并seek请求
+ */
+final class SeekScheduler {
+
+    private static final String TAG = "SeekScheduler";
+
+    /**
+     * 执行seek的播放器
+     */
+    interface Seeker {
+
+        /**
+         * 执行seek，完成后必须调用 {@link SeekScheduler#onSeekComplete()}
+         *
+         * @param positionMs 目标位置
+         * @param precise    true: 精确到目标位置；false: 到目标之前的同步帧即可
+         * @throws IllegalStateException 播放器当前不能seek
+         */
+        void performSeek(long positionMs, boolean precise);
+    }
+
+
+    private final Seeker mSeeker;
+
+    // 正在执行的seek，-1表示没有
+    private long mInFlightPositionMs = -1;
+    private boolean mInFlightPrecise;
+    private long mInFlightStartMs;
+    // 等待执行的seek，只保留最新的目标
+    private long mPendingPositionMs = -1;
+    // 等待期间收到的请求数
+    private int mPendingRequests;
+
+    // 统计
+    private int mSeekCount;
+    private long mTotalLatencyMs;
+    private long mMaxLatencyMs;
+
+
+    SeekScheduler(Seeker seeker) {
+        mSeeker = seeker;
+    }
+
+    /**
+     * 请求seek
+     *
+     * @param positionMs
+     * @return true: 立即执行或执行失败，可以报告状态；false: 已合并到等待中的seek
+     */
+    boolean seekTo(long positionMs) {
+        if (mInFlightPositionMs >= 0) {
+            mPendingPositionMs = positionMs;
+            mPendingRequests++;
+            return false;
+        }
+        issue(positionMs, true);
+        return true;
+    }
+
+    /**
+     * 播放器完成seek
+     *
+     * @return true: 所有seek都已完成，可以报告新位置
+     */
+    boolean onSeekComplete() {
+        if (mInFlightPositionMs < 0) {
+            // Not one of ours, e.g. MediaPlayer seeking internally.
+            return mPendingPositionMs < 0;
+        }
+        final long latencyMs = SystemClock.elapsedRealtime() - mInFlightStartMs;
+        mSeekCount++;
+        mTotalLatencyMs += latencyMs;
+        mMaxLatencyMs = Math.max(mMaxLatencyMs, latencyMs);
+        Log.d(TAG, "onSeekComplete: " + mInFlightPositionMs
+                + (mInFlightPrecise ? " (closest)" : " (sync)")
+                + " in " + latencyMs + " ms, coalesced " + Math.max(0, mPendingRequests - 1)
+                + ", average " + (mTotalLatencyMs / mSeekCount) + " ms, max " + mMaxLatencyMs
+                + " ms over " + mSeekCount + " seeks");
+
+        final long completedMs = mInFlightPositionMs;
+        final boolean completedPrecise = mInFlightPrecise;
+        mInFlightPositionMs = -1;
+        if (mPendingPositionMs >= 0) {
+            final long nextMs = mPendingPositionMs;
+            // Several requests replaced each other: more are likely to follow.
+            final boolean precise = mPendingRequests <= 1;
+            mPendingPositionMs = -1;
+            mPendingRequests = 0;
+            return !issue(nextMs, precise);
+        }
+        if (!completedPrecise) {
+            return !issue(completedMs, true);
+        }
+        return true;
+    }
+
+    /**
+     * 是否有未完成的seek
+     */
+    boolean isSeeking() {
+        return mInFlightPositionMs >= 0;
+    }
+
+    /**
+     * 最终要到达的位置
+     */
+    long getTargetPosition() {
+        return mPendingPositionMs >= 0 ? mPendingPositionMs : mInFlightPositionMs;
+    }
+
+    /**
+     * 播放器释放或出错后调用，丢弃未完成的seek
+     */
+    void reset() {
+        mInFlightPositionMs = -1;
+        mPendingPositionMs = -1;
+        mPendingRequests = 0;
+    }
+
+
+    /**
+     * @return false: 播放器拒绝了seek，不会再有完成回调
+     */
+    private boolean issue(long positionMs, boolean precise) {
+        mInFlightPositionMs = positionMs;
+        mInFlightPrecise = precise;
+        mInFlightStartMs = SystemClock.elapsedRealtime();
+        try {
+            mSeeker.performSeek(positionMs, precise);
+            return true;
+        } catch (IllegalStateException e) {
+            // Otherwise isSeeking() stays true and the position is frozen at the target.
+            Log.w(TAG, "performSeek: " + positionMs + " ms: " + e);
+            reset();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,431 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.player;
+
+import android.content.ContentResolver;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.example.android.mediasession.BuildConfig;
+import com.example.android.mediasession.service.player.source.DataSource;
+import com.example.android.mediasession.service.player.source.DataSourceFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The first {@link #DURATION_MS} of decoded PCM of recently played tracks and of the next
+ * track in the queue, one file per track, so that {@link CodecPlayerManager} can start a
+ * track without waiting for the extractor and the codec: it writes the cached PCM to the
+ * AudioTrack while they are prepared on another thread, and the codec takes over where the
+ * cached PCM ends.
+ * <p>
+ * A track played from its start is recorded while it is decoded; the next track is decoded
+ * ahead on the worker thread. The files are written on the worker thread, and read through a
+ * memory-mapped buffer that goes to the AudioTrack as it is. Least recently used files are
+ * deleted once the directory grows past its limit. A file is only used while the local file
+ * it was decoded from has the same length and modification time, or for an asset, while
+ * the app has the same version.
+ * <p>
+ * 音频开头的PCM缓存，用于立即开始播放
+ */
+public final class StartBufferCache {
+
+    private static final String TAG = "StartBufferCache";
+
+    // 缓存的时长
+    static final long DURATION_MS = 3000;
+
+    // 格式："PCMS" 版本 音频文件的版本 采样率 声道数 帧数，然后是16位PCM (本机字节序)
+    private static final int MAGIC = 0x50434d53;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 28;
+    private static final long DEQUEUE_TIMEOUT_US = 10000;
+
+
+    /**
+     * 缓存的开头
+     */
+    static final class StartBuffer {
+
+        final int mSampleRate;
+        final int mChannelCount;
+        final int mFrames;
+        // 只有PCM，只读
+        final ByteBuffer mPcm;
+
+        private StartBuffer(int sampleRate, int channelCount, int frames, ByteBuffer pcm) {
+            mSampleRate = sampleRate;
+            mChannelCount = channelCount;
+            mFrames = frames;
+            mPcm = pcm;
+        }
+    }
+
+    /**
+     * 解码时记录开头的PCM，够 DURATION_MS 或结束时交给工作线程写入
+     */
+    final class Capture {
+
+        private final String mFilename;
+        private final long mSourceVersion;
+        private final int mSampleRate;
+        private final int mChannelCount;
+        private final byte[] mPcm;
+        private int mSize;
+        private boolean mFinished;
+
+        private Capture(String filename, int sampleRate, int channelCount) {
+            mFilename = filename;
+            mSourceVersion = getSourceVersion(filename);
+            mSampleRate = sampleRate;
+            mChannelCount = channelCount;
+            mPcm = new byte[(int) (DURATION_MS * sampleRate / 1000) * 2 * channelCount];
+        }
+
+        /**
+         * 复制buffer的position到limit之间的PCM，不改变position
+         *
+         * @return 是否已够 DURATION_MS
+         */
+        boolean append(ByteBuffer buffer) {
+            final int position = buffer.position();
+            final int size = Math.min(buffer.remaining(), mPcm.length - mSize);
+            buffer.get(mPcm, mSize, size);
+            buffer.position(position);
+            mSize += size;
+            if (mSize == mPcm.length) {
+                finish();
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * 写入已记录的PCM，例如比 DURATION_MS 短的音频结束时
+         */
+        void finish() {
+            if (mFinished || mSize == 0) {
+                return;
+            }
+            mFinished = true;
+            mWorkerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    write(Capture.this);
+                }
+            });
+        }
+    }
+
+
+    // 缓存目录
+    private final File mDirectory;
+    // 缓存上限
+    private final long mMaxBytes;
+    // 预先解码下一首，不使用预取的文件描述符
+    private final DataSourceFactory mDataSourceFactory;
+    private final Handler mWorkerHandler;
+
+
+    /**
+     * @param directory         缓存目录
+     * @param maxBytes          缓存上限
+     * @param dataSourceFactory 预先解码下一首用的数据源
+     * @param workerLooper      写入和预先解码的线程
+     */
+    public StartBufferCache(File directory, long maxBytes, DataSourceFactory dataSourceFactory,
+                            Looper workerLooper) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+        mDataSourceFactory = dataSourceFactory;
+        mWorkerHandler = new Handler(workerLooper);
+    }
+
+    /**
+     * 映射缓存的开头，任何线程
+     *
+     * @return 没有缓存或音频文件已变化时为null
+     */
+    @Nullable
+    StartBuffer open(String filename) {
+        final File file = getFile(filename);
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(file, "r");
+            // The mapping stays valid after the file is closed.
+            final ByteBuffer buffer =
+                    in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+            if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC
+                    || buffer.getInt(4) != VERSION
+                    || buffer.getLong(8) != getSourceVersion(filename)) {
+                return null;
+            }
+            final int sampleRate = buffer.getInt(16);
+            final int channelCount = buffer.getInt(20);
+            final int frames = buffer.getInt(24);
+            if (sampleRate <= 0 || (channelCount != 1 && channelCount != 2) || frames <= 0
+                    || HEADER_BYTES + (long) frames * 2 * channelCount > buffer.capacity()) {
+                return null;
+            }
+            buffer.position(HEADER_BYTES);
+            buffer.limit(HEADER_BYTES + frames * 2 * channelCount);
+            // Evicted last.
+            //noinspection ResultOfMethodCallIgnored
+            file.setLastModified(System.currentTimeMillis());
+            return new StartBuffer(sampleRate, channelCount, frames, buffer.slice());
+        } catch (IOException e) {
+            Log.w(TAG, "open: " + file, e);
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * 开始记录从头解码的音频
+     */
+    Capture capture(String filename, int sampleRate, int channelCount) {
+        return new Capture(filename, sampleRate, channelCount);
+    }
+
+    /**
+     * 在工作线程中解码还没有缓存的音频的开头，例如下一首
+     */
+    void prefill(final String filename) {
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (open(filename) == null) {
+                    decode(filename);
+                }
+            }
+        });
+    }
+
+
+    // ##########################################################################################
+
+
+    /**
+     * 工作线程：解码开头 DURATION_MS
+     */
+    private void decode(String filename) {
+        final long beginMs = SystemClock.elapsedRealtime();
+        final DataSource source = mDataSourceFactory.create(filename);
+        MediaExtractor extractor = null;
+        MediaCodec codec = null;
+        try {
+            extractor = new MediaExtractor();
+            source.setDataSource(extractor);
+            final MediaFormat format = selectAudioTrack(extractor);
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+            final ByteBuffer[] inputBuffers = codec.getInputBuffers();
+            ByteBuffer[] outputBuffers = codec.getOutputBuffers();
+            final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            int channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            Capture capture = null;
+            boolean inputDone = false;
+            while (true) {
+                if (!inputDone) {
+                    final int inputIndex = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+                    if (inputIndex >= 0) {
+                        final int size = extractor.readSampleData(inputBuffers[inputIndex], 0);
+                        if (size < 0) {
+                            codec.queueInputBuffer(inputIndex, 0, 0, 0,
+                                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            codec.queueInputBuffer(inputIndex, 0, size,
+                                    extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+                final int outputIndex = codec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
+                if (outputIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    outputBuffers = codec.getOutputBuffers();
+                } else if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    // Reported before the first buffer, so nothing has been captured yet.
+                    final MediaFormat outputFormat = codec.getOutputFormat();
+                    sampleRate = outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    channelCount = outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                } else if (outputIndex >= 0) {
+                    final ByteBuffer buffer = outputBuffers[outputIndex];
+                    buffer.position(info.offset);
+                    buffer.limit(info.offset + info.size);
+                    if (capture == null) {
+                        capture = capture(filename, sampleRate, channelCount);
+                    }
+                    final boolean full = capture.append(buffer);
+                    codec.releaseOutputBuffer(outputIndex, false);
+                    if (full) {
+                        break;
+                    }
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        capture.finish();
+                        break;
+                    }
+                }
+            }
+            Log.d(TAG, "decode: " + filename + " in "
+                    + (SystemClock.elapsedRealtime() - beginMs) + " ms");
+        } catch (IOException | RuntimeException e) {
+            // A track that cannot be decoded is reported when it is played.
+            Log.w(TAG, "decode: " + filename, e);
+        } finally {
+            if (codec != null) {
+                codec.release();
+            }
+            if (extractor != null) {
+                extractor.release();
+            }
+            source.close();
+        }
+    }
+
+    /**
+     * 工作线程：先写临时文件再替换，然后淘汰超出上限的文件
+     */
+    private void write(Capture capture) {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "write: cannot create " + mDirectory);
+            return;
+        }
+        final File file = getFile(capture.mFilename);
+        final File temp = new File(file.getPath() + ".tmp");
+        final int frameSize = 2 * capture.mChannelCount;
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(capture.mSourceVersion);
+            out.writeInt(capture.mSampleRate);
+            out.writeInt(capture.mChannelCount);
+            out.writeInt(capture.mSize / frameSize);
+            out.write(capture.mPcm, 0, capture.mSize / frameSize * frameSize);
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                throw new IOException("Cannot rename " + temp);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "write: " + file, e);
+            close(out);
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            return;
+        }
+        evict();
+    }
+
+    /**
+     * 超出上限时从最久没有使用的文件开始删除
+     */
+    private void evict() {
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long[] lastModified = new long[files.length];
+        final Integer[] order = new Integer[files.length];
+        long bytes = 0;
+        for (int i = 0; i < files.length; i++) {
+            // Read once: sorting must not see the times change.
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+            bytes += files[i].length();
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(lastModified[a], lastModified[b]);
+            }
+        });
+        for (int i = 0; i < order.length && bytes > mMaxBytes; i++) {
+            final File file = files[order[i]];
+            bytes -= file.length();
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    private File getFile(String filename) {
+        return new File(mDirectory, Integer.toHexString(filename.hashCode()) + "_"
+                + Integer.toHexString(filename.length()) + ".pcm");
+    }
+
+    /**
+     * @return 本地文件的长度和修改时间，asset为应用的版本，其他数据源为0
+     */
+    private static long getSourceVersion(String filename) {
+        if (DataSource.isAsset(filename)) {
+            // Assets only change with the app, and the cache directory survives an update.
+            return BuildConfig.VERSION_CODE;
+        }
+        final Uri uri = Uri.parse(filename);
+        if (!ContentResolver.SCHEME_FILE.equals(uri.getScheme()) || uri.getPath() == null) {
+            return 0;
+        }
+        final File file = new File(uri.getPath());
+        return file.length() * 31 + file.lastModified();
+    }
+
+    private static MediaFormat selectAudioTrack(MediaExtractor extractor) throws IOException {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            final MediaFormat format = extractor.getTrackFormat(i);
+            final String mime = format.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("audio/")) {
+                extractor.selectTrack(i);
+                return format;
+            }
+        }
+        throw new IOException("No audio track");
+    }
+
+    private static void close(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+                // Nothing to do.
+            }
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.player;
+
+/**
+ * Pitch-preserving time stretcher for interleaved 16 bit PCM (WSOLA).
+ * <p>
+ * The input is cut into overlapping sequences. For every sequence the offset within a small
+ * seek window that best matches the tail of the previous sequence (normalised
+ * cross-correlation) is searched, the two are cross-faded over the overlap, and the input
+ * position advances by {@code speed} times the output produced. Playing faster therefore
+ * drops whole pitch periods instead of resampling, and playing slower repeats them.
+ * <p>
+ * Used by {@link CodecPlayerManager} on devices without
+ * {@link android.media.PlaybackParams}. Not thread safe; has no Android dependencies.
+ * <p>
+ * 变速不变调
+ */
+public final class TimeStretcher {
+
+    // 每段长度、重叠长度、搜索范围 (ms)
+    private static final int SEQUENCE_MS = 40;
+    private static final int OVERLAP_MS = 8;
+    private static final int SEEK_WINDOW_MS = 15;
+    // 计算相关性时的采样间隔，降低计算量
+    private static final int CORRELATION_STRIDE = 2;
+
+    public static final float MIN_SPEED = 0.25f;
+    public static final float MAX_SPEED = 4.0f;
+
+
+    private final int mChannels;
+    private final int mSequenceFrames;
+    private final int mOverlapFrames;
+    private final int mSeekFrames;
+
+    private float mSpeed = 1.0f;
+    private double mSkipFraction;
+
+    // 输入、输出缓冲 (交错排列)
+    private short[] mInput = new short[0];
+    private int mInputFrames;
+    private short[] mOutput = new short[0];
+    private int mOutputFrames;
+    // 上一段末尾的重叠部分
+    private final short[] mOverlap;
+    private boolean mHasOverlap;
+
+
+    /**
+     * 构造方法
+     *
+     * @param sampleRate 采样率
+     * @param channels   声道数
+     */
+    public TimeStretcher(int sampleRate, int channels) {
+        mChannels = channels;
+        mSequenceFrames = sampleRate * SEQUENCE_MS / 1000;
+        mOverlapFrames = sampleRate * OVERLAP_MS / 1000;
+        mSeekFrames = sampleRate * SEEK_WINDOW_MS / 1000;
+        mOverlap = new short[mOverlapFrames * channels];
+    }
+
+    /**
+     * 设置播放速度
+     *
+     * @param speed {@link #MIN_SPEED} ~ {@link #MAX_SPEED}
+     */
+    public void setSpeed(float speed) {
+        mSpeed = Math.max(MIN_SPEED, Math.min(MAX_SPEED, speed));
+    }
+
+    public float getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * 写入PCM数据
+     *
+     * @param samples 交错排列的采样
+     * @param offset  起始位置 (采样)
+     * @param frames  帧数
+     */
+    public void putSamples(short[] samples, int offset, int frames) {
+        mInput = ensureCapacity(mInput, mInputFrames + frames);
+        System.arraycopy(samples, offset, mInput, mInputFrames * mChannels, frames * mChannels);
+        mInputFrames += frames;
+        process();
+    }
+
+    /**
+     * 读取变速后的PCM数据
+     *
+     * @param samples   输出
+     * @param offset    起始位置 (采样)
+     * @param maxFrames 最多读取的帧数
+     * @return 读取的帧数
+     */
+    public int receiveSamples(short[] samples, int offset, int maxFrames) {
+        final int frames = Math.min(maxFrames, mOutputFrames);
+        System.arraycopy(mOutput, 0, samples, offset, frames * mChannels);
+        mOutputFrames -= frames;
+        System.arraycopy(mOutput, frames * mChannels, mOutput, 0, mOutputFrames * mChannels);
+        return frames;
+    }
+
+    /**
+     * 可读取的帧数
+     */
+    public int availableFrames() {
+        return mOutputFrames;
+    }
+
+    /**
+     * 清空缓冲，seek时调用
+     */
+    public void flush() {
+        mInputFrames = 0;
+        mOutputFrames = 0;
+        mHasOverlap = false;
+        mSkipFraction = 0;
+    }
+
+
+    // ##########################################################################################
+
+
+    private void process() {
+        if (mSpeed == 1.0f && !mHasOverlap) {
+            // Pass through.
+            appendOutput(mInput, 0, mInputFrames);
+            mInputFrames = 0;
+            return;
+        }
+        final int stepFrames = mSequenceFrames - mOverlapFrames;
+        while (true) {
+            final double skip = mSpeed * stepFrames + mSkipFraction;
+            final int skipFrames = (int) skip;
+            if (mInputFrames < Math.max(mSeekFrames + mSequenceFrames, skipFrames)) {
+                return;
+            }
+            if (!mHasOverlap) {
+                // First sequence: nothing to blend with yet.
+                appendOutput(mInput, 0, stepFrames);
+                System.arraycopy(mInput, stepFrames * mChannels, mOverlap, 0, mOverlap.length);
+                mHasOverlap = true;
+            } else {
+                final int offset = findBestOffset();
+                appendCrossFade(offset);
+                appendOutput(mInput, offset + mOverlapFrames, stepFrames - mOverlapFrames);
+                System.arraycopy(mInput, (offset + stepFrames) * mChannels,
+                        mOverlap, 0, mOverlap.length);
+            }
+            mSkipFraction = skip - skipFrames;
+            consumeInput(skipFrames);
+            if (mSpeed == 1.0f) {
+                // Back to normal speed: flush the pending overlap and pass through again.
+                appendOutput(mOverlap, 0, mOverlapFrames);
+                mHasOverlap = false;
+                appendOutput(mInput, 0, mInputFrames);
+                mInputFrames = 0;
+                return;
+            }
+        }
+    }
+
+    /**
+     * 在搜索范围内找到与上一段重叠部分最相似的位置
+     */
+    private int findBestOffset() {
+        int bestOffset = 0;
+        double bestScore = -Double.MAX_VALUE;
+        for (int offset = 0; offset < mSeekFrames; offset++) {
+            double correlation = 0;
+            double energy = 0;
+            for (int frame = 0; frame < mOverlapFrames; frame += CORRELATION_STRIDE) {
+                final int overlapIndex = frame * mChannels;
+                final int inputIndex = (offset + frame) * mChannels;
+                for (int channel = 0; channel < mChannels; channel++) {
+                    final int sample = mInput[inputIndex + channel];
+                    correlation += (double) mOverlap[overlapIndex + channel] * sample;
+                    energy += (double) sample * sample;
+                }
+            }
+            final double score = correlation / Math.sqrt(energy + 1);
+            if (score > bestScore) {
+                bestScore = score;
+                bestOffset = offset;
+            }
+        }
+        return bestOffset;
+    }
+
+    /**
+     * 上一段的重叠部分淡出，当前段淡入
+     */
+    private void appendCrossFade(int offset) {
+        mOutput = ensureCapacity(mOutput, mOutputFrames + mOverlapFrames);
+        int outputIndex = mOutputFrames * mChannels;
+        for (int frame = 0; frame < mOverlapFrames; frame++) {
+            final int fadeIn = frame;
+            final int fadeOut = mOverlapFrames - frame;
+            final int inputIndex = (offset + frame) * mChannels;
+            for (int channel = 0; channel < mChannels; channel++) {
+                mOutput[outputIndex++] = (short) ((mOverlap[frame * mChannels + channel] * fadeOut
+                        + mInput[inputIndex + channel] * fadeIn) / mOverlapFrames);
+            }
+        }
+        mOutputFrames += mOverlapFrames;
+    }
+
+    private void appendOutput(short[] source, int frameOffset, int frames) {
+        mOutput = ensureCapacity(mOutput, mOutputFrames + frames);
+        System.arraycopy(source, frameOffset * mChannels,
+                mOutput, mOutputFrames * mChannels, frames * mChannels);
+        mOutputFrames += frames;
+    }
+
+    private void consumeInput(int frames) {
+        mInputFrames -= frames;
+        System.arraycopy(mInput, frames * mChannels, mInput, 0, mInputFrames * mChannels);
+    }
+
+    private short[] ensureCapacity(short[] buffer, int frames) {
+        final int samples = frames * mChannels;
+        if (buffer.length >= samples) {
+            return buffer;
+        }
+        final short[] grown = new short[Math.max(samples, buffer.length * 2)];
+        System.arraycopy(buffer, 0, grown, 0, buffer.length);
+        return grown;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.player.source;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.MediaExtractor;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+
+import com.example.android.mediasession.service.prefetch.MediaPrefetcher;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Where the bytes of a catalog entry come from. The catalog stores either the name of a
+ * bundled asset or a file, content or http(s) URI; {@link DataSourceFactory} picks the
+ * matching implementation, which knows how to hand itself to a {@link MediaPlayer} or a
+ * {@link MediaExtractor}.
+ * <p>
+ * 音频数据来源：assets、file、content、http
+ */
+public abstract class DataSource {
+
+    static final String SCHEME_HTTP = "http";
+    static final String SCHEME_HTTPS = "https";
+
+
+    /**
+     * 没有scheme的地址为assets中的文件名
+     *
+     * @param source
+     * @return
+     */
+    public static boolean isAsset(@NonNull String source) {
+        return !source.contains("://");
+    }
+
+
+    /**
+     * 设置MediaPlayer的数据源
+     *
+     * @param mediaPlayer
+     * @throws IOException
+     */
+    public abstract void setDataSource(MediaPlayer mediaPlayer) throws IOException;
+
+    /**
+     * 设置MediaExtractor的数据源
+     *
+     * @param extractor
+     * @throws IOException
+     */
+    public abstract void setDataSource(MediaExtractor extractor) throws IOException;
+
+    /**
+     * Whether {@link MediaPlayer#prepare()} may block on the network. Remote sources are
+     * prepared asynchronously so the main thread is never blocked on I/O.
+     */
+    public boolean isRemote() {
+        return false;
+    }
+
+    /**
+     * 播放器释放后调用
+     */
+    public void close() {
+    }
+
+
+    // ##########################################################################################
+
+
+    /**
+     * assets中的音频
+     */
+    static final class AssetDataSource extends DataSource {
+
+        private final Context mContext;
+        private final String mFilename;
+        private final MediaPrefetcher mPrefetcher;
+
+        AssetDataSource(Context context, String filename, MediaPrefetcher prefetcher) {
+            mContext = context;
+            mFilename = filename;
+            mPrefetcher = prefetcher;
+        }
+
+        @Override
+        public void setDataSource(MediaPlayer mediaPlayer) throws IOException {
+            final AssetFileDescriptor assetFileDescriptor = openFd();
+            try {
+                mediaPlayer.setDataSource(
+                        assetFileDescriptor.getFileDescriptor(),
+                        assetFileDescriptor.getStartOffset(),
+                        assetFileDescriptor.getLength());
+            } finally {
+                // MediaPlayer duplicates the descriptor in setDataSource().
+                assetFileDescriptor.close();
+            }
+        }
+
+        @Override
+        public void setDataSource(MediaExtractor extractor) throws IOException {
+            final AssetFileDescriptor assetFileDescriptor = openFd();
+            try {
+                extractor.setDataSource(
+                        assetFileDescriptor.getFileDescriptor(),
+                        assetFileDescriptor.getStartOffset(),
+                        assetFileDescriptor.getLength());
+            } finally {
+                assetFileDescriptor.close();
+            }
+        }
+
+        /**
+         * 预取命中时不再重复打开
+         */
+        private AssetFileDescriptor openFd() throws IOException {
+            final AssetFileDescriptor prefetched =
+                    mPrefetcher != null ? mPrefetcher.takeFileDescriptor(mFilename) : null;
+            return prefetched != null ? prefetched : mContext.getAssets().openFd(mFilename);
+        }
+    }
+
+    /**
+     * file:// 音频
+     */
+    static final class FileDataSource extends DataSource {
+
+        private final String mPath;
+
+        FileDataSource(String path) {
+            mPath = path;
+        }
+
+        @Override
+        public void setDataSource(MediaPlayer mediaPlayer) throws IOException {
+            final FileInputStream inputStream = new FileInputStream(mPath);
+            try {
+                mediaPlayer.setDataSource(inputStream.getFD(), 0, inputStream.getChannel().size());
+            } finally {
+                inputStream.close();
+            }
+        }
+
+        @Override
+        public void setDataSource(MediaExtractor extractor) throws IOException {
+            extractor.setDataSource(mPath);
+        }
+    }
+
+    /**
+     * content:// 音频
+     */
+    static final class ContentDataSource extends DataSource {
+
+        private final Context mContext;
+        private final Uri mUri;
+
+        ContentDataSource(Context context, Uri uri) {
+            mContext = context;
+            mUri = uri;
+        }
+
+        @Override
+        public void setDataSource(MediaPlayer mediaPlayer) throws IOException {
+            mediaPlayer.setDataSource(mContext, mUri);
+        }
+
+        @Override
+        public void setDataSource(MediaExtractor extractor) throws IOException {
+            extractor.setDataSource(mContext, mUri, null);
+        }
+    }
+}
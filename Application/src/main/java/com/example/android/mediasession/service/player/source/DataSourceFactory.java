@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.player.source;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+
+import com.example.android.mediasession.service.prefetch.MediaPrefetcher;
+
+/**
+ * Creates the {@link DataSource} for a catalog entry. Shared by all player backends so they
+ * use the same disk cache and prefetched descriptors.
+ * <p>
+ * 根据目录中的音频地址创建数据源
+ */
+public class DataSourceFactory {
+
+    private final Context mContext;
+    // http音频的磁盘缓存
+    private final MediaCache mMediaCache;
+    // 预取的asset文件描述符，可为null
+    private final MediaPrefetcher mMediaPrefetcher;
+
+
+    /**
+     * 构造方法
+     *
+     * @param context
+     * @param cache      http音频的磁盘缓存
+     * @param prefetcher 预取的asset文件描述符，可为null
+     */
+    public DataSourceFactory(@NonNull Context context,
+                             @NonNull MediaCache cache,
+                             MediaPrefetcher prefetcher) {
+        mContext = context.getApplicationContext();
+        mMediaCache = cache;
+        mMediaPrefetcher = prefetcher;
+    }
+
+    /**
+     * 创建数据源
+     *
+     * @param source asset文件名或URI
+     * @return
+     */
+    public DataSource create(@NonNull String source) {
+        if (DataSource.isAsset(source)) {
+            return new DataSource.AssetDataSource(mContext, source, mMediaPrefetcher);
+        }
+        final Uri uri = Uri.parse(source);
+        final String scheme = uri.getScheme();
+        if (ContentResolver.SCHEME_FILE.equals(scheme)) {
+            return new DataSource.FileDataSource(uri.getPath());
+        } else if (ContentResolver.SCHEME_CONTENT.equals(scheme)) {
+            return new DataSource.ContentDataSource(mContext, uri);
+        } else if (DataSource.SCHEME_HTTP.equals(scheme) || DataSource.SCHEME_HTTPS.equals(scheme)) {
+            return new HttpDataSource(source, mMediaCache);
+        }
+        throw new IllegalArgumentException("Unsupported source: " + source);
+    }
+}
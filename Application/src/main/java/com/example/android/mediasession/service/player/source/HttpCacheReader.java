@@ -0,0 +1,262 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.player.source;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Read-through view of a remote file: reads are served from the {@link MediaCache} when the
+ * range is present and otherwise fetched with an HTTP range request, written to the cache
+ * and then served from it. Only the missing part up to the next cached span is requested,
+ * so replaying or seeking back never downloads the same bytes twice.
+ * <p>
+ * A range is requested with If-Range and the validator (strong ETag or Last-Modified) of the
+ * cached bytes: if the file changed on the server, the whole new file comes back with 200 and
+ * the cache of the old one is cleared. Responses are requested without content coding, as
+ * the offsets are those of the file, and a 206 must start where it was asked to.
+ * <p>
+ * This class has no Android dependencies, so it can be exercised against any loopback HTTP
+ * server.
+ * <p>
+ * 先读缓存，未缓存的部分通过Range请求下载并写入缓存
+ */
+public final class HttpCacheReader implements Closeable {
+
+    // 每次请求的最大长度
+    private static final int FETCH_CHUNK_BYTES = 512 * 1024;
+    private static final int COPY_BUFFER_BYTES = 16 * 1024;
+    private static final int TIMEOUT_MS = 10 * 1000;
+
+
+    private final URL mUrl;
+    private final MediaCache mCache;
+    private final MediaCache.Entry mEntry;
+    private final byte[] mCopyBuffer = new byte[COPY_BUFFER_BYTES];
+    private boolean mClosed;
+
+
+    /**
+     * 构造方法
+     *
+     * @param url   音频地址
+     * @param cache 磁盘缓存
+     * @throws IOException
+     */
+    public HttpCacheReader(String url, MediaCache cache) throws IOException {
+        mUrl = new URL(url);
+        mCache = cache;
+        mEntry = cache.acquire(url);
+    }
+
+
+    /**
+     * 读取音频数据
+     *
+     * @return 读取的字节数，到达结尾时返回-1
+     * @throws IOException
+     */
+    public synchronized int readAt(long position, byte[] buffer, int offset, int size)
+            throws IOException {
+        if (mClosed) {
+            throw new IOException("Reader is closed");
+        }
+        final long contentLength = getSize();
+        if (contentLength >= 0 && position >= contentLength) {
+            return -1;
+        }
+        if (mEntry.cachedLength(position) == 0) {
+            fetch(position);
+            if (mEntry.cachedLength(position) == 0) {
+                // Nothing more to read: the stream ended at this position.
+                return -1;
+            }
+        }
+        final int length = contentLength >= 0 ? (int) Math.min(size, contentLength - position) : size;
+        return mCache.read(mEntry, position, buffer, offset, length);
+    }
+
+    /**
+     * 音频总长度，未知时先请求第一段数据
+     *
+     * @throws IOException
+     */
+    public synchronized long getSize() throws IOException {
+        if (mEntry.getContentLength() < 0) {
+            fetch(0);
+        }
+        return mEntry.getContentLength();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!mClosed) {
+            mClosed = true;
+            mCache.release(mEntry);
+        }
+    }
+
+
+    // ##########################################################################################
+
+
+    /**
+     * 下载position开始、到下一段缓存为止的数据
+     *
+     * @param position
+     * @throws IOException
+     */
+    private void fetch(long position) throws IOException {
+        long end = position + FETCH_CHUNK_BYTES;
+        final long nextCached = mEntry.nextCachedPosition(position);
+        if (nextCached > 0) {
+            end = Math.min(end, nextCached);
+        }
+        if (mEntry.getContentLength() > 0) {
+            end = Math.min(end, mEntry.getContentLength());
+        }
+
+        final HttpURLConnection connection = (HttpURLConnection) mUrl.openConnection();
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+        connection.setRequestProperty("Range", "bytes=" + position + "-" + (end - 1));
+        // HttpURLConnection asks for gzip by default, whose offsets are not the file's.
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        final String validator = mEntry.isEmpty() ? null : mEntry.getValidator();
+        if (validator != null) {
+            connection.setRequestProperty("If-Range", validator);
+        }
+        try {
+            final int responseCode = connection.getResponseCode();
+            long streamPosition;
+            if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                final String contentRange = connection.getHeaderField("Content-Range");
+                if (getRangeStart(contentRange) != position) {
+                    throw new IOException("Unexpected Content-Range " + contentRange
+                            + " for bytes from " + position + " of " + mUrl);
+                }
+                streamPosition = position;
+                updateContentLength(contentRange);
+                if (validator == null) {
+                    mEntry.setValidator(getValidator(connection));
+                }
+            } else if (responseCode == HttpURLConnection.HTTP_OK) {
+                // The server ignored the range, or the file changed since the cached bytes
+                // (If-Range did not match): the body is the whole file, from its beginning.
+                streamPosition = 0;
+                final String newValidator = getValidator(connection);
+                if (!mEntry.isEmpty()
+                        && (validator == null || !validator.equals(newValidator))) {
+                    mCache.clear(mEntry);
+                    // The span that ended the request is gone.
+                    end = position + FETCH_CHUNK_BYTES;
+                }
+                mEntry.setValidator(newValidator);
+                final long contentLength = connection.getContentLength();
+                if (contentLength >= 0) {
+                    mEntry.setContentLength(contentLength);
+                }
+            } else {
+                throw new IOException("Unexpected response " + responseCode + " for " + mUrl);
+            }
+
+            final InputStream in = connection.getInputStream();
+            try {
+                // Skip what precedes the requested range when the server sent everything.
+                while (streamPosition < position) {
+                    final long skipped = in.skip(position - streamPosition);
+                    if (skipped <= 0) {
+                        throw new IOException("Unexpected end of stream for " + mUrl);
+                    }
+                    streamPosition += skipped;
+                }
+                while (streamPosition < end) {
+                    final int read = in.read(mCopyBuffer, 0,
+                            (int) Math.min(mCopyBuffer.length, end - streamPosition));
+                    if (read < 0) {
+                        break;
+                    }
+                    mCache.write(mEntry, streamPosition, mCopyBuffer, 0, read);
+                    streamPosition += read;
+                }
+            } finally {
+                in.close();
+            }
+            if (mEntry.getContentLength() < 0 && streamPosition < end) {
+                // The stream ended before the range did: that's the end of the file.
+                mEntry.setContentLength(streamPosition);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * @return 响应的强 ETag，没有时为 Last-Modified，都没有时为null
+     */
+    private static String getValidator(HttpURLConnection connection) {
+        final String eTag = connection.getHeaderField("ETag");
+        // A weak ETag can't be used in If-Range.
+        if (eTag != null && !eTag.startsWith("W/")) {
+            return eTag;
+        }
+        return connection.getHeaderField("Last-Modified");
+    }
+
+    /**
+     * 解析 "bytes start-end/total" 中的 start
+     *
+     * @return 无法解析时为-1
+     */
+    private static long getRangeStart(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        final int dash = contentRange.indexOf('-');
+        if (dash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 解析 "bytes start-end/total"
+     *
+     * @param contentRange
+     */
+    private void updateContentLength(String contentRange) {
+        if (contentRange == null) {
+            return;
+        }
+        final int slash = contentRange.lastIndexOf('/');
+        if (slash < 0 || contentRange.endsWith("*")) {
+            return;
+        }
+        try {
+            mEntry.setContentLength(Long.parseLong(contentRange.substring(slash + 1).trim()));
+        } catch (NumberFormatException e) {
+            // Leave the length unknown.
+        }
+    }
+}
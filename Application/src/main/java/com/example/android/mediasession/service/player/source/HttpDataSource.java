@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.player.source;
+
+import android.media.MediaDataSource;
+import android.media.MediaExtractor;
+import android.media.MediaPlayer;
+import android.os.Build;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * http(s) 音频。Android M 及以上通过 {@link MediaDataSource} 读取磁盘缓存；更早的版本
+ * 没有该接口，直接交给 MediaPlayer 播放，不经过缓存。
+ */
+final class HttpDataSource extends DataSource {
+
+    private static final String TAG = "HttpDataSource";
+
+    private final String mUrl;
+    private final MediaCache mCache;
+    private HttpCacheReader mReader;
+
+    HttpDataSource(String url, MediaCache cache) {
+        mUrl = url;
+        mCache = cache;
+    }
+
+    @Override
+    public void setDataSource(MediaPlayer mediaPlayer) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            mediaPlayer.setDataSource(new CachedMediaDataSource(openReader()));
+        } else {
+            Log.d(TAG, "setDataSource: MediaDataSource unavailable, streaming without cache");
+            mediaPlayer.setDataSource(mUrl);
+        }
+    }
+
+    @Override
+    public void setDataSource(MediaExtractor extractor) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            extractor.setDataSource(new CachedMediaDataSource(openReader()));
+        } else {
+            Log.d(TAG, "setDataSource: MediaDataSource unavailable, streaming without cache");
+            extractor.setDataSource(mUrl);
+        }
+    }
+
+    @Override
+    public boolean isRemote() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        if (mReader != null) {
+            mReader.close();
+            mReader = null;
+        }
+    }
+
+    /**
+     * 同一数据源可能被多次打开（例如重新创建MediaExtractor），只保留最新的reader
+     */
+    private HttpCacheReader openReader() throws IOException {
+        close();
+        mReader = new HttpCacheReader(mUrl, mCache);
+        return mReader;
+    }
+
+
+    /**
+     * 将 HttpCacheReader 适配为 MediaDataSource
+     */
+    @RequiresApi(Build.VERSION_CODES.M)
+    private static final class CachedMediaDataSource extends MediaDataSource {
+
+        private final HttpCacheReader mReader;
+
+        CachedMediaDataSource(HttpCacheReader reader) {
+            mReader = reader;
+        }
+
+        @Override
+        public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+            return mReader.readAt(position, buffer, offset, size);
+        }
+
+        @Override
+        public long getSize() throws IOException {
+            return mReader.getSize();
+        }
+
+        @Override
+        public void close() {
+            // The reader is owned by HttpDataSource and closed with the player.
+        }
+    }
+}
@@ -0,0 +1,464 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.player.source;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Bounded, range-aware disk cache for remote media. Each key is backed by one sparse file
+ * written through a {@link FileChannel}; the byte ranges that are present are tracked as
+ * spans, so a seek only has to download the part that is missing. Entries are evicted in
+ * least-recently-used order once the cache grows past its size limit, skipping entries that
+ * are currently being played.
+ * <p>
+ * The data file of a key is named after its SHA-1. The index is written to a temporary file
+ * and renamed over the previous one, so a crash leaves either index whole; data files that
+ * are not in the index when it is read are deleted. Each entry keeps the validator (ETag or
+ * Last-Modified) of the response its bytes came from, for {@link HttpCacheReader} to send in
+ * If-Range.
+ * <p>
+ * This class has no Android dependencies.
+ * <p>
+ * 带范围的http音频磁盘缓存，LRU淘汰
+ */
+public final class MediaCache {
+
+    private static final String INDEX_FILE = "cache.index";
+    private static final String INDEX_TEMP_FILE = "cache.index.tmp";
+    private static final String DATA_SUFFIX = ".data";
+    private static final int INDEX_VERSION = 2;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+
+    /**
+     *
+     */
+    // 缓存目录
+    private final File mDirectory;
+    // 缓存上限
+    private final long mMaxBytes;
+    // 按访问顺序排列的缓存 (key -> Entry)
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    // 已缓存的字节数
+    private long mCachedBytes;
+
+
+    /**
+     * 构造方法
+     *
+     * @param directory 缓存目录
+     * @param maxBytes  缓存上限
+     */
+    public MediaCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            throw new IllegalStateException("Failed to create " + mDirectory);
+        }
+        readIndex();
+    }
+
+
+    /**
+     * 获取缓存，使用完后必须调用 {@link #release(Entry)}
+     *
+     * @param key 一般为音频URL
+     * @return
+     */
+    public synchronized Entry acquire(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key, new File(mDirectory, fileName(key)));
+            mEntries.put(key, entry);
+        }
+        entry.mUseCount++;
+        return entry;
+    }
+
+    /**
+     * 释放缓存，没有使用者时关闭文件
+     *
+     * @param entry
+     */
+    public synchronized void release(Entry entry) {
+        if (--entry.mUseCount == 0) {
+            entry.closeChannel();
+        }
+        writeIndex();
+        evict();
+    }
+
+    /**
+     * 写入缓存
+     *
+     * @param entry
+     * @param position 在音频中的位置
+     * @param buffer
+     * @param offset
+     * @param length
+     * @throws IOException
+     */
+    public void write(Entry entry, long position, byte[] buffer, int offset, int length)
+            throws IOException {
+        final long added;
+        synchronized (entry) {
+            final ByteBuffer source = ByteBuffer.wrap(buffer, offset, length);
+            long filePosition = position;
+            while (source.hasRemaining()) {
+                filePosition += entry.channel().write(source, filePosition);
+            }
+            added = entry.addSpan(position, position + length);
+        }
+        synchronized (this) {
+            mCachedBytes += added;
+            evict();
+        }
+    }
+
+    /**
+     * 清空缓存的内容，例如远端的文件已改变；使用者不变
+     *
+     * @param entry
+     * @throws IOException
+     */
+    public void clear(Entry entry) throws IOException {
+        final long removed;
+        synchronized (entry) {
+            removed = entry.mSpanBytes;
+            entry.mSpans.clear();
+            entry.mSpanBytes = 0;
+            entry.mContentLength = -1;
+            entry.mValidator = null;
+            entry.channel().truncate(0);
+        }
+        synchronized (this) {
+            mCachedBytes -= removed;
+        }
+    }
+
+    /**
+     * 从缓存中读取，只读取已缓存的部分
+     *
+     * @return 读取的字节数，未缓存时返回0
+     * @throws IOException
+     */
+    public int read(Entry entry, long position, byte[] buffer, int offset, int length)
+            throws IOException {
+        synchronized (entry) {
+            final int readable = (int) Math.min(length, entry.cachedLength(position));
+            if (readable <= 0) {
+                return 0;
+            }
+            final ByteBuffer target = ByteBuffer.wrap(buffer, offset, readable);
+            long filePosition = position;
+            while (target.hasRemaining()) {
+                final int read = entry.channel().read(target, filePosition);
+                if (read < 0) {
+                    break;
+                }
+                filePosition += read;
+            }
+            return (int) (filePosition - position);
+        }
+    }
+
+    public synchronized long getCachedBytes() {
+        return mCachedBytes;
+    }
+
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+
+    // ##########################################################################################
+
+
+    /**
+     * 超出上限时按LRU顺序淘汰未使用的缓存
+     */
+    private void evict() {
+        final Iterator<Entry> iterator = mEntries.values().iterator();
+        while (mCachedBytes > mMaxBytes && iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            if (entry.mUseCount > 0) {
+                continue;
+            }
+            synchronized (entry) {
+                mCachedBytes -= entry.mSpanBytes;
+                entry.closeChannel();
+                //noinspection ResultOfMethodCallIgnored
+                entry.mFile.delete();
+            }
+            iterator.remove();
+        }
+    }
+
+    /**
+     * @return key的SHA-1，不同的key不会共用一个文件
+     */
+    private static String fileName(String key) {
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final StringBuilder name = new StringBuilder(digest.length * 2 + DATA_SUFFIX.length());
+        for (byte b : digest) {
+            name.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return name.append(DATA_SUFFIX).toString();
+    }
+
+    /**
+     * 读取缓存索引，索引与数据文件不一致时丢弃该缓存；之后删除索引中没有的数据文件
+     */
+    private void readIndex() {
+        final File indexFile = new File(mDirectory, INDEX_FILE);
+        if (indexFile.exists()) {
+            readIndex(indexFile);
+        }
+        // Left by a crash during a write, or by an index that could not be read.
+        final Set<String> indexed = new HashSet<>();
+        for (Entry entry : mEntries.values()) {
+            indexed.add(entry.mFile.getName());
+        }
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                final String name = file.getName();
+                if (name.equals(INDEX_TEMP_FILE)
+                        || name.endsWith(DATA_SUFFIX) && !indexed.contains(name)) {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private void readIndex(File indexFile) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            if (in.readInt() != INDEX_VERSION) {
+                return;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String key = in.readUTF();
+                final Entry entry = new Entry(key, new File(mDirectory, fileName(key)));
+                entry.mContentLength = in.readLong();
+                entry.mValidator = in.readBoolean() ? in.readUTF() : null;
+                final int spans = in.readInt();
+                for (int j = 0; j < spans; j++) {
+                    final long start = in.readLong();
+                    entry.addSpan(start, in.readLong());
+                }
+                if (entry.mFile.length() >= entry.lastSpanEnd()) {
+                    mEntries.put(key, entry);
+                    mCachedBytes += entry.mSpanBytes;
+                }
+            }
+        } catch (IOException e) {
+            // A truncated index only costs a re-download.
+            mEntries.clear();
+            mCachedBytes = 0;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * 写入临时文件后替换索引，写入中断时原来的索引仍然完整
+     */
+    private void writeIndex() {
+        final File indexFile = new File(mDirectory, INDEX_FILE);
+        final File tempFile = new File(mDirectory, INDEX_TEMP_FILE);
+        DataOutputStream out = null;
+        boolean written = false;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(mEntries.size());
+            for (Entry entry : mEntries.values()) {
+                synchronized (entry) {
+                    out.writeUTF(entry.mKey);
+                    out.writeLong(entry.mContentLength);
+                    out.writeBoolean(entry.mValidator != null);
+                    if (entry.mValidator != null) {
+                        out.writeUTF(entry.mValidator);
+                    }
+                    out.writeInt(entry.mSpans.size());
+                    for (Map.Entry<Long, Long> span : entry.mSpans.entrySet()) {
+                        out.writeLong(span.getKey());
+                        out.writeLong(span.getValue());
+                    }
+                }
+            }
+            out.close();
+            out = null;
+            written = true;
+        } catch (IOException e) {
+            // The previous index stays.
+        } finally {
+            closeQuietly(out);
+        }
+        if (!written || !tempFile.renameTo(indexFile)) {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+                // Nothing to do.
+            }
+        }
+    }
+
+
+    /**
+     * 一个音频的缓存
+     */
+    public static final class Entry {
+
+        private final String mKey;
+        private final File mFile;
+        // 已缓存的范围 (start -> end)，互不重叠
+        private final TreeMap<Long, Long> mSpans = new TreeMap<>();
+        // 已缓存的字节数
+        private long mSpanBytes;
+        // 音频总长度，未知时为-1
+        private long mContentLength = -1;
+        // 缓存内容对应的 ETag 或 Last-Modified，未知时为null
+        private String mValidator;
+        // 使用者数量
+        private int mUseCount;
+        private RandomAccessFile mRandomAccessFile;
+
+        Entry(String key, File file) {
+            mKey = key;
+            mFile = file;
+        }
+
+        public synchronized long getContentLength() {
+            return mContentLength;
+        }
+
+        public synchronized void setContentLength(long contentLength) {
+            mContentLength = contentLength;
+        }
+
+        public synchronized String getValidator() {
+            return mValidator;
+        }
+
+        public synchronized void setValidator(String validator) {
+            mValidator = validator;
+        }
+
+        /**
+         * @return 是否有缓存的数据
+         */
+        public synchronized boolean isEmpty() {
+            return mSpans.isEmpty();
+        }
+
+        /**
+         * 从position开始连续缓存的字节数
+         */
+        public synchronized long cachedLength(long position) {
+            final Map.Entry<Long, Long> span = mSpans.floorEntry(position);
+            return span != null && span.getValue() > position ? span.getValue() - position : 0;
+        }
+
+        /**
+         * position之后下一段缓存的起始位置，没有时返回-1
+         */
+        public synchronized long nextCachedPosition(long position) {
+            final Long next = mSpans.higherKey(position);
+            return next != null ? next : -1;
+        }
+
+        /**
+         * 添加并合并缓存范围
+         *
+         * @return 新增的字节数
+         */
+        synchronized long addSpan(long start, long end) {
+            long newStart = start;
+            long newEnd = end;
+            final Map.Entry<Long, Long> floor = mSpans.floorEntry(start);
+            if (floor != null && floor.getValue() >= start) {
+                newStart = floor.getKey();
+                newEnd = Math.max(newEnd, floor.getValue());
+            }
+            long removed = 0;
+            Map.Entry<Long, Long> next = mSpans.ceilingEntry(newStart);
+            while (next != null && next.getKey() <= newEnd) {
+                newEnd = Math.max(newEnd, next.getValue());
+                removed += next.getValue() - next.getKey();
+                mSpans.remove(next.getKey());
+                next = mSpans.ceilingEntry(newStart);
+            }
+            mSpans.put(newStart, newEnd);
+            final long added = (newEnd - newStart) - removed;
+            mSpanBytes += added;
+            return added;
+        }
+
+        long lastSpanEnd() {
+            return mSpans.isEmpty() ? 0 : mSpans.lastEntry().getValue();
+        }
+
+        FileChannel channel() throws IOException {
+            if (mRandomAccessFile == null) {
+                mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+            }
+            return mRandomAccessFile.getChannel();
+        }
+
+        void closeChannel() {
+            closeQuietly(mRandomAccessFile);
+            mRandomAccessFile = null;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.playlist;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.support.v4.media.MediaMetadataCompat;
+import android.util.Log;
+
+import com.example.android.mediasession.service.contentcatalogs.CatalogFile;
+import com.example.android.mediasession.service.contentcatalogs.MusicLibrary;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Imports an M3U/M3U8, PLS or XSPF playlist into the play queue while the file is still being
+ * read. Entries are resolved against {@link MusicLibrary} a batch at a time, and against the
+ * {@link CatalogFile} when the library has not been restored yet. Until the first entry is
+ * found each one is resolved on its own, so playback starts as soon as one is known; the rest
+ * follow in batches of {@link #BATCH_SIZE}. Entries not in the library are skipped.
+ * <p>
+ * Relative entries are resolved against the directory of a local playlist file. A playlist is
+ * read from a path, a {@code file://} or {@code content://} uri, or an http(s) url.
+ * <p>
+ * 导入播放列表
+ */
+public final class PlaylistImporter {
+
+    private static final String TAG = "PlaylistImporter";
+
+    // 每批查找的条目数
+    private static final int BATCH_SIZE = 256;
+    private static final int TIMEOUT_MS = 15000;
+
+
+    /**
+     * 导入结果的回调，在主线程执行
+     */
+    public interface Callback {
+
+        /**
+         * 一批找到的音频
+         *
+         * @param items 按播放列表中的顺序
+         * @param first 是否第一批：只有第一个找到的音频，应替换播放列表并开始播放
+         */
+        void onItemsImported(List<MediaDescriptionCompat> items, boolean first);
+
+        /**
+         * 导入结束，之前的批次都已回调。取消的导入不回调。
+         *
+         * @param importedCount 找到的音频数
+         * @param skippedCount  不在音频目录中的条目数
+         * @param elapsedMs     耗时
+         */
+        void onImportFinished(int importedCount, int skippedCount, long elapsedMs);
+    }
+
+
+    private final ContentResolver mContentResolver;
+    private final Callback mCallback;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // 当前的导入，没有时为null
+    private Import mImport;
+
+
+    public PlaylistImporter(Context context, Callback callback) {
+        mContentResolver = context.getContentResolver();
+        mCallback = callback;
+    }
+
+    /**
+     * 开始导入，取消进行中的导入
+     *
+     * @param uri     播放列表
+     * @param catalog 音频目录还没有恢复时使用的快照，可以为null
+     */
+    public void start(Uri uri, @Nullable CatalogFile catalog) {
+        cancel();
+        mImport = new Import(uri, catalog);
+        mImport.start();
+    }
+
+    /**
+     * 取消导入，之后不再回调
+     */
+    public void cancel() {
+        if (mImport != null) {
+            mImport.mCancelled = true;
+            mImport = null;
+        }
+    }
+
+
+    // ##########################################################################################
+
+
+    /**
+     * 把条目转成音频目录中的形式：扫描到的音频的绝对路径，或音频地址
+     *
+     * @param baseDirectory 相对路径的基准，没有时为null
+     * @param isUri         条目是否为uri (XSPF)，相对路径需要解码
+     */
+    private static String normalize(String location, @Nullable File baseDirectory, boolean isUri) {
+        final String scheme = Uri.parse(location).getScheme();
+        if ("file".equalsIgnoreCase(scheme)) {
+            return normalizePath(Uri.parse(location).getPath());
+        } else if (scheme != null && scheme.length() > 1) {
+            // http(s) and content uris are kept as they are; "C:" is a Windows drive.
+            return location;
+        }
+        String path = (isUri ? Uri.decode(location) : location).replace('\\', '/');
+        if (!path.startsWith("/")) {
+            if (baseDirectory == null) {
+                // Possibly the name of a bundled asset.
+                return path;
+            }
+            path = baseDirectory.getPath() + '/' + path;
+        }
+        return normalizePath(path);
+    }
+
+    /**
+     * 去掉路径中的 "." 和 ".."，不访问文件系统
+     */
+    private static String normalizePath(String path) {
+        if (path.indexOf("/.") < 0 && path.indexOf("//") < 0) {
+            return path;
+        }
+        final List<String> names = new ArrayList<>();
+        for (String name : path.split("/")) {
+            if (name.isEmpty() || ".".equals(name)) {
+                continue;
+            }
+            if ("..".equals(name)) {
+                if (!names.isEmpty()) {
+                    names.remove(names.size() - 1);
+                }
+            } else {
+                names.add(name);
+            }
+        }
+        final StringBuilder result = new StringBuilder();
+        for (String name : names) {
+            result.append('/').append(name);
+        }
+        return result.length() > 0 ? result.toString() : "/";
+    }
+
+
+    /**
+     * 一次导入。取消后工作线程在下一个条目处停止，已找到的结果丢弃。
+     */
+    private final class Import extends Thread {
+
+        private final Uri mUri;
+        private final CatalogFile mCatalog;
+        private final List<String> mBatch = new ArrayList<>();
+        private volatile boolean mCancelled;
+        private int mImportedCount;
+        private int mSkippedCount;
+
+        Import(Uri uri, CatalogFile catalog) {
+            super("PlaylistImporter");
+            mUri = uri;
+            mCatalog = catalog;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            final long startMs = SystemClock.elapsedRealtime();
+            InputStream in = null;
+            try {
+                in = new BufferedInputStream(open(mUri));
+                final int format = PlaylistParser.detectFormat(in, mUri.getLastPathSegment());
+                final File baseDirectory = getBaseDirectory(mUri);
+                final boolean isUri = format == PlaylistParser.FORMAT_XSPF;
+                PlaylistParser.parse(in, format, new PlaylistParser.EntryHandler() {
+                    @Override
+                    public boolean onEntry(String location) {
+                        mBatch.add(normalize(location, baseDirectory, isUri));
+                        // One at a time until something plays.
+                        if (mBatch.size() >= (mImportedCount == 0 ? 1 : BATCH_SIZE)) {
+                            flush();
+                        }
+                        return !mCancelled;
+                    }
+                });
+                flush();
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Import: " + mUri, e);
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // Ignored
+                    }
+                }
+            }
+            final int importedCount = mImportedCount;
+            final int skippedCount = mSkippedCount;
+            final long elapsedMs = SystemClock.elapsedRealtime() - startMs;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mImport == Import.this) {
+                        mImport = null;
+                        mCallback.onImportFinished(importedCount, skippedCount, elapsedMs);
+                    }
+                }
+            });
+        }
+
+        /**
+         * 查找当前一批条目，把找到的音频交给主线程
+         */
+        private void flush() {
+            if (mBatch.isEmpty() || mCancelled) {
+                return;
+            }
+            // The library is locked once per batch.
+            final List<MediaMetadataCompat> found = MusicLibrary.findMusic(mBatch);
+            final List<MediaDescriptionCompat> items = new ArrayList<>(found.size());
+            for (int i = 0; i < found.size(); i++) {
+                MediaMetadataCompat metadata = found.get(i);
+                if (metadata == null && mCatalog != null) {
+                    // Scanned tracks have their path as media id.
+                    metadata = mCatalog.getMetadata(mBatch.get(i));
+                }
+                if (metadata != null) {
+                    items.add(metadata.getDescription());
+                } else {
+                    mSkippedCount++;
+                }
+            }
+            mBatch.clear();
+            if (items.isEmpty()) {
+                return;
+            }
+            final boolean first = mImportedCount == 0;
+            mImportedCount += items.size();
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mImport == Import.this) {
+                        mCallback.onItemsImported(items, first);
+                    }
+                }
+            });
+        }
+
+        private InputStream open(Uri uri) throws IOException {
+            final String scheme = uri.getScheme();
+            if (scheme == null) {
+                return new FileInputStream(uri.getPath());
+            } else if ("http".equals(scheme) || "https".equals(scheme)) {
+                final URLConnection connection = new URL(uri.toString()).openConnection();
+                connection.setConnectTimeout(TIMEOUT_MS);
+                connection.setReadTimeout(TIMEOUT_MS);
+                return connection.getInputStream();
+            }
+            final InputStream in = mContentResolver.openInputStream(uri);
+            if (in == null) {
+                throw new IOException("Cannot open " + uri);
+            }
+            return in;
+        }
+
+        /**
+         * @return 本地播放列表所在的目录，其他为null
+         */
+        @Nullable
+        private File getBaseDirectory(Uri uri) {
+            final String scheme = uri.getScheme();
+            if (scheme != null && !ContentResolver.SCHEME_FILE.equals(scheme)) {
+                return null;
+            }
+            return uri.getPath() != null ? new File(uri.getPath()).getParentFile() : null;
+        }
+    }
+}
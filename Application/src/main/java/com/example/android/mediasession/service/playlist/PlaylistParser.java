@@ -0,0 +1,200 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.playlist;
+
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * Reads the entries of an M3U/M3U8, PLS or XSPF playlist one at a time, as the stream is
+ * read: M3U and PLS line by line, XSPF through a pull parser. Nothing but the current line or
+ * element is held, however long the playlist is.
+ * <p>
+ * 播放列表文件解析
+ */
+final class PlaylistParser {
+
+    // 格式
+    static final int FORMAT_M3U = 1;
+    static final int FORMAT_PLS = 2;
+    static final int FORMAT_XSPF = 3;
+
+    // 判断格式时最多读取的字节数
+    private static final int SNIFF_BYTES = 64;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+
+    /**
+     * 解析到的条目，在解析的线程中回调
+     */
+    interface EntryHandler {
+
+        /**
+         * @param location 条目的原始内容：路径或地址，可能是相对路径
+         * @return false时停止解析
+         */
+        boolean onEntry(String location);
+    }
+
+
+    private PlaylistParser() {
+    }
+
+    /**
+     * 按扩展名判断格式，没有已知扩展名时按开头的内容判断
+     *
+     * @param in   支持mark的输入流，位置不变
+     * @param name 文件名，可以为null
+     * @return FORMAT_*，不是XSPF或PLS时按M3U处理：每行一个路径的列表也是M3U
+     */
+    static int detectFormat(InputStream in, String name) throws IOException {
+        final String lowerName = name != null ? name.toLowerCase(Locale.ROOT) : "";
+        if (lowerName.endsWith(".m3u") || lowerName.endsWith(".m3u8")) {
+            return FORMAT_M3U;
+        } else if (lowerName.endsWith(".pls")) {
+            return FORMAT_PLS;
+        } else if (lowerName.endsWith(".xspf")) {
+            return FORMAT_XSPF;
+        }
+        in.mark(SNIFF_BYTES);
+        try {
+            for (int i = 0; i < SNIFF_BYTES; i++) {
+                final int b = in.read();
+                if (b == '<') {
+                    return FORMAT_XSPF;
+                } else if (b == '[') {
+                    // [playlist]
+                    return FORMAT_PLS;
+                } else if (b == -1 || !(Character.isWhitespace(b) || b >= 0x80)) {
+                    // Anything else but blanks and a byte order mark.
+                    break;
+                }
+            }
+            return FORMAT_M3U;
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * 解析，每个条目回调一次
+     *
+     * @param in      输入流，不会关闭
+     * @param format  FORMAT_*
+     * @param handler
+     */
+    static void parse(InputStream in, int format, EntryHandler handler) throws IOException {
+        switch (format) {
+            case FORMAT_PLS:
+                parsePls(in, handler);
+                break;
+            case FORMAT_XSPF:
+                parseXspf(in, handler);
+                break;
+            default:
+                parseM3u(in, handler);
+        }
+    }
+
+
+    // ##########################################################################################
+
+
+    /**
+     * #EXTM3U、#EXTINF 等以#开头的行都是注释，其他非空行是条目
+     */
+    private static void parseM3u(InputStream in, EntryHandler handler) throws IOException {
+        // M3U8 is UTF-8 by definition; plain M3U is read the same way, which is what most
+        // players write today.
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = stripByteOrderMark(line).trim();
+            if (line.isEmpty() || line.charAt(0) == '#') {
+                continue;
+            }
+            if (!handler.onEntry(line)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * FileN=条目，其他键 (TitleN、LengthN、NumberOfEntries、Version) 忽略。
+     * 按文件中的顺序回调，不按N排序：常见的文件本来就是按顺序的。
+     */
+    private static void parsePls(InputStream in, EntryHandler handler) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = stripByteOrderMark(line).trim();
+            final int equals = line.indexOf('=');
+            if (equals <= 4 || !line.regionMatches(true, 0, "File", 0, 4)) {
+                continue;
+            }
+            final String location = line.substring(equals + 1).trim();
+            if (!location.isEmpty() && !handler.onEntry(location)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 每个 track 元素的第一个 location
+     */
+    private static void parseXspf(InputStream in, EntryHandler handler) throws IOException {
+        final XmlPullParser parser = Xml.newPullParser();
+        try {
+            // The encoding is taken from the XML declaration.
+            parser.setInput(in, null);
+            boolean inTrack = false;
+            boolean located = false;
+            int event;
+            while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+                if (event == XmlPullParser.START_TAG) {
+                    if ("track".equals(parser.getName())) {
+                        inTrack = true;
+                        located = false;
+                    } else if (inTrack && !located && "location".equals(parser.getName())) {
+                        located = true;
+                        final String location = parser.nextText().trim();
+                        if (!location.isEmpty() && !handler.onEntry(location)) {
+                            return;
+                        }
+                    }
+                } else if (event == XmlPullParser.END_TAG && "track".equals(parser.getName())) {
+                    inTrack = false;
+                }
+            }
+        } catch (XmlPullParserException e) {
+            throw new IOException("Malformed XSPF", e);
+        }
+    }
+
+    private static String stripByteOrderMark(String line) {
+        return !line.isEmpty() && line.charAt(0) == '\uFEFF' ? line.substring(1) : line;
+    }
+}
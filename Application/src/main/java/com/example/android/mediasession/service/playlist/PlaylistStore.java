@@ -0,0 +1,678 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.playlist;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The playlists of the user, kept in one append-only log file.
+ * <p>
+ * Every edit is one record added to the end of the log: appending tracks writes their ids,
+ * moving or removing a track writes its indices, so an edit of a playlist of 50,000 tracks
+ * writes as little as an edit of one of ten. Loading replays the log. Once the log has grown
+ * to twice its size after the last compaction, it is compacted: the playlists as they are
+ * now are written to a new file that replaces it. Each compaction writes at most as much as
+ * the edits since the last one, so an edit costs O(1) I/O on average.
+ * <p>
+ * Every record is framed by its length and a CRC32. A record cut short by a crash is found
+ * on loading and cut off, and the edits before it are kept.
+ * <p>
+ * The playlists are kept in memory and edited on the main thread; the log is written on the
+ * worker thread in the order of the edits. The log is also read on the worker thread when
+ * the store is created; a call on the main thread that comes first reads it there.
+ * <p>
+ * 用户播放列表
+ */
+public final class PlaylistStore {
+
+    private static final String TAG = "PlaylistStore";
+
+    // 格式："PLST" 版本，然后是记录：内容的长度 内容 内容的CRC32
+    private static final int MAGIC = 0x504c5354;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 8;
+    private static final int FRAME_BYTES = 8;
+    // 记录内容：类型 播放列表id，然后是各类型的参数
+    // 名字
+    private static final byte OP_CREATE = 1;
+    private static final byte OP_RENAME = 2;
+    private static final byte OP_DELETE = 3;
+    // 个数 音频id
+    private static final byte OP_APPEND = 4;
+    // 原位置 新位置
+    private static final byte OP_MOVE = 5;
+    // 位置
+    private static final byte OP_REMOVE = 6;
+    // 更长的记录视为损坏
+    private static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+    // 日志小于这个大小时不压缩
+    private static final long COMPACT_MIN_BYTES = 64 * 1024;
+    private static final int MAX_NAME_LENGTH = 200;
+
+
+    /**
+     * 一个播放列表，只在主线程使用
+     */
+    public static final class Playlist {
+
+        private final long mId;
+        private String mName;
+        private final ArrayList<String> mMediaIds = new ArrayList<>();
+
+        private Playlist(long id, String name) {
+            mId = id;
+            mName = name;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int size() {
+            return mMediaIds.size();
+        }
+    }
+
+
+    private final File mFile;
+    private final Handler mWorkerHandler;
+    // 按创建顺序
+    private final LinkedHashMap<Long, Playlist> mPlaylists = new LinkedHashMap<>();
+    private boolean mLoaded;
+    private long mLastId;
+    // 日志的大小，以及上次压缩后的大小
+    private long mLogBytes;
+    private long mCompactedBytes;
+    // 工作线程：写入失败后为true，下次修改时压缩以重写日志
+    private volatile boolean mWriteFailed;
+    // 工作线程：追加记录的文件，null表示下次写入时打开
+    private OutputStream mOut;
+
+
+    /**
+     * @param file         日志文件
+     * @param workerLooper 读写文件的线程
+     */
+    public PlaylistStore(File file, Looper workerLooper) {
+        mFile = file;
+        mWorkerHandler = new Handler(workerLooper);
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                loadOnWorker();
+            }
+        });
+    }
+
+    /**
+     * @return 所有播放列表，按创建顺序
+     */
+    public synchronized List<Playlist> getPlaylists() {
+        ensureLoaded();
+        return new ArrayList<>(mPlaylists.values());
+    }
+
+    /**
+     * @return 不存在时为null
+     */
+    @Nullable
+    public synchronized Playlist getPlaylist(long id) {
+        ensureLoaded();
+        return mPlaylists.get(id);
+    }
+
+    /**
+     * 播放列表中的音频id，不复制
+     *
+     * @return 只读，随修改变化；不存在时为null
+     */
+    @Nullable
+    public synchronized List<String> getMediaIds(long id) {
+        ensureLoaded();
+        final Playlist playlist = mPlaylists.get(id);
+        return playlist != null ? Collections.unmodifiableList(playlist.mMediaIds) : null;
+    }
+
+    /**
+     * 新建空的播放列表
+     *
+     * @return 播放列表id
+     */
+    public synchronized long create(String name) {
+        ensureLoaded();
+        final Playlist playlist = new Playlist(++mLastId, trimName(name));
+        mPlaylists.put(playlist.mId, playlist);
+        final Record out = new Record(OP_CREATE, playlist.mId);
+        writeUtf(out, playlist.mName);
+        endRecord(out);
+        return playlist.mId;
+    }
+
+    /**
+     * @return 播放列表是否存在
+     */
+    public synchronized boolean rename(long id, String name) {
+        final Playlist playlist = getPlaylist(id);
+        if (playlist == null) {
+            return false;
+        }
+        playlist.mName = trimName(name);
+        final Record out = new Record(OP_RENAME, id);
+        writeUtf(out, playlist.mName);
+        endRecord(out);
+        return true;
+    }
+
+    /**
+     * @return 播放列表是否存在
+     */
+    public synchronized boolean delete(long id) {
+        ensureLoaded();
+        if (mPlaylists.remove(id) == null) {
+            return false;
+        }
+        endRecord(new Record(OP_DELETE, id));
+        return true;
+    }
+
+    /**
+     * 添加到末尾，写入一条记录
+     *
+     * @return 播放列表是否存在
+     */
+    public synchronized boolean append(long id, List<String> mediaIds) {
+        final Playlist playlist = getPlaylist(id);
+        if (playlist == null) {
+            return false;
+        }
+        if (mediaIds.isEmpty()) {
+            return true;
+        }
+        playlist.mMediaIds.addAll(mediaIds);
+        final Record out = new Record(OP_APPEND, id);
+        writeIds(out, mediaIds);
+        endRecord(out);
+        return true;
+    }
+
+    /**
+     * 移动一首音频
+     *
+     * @return 播放列表不存在或位置超出范围时为false
+     */
+    public synchronized boolean move(long id, int from, int to) {
+        final Playlist playlist = getPlaylist(id);
+        if (playlist == null || !moveItem(playlist.mMediaIds, from, to)) {
+            return false;
+        }
+        final Record out = new Record(OP_MOVE, id);
+        writeInt(out, from);
+        writeInt(out, to);
+        endRecord(out);
+        return true;
+    }
+
+    /**
+     * 移除一首音频
+     *
+     * @return 播放列表不存在或位置超出范围时为false
+     */
+    public synchronized boolean remove(long id, int index) {
+        final Playlist playlist = getPlaylist(id);
+        if (playlist == null || index < 0 || index >= playlist.mMediaIds.size()) {
+            return false;
+        }
+        playlist.mMediaIds.remove(index);
+        final Record out = new Record(OP_REMOVE, id);
+        writeInt(out, index);
+        endRecord(out);
+        return true;
+    }
+
+    /**
+     * 写完已有的修改后关闭文件
+     */
+    public void release() {
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                close(mOut);
+                mOut = null;
+            }
+        });
+    }
+
+
+    // ##########################################################################################
+
+
+    /**
+     * 日志重放的结果
+     */
+    private static final class Replay {
+
+        final LinkedHashMap<Long, Playlist> mPlaylists = new LinkedHashMap<>();
+        long mLastId;
+        int mRecordCount;
+        // 完整的记录结束的位置，之后的内容要截掉
+        long mValidBytes;
+
+        void apply(DataInputStream in) throws IOException {
+            final byte op = in.readByte();
+            final long id = in.readLong();
+            if (op == OP_CREATE) {
+                mPlaylists.put(id, new Playlist(id, in.readUTF()));
+                mLastId = Math.max(mLastId, id);
+                return;
+            }
+            final Playlist playlist = mPlaylists.get(id);
+            if (playlist == null) {
+                throw new IOException("Unknown playlist " + id);
+            }
+            switch (op) {
+                case OP_RENAME:
+                    playlist.mName = in.readUTF();
+                    break;
+                case OP_DELETE:
+                    mPlaylists.remove(id);
+                    break;
+                case OP_APPEND:
+                    final int count = in.readInt();
+                    playlist.mMediaIds.ensureCapacity(playlist.mMediaIds.size() + count);
+                    for (int i = 0; i < count; i++) {
+                        playlist.mMediaIds.add(in.readUTF());
+                    }
+                    break;
+                case OP_MOVE:
+                    if (!moveItem(playlist.mMediaIds, in.readInt(), in.readInt())) {
+                        throw new IOException("Bad move in playlist " + id);
+                    }
+                    break;
+                case OP_REMOVE:
+                    final int index = in.readInt();
+                    if (index < 0 || index >= playlist.mMediaIds.size()) {
+                        throw new IOException("Bad removal in playlist " + id);
+                    }
+                    playlist.mMediaIds.remove(index);
+                    break;
+                default:
+                    throw new IOException("Unknown record " + op);
+            }
+        }
+    }
+
+    /**
+     * 工作线程：读取日志，截掉不完整的结尾
+     */
+    private void loadOnWorker() {
+        final long beginMs = System.currentTimeMillis();
+        final Replay replay = replay(mFile);
+        final long fileBytes = mFile.length();
+        if (fileBytes > replay.mValidBytes) {
+            // Appending after the cut-off bytes would hide every later record.
+            Log.w(TAG, "load: cut off " + (fileBytes - replay.mValidBytes) + " bytes");
+            truncate(mFile, replay.mValidBytes);
+        }
+        synchronized (this) {
+            if (!mLoaded) {
+                install(replay);
+            }
+        }
+        Log.d(TAG, "load: " + replay.mPlaylists.size() + " playlists from "
+                + replay.mRecordCount + " records, " + replay.mValidBytes + " bytes, "
+                + (System.currentTimeMillis() - beginMs) + " ms");
+    }
+
+    /**
+     * 主线程在工作线程读完之前需要播放列表时，自己读取
+     */
+    private void ensureLoaded() {
+        if (!mLoaded) {
+            install(replay(mFile));
+        }
+    }
+
+    private void install(Replay replay) {
+        mPlaylists.putAll(replay.mPlaylists);
+        mLastId = replay.mLastId;
+        mLogBytes = replay.mValidBytes;
+        mCompactedBytes = replay.mValidBytes;
+        mLoaded = true;
+    }
+
+    private static Replay replay(File file) {
+        final Replay replay = new Replay();
+        if (!file.exists()) {
+            // First run.
+            return replay;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.w(TAG, "replay: not a playlist log of this version: " + file);
+                return replay;
+            }
+            replay.mValidBytes = HEADER_BYTES;
+            final CRC32 crc = new CRC32();
+            byte[] payload = new byte[256];
+            while (true) {
+                final int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    // The end of the last complete record.
+                    break;
+                }
+                if (length <= 0 || length > MAX_RECORD_BYTES) {
+                    Log.w(TAG, "replay: bad record length " + length);
+                    break;
+                }
+                if (payload.length < length) {
+                    payload = new byte[Math.max(length, 2 * payload.length)];
+                }
+                in.readFully(payload, 0, length);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if (in.readInt() != (int) crc.getValue()) {
+                    Log.w(TAG, "replay: bad checksum at " + replay.mValidBytes);
+                    break;
+                }
+                replay.apply(new DataInputStream(new ByteArrayInputStream(payload, 0, length)));
+                replay.mRecordCount++;
+                replay.mValidBytes += FRAME_BYTES + length;
+            }
+        } catch (EOFException e) {
+            Log.w(TAG, "replay: record cut short at " + replay.mValidBytes);
+        } catch (IOException e) {
+            Log.w(TAG, "replay: " + file, e);
+        } finally {
+            close(in);
+        }
+        return replay;
+    }
+
+    private static void truncate(File file, long length) {
+        if (length == 0) {
+            // Not even the header is usable; the next write starts a new log.
+            if (!file.delete()) {
+                Log.w(TAG, "truncate: cannot delete " + file);
+            }
+            return;
+        }
+        RandomAccessFile out = null;
+        try {
+            out = new RandomAccessFile(file, "rw");
+            out.setLength(length);
+        } catch (IOException e) {
+            Log.w(TAG, "truncate: " + file, e);
+        } finally {
+            close(out);
+        }
+    }
+
+    /**
+     * 一条记录的内容，写入内存
+     */
+    private static final class Record extends DataOutputStream {
+
+        Record(byte op, long id) {
+            super(new ByteArrayOutputStream());
+            try {
+                writeByte(op);
+                writeLong(id);
+            } catch (IOException e) {
+                // A ByteArrayOutputStream does not throw.
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * @return 长度 内容 CRC32
+         */
+        byte[] toFrame() {
+            return frame(((ByteArrayOutputStream) out).toByteArray());
+        }
+    }
+
+    /**
+     * 主线程：把记录交给工作线程写入，日志太大时压缩
+     */
+    private void endRecord(Record out) {
+        final byte[] record = out.toFrame();
+        if (mLogBytes == 0) {
+            mLogBytes = HEADER_BYTES;
+        }
+        mLogBytes += record.length;
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                writeOnWorker(record);
+            }
+        });
+        if (mWriteFailed || (mLogBytes >= COMPACT_MIN_BYTES && mLogBytes > 2 * mCompactedBytes)) {
+            compact();
+        }
+    }
+
+    private static byte[] frame(byte[] payload) {
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+        final ByteArrayOutputStream bytes =
+                new ByteArrayOutputStream(payload.length + FRAME_BYTES);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        writeInt(out, payload.length);
+        try {
+            out.write(payload);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        writeInt(out, (int) crc.getValue());
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 工作线程：追加一条记录
+     */
+    private void writeOnWorker(byte[] record) {
+        try {
+            if (mOut == null) {
+                final boolean isNew = mFile.length() == 0;
+                mOut = new FileOutputStream(mFile, true);
+                if (isNew) {
+                    mOut.write(header());
+                }
+            }
+            // One write per record, so a crash can only cut off the end of the last one.
+            mOut.write(record);
+        } catch (IOException e) {
+            Log.w(TAG, "write: " + mFile, e);
+            close(mOut);
+            mOut = null;
+            mWriteFailed = true;
+        }
+    }
+
+    /**
+     * 主线程：复制当前的播放列表，由工作线程写入新文件并替换日志。
+     * Only the lists are copied here, which is a copy of references; the ids are encoded on
+     * the worker thread. Records posted after this go to the new file.
+     */
+    private void compact() {
+        long bytes = HEADER_BYTES;
+        for (Playlist playlist : mPlaylists.values()) {
+            bytes += FRAME_BYTES + 9 + 2 + utfLength(playlist.mName);
+            if (!playlist.mMediaIds.isEmpty()) {
+                bytes += FRAME_BYTES + 9 + 4;
+                for (String mediaId : playlist.mMediaIds) {
+                    bytes += 2 + utfLength(mediaId);
+                }
+            }
+        }
+        if (!mWriteFailed && 2 * bytes > mLogBytes) {
+            // Mostly appended ids, not edits: rewriting would save less than it writes.
+            mCompactedBytes = mLogBytes;
+            return;
+        }
+        Log.d(TAG, "compact: " + mLogBytes + " -> " + bytes + " bytes");
+        mWriteFailed = false;
+        mLogBytes = bytes;
+        mCompactedBytes = bytes;
+        final List<Playlist> snapshot = new ArrayList<>(mPlaylists.size());
+        for (Playlist playlist : mPlaylists.values()) {
+            final Playlist copy = new Playlist(playlist.mId, playlist.mName);
+            copy.mMediaIds.addAll(playlist.mMediaIds);
+            snapshot.add(copy);
+        }
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                compactOnWorker(snapshot);
+            }
+        });
+    }
+
+    /**
+     * 工作线程：先写临时文件再替换
+     */
+    private void compactOnWorker(List<Playlist> snapshot) {
+        close(mOut);
+        mOut = null;
+        final File temp = new File(mFile.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(temp), 65536);
+            out.write(header());
+            for (Playlist playlist : snapshot) {
+                Record record = new Record(OP_CREATE, playlist.mId);
+                writeUtf(record, playlist.mName);
+                out.write(record.toFrame());
+                if (!playlist.mMediaIds.isEmpty()) {
+                    record = new Record(OP_APPEND, playlist.mId);
+                    writeIds(record, playlist.mMediaIds);
+                    out.write(record.toFrame());
+                }
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Cannot rename " + temp);
+            }
+        } catch (IOException e) {
+            // The old log is still whole, and the next records are appended to it.
+            Log.w(TAG, "compact: " + mFile, e);
+            close(out);
+            if (!temp.delete()) {
+                Log.w(TAG, "compact: cannot delete " + temp);
+            }
+        }
+    }
+
+    private static byte[] header() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_BYTES);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        writeInt(out, MAGIC);
+        writeInt(out, VERSION);
+        return bytes.toByteArray();
+    }
+
+    private static void writeIds(DataOutputStream out, List<String> mediaIds) {
+        writeInt(out, mediaIds.size());
+        for (String mediaId : mediaIds) {
+            writeUtf(out, mediaId);
+        }
+    }
+
+    private static void writeInt(DataOutputStream out, int value) {
+        try {
+            out.writeInt(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeUtf(DataOutputStream out, String value) {
+        try {
+            out.writeUTF(value);
+        } catch (IOException e) {
+            // Only a string of more than 65535 bytes, which no path or name is.
+            throw new IllegalArgumentException("Too long: " + value.length() + " chars", e);
+        }
+    }
+
+    /**
+     * @return writeUTF 写入的字节数，不含长度
+     */
+    private static int utfLength(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            length += c >= 0x0001 && c <= 0x007f ? 1 : c <= 0x07ff ? 2 : 3;
+        }
+        return length;
+    }
+
+    private static String trimName(String name) {
+        final String trimmed = name != null ? name.trim() : "";
+        return trimmed.length() > MAX_NAME_LENGTH ? trimmed.substring(0, MAX_NAME_LENGTH) : trimmed;
+    }
+
+    private static boolean moveItem(List<String> list, int from, int to) {
+        if (from < 0 || from >= list.size() || to < 0 || to >= list.size()) {
+            return false;
+        }
+        list.add(to, list.remove(from));
+        return true;
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignored
+            }
+        }
+    }
+}
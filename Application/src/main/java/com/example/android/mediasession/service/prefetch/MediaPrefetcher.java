@@ -0,0 +1,325 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.prefetch;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+import android.support.v4.media.MediaMetadataCompat;
+import android.util.DisplayMetrics;
+import android.util.Log;
+
+import com.example.android.mediasession.service.PlaybackQueue;
+import com.example.android.mediasession.service.contentcatalogs.MusicLibrary;
+import com.example.android.mediasession.service.memory.MemoryGovernor;
+import com.example.android.mediasession.service.memory.Trimmable;
+import com.example.android.mediasession.service.player.source.DataSource;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Prefetches the neighbours of the current queue item on the playback worker, so that
+ * skipping to the next or previous track doesn't have to build the metadata, decode the
+ * album art and open the asset on the main thread.
+ * <p>
+ * Under high memory pressure only the current and the next item are kept, under critical
+ * pressure nothing; the next queue change prefetches again.
+ * <p>
+ * 预取播放队列中当前音频前后各一首的音频数据、图片和文件描述符
+ */
+public class MediaPrefetcher implements Trimmable {
+
+    private static final String TAG = "MediaPrefetcher";
+
+    // 预取范围：当前位置前后各一首
+    private static final int PREFETCH_DISTANCE = 1;
+
+
+    /**
+     *
+     */
+    // 上下文对象
+    private final Context mContext;
+    // 播放工作线程
+    private final Handler mWorkerHandler;
+    // 图片解码尺寸
+    private final int mArtWidth;
+    private final int mArtHeight;
+
+    /**
+     * 预取结果 (mediaId -> Entry)，主线程读取，工作线程写入
+     */
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    // 最近一次需要的音频：当前、下一首、上一首
+    private List<String> mWanted = new ArrayList<>();
+
+    // 命中统计
+    private int mHitCount;
+    private int mMissCount;
+
+
+    /**
+     * 构造方法
+     *
+     * @param context
+     * @param workerLooper 播放工作线程的Looper
+     */
+    public MediaPrefetcher(Context context, Looper workerLooper) {
+        mContext = context.getApplicationContext();
+        mWorkerHandler = new Handler(workerLooper);
+        // The art is shown in the notification and full screen in the UI, so decode it at
+        // the size of the smaller screen edge instead of the size of the resource.
+        final DisplayMetrics metrics = Resources.getSystem().getDisplayMetrics();
+        mArtWidth = Math.min(metrics.widthPixels, metrics.heightPixels);
+        mArtHeight = mArtWidth;
+    }
+
+
+    /**
+     * 当前播放位置变化时调用，在工作线程预取前后的音频。前后按播放顺序，包括随机播放和循环模式。
+     *
+     * @param queue 播放列表
+     */
+    public void onQueueIndexChanged(PlaybackQueue queue) {
+        if (queue.getIndex() < 0) {
+            return;
+        }
+        // 在主线程取出需要预取的mediaId，工作线程不访问播放列表
+        final List<String> wanted = new ArrayList<>();
+        wanted.add(queue.getCurrentMediaId());
+        for (int distance = 1; distance <= PREFETCH_DISTANCE; distance++) {
+            addMediaId(queue, queue.getIndexAtOffset(distance), wanted);
+            addMediaId(queue, queue.getIndexAtOffset(-distance), wanted);
+        }
+        synchronized (mEntries) {
+            mWanted = wanted;
+        }
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                prefetch(wanted);
+            }
+        });
+    }
+
+    @Override
+    public long onTrimMemory(int pressure) {
+        if (pressure < Trimmable.PRESSURE_HIGH) {
+            return 0;
+        }
+        // The current and the next item: the next one is the likeliest skip.
+        final int keep = pressure >= Trimmable.PRESSURE_CRITICAL ? 0 : 2;
+        long bytes = 0;
+        synchronized (mEntries) {
+            final Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<String, Entry> next = iterator.next();
+                final int index = mWanted.indexOf(next.getKey());
+                if (index < 0 || index >= keep) {
+                    bytes += MemoryGovernor.estimateBytes(next.getValue().metadata);
+                    next.getValue().close();
+                    iterator.remove();
+                }
+            }
+        }
+        return bytes;
+    }
+
+
+    /**
+     * 获取预取的音频数据
+     *
+     * @param mediaId
+     * @return 未预取时返回null
+     */
+    @Nullable
+    public MediaMetadataCompat getMetadata(String mediaId) {
+        final MediaMetadataCompat metadata;
+        synchronized (mEntries) {
+            final Entry entry = mEntries.get(mediaId);
+            metadata = entry != null ? entry.metadata : null;
+            if (metadata != null) {
+                mHitCount++;
+            } else {
+                mMissCount++;
+            }
+        }
+        Log.d(TAG, String.format("getMetadata: %s %s, hit rate %.2f",
+                mediaId, metadata != null ? "hit" : "miss", getHitRate()));
+        return metadata;
+    }
+
+    /**
+     * 取出预先打开的文件描述符，调用者负责关闭
+     *
+     * @param filename 音频文件名
+     * @return 未预取时返回null
+     */
+    @Nullable
+    public AssetFileDescriptor takeFileDescriptor(String filename) {
+        synchronized (mEntries) {
+            for (Entry entry : mEntries.values()) {
+                if (filename.equals(entry.filename) && entry.fileDescriptor != null) {
+                    final AssetFileDescriptor fileDescriptor = entry.fileDescriptor;
+                    entry.fileDescriptor = null;
+                    return fileDescriptor;
+                }
+            }
+        }
+        return null;
+    }
+
+    public int getHitCount() {
+        synchronized (mEntries) {
+            return mHitCount;
+        }
+    }
+
+    public int getMissCount() {
+        synchronized (mEntries) {
+            return mMissCount;
+        }
+    }
+
+    /**
+     * 命中率
+     *
+     * @return 0~1之间
+     */
+    public float getHitRate() {
+        synchronized (mEntries) {
+            final int total = mHitCount + mMissCount;
+            return total == 0 ? 0f : (float) mHitCount / total;
+        }
+    }
+
+    /**
+     * 输出命中统计，用于 dumpsys
+     */
+    public void dump(PrintWriter writer) {
+        synchronized (mEntries) {
+            final int total = mHitCount + mMissCount;
+            writer.println("Prefetch: " + mHitCount + " hits, " + mMissCount + " misses, hit rate "
+                    + (total == 0 ? "-" : mHitCount * 100 / total + "%") + "; "
+                    + mEntries.size() + " prefetched");
+        }
+    }
+
+    /**
+     * 释放所有预取的资源
+     */
+    public void release() {
+        mWorkerHandler.removeCallbacksAndMessages(null);
+        synchronized (mEntries) {
+            for (Entry entry : mEntries.values()) {
+                entry.close();
+            }
+            mEntries.clear();
+        }
+        Log.d(TAG, String.format("release: hits=%d, misses=%d", mHitCount, mMissCount));
+    }
+
+
+    // ##########################################################################################
+
+
+    /**
+     * 不循环时到达列表两端没有前后音频；列表很短时前后可能是同一首
+     */
+    private static void addMediaId(PlaybackQueue queue, int index, List<String> wanted) {
+        if (index >= 0) {
+            final String mediaId = queue.getMediaId(index);
+            if (!wanted.contains(mediaId)) {
+                wanted.add(mediaId);
+            }
+        }
+    }
+
+    /**
+     * 工作线程：预取需要的音频，并释放不再需要的音频
+     *
+     * @param wanted
+     */
+    private void prefetch(List<String> wanted) {
+        // 释放超出范围的预取结果
+        synchronized (mEntries) {
+            final Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<String, Entry> next = iterator.next();
+                if (!wanted.contains(next.getKey())) {
+                    next.getValue().close();
+                    iterator.remove();
+                }
+            }
+        }
+        for (String mediaId : wanted) {
+            synchronized (mEntries) {
+                if (mEntries.containsKey(mediaId)) {
+                    continue;
+                }
+            }
+            // 解码和IO在锁外进行
+            final Entry entry = new Entry();
+            entry.metadata = MusicLibrary.getMetadata(mContext, mediaId, mArtWidth, mArtHeight);
+            entry.filename = MusicLibrary.getMusicFilename(mediaId);
+            // 只有assets中的音频需要预先打开，其它数据源由MediaPlayer打开
+            if (DataSource.isAsset(entry.filename)) {
+                try {
+                    entry.fileDescriptor = mContext.getAssets().openFd(entry.filename);
+                } catch (IOException e) {
+                    Log.d(TAG, String.format("prefetch: Failed to open %s: %s", entry.filename, e));
+                }
+            }
+            synchronized (mEntries) {
+                mEntries.put(mediaId, entry);
+            }
+        }
+    }
+
+
+    /**
+     * 预取结果
+     */
+    private static class Entry {
+        // 带图片的音频数据
+        MediaMetadataCompat metadata;
+        // 音频文件名
+        String filename;
+        // 已打开的文件描述符，被取出后置空
+        AssetFileDescriptor fileDescriptor;
+
+        void close() {
+            if (fileDescriptor != null) {
+                try {
+                    fileDescriptor.close();
+                } catch (IOException e) {
+                    Log.d(TAG, String.format("close: %s", e));
+                }
+                fileDescriptor = null;
+            }
+        }
+    }
+}
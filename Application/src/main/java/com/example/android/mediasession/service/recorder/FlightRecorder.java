@@ -0,0 +1,263 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.recorder;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The last {@link #CAPACITY} playback events of the process, always recorded, so a stutter or
+ * a slow skip can be looked at after the fact: the commands from the session, the state
+ * changes, how long players took to prepare, audio focus, noisy broadcasts and notifications.
+ * <p>
+ * Every event is a fixed record of four longs in one ring: a sequence stamp, the
+ * {@link System#nanoTime()} time, the type and argument, and a value. Recording takes a
+ * sequence number with one atomic increment and writes the record in place, so any thread
+ * records without a lock or an allocation, at the cost of a few ordered stores. The stamp
+ * is negated while the record is written; a dump reading a record that is being rewritten
+ * sees the stamp change and leaves it out.
+ * <p>
+ * Decoded to text or JSON by
+ * {@code adb shell dumpsys activity service .service.MusicService recorder [json]}.
+ * <p>
+ * 播放事件记录
+ */
+public final class FlightRecorder {
+
+    // 记录的事件数，2的幂
+    public static final int CAPACITY = 2048;
+
+    // 事件类型
+    // 会话的命令，arg为 COMMAND_*
+    public static final int EVENT_COMMAND = 1;
+    // 播放状态，arg为状态，value为位置
+    public static final int EVENT_STATE = 2;
+    // 播放器开始准备，arg为 PREPARE_*，value为开始位置
+    public static final int EVENT_PREPARE_START = 3;
+    // 播放器准备完成，arg为 PREPARE_*
+    public static final int EVENT_PREPARE_END = 4;
+    // 音频焦点变化，arg为 AudioManager.AUDIOFOCUS_*
+    public static final int EVENT_FOCUS_CHANGE = 5;
+    // 请求音频焦点，arg为 AudioManager.AUDIOFOCUS_REQUEST_*
+    public static final int EVENT_FOCUS_REQUEST = 6;
+    // 放弃音频焦点
+    public static final int EVENT_FOCUS_ABANDON = 7;
+    // 耳机拔出，arg为1表示正在播放
+    public static final int EVENT_NOISY = 8;
+    // 通知，arg为 NOTIFICATION_*，value为播放状态
+    public static final int EVENT_NOTIFICATION = 9;
+    // 开始播放后第一次输出声音，arg为 PREPARE_*，value为用时
+    public static final int EVENT_FIRST_AUDIO = 10;
+
+    // 命令
+    public static final int COMMAND_PREPARE = 1;
+    public static final int COMMAND_PLAY = 2;
+    public static final int COMMAND_PAUSE = 3;
+    public static final int COMMAND_STOP = 4;
+    // value为跳过后的队列位置，不能跳过时为-1
+    public static final int COMMAND_SKIP_TO_NEXT = 5;
+    public static final int COMMAND_SKIP_TO_PREVIOUS = 6;
+    // value为位置
+    public static final int COMMAND_SEEK_TO = 7;
+    // value为模式
+    public static final int COMMAND_SET_REPEAT_MODE = 8;
+    public static final int COMMAND_SET_SHUFFLE_MODE = 9;
+    // value为队列长度
+    public static final int COMMAND_ADD_QUEUE_ITEM = 10;
+    public static final int COMMAND_REMOVE_QUEUE_ITEM = 11;
+    public static final int COMMAND_SET_PLAYER_BACKEND = 12;
+    // value为速度的千分之一
+    public static final int COMMAND_SET_PLAYBACK_SPEED = 13;
+    // value为时长
+    public static final int COMMAND_SET_CROSSFADE = 14;
+    public static final int COMMAND_SCAN_LIBRARY = 15;
+    public static final int COMMAND_IMPORT_PLAYLIST = 16;
+    // value为播放列表id，单首音频为-1
+    public static final int COMMAND_PLAY_FROM_MEDIA_ID = 17;
+    public static final int COMMAND_EDIT_PLAYLIST = 18;
+    public static final int COMMAND_SKIP_TO_QUEUE_ITEM = 19;
+
+    // 准备的方式
+    public static final int PREPARE_LOCAL = 1;
+    public static final int PREPARE_REMOTE = 2;
+    public static final int PREPARE_CROSSFADE = 3;
+    public static final int PREPARE_DECODER = 4;
+    // 从缓存的音频开头开始，见 StartBufferCache
+    public static final int PREPARE_START_BUFFER = 5;
+
+    // 通知
+    public static final int NOTIFICATION_FOREGROUND = 1;
+    public static final int NOTIFICATION_UPDATE = 2;
+    public static final int NOTIFICATION_REMOVE = 3;
+
+    private static final String[] EVENT_NAMES = {"?", "command", "state", "prepare-start",
+            "prepare-end", "focus-change", "focus-request", "focus-abandon", "noisy",
+            "notification", "first-audio"};
+    private static final String[] COMMAND_NAMES = {"?", "prepare", "play", "pause", "stop",
+            "skip-to-next", "skip-to-previous", "seek-to", "set-repeat-mode",
+            "set-shuffle-mode", "add-queue-item", "remove-queue-item", "set-player-backend",
+            "set-playback-speed", "set-crossfade", "scan-library", "import-playlist",
+            "play-from-media-id", "edit-playlist", "skip-to-queue-item"};
+    // PlaybackStateCompat.STATE_*
+    private static final String[] STATE_NAMES = {"none", "stopped", "paused", "playing",
+            "fast-forwarding", "rewinding", "buffering", "error", "connecting",
+            "skipping-to-previous", "skipping-to-next", "skipping-to-queue-item"};
+    private static final String[] PREPARE_NAMES = {"?", "local", "remote", "crossfade",
+            "decoder", "start-buffer"};
+    private static final String[] NOTIFICATION_NAMES = {"?", "foreground", "update",
+            "remove"};
+    // AudioManager.AUDIOFOCUS_GAIN* 为正，AUDIOFOCUS_LOSS* 为负
+    private static final String[] FOCUS_GAIN_NAMES = {"none", "gain", "gain-transient",
+            "gain-transient-may-duck", "gain-transient-exclusive"};
+    private static final String[] FOCUS_LOSS_NAMES = {"none", "loss", "loss-transient",
+            "loss-transient-can-duck"};
+    private static final String[] FOCUS_REQUEST_NAMES = {"failed", "granted", "delayed"};
+
+    // 每个记录的long个数：序号、时间、类型和参数、值
+    private static final int RECORD_LONGS = 4;
+    private static final int MASK = CAPACITY - 1;
+
+    private static final AtomicLongArray sRecords = new AtomicLongArray(CAPACITY * RECORD_LONGS);
+    // 下一个事件的序号
+    private static final AtomicLong sNext = new AtomicLong();
+
+
+    private FlightRecorder() {
+    }
+
+    /**
+     * 任意线程：记录一个事件
+     *
+     * @param type  EVENT_*
+     * @param arg   参数，见各类型
+     * @param value 值，见各类型
+     */
+    public static void record(int type, int arg, long value) {
+        final long time = System.nanoTime();
+        final long sequence = sNext.getAndIncrement();
+        final int base = (int) (sequence & MASK) * RECORD_LONGS;
+        // Stamps are sequence + 1, so an empty slot (0) is never mistaken for a record.
+        // Each lazySet is a release store: a reader that sees the new fields sees the
+        // negative stamp too, and one that sees the final stamp sees all the fields.
+        sRecords.lazySet(base, -(sequence + 1));
+        sRecords.lazySet(base + 1, time);
+        sRecords.lazySet(base + 2, (long) type << 32 | (arg & 0xffffffffL));
+        sRecords.lazySet(base + 3, value);
+        sRecords.lazySet(base, sequence + 1);
+    }
+
+    /**
+     * @return 已记录的事件数，包括被覆盖的
+     */
+    public static long getRecordedCount() {
+        return sNext.get();
+    }
+
+    /**
+     * 输出保留的事件，时间为相对于输出时的毫秒数
+     *
+     * @param json 是否输出JSON，否则为文本
+     */
+    public static void dump(PrintWriter writer, boolean json) {
+        final long now = System.nanoTime();
+        final long end = sNext.get();
+        final long[] record = new long[RECORD_LONGS];
+        if (json) {
+            writer.println("{\"nowNanos\":" + now + ",\"wallMillis\":"
+                    + System.currentTimeMillis() + ",\"recorded\":" + end + ",\"events\":[");
+        } else {
+            writer.println("Flight recorder: " + end + " events recorded, "
+                    + "times in ms before now:");
+        }
+        boolean first = true;
+        int torn = 0;
+        for (long sequence = Math.max(0, end - CAPACITY); sequence < end; sequence++) {
+            if (!read(sequence, record)) {
+                // Overwritten, or still being written, since end was read.
+                torn++;
+                continue;
+            }
+            final int type = (int) (record[2] >>> 32);
+            final int arg = (int) record[2];
+            final double agoMs = (now - record[1]) / 1e6;
+            if (json) {
+                writer.println((first ? "" : ",") + String.format(Locale.US,
+                        "{\"seq\":%d,\"nanos\":%d,\"type\":\"%s\",\"arg\":%d,\"name\":\"%s\","
+                                + "\"value\":%d}",
+                        sequence, record[1], name(EVENT_NAMES, type), arg,
+                        argName(type, arg), record[3]));
+            } else {
+                writer.println(String.format(Locale.US, "  %10.3f  %-14s %-24s %d",
+                        -agoMs, name(EVENT_NAMES, type), argName(type, arg), record[3]));
+            }
+            first = false;
+        }
+        if (json) {
+            writer.println("],\"skipped\":" + torn + "}");
+        } else if (torn > 0) {
+            writer.println("  (" + torn + " events overwritten while dumping)");
+        }
+    }
+
+
+    // ##########################################################################################
+
+
+    /**
+     * 读一个事件
+     *
+     * @return 事件已被覆盖或正在写入时为false
+     */
+    private static boolean read(long sequence, long[] record) {
+        final int base = (int) (sequence & MASK) * RECORD_LONGS;
+        final long stamp = sRecords.get(base);
+        if (stamp != sequence + 1) {
+            return false;
+        }
+        for (int i = 1; i < RECORD_LONGS; i++) {
+            record[i] = sRecords.get(base + i);
+        }
+        return sRecords.get(base) == stamp;
+    }
+
+    private static String argName(int type, int arg) {
+        switch (type) {
+            case EVENT_COMMAND:
+                return name(COMMAND_NAMES, arg);
+            case EVENT_STATE:
+                return name(STATE_NAMES, arg);
+            case EVENT_PREPARE_START:
+            case EVENT_PREPARE_END:
+            case EVENT_FIRST_AUDIO:
+                return name(PREPARE_NAMES, arg);
+            case EVENT_NOTIFICATION:
+                return name(NOTIFICATION_NAMES, arg);
+            case EVENT_FOCUS_CHANGE:
+                return arg >= 0 ? name(FOCUS_GAIN_NAMES, arg) : name(FOCUS_LOSS_NAMES, -arg);
+            case EVENT_FOCUS_REQUEST:
+                return name(FOCUS_REQUEST_NAMES, arg);
+            default:
+                return Integer.toString(arg);
+        }
+    }
+
+    private static String name(String[] names, int index) {
+        return index >= 0 && index < names.length ? names[index] : Integer.toString(index);
+    }
+}
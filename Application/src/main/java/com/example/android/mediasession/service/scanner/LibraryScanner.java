@@ -0,0 +1,483 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.scanner;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Walks directories and reads the tags of every audio file on a pool of worker threads.
+ * Every directory and every file is a task of its own, so a single huge directory and a deep
+ * tree of small ones spread over the pool alike. The tracks are handed to the
+ * {@link Callback} on the main thread in batches, at most one batch per
+ * {@link #BATCH_INTERVAL_MS}, so the library fills in while the scan runs without a browse
+ * update per file.
+ * <p>
+ * Scans are incremental. The {@link ScanJournal} remembers the fingerprint and tags of every
+ * file; the first scan of a run hands out the journal's tracks at once, then only files whose
+ * fingerprint changed are read again and only new, changed and deleted tracks are reported.
+ * Scanned directories are watched afterwards, and a change in one rescans just the path that
+ * changed.
+ * <p>
+ * Hidden directories and directories with a {@code .nomedia} file are skipped, like the
+ * platform media scanner does.
+ * <p>
+ * 扫描目录中的音频文件
+ */
+public final class LibraryScanner {
+
+    private static final String TAG = "LibraryScanner";
+
+    // 两次回调的最小间隔
+    private static final long BATCH_INTERVAL_MS = 500;
+    // 文件变化后等待的时间，复制文件时会收到多个事件
+    private static final long CHANGE_DELAY_MS = 1000;
+    private static final String NO_MEDIA = ".nomedia";
+
+
+    /**
+     * 扫描结果的回调，在主线程执行
+     */
+    public interface Callback {
+
+        /**
+         * 一批新增或变化的音频，包括从扫描记录中恢复的
+         *
+         * @param tracks
+         */
+        void onTracksScanned(List<TrackInfo> tracks);
+
+        /**
+         * 已删除的音频
+         *
+         * @param mediaIds
+         */
+        void onTracksRemoved(List<String> mediaIds);
+
+        /**
+         * 扫描结束，之前的批次都已回调
+         *
+         * @param trackCount 重新读取的音频数
+         * @param elapsedMs  耗时
+         */
+        void onScanFinished(int trackCount, long elapsedMs);
+    }
+
+
+    private final Callback mCallback;
+    private final ScanJournal mJournal;
+    private final LibraryWatcher mWatcher;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // 当前的扫描，没有时为null
+    private Scan mScan;
+    // 等待扫描的变化
+    private final Set<File> mChangedPaths = new HashSet<>();
+
+    private final Runnable mScanChangesRunnable = new Runnable() {
+        @Override
+        public void run() {
+            scanChanges();
+        }
+    };
+
+
+    /**
+     * @param journalFile 扫描记录保存的位置
+     * @param callback
+     */
+    public LibraryScanner(File journalFile, Callback callback) {
+        mCallback = callback;
+        mJournal = new ScanJournal(journalFile);
+        mWatcher = new LibraryWatcher(new LibraryWatcher.Listener() {
+            @Override
+            public void onPathChanged(final File file) {
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onChanged(file);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 开始扫描，取消进行中的扫描。记录中不在这些目录下的音频将被删除。
+     *
+     * @param directories
+     */
+    public void scan(List<File> directories) {
+        release();
+        start(new Scan(directories, true));
+    }
+
+    public boolean isScanning() {
+        return mScan != null;
+    }
+
+    /**
+     * 取消扫描并停止监听，之后不再回调
+     */
+    public void release() {
+        if (mScan != null) {
+            mScan.cancel();
+            mScan = null;
+        }
+        mWatcher.stopWatching();
+        mChangedPaths.clear();
+        mMainHandler.removeCallbacks(mScanChangesRunnable);
+    }
+
+
+    // ##########################################################################################
+
+
+    private void start(Scan scan) {
+        mScan = scan;
+        scan.start();
+    }
+
+    /**
+     * 主线程：收到一个变化，稍后和其他变化一起扫描
+     */
+    private void onChanged(File file) {
+        mChangedPaths.add(file);
+        if (mScan == null) {
+            mMainHandler.removeCallbacks(mScanChangesRunnable);
+            mMainHandler.postDelayed(mScanChangesRunnable, CHANGE_DELAY_MS);
+        }
+    }
+
+    /**
+     * 主线程：只扫描变化的路径。进行中的扫描结束后再开始。
+     */
+    private void scanChanges() {
+        if (mScan != null || mChangedPaths.isEmpty()) {
+            return;
+        }
+        final List<File> paths = new ArrayList<>(mChangedPaths);
+        mChangedPaths.clear();
+        start(new Scan(paths, false));
+    }
+
+    private void onScanDone() {
+        mScan = null;
+        if (!mChangedPaths.isEmpty()) {
+            mMainHandler.postDelayed(mScanChangesRunnable, CHANGE_DELAY_MS);
+        }
+    }
+
+
+    /**
+     * 一次扫描。取消后工作线程中的任务直接返回，已读取的结果丢弃。
+     */
+    private final class Scan {
+
+        // 扫描的目录或文件
+        private final List<File> mRoots;
+        // 完整扫描：记录中没有访问到的都已删除；否则只检查mRoots之下的
+        private final boolean mFull;
+        private final int mGeneration;
+        private final ExecutorService mExecutor;
+        // 未完成的目录和文件任务
+        private final AtomicInteger mPendingTasks = new AtomicInteger();
+        private final AtomicInteger mTrackCount = new AtomicInteger();
+        private final Queue<TrackInfo> mResults = new ConcurrentLinkedQueue<>();
+        // 已删除或不能再读取的音频
+        private final Queue<String> mRemoved = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean mDeliveryPosted = new AtomicBoolean();
+        // 已访问的目录，避免符号链接造成的循环
+        private final Set<String> mVisitedDirectories =
+                Collections.synchronizedSet(new HashSet<String>());
+        private final long mStartMs = SystemClock.elapsedRealtime();
+        private volatile boolean mCancelled;
+
+        private final Runnable mDeliverRunnable = new Runnable() {
+            @Override
+            public void run() {
+                mDeliveryPosted.set(false);
+                deliver();
+            }
+        };
+
+        Scan(List<File> roots, boolean full) {
+            mRoots = roots;
+            mFull = full;
+            mGeneration = mJournal.nextGeneration();
+            // Leave a core to the UI and the decoder.
+            final int threads = Math.max(2, Runtime.getRuntime().availableProcessors() - 1);
+            mExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, TAG + "-" + mCount.incrementAndGet());
+                }
+            });
+        }
+
+        void start() {
+            Log.d(TAG, (mFull ? "scan: " : "scanChanges: ") + mRoots);
+            // Holds the scan open until every root has been submitted.
+            mPendingTasks.incrementAndGet();
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    // The journal is read by the first scan only, before any file is checked
+                    // against it.
+                    final List<TrackInfo> restored = mJournal.load();
+                    if (!restored.isEmpty()) {
+                        mResults.addAll(restored);
+                        postDelivery();
+                    }
+                    for (File root : mRoots) {
+                        if (root.isDirectory()) {
+                            submitDirectory(root);
+                        } else if (TagReader.isAudioFile(root.getName())) {
+                            submitFile(root);
+                        }
+                    }
+                }
+            });
+            onTaskDone();
+        }
+
+        void cancel() {
+            mCancelled = true;
+            mExecutor.shutdownNow();
+            mMainHandler.removeCallbacks(mDeliverRunnable);
+        }
+
+        private void submitDirectory(final File directory) {
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    scanDirectory(directory);
+                }
+            });
+        }
+
+        private void submitFile(final File file) {
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    scanFile(file);
+                }
+            });
+        }
+
+        private void submit(final Runnable task) {
+            mPendingTasks.incrementAndGet();
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (!mCancelled) {
+                                task.run();
+                            }
+                        } finally {
+                            onTaskDone();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Cancelled while a directory was being listed.
+                mPendingTasks.decrementAndGet();
+            }
+        }
+
+        /**
+         * 工作线程：列出目录，子目录和音频文件分别作为新任务
+         */
+        private void scanDirectory(File directory) {
+            final String path;
+            try {
+                path = directory.getCanonicalPath();
+            } catch (IOException e) {
+                Log.w(TAG, "scanDirectory: " + directory, e);
+                return;
+            }
+            if (!mVisitedDirectories.add(path) || new File(directory, NO_MEDIA).exists()) {
+                return;
+            }
+            final File[] children = directory.listFiles();
+            if (children == null) {
+                // Not a directory, or no permission to read it.
+                return;
+            }
+            mWatcher.watch(directory);
+            for (File child : children) {
+                final String name = child.getName();
+                if (name.startsWith(".")) {
+                    continue;
+                }
+                if (child.isDirectory()) {
+                    submitDirectory(child);
+                } else if (TagReader.isAudioFile(name)) {
+                    submitFile(child);
+                }
+            }
+        }
+
+        /**
+         * 工作线程：读取一个音频文件，和记录中的一致时跳过
+         */
+        private void scanFile(File file) {
+            final String path = file.getAbsolutePath();
+            final ScanJournal.Fingerprint fingerprint = ScanJournal.Fingerprint.of(file);
+            if (fingerprint == null) {
+                // Deleted since the directory was listed; the journal sweep removes it.
+                return;
+            }
+            final ScanJournal.Entry entry = mJournal.get(path);
+            if (entry != null && entry.fingerprint.matches(fingerprint)) {
+                entry.generation = mGeneration;
+                return;
+            }
+            TrackInfo track = null;
+            try {
+                track = TagReader.read(file);
+            } catch (IOException | RuntimeException e) {
+                // A truncated or malformed header: skip the file rather than the scan, and
+                // do not try again until it changes.
+                Log.w(TAG, "scanFile: " + file + ": " + e);
+            }
+            mJournal.put(path, new ScanJournal.Entry(fingerprint, track, mGeneration));
+            if (track != null) {
+                mResults.add(track);
+                mTrackCount.incrementAndGet();
+                postDelivery();
+            } else if (entry != null && entry.track != null) {
+                // Was readable before, is not any more.
+                mRemoved.add(path);
+            }
+        }
+
+        private void postDelivery() {
+            if (mDeliveryPosted.compareAndSet(false, true)) {
+                mMainHandler.postDelayed(mDeliverRunnable, BATCH_INTERVAL_MS);
+            }
+        }
+
+        /**
+         * 工作线程：删除记录中没有访问到的文件，保存记录
+         */
+        private void sweepJournal() {
+            final List<String> roots = new ArrayList<>(mRoots.size());
+            for (File root : mRoots) {
+                roots.add(root.getAbsolutePath());
+            }
+            for (Map.Entry<String, ScanJournal.Entry> mapEntry : mJournal.entries()) {
+                final ScanJournal.Entry entry = mapEntry.getValue();
+                if (entry.generation == mGeneration
+                        || !mFull && !isUnder(mapEntry.getKey(), roots)) {
+                    continue;
+                }
+                mJournal.remove(mapEntry.getKey());
+                if (entry.track != null) {
+                    mRemoved.add(mapEntry.getKey());
+                }
+            }
+            mJournal.save();
+        }
+
+        private void onTaskDone() {
+            if (mPendingTasks.decrementAndGet() != 0) {
+                return;
+            }
+            mExecutor.shutdown();
+            // Skipped tasks of a cancelled scan would look like deleted files.
+            if (!mCancelled) {
+                sweepJournal();
+            }
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCancelled) {
+                        return;
+                    }
+                    mMainHandler.removeCallbacks(mDeliverRunnable);
+                    deliver();
+                    if (!mRemoved.isEmpty()) {
+                        mCallback.onTracksRemoved(new ArrayList<>(mRemoved));
+                    }
+                    final long elapsedMs = SystemClock.elapsedRealtime() - mStartMs;
+                    Log.d(TAG, "onScanFinished: " + mTrackCount.get() + " read, "
+                            + mRemoved.size() + " removed in " + elapsedMs + " ms");
+                    onScanDone();
+                    mCallback.onScanFinished(mTrackCount.get(), elapsedMs);
+                }
+            });
+        }
+
+        /**
+         * 主线程：回调已读取的结果
+         */
+        private void deliver() {
+            if (mCancelled || mResults.isEmpty()) {
+                return;
+            }
+            final List<TrackInfo> batch = new ArrayList<>();
+            TrackInfo track;
+            while ((track = mResults.poll()) != null) {
+                batch.add(track);
+            }
+            mCallback.onTracksScanned(batch);
+        }
+    }
+
+    /**
+     * @return path是否为roots中的一个或在其之下
+     */
+    private static boolean isUnder(String path, List<String> roots) {
+        for (String root : roots) {
+            if (path.startsWith(root) && (path.length() == root.length()
+                    || path.charAt(root.length()) == File.separatorChar)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
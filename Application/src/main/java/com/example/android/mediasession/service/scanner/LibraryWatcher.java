@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.scanner;
+
+import android.os.FileObserver;
+import android.util.Log;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One {@link FileObserver} per scanned directory, since inotify does not watch subtrees.
+ * Every event is reported as the path it concerns, whether that is a file or a directory and
+ * whether it was created, written, moved or deleted; the rescan of that path works out which.
+ * <p>
+ * Each observer is an inotify watch, a limited resource shared by every app of the user, so
+ * at most {@link #MAX_DIRECTORIES} are held. Changes in the rest are found by the next scan.
+ * <p>
+ * 监听目录中的变化
+ */
+final class LibraryWatcher {
+
+    private static final String TAG = "LibraryWatcher";
+
+    private static final int EVENTS = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO
+            | FileObserver.MOVED_FROM | FileObserver.CREATE | FileObserver.DELETE
+            | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+    // 最多监听的目录数
+    private static final int MAX_DIRECTORIES = 2000;
+
+
+    /**
+     * 在FileObserver的线程回调
+     */
+    interface Listener {
+
+        /**
+         * @param file 变化的文件或目录
+         */
+        void onPathChanged(File file);
+    }
+
+
+    private final Listener mListener;
+    // 目录路径 -> 监听，必须持有引用，否则被回收后停止监听
+    private final Map<String, FileObserver> mObservers = new HashMap<>();
+    private boolean mLimitReached;
+
+
+    LibraryWatcher(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * 任意线程：开始监听一个目录，已监听时忽略
+     */
+    synchronized void watch(final File directory) {
+        final String path = directory.getAbsolutePath();
+        if (mObservers.containsKey(path)) {
+            return;
+        }
+        if (mObservers.size() >= MAX_DIRECTORIES) {
+            if (!mLimitReached) {
+                mLimitReached = true;
+                Log.w(TAG, "watch: more than " + MAX_DIRECTORIES + " directories, "
+                        + "changes in the rest are found by the next scan");
+            }
+            return;
+        }
+        final FileObserver observer = new FileObserver(path, EVENTS) {
+            @Override
+            public void onEvent(int event, String name) {
+                if ((event & (DELETE_SELF | MOVE_SELF)) != 0) {
+                    unwatch(path, this);
+                    mListener.onPathChanged(directory);
+                } else if (name != null) {
+                    mListener.onPathChanged(new File(directory, name));
+                }
+            }
+        };
+        mObservers.put(path, observer);
+        observer.startWatching();
+    }
+
+    /**
+     * 停止所有监听
+     */
+    synchronized void stopWatching() {
+        for (FileObserver observer : mObservers.values()) {
+            observer.stopWatching();
+        }
+        mObservers.clear();
+        mLimitReached = false;
+    }
+
+
+    // ##########################################################################################
+
+
+    private synchronized void unwatch(String path, FileObserver observer) {
+        // The path may be watched again by a newer observer since.
+        if (mObservers.get(path) == observer) {
+            mObservers.remove(path);
+            observer.stopWatching();
+        }
+    }
+}
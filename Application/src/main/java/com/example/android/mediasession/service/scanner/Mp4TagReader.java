@@ -0,0 +1,183 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.scanner;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Duration ({@code moov/mvhd}) and iTunes tags ({@code moov/udta/meta/ilst}) of MP4 and M4A
+ * files. Only the top level box headers are read until {@code moov} is found, which may come
+ * after {@code mdat}; then {@code moov} alone is mapped.
+ * <p>
+ * MP4 的标签和时长
+ */
+final class Mp4TagReader {
+
+    // 超出时不读取，正常的moov远小于此
+    private static final long MAX_MOOV_BYTES = 16 * 1024 * 1024;
+
+    private static final int MOOV = TagReader.fourCC("moov");
+    private static final int MVHD = TagReader.fourCC("mvhd");
+    private static final int UDTA = TagReader.fourCC("udta");
+    private static final int META = TagReader.fourCC("meta");
+    private static final int HDLR = TagReader.fourCC("hdlr");
+    private static final int ILST = TagReader.fourCC("ilst");
+    private static final int DATA = TagReader.fourCC("data");
+    private static final int NAM = TagReader.fourCC("\u00a9nam");
+    private static final int ART = TagReader.fourCC("\u00a9ART");
+    private static final int ALB = TagReader.fourCC("\u00a9alb");
+    private static final int GEN = TagReader.fourCC("\u00a9gen");
+    private static final int GNRE = TagReader.fourCC("gnre");
+
+
+    private Mp4TagReader() {
+    }
+
+    static void read(FileChannel channel, long fileSize, TagReader.Tags tags)
+            throws IOException {
+        long position = 0;
+        while (position + 8 <= fileSize) {
+            final ByteBuffer header = TagReader.read(channel, position, 16);
+            if (header.limit() < 8) {
+                return;
+            }
+            long size = header.getInt(0) & 0xffffffffL;
+            final int type = header.getInt(4);
+            int headerLength = 8;
+            if (size == 1) {
+                if (header.limit() < 16) {
+                    return;
+                }
+                size = header.getLong(8);
+                headerLength = 16;
+            } else if (size == 0) {
+                size = fileSize - position;
+            }
+            if (size < headerLength) {
+                return;
+            }
+            if (type == MOOV) {
+                if (size <= MAX_MOOV_BYTES && position + size <= fileSize) {
+                    final ByteBuffer moov = TagReader.map(channel, position + headerLength,
+                            size - headerLength);
+                    readBoxes(moov, 0, moov.limit(), tags);
+                }
+                return;
+            }
+            position += size;
+        }
+    }
+
+
+    // ##########################################################################################
+
+
+    /**
+     * 遍历容器中的box，只进入需要的容器
+     */
+    private static void readBoxes(ByteBuffer buffer, int start, int end, TagReader.Tags tags) {
+        int position = start;
+        while (position + 8 <= end) {
+            final long size = buffer.getInt(position) & 0xffffffffL;
+            final int type = buffer.getInt(position + 4);
+            if (size < 8 || position + size > end) {
+                return;
+            }
+            final int content = position + 8;
+            final int boxEnd = (int) (position + size);
+            if (type == MVHD) {
+                readMvhd(buffer, content, boxEnd, tags);
+            } else if (type == UDTA) {
+                readBoxes(buffer, content, boxEnd, tags);
+            } else if (type == META && content + 8 <= boxEnd) {
+                // ISO meta is a full box, QuickTime meta starts with its hdlr child.
+                final boolean fullBox = buffer.getInt(content + 4) != HDLR;
+                readBoxes(buffer, fullBox ? content + 4 : content, boxEnd, tags);
+            } else if (type == ILST) {
+                readItems(buffer, content, boxEnd, tags);
+            }
+            position = boxEnd;
+        }
+    }
+
+    private static void readMvhd(ByteBuffer buffer, int content, int end, TagReader.Tags tags) {
+        final boolean version1 = buffer.get(content) == 1;
+        if (content + (version1 ? 32 : 20) > end) {
+            return;
+        }
+        final long timescale = buffer.getInt(content + (version1 ? 20 : 12)) & 0xffffffffL;
+        final long duration = version1
+                ? buffer.getLong(content + 24)
+                : buffer.getInt(content + 16) & 0xffffffffL;
+        // All ones means unknown.
+        if (timescale > 0 && duration > 0 && duration != 0xffffffffL) {
+            tags.durationMs = duration * 1000 / timescale;
+        }
+    }
+
+    /**
+     * ilst中每一项包含一个data box：类型、locale，然后是值
+     */
+    private static void readItems(ByteBuffer buffer, int start, int end, TagReader.Tags tags) {
+        int position = start;
+        while (position + 8 <= end) {
+            final long size = buffer.getInt(position) & 0xffffffffL;
+            final int type = buffer.getInt(position + 4);
+            if (size < 8 || position + size > end) {
+                return;
+            }
+            final int itemEnd = (int) (position + size);
+            final int data = position + 8;
+            if (data + 16 <= itemEnd && buffer.getInt(data + 4) == DATA) {
+                final long dataSize = buffer.getInt(data) & 0xffffffffL;
+                final int value = data + 16;
+                final int length = (int) Math.min(itemEnd, data + dataSize) - value;
+                if (length > 0) {
+                    readItem(buffer, type, value, length, tags);
+                }
+            }
+            position = itemEnd;
+        }
+    }
+
+    private static void readItem(ByteBuffer buffer, int type, int value, int length,
+                                 TagReader.Tags tags) {
+        if (type == GNRE) {
+            if (length >= 2 && tags.genre == null) {
+                // ID3v1 genre + 1
+                tags.genre = TagReader.getGenre((buffer.getShort(value) & 0xffff) - 1);
+            }
+            return;
+        }
+        if (type != NAM && type != ART && type != ALB && type != GEN) {
+            return;
+        }
+        final String text = TagReader.decode(buffer, value, length, StandardCharsets.UTF_8);
+        if (type == NAM) {
+            tags.title = text;
+        } else if (type == ART) {
+            tags.artist = text;
+        } else if (type == ALB) {
+            tags.album = text;
+        } else {
+            tags.genre = text;
+        }
+    }
+}
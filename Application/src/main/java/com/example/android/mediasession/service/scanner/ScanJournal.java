@@ -0,0 +1,281 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.scanner;
+
+import android.os.Build;
+import android.support.annotation.Nullable;
+import android.support.annotation.RequiresApi;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What the last scan found for every file: its size, modification time and inode, and the
+ * tags read from it. A file whose fingerprint still matches is not parsed again, so a rescan
+ * of an unchanged library costs one stat per file. Persisted to a private file between runs.
+ * <p>
+ * Entries are updated by the scan workers concurrently; {@link #load()} and {@link #save()}
+ * are called by one worker at a time.
+ * <p>
+ * 扫描记录
+ */
+final class ScanJournal {
+
+    private static final String TAG = "ScanJournal";
+
+    // 格式变化时增加，旧文件将被忽略
+    private static final int VERSION = 1;
+
+
+    /**
+     * 文件的大小、修改时间和inode，任何一个变化都需要重新读取
+     */
+    static final class Fingerprint {
+        final long size;
+        final long lastModified;
+        // Android 5.0 以下为0
+        final long inode;
+
+        Fingerprint(long size, long lastModified, long inode) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.inode = inode;
+        }
+
+        /**
+         * @return 文件不存在时为null
+         */
+        @Nullable
+        static Fingerprint of(File file) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                return stat(file);
+            }
+            final long lastModified = file.lastModified();
+            return lastModified == 0 ? null : new Fingerprint(file.length(), lastModified, 0);
+        }
+
+        /**
+         * One stat call for all three, instead of one per File method.
+         */
+        @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+        @Nullable
+        private static Fingerprint stat(File file) {
+            try {
+                final StructStat stat = Os.stat(file.getPath());
+                return new Fingerprint(stat.st_size, stat.st_mtime * 1000, stat.st_ino);
+            } catch (ErrnoException e) {
+                return null;
+            }
+        }
+
+        boolean matches(Fingerprint other) {
+            return size == other.size && lastModified == other.lastModified
+                    && inode == other.inode;
+        }
+    }
+
+    /**
+     * 一个文件的记录
+     */
+    static final class Entry {
+        final Fingerprint fingerprint;
+        // 无法读取的文件为null，文件变化前不再尝试
+        @Nullable
+        final TrackInfo track;
+        // 最后一次访问此文件的扫描
+        volatile int generation;
+
+        Entry(Fingerprint fingerprint, @Nullable TrackInfo track, int generation) {
+            this.fingerprint = fingerprint;
+            this.track = track;
+            this.generation = generation;
+        }
+    }
+
+
+    private final File mFile;
+    private final Map<String, Entry> mEntries = new ConcurrentHashMap<>();
+    private int mGeneration;
+    private boolean mLoaded;
+    private volatile boolean mDirty;
+
+
+    ScanJournal(File file) {
+        mFile = file;
+    }
+
+    /**
+     * 开始一次扫描
+     *
+     * @return 扫描的编号，用来标记访问过的记录
+     */
+    synchronized int nextGeneration() {
+        return ++mGeneration;
+    }
+
+    /**
+     * 工作线程：读取保存的记录，只在第一次调用时读取
+     *
+     * @return 记录中的音频；已读取过时为空
+     */
+    synchronized List<TrackInfo> load() {
+        final List<TrackInfo> tracks = new ArrayList<>();
+        if (mLoaded) {
+            return tracks;
+        }
+        mLoaded = true;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != VERSION) {
+                Log.i(TAG, "load: ignoring journal of an older version");
+                return tracks;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String path = in.readUTF();
+                final Fingerprint fingerprint =
+                        new Fingerprint(in.readLong(), in.readLong(), in.readLong());
+                TrackInfo track = null;
+                if (in.readBoolean()) {
+                    track = new TrackInfo(path, readString(in), readString(in),
+                            readString(in), readString(in), in.readLong());
+                    tracks.add(track);
+                }
+                // Generation 0: not seen by any scan of this run yet.
+                mEntries.put(path, new Entry(fingerprint, track, 0));
+            }
+            Log.d(TAG, "load: " + count + " files");
+        } catch (FileNotFoundException e) {
+            // First run.
+        } catch (IOException e) {
+            Log.w(TAG, "load: corrupt journal, rescanning everything", e);
+            mEntries.clear();
+            tracks.clear();
+        } finally {
+            close(in);
+        }
+        return tracks;
+    }
+
+    /**
+     * 工作线程：有变化时保存，先写临时文件再替换
+     */
+    synchronized void save() {
+        if (!mDirty) {
+            return;
+        }
+        mDirty = false;
+        final File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            // The map may change while it is written; the count comes from the snapshot.
+            final List<Map.Entry<String, Entry>> snapshot = new ArrayList<>(mEntries.entrySet());
+            out.writeInt(VERSION);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Entry> mapEntry : snapshot) {
+                final Entry entry = mapEntry.getValue();
+                out.writeUTF(mapEntry.getKey());
+                out.writeLong(entry.fingerprint.size);
+                out.writeLong(entry.fingerprint.lastModified);
+                out.writeLong(entry.fingerprint.inode);
+                out.writeBoolean(entry.track != null);
+                if (entry.track != null) {
+                    writeString(out, entry.track.getTitle());
+                    writeString(out, entry.track.getArtist());
+                    writeString(out, entry.track.getAlbum());
+                    writeString(out, entry.track.getGenre());
+                    out.writeLong(entry.track.getDurationMs());
+                }
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Cannot rename " + temp);
+            }
+            Log.d(TAG, "save: " + snapshot.size() + " files");
+        } catch (IOException e) {
+            Log.w(TAG, "save", e);
+            mDirty = true;
+        } finally {
+            close(out);
+        }
+    }
+
+    @Nullable
+    Entry get(String path) {
+        return mEntries.get(path);
+    }
+
+    void put(String path, Entry entry) {
+        mEntries.put(path, entry);
+        mDirty = true;
+    }
+
+    @Nullable
+    Entry remove(String path) {
+        final Entry entry = mEntries.remove(path);
+        mDirty |= entry != null;
+        return entry;
+    }
+
+    Set<Map.Entry<String, Entry>> entries() {
+        return mEntries.entrySet();
+    }
+
+
+    // ##########################################################################################
+
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static void close(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignored
+            }
+        }
+    }
+}
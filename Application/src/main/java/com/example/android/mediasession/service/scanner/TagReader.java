@@ -0,0 +1,476 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.scanner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Reads the title, artist, album, genre and duration of an audio file from its headers only:
+ * ID3v2/ID3v1 and the MPEG frame header (with Xing/Info or VBRI) for MP3, Vorbis comments
+ * for FLAC, Ogg Vorbis and Opus, and the {@code moov} box for MP4/M4A. Nothing is decoded.
+ * <p>
+ * The head of the file is memory mapped, so skipping over embedded album art or an
+ * {@code mdat} box never reads it. Safe to call from several threads.
+ * <p>
+ * 从文件头读取音频信息
+ */
+final class TagReader {
+
+    // 文件头的映射长度，足够跳过常见的内嵌图片；只有访问到的页会被读入
+    private static final long HEADER_MAP_BYTES = 1024 * 1024;
+    // 小于此长度时直接读取，mmap的开销比一次读取大
+    private static final long MIN_MAP_BYTES = 16 * 1024;
+    // ID3v2之后查找MPEG帧同步的范围
+    private static final int SYNC_SEARCH_BYTES = 64 * 1024;
+    private static final int ID3V1_BYTES = 128;
+
+    private static final byte[] ID3 = {'I', 'D', '3'};
+    private static final byte[] TAG = {'T', 'A', 'G'};
+    private static final byte[] FLAC = {'f', 'L', 'a', 'C'};
+    private static final byte[] OGGS = {'O', 'g', 'g', 'S'};
+    private static final byte[] FTYP = {'f', 't', 'y', 'p'};
+    private static final byte[] XING = {'X', 'i', 'n', 'g'};
+    private static final byte[] INFO = {'I', 'n', 'f', 'o'};
+    private static final byte[] VBRI = {'V', 'B', 'R', 'I'};
+
+    // ID3v2.3/2.4 与 ID3v2.2 的帧id
+    private static final int TIT2 = fourCC("TIT2");
+    private static final int TPE1 = fourCC("TPE1");
+    private static final int TALB = fourCC("TALB");
+    private static final int TCON = fourCC("TCON");
+    private static final int TLEN = fourCC("TLEN");
+    private static final int TT2 = fourCC("TT2");
+    private static final int TP1 = fourCC("TP1");
+    private static final int TAL = fourCC("TAL");
+    private static final int TCO = fourCC("TCO");
+    private static final int TLE = fourCC("TLE");
+
+    // MPEG帧头：kbps，行依次为 V1 L1, V1 L2, V1 L3, V2 L1, V2 L2/L3
+    private static final int[][] BITRATES = {
+            {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}
+    };
+    private static final int[] SAMPLE_RATES = {44100, 48000, 32000};
+
+    // ID3v1 流派
+    private static final String[] GENRES = {
+            "Blues", "Classic Rock", "Country", "Dance", "Disco", "Funk", "Grunge", "Hip-Hop",
+            "Jazz", "Metal", "New Age", "Oldies", "Other", "Pop", "R&B", "Rap", "Reggae", "Rock",
+            "Techno", "Industrial", "Alternative", "Ska", "Death Metal", "Pranks", "Soundtrack",
+            "Euro-Techno", "Ambient", "Trip-Hop", "Vocal", "Jazz+Funk", "Fusion", "Trance",
+            "Classical", "Instrumental", "Acid", "House", "Game", "Sound Clip", "Gospel", "Noise",
+            "AlternRock", "Bass", "Soul", "Punk", "Space", "Meditative", "Instrumental Pop",
+            "Instrumental Rock", "Ethnic", "Gothic", "Darkwave", "Techno-Industrial",
+            "Electronic", "Pop-Folk", "Eurodance", "Dream", "Southern Rock", "Comedy", "Cult",
+            "Gangsta", "Top 40", "Christian Rap", "Pop/Funk", "Jungle", "Native American",
+            "Cabaret", "New Wave", "Psychadelic", "Rave", "Showtunes", "Trailer", "Lo-Fi",
+            "Tribal", "Acid Punk", "Acid Jazz", "Polka", "Retro", "Musical", "Rock & Roll",
+            "Hard Rock"
+    };
+
+    private static final String[] EXTENSIONS = {
+            ".mp3", ".flac", ".ogg", ".oga", ".opus", ".m4a", ".m4b", ".mp4"
+    };
+
+
+    /**
+     * 读取过程中的结果，先读到的值优先
+     */
+    static final class Tags {
+        String title;
+        String artist;
+        String album;
+        String genre;
+        long durationMs;
+    }
+
+
+    private TagReader() {
+    }
+
+    /**
+     * 按扩展名判断是否需要扫描
+     *
+     * @param fileName
+     */
+    static boolean isAudioFile(String fileName) {
+        final String lowerCase = fileName.toLowerCase(Locale.US);
+        for (String extension : EXTENSIONS) {
+            if (lowerCase.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 读取音频信息。无法识别的字段为空，标题缺省为文件名。
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    static TrackInfo read(File file) throws IOException {
+        final Tags tags = new Tags();
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = randomAccessFile.getChannel();
+            final long fileSize = channel.size();
+            final ByteBuffer head = map(channel, 0, Math.min(fileSize, HEADER_MAP_BYTES));
+            // FLAC and MPEG streams may start with an ID3v2 tag.
+            final int audioStart = readId3v2(head, tags);
+            if (matches(head, audioStart, FLAC)) {
+                VorbisCommentReader.readFlac(head, audioStart, tags);
+            } else if (matches(head, 0, OGGS)) {
+                VorbisCommentReader.readOgg(channel, fileSize, head, tags);
+            } else if (matches(head, 4, FTYP)) {
+                Mp4TagReader.read(channel, fileSize, tags);
+            } else {
+                final boolean hasId3v1 = readId3v1(channel, fileSize, tags);
+                final long audioEnd = fileSize - (hasId3v1 ? ID3V1_BYTES : 0);
+                if (audioStart + SYNC_SEARCH_BYTES <= head.limit() || fileSize <= head.limit()) {
+                    readMpegDuration(head, audioStart, 0, audioEnd, tags);
+                } else if (audioStart < audioEnd) {
+                    // A large ID3v2 tag, e.g. album art, pushed the first frame out of the head.
+                    final ByteBuffer frames = map(channel, audioStart,
+                            Math.min(audioEnd - audioStart, SYNC_SEARCH_BYTES));
+                    readMpegDuration(frames, 0, audioStart, audioEnd, tags);
+                }
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+        final String title = tags.title != null ? tags.title : stripExtension(file.getName());
+        return new TrackInfo(file.getAbsolutePath(), title, tags.artist, tags.album, tags.genre,
+                tags.durationMs);
+    }
+
+
+    // ##########################################################################################
+
+
+    /**
+     * 映射文件的一部分，较小的范围直接读到堆内存
+     */
+    static ByteBuffer map(FileChannel channel, long position, long length) throws IOException {
+        if (length >= MIN_MAP_BYTES) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, length)
+                    .order(ByteOrder.BIG_ENDIAN);
+        }
+        return read(channel, position, (int) length);
+    }
+
+    /**
+     * 读取文件的一部分，到文件末尾时返回的长度可能不足
+     */
+    static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) <= 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    static boolean matches(ByteBuffer buffer, int offset, byte[] magic) {
+        if (offset < 0 || offset + magic.length > buffer.limit()) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (buffer.get(offset + i) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static String decode(ByteBuffer buffer, int offset, int length, Charset charset) {
+        final byte[] bytes = new byte[length];
+        final ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        duplicate.get(bytes);
+        final String value = new String(bytes, charset).trim();
+        return value.isEmpty() ? null : value;
+    }
+
+    /**
+     * "(17)", "17" 或 "(17)Rock" 形式的流派
+     */
+    static String resolveGenre(String genre) {
+        if (genre == null) {
+            return null;
+        }
+        String id = genre;
+        if (genre.startsWith("(")) {
+            final int close = genre.indexOf(')');
+            if (close < 0) {
+                return genre;
+            }
+            if (close < genre.length() - 1) {
+                return genre.substring(close + 1);
+            }
+            id = genre.substring(1, close);
+        }
+        try {
+            return getGenre(Integer.parseInt(id));
+        } catch (NumberFormatException e) {
+            return genre;
+        }
+    }
+
+    static String getGenre(int id) {
+        return id >= 0 && id < GENRES.length ? GENRES[id] : null;
+    }
+
+    static int fourCC(String id) {
+        int value = 0;
+        for (int i = 0; i < id.length(); i++) {
+            value = (value << 8) | (id.charAt(i) & 0xff);
+        }
+        return value;
+    }
+
+
+    // ##########################################################################################
+
+
+    /**
+     * @return ID3v2标签之后的位置，没有标签时为0
+     */
+    private static int readId3v2(ByteBuffer head, Tags tags) {
+        if (head.limit() < 10 || !matches(head, 0, ID3)) {
+            return 0;
+        }
+        final int major = head.get(3);
+        final int flags = head.get(5) & 0xff;
+        final int tagSize = synchsafe(head, 6);
+        final boolean unsynchronized = (flags & 0x80) != 0;
+        // Before 2.4 unsynchronisation changes the frame offsets, skip those tags.
+        if (major >= 2 && major <= 4 && !(unsynchronized && major < 4)) {
+            readId3v2Frames(head, major, flags, Math.min(10 + tagSize, head.limit()), tags);
+        }
+        // Followed by a footer.
+        return 10 + tagSize + ((flags & 0x10) != 0 ? 10 : 0);
+    }
+
+    private static void readId3v2Frames(ByteBuffer head, int major, int flags, int end,
+                                        Tags tags) {
+        int position = 10;
+        if (major >= 3 && (flags & 0x40) != 0) {
+            // Extended header
+            position += major == 4 ? synchsafe(head, position) : head.getInt(position) + 4;
+        }
+        final int headerLength = major == 2 ? 6 : 10;
+        while (position + headerLength <= end && head.get(position) != 0) {
+            final int id;
+            final int size;
+            int frameFlags = 0;
+            if (major == 2) {
+                id = head.getInt(position) >>> 8;
+                size = head.getInt(position + 2) & 0xffffff;
+            } else {
+                id = head.getInt(position);
+                size = major == 4 ? synchsafe(head, position + 4) : head.getInt(position + 4);
+                frameFlags = head.getShort(position + 8);
+            }
+            final int data = position + headerLength;
+            if (size <= 0 || data + size > end) {
+                break;
+            }
+            // Compressed or encrypted frames (the bits moved between 2.3 and 2.4).
+            final boolean encoded = major == 3 ? (frameFlags & 0x00c0) != 0
+                    : (frameFlags & 0x000f) != 0;
+            if (!encoded) {
+                readId3v2Frame(head, id, data, size, tags);
+            }
+            position = data + size;
+        }
+    }
+
+    private static void readId3v2Frame(ByteBuffer head, int id, int data, int size, Tags tags) {
+        if (id == TIT2 || id == TT2) {
+            tags.title = decodeId3Text(head, data, size);
+        } else if (id == TPE1 || id == TP1) {
+            tags.artist = decodeId3Text(head, data, size);
+        } else if (id == TALB || id == TAL) {
+            tags.album = decodeId3Text(head, data, size);
+        } else if (id == TCON || id == TCO) {
+            tags.genre = resolveGenre(decodeId3Text(head, data, size));
+        } else if ((id == TLEN || id == TLE) && tags.durationMs == 0) {
+            final String length = decodeId3Text(head, data, size);
+            try {
+                tags.durationMs = length != null ? Long.parseLong(length) : 0;
+            } catch (NumberFormatException e) {
+                // Ignored, the MPEG header gives the duration.
+            }
+        }
+    }
+
+    /**
+     * 文本帧：编码字节加文本，多个值时只取第一个
+     */
+    private static String decodeId3Text(ByteBuffer head, int data, int size) {
+        if (size < 2) {
+            return null;
+        }
+        final Charset charset;
+        final int unit;
+        switch (head.get(data)) {
+            case 1:
+                charset = StandardCharsets.UTF_16;
+                unit = 2;
+                break;
+            case 2:
+                charset = StandardCharsets.UTF_16BE;
+                unit = 2;
+                break;
+            case 3:
+                charset = StandardCharsets.UTF_8;
+                unit = 1;
+                break;
+            default:
+                charset = StandardCharsets.ISO_8859_1;
+                unit = 1;
+        }
+        final int start = data + 1;
+        final int end = data + size;
+        int stop = start;
+        while (stop + unit <= end && !(head.get(stop) == 0
+                && (unit == 1 || head.get(stop + 1) == 0))) {
+            stop += unit;
+        }
+        return decode(head, start, stop - start, charset);
+    }
+
+    /**
+     * 文件末尾的ID3v1标签，只补充ID3v2没有的字段
+     *
+     * @return 是否有ID3v1标签
+     */
+    private static boolean readId3v1(FileChannel channel, long fileSize, Tags tags)
+            throws IOException {
+        if (fileSize < ID3V1_BYTES) {
+            return false;
+        }
+        final ByteBuffer tag = read(channel, fileSize - ID3V1_BYTES, ID3V1_BYTES);
+        if (tag.limit() < ID3V1_BYTES || !matches(tag, 0, TAG)) {
+            return false;
+        }
+        if (tags.title == null) {
+            tags.title = decodeId3v1Field(tag, 3);
+        }
+        if (tags.artist == null) {
+            tags.artist = decodeId3v1Field(tag, 33);
+        }
+        if (tags.album == null) {
+            tags.album = decodeId3v1Field(tag, 63);
+        }
+        if (tags.genre == null) {
+            tags.genre = getGenre(tag.get(127) & 0xff);
+        }
+        return true;
+    }
+
+    private static String decodeId3v1Field(ByteBuffer tag, int offset) {
+        int length = 0;
+        while (length < 30 && tag.get(offset + length) != 0) {
+            length++;
+        }
+        return decode(tag, offset, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * 从第一个MPEG帧计算时长：VBR文件用Xing/Info或VBRI中的帧数，CBR文件用码率
+     *
+     * @param bufferOffset head在文件中的位置
+     * @param audioEnd     音频数据的结尾，不包括ID3v1
+     */
+    private static void readMpegDuration(ByteBuffer head, int audioStart, long bufferOffset,
+                                         long audioEnd, Tags tags) {
+        final int limit = Math.min(head.limit() - 4, audioStart + SYNC_SEARCH_BYTES);
+        for (int position = audioStart; position >= 0 && position < limit; position++) {
+            final int header = head.getInt(position);
+            if ((header & 0xffe00000) != 0xffe00000) {
+                continue;
+            }
+            // version: 0 = 2.5, 2 = 2, 3 = 1; layer: 1 = III, 2 = II, 3 = I
+            final int version = (header >>> 19) & 3;
+            final int layer = (header >>> 17) & 3;
+            final int bitrateIndex = (header >>> 12) & 0xf;
+            final int rateIndex = (header >>> 10) & 3;
+            if (version == 1 || layer == 0 || bitrateIndex == 0 || bitrateIndex == 15
+                    || rateIndex == 3) {
+                continue;
+            }
+            final boolean mpeg1 = version == 3;
+            final int sampleRate = SAMPLE_RATES[rateIndex] >> (mpeg1 ? 0 : version == 2 ? 1 : 2);
+            final int bitrate = BITRATES[mpeg1 ? 3 - layer : layer == 3 ? 3 : 4][bitrateIndex];
+            final int samplesPerFrame = layer == 3 ? 384 : layer == 2 || mpeg1 ? 1152 : 576;
+            final int padding = (header >>> 9) & 1;
+            final int frameLength = layer == 3
+                    ? (12 * bitrate * 1000 / sampleRate + padding) * 4
+                    : samplesPerFrame / 8 * bitrate * 1000 / sampleRate + padding;
+            // A false sync in the tag or junk rarely has a valid frame right after it.
+            final int next = position + frameLength;
+            if (next + 4 <= head.limit() && (head.getInt(next) & 0xffe00000) != 0xffe00000) {
+                continue;
+            }
+
+            final boolean mono = ((header >>> 6) & 3) == 3;
+            final int xing = position + 4 + (mpeg1 ? (mono ? 17 : 32) : (mono ? 9 : 17));
+            long frames = 0;
+            if ((matches(head, xing, XING) || matches(head, xing, INFO))
+                    && xing + 12 <= head.limit() && (head.getInt(xing + 4) & 1) != 0) {
+                frames = head.getInt(xing + 8) & 0xffffffffL;
+            } else if (matches(head, position + 36, VBRI) && position + 54 <= head.limit()) {
+                frames = head.getInt(position + 36 + 14) & 0xffffffffL;
+            }
+            if (frames > 0) {
+                tags.durationMs = frames * samplesPerFrame * 1000 / sampleRate;
+            } else if (tags.durationMs == 0) {
+                // bits / kbps = ms
+                tags.durationMs = (audioEnd - bufferOffset - position) * 8 / bitrate;
+            }
+            return;
+        }
+    }
+
+    private static int synchsafe(ByteBuffer buffer, int offset) {
+        return (buffer.get(offset) & 0x7f) << 21
+                | (buffer.get(offset + 1) & 0x7f) << 14
+                | (buffer.get(offset + 2) & 0x7f) << 7
+                | (buffer.get(offset + 3) & 0x7f);
+    }
+
+    private static String stripExtension(String fileName) {
+        final int dot = fileName.lastIndexOf('.');
+        return dot > 0 ? fileName.substring(0, dot) : fileName;
+    }
+}
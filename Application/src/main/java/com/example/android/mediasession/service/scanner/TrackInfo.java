@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.scanner;
+
+import android.net.Uri;
+import android.support.v4.media.MediaMetadataCompat;
+
+import java.io.File;
+
+/**
+ * The tags and duration of one scanned audio file. The absolute path is the media id.
+ * <p>
+ * 扫描得到的音频信息
+ */
+public final class TrackInfo {
+
+    private final String mPath;
+    private final String mTitle;
+    private final String mArtist;
+    private final String mAlbum;
+    private final String mGenre;
+    private final long mDurationMs;
+
+
+    TrackInfo(String path, String title, String artist, String album, String genre,
+              long durationMs) {
+        mPath = path;
+        mTitle = title;
+        mArtist = artist;
+        mAlbum = album;
+        mGenre = genre;
+        mDurationMs = durationMs;
+    }
+
+    public String getMediaId() {
+        return mPath;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    public String getTitle() {
+        return mTitle;
+    }
+
+    public String getArtist() {
+        return mArtist;
+    }
+
+    public String getAlbum() {
+        return mAlbum;
+    }
+
+    public String getGenre() {
+        return mGenre;
+    }
+
+    public long getDurationMs() {
+        return mDurationMs;
+    }
+
+    /**
+     * @return 播放器使用的 file:// 地址
+     */
+    public String getMusicFilename() {
+        return Uri.fromFile(new File(mPath)).toString();
+    }
+
+    /**
+     * @return 不带图片的音频数据，与 MusicLibrary 中内置音频的字段相同
+     */
+    public MediaMetadataCompat toMetadata() {
+        return new MediaMetadataCompat.Builder()
+                .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, mPath)
+                .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, mAlbum)
+                .putString(MediaMetadataCompat.METADATA_KEY_ARTIST, mArtist)
+                .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, mDurationMs)
+                .putString(MediaMetadataCompat.METADATA_KEY_GENRE, mGenre)
+                .putString(MediaMetadataCompat.METADATA_KEY_TITLE, mTitle)
+                .build();
+    }
+
+    @Override
+    public String toString() {
+        return mPath + " [" + mArtist + " - " + mTitle + ", " + mDurationMs + " ms]";
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.scanner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Vorbis comments and duration of FLAC (STREAMINFO and VORBIS_COMMENT blocks) and of Ogg
+ * Vorbis and Opus (the first two packets, and the granule position of the last page).
+ * <p>
+ * FLAC、Ogg Vorbis、Opus 的标签和时长
+ */
+final class VorbisCommentReader {
+
+    private static final int FLAC_STREAMINFO = 0;
+    private static final int FLAC_VORBIS_COMMENT = 4;
+
+    private static final int OGG_PAGE_HEADER_BYTES = 27;
+    // 最后一页的最大长度
+    private static final int OGG_MAX_PAGE_BYTES = 65307;
+    // 注释包中的内嵌图片通常在最后，超出部分不读
+    private static final int MAX_COMMENT_PACKET_BYTES = 64 * 1024;
+    // Opus的granule position总是48kHz
+    private static final int OPUS_GRANULE_RATE = 48000;
+
+    private static final byte[] OGGS = {'O', 'g', 'g', 'S'};
+    private static final byte[] VORBIS_IDENTIFICATION = {1, 'v', 'o', 'r', 'b', 'i', 's'};
+    private static final byte[] VORBIS_COMMENT = {3, 'v', 'o', 'r', 'b', 'i', 's'};
+    private static final byte[] OPUS_HEAD = {'O', 'p', 'u', 's', 'H', 'e', 'a', 'd'};
+    private static final byte[] OPUS_TAGS = {'O', 'p', 'u', 's', 'T', 'a', 'g', 's'};
+
+
+    private VorbisCommentReader() {
+    }
+
+    /**
+     * @param head  映射的文件头
+     * @param start "fLaC" 的位置
+     */
+    static void readFlac(ByteBuffer head, int start, TagReader.Tags tags) {
+        int position = start + 4;
+        boolean last = false;
+        while (!last && position + 4 <= head.limit()) {
+            final int header = head.getInt(position);
+            last = header < 0;
+            final int type = (header >>> 24) & 0x7f;
+            final int length = header & 0xffffff;
+            final int data = position + 4;
+            if (data + length > head.limit()) {
+                return;
+            }
+            if (type == FLAC_STREAMINFO && length >= 18) {
+                // 20 bits sample rate, 3 bits channels, 5 bits depth, 36 bits total samples
+                final int sampleRate = (head.get(data + 10) & 0xff) << 12
+                        | (head.get(data + 11) & 0xff) << 4
+                        | (head.get(data + 12) & 0xff) >>> 4;
+                final long totalSamples = (long) (head.get(data + 13) & 0x0f) << 32
+                        | (head.getInt(data + 14) & 0xffffffffL);
+                if (sampleRate > 0) {
+                    tags.durationMs = totalSamples * 1000 / sampleRate;
+                }
+            } else if (type == FLAC_VORBIS_COMMENT) {
+                readComments(head, data, data + length, tags);
+            }
+            position = data + length;
+        }
+    }
+
+    /**
+     * @param head 映射的文件头
+     */
+    static void readOgg(FileChannel channel, long fileSize, ByteBuffer head,
+                        TagReader.Tags tags) throws IOException {
+        final ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        int packetIndex = 0;
+        int sampleRate = 0;
+        long preSkip = 0;
+        int position = 0;
+        while (packetIndex < 2 && position + OGG_PAGE_HEADER_BYTES <= head.limit()
+                && TagReader.matches(head, position, OGGS)) {
+            final int segments = head.get(position + 26) & 0xff;
+            int data = position + OGG_PAGE_HEADER_BYTES + segments;
+            for (int segment = 0; segment < segments && packetIndex < 2; segment++) {
+                final int lacing = head.get(position + OGG_PAGE_HEADER_BYTES + segment) & 0xff;
+                if (data + lacing > head.limit()) {
+                    return;
+                }
+                if (packet.size() < MAX_COMMENT_PACKET_BYTES) {
+                    for (int i = 0; i < lacing; i++) {
+                        packet.write(head.get(data + i));
+                    }
+                }
+                data += lacing;
+                if (lacing < 255) {
+                    // End of packet
+                    final ByteBuffer bytes = ByteBuffer.wrap(packet.toByteArray());
+                    if (packetIndex == 0) {
+                        if (TagReader.matches(bytes, 0, VORBIS_IDENTIFICATION)
+                                && bytes.limit() >= 16) {
+                            sampleRate = bytes.order(ByteOrder.LITTLE_ENDIAN).getInt(12);
+                        } else if (TagReader.matches(bytes, 0, OPUS_HEAD)
+                                && bytes.limit() >= 12) {
+                            sampleRate = OPUS_GRANULE_RATE;
+                            preSkip = bytes.order(ByteOrder.LITTLE_ENDIAN).getShort(10) & 0xffff;
+                        } else {
+                            return;
+                        }
+                    } else if (TagReader.matches(bytes, 0, VORBIS_COMMENT)) {
+                        readComments(bytes, VORBIS_COMMENT.length, bytes.limit(), tags);
+                    } else if (TagReader.matches(bytes, 0, OPUS_TAGS)) {
+                        readComments(bytes, OPUS_TAGS.length, bytes.limit(), tags);
+                    }
+                    packet.reset();
+                    packetIndex++;
+                }
+            }
+            // Skip the rest of the page.
+            for (int segment = 0; segment < segments; segment++) {
+                position += head.get(position + OGG_PAGE_HEADER_BYTES + segment) & 0xff;
+            }
+            position += OGG_PAGE_HEADER_BYTES + segments;
+        }
+        if (sampleRate > 0) {
+            final long granule = readLastGranule(channel, fileSize);
+            if (granule > preSkip) {
+                tags.durationMs = (granule - preSkip) * 1000 / sampleRate;
+            }
+        }
+    }
+
+
+    // ##########################################################################################
+
+
+    /**
+     * 最后一页的granule position，即总采样数
+     *
+     * @return 找不到时为-1
+     */
+    private static long readLastGranule(FileChannel channel, long fileSize) throws IOException {
+        final long tailStart = Math.max(0, fileSize - OGG_MAX_PAGE_BYTES);
+        final ByteBuffer tail = TagReader.map(channel, tailStart, fileSize - tailStart)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (int position = tail.limit() - OGG_PAGE_HEADER_BYTES; position >= 0; position--) {
+            if (TagReader.matches(tail, position, OGGS)) {
+                final long granule = tail.getLong(position + 6);
+                if (granule >= 0) {
+                    return granule;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 读取注释：vendor字符串，然后是若干 "KEY=value"，长度都是小端
+     */
+    private static void readComments(ByteBuffer buffer, int start, int end,
+                                     TagReader.Tags tags) {
+        final ByteBuffer comments = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int position = start;
+        if (position + 4 > end) {
+            return;
+        }
+        final int vendorLength = comments.getInt(position);
+        if (vendorLength < 0 || position + 8 + vendorLength > end) {
+            return;
+        }
+        position += 4 + vendorLength;
+        final int count = comments.getInt(position);
+        position += 4;
+        for (int i = 0; i < count && position + 4 <= end; i++) {
+            final int length = comments.getInt(position);
+            position += 4;
+            if (length < 0 || position + length > end) {
+                return;
+            }
+            final String comment = TagReader.decode(comments, position, length,
+                    StandardCharsets.UTF_8);
+            position += length;
+            final int equals = comment != null ? comment.indexOf('=') : -1;
+            if (equals <= 0) {
+                continue;
+            }
+            final String key = comment.substring(0, equals);
+            final String value = comment.substring(equals + 1).trim();
+            if (value.isEmpty()) {
+                continue;
+            }
+            // The first of repeated fields wins.
+            if (tags.title == null && key.equalsIgnoreCase("TITLE")) {
+                tags.title = value;
+            } else if (tags.artist == null && key.equalsIgnoreCase("ARTIST")) {
+                tags.artist = value;
+            } else if (tags.album == null && key.equalsIgnoreCase("ALBUM")) {
+                tags.album = value;
+            } else if (tags.genre == null && key.equalsIgnoreCase("GENRE")) {
+                tags.genre = value;
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.ui;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Decodes the art of list rows off the main thread, subsampled to the size of the row, and
+ * keeps the decoded bitmaps in a cache by uri: the rows of one album share one bitmap.
+ * A row that is bound again before its art is decoded cancels the load, so a fling does not
+ * leave a backlog of art for rows that are gone. Used on the main thread.
+ * <p>
+ * 列表图片的异步加载
+ */
+final class ArtLoader {
+
+    private static final String TAG = "ArtLoader";
+
+    private static final int THREADS = 2;
+
+
+    private final ContentResolver mContentResolver;
+    // 解码的尺寸
+    private final int mSizePx;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(THREADS,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "ArtLoader");
+                }
+            });
+    // uri -> 图片，按字节数
+    private final LruCache<String, Bitmap> mCache;
+
+
+    /**
+     * @param contentResolver
+     * @param sizePx          行中图片的边长
+     * @param cacheBytes
+     */
+    ArtLoader(ContentResolver contentResolver, int sizePx, int cacheBytes) {
+        mContentResolver = contentResolver;
+        mSizePx = sizePx;
+        mCache = new LruCache<String, Bitmap>(cacheBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * 显示图片，缓存中没有时先清空，解码后显示
+     *
+     * @param uri  可以为null
+     * @param view
+     * @return 进行中的加载，行重新绑定或回收时取消；已显示时为null
+     */
+    Task load(Uri uri, ImageView view) {
+        final Bitmap cached = uri != null ? mCache.get(uri.toString()) : null;
+        view.setImageBitmap(cached);
+        if (uri == null || cached != null) {
+            return null;
+        }
+        final Task task = new Task(uri, view);
+        mExecutor.execute(task);
+        return task;
+    }
+
+    /**
+     * 界面不可见时释放缓存
+     */
+    void clear() {
+        mCache.evictAll();
+    }
+
+    /**
+     * 之后不能再加载
+     */
+    void release() {
+        mExecutor.shutdownNow();
+        mCache.evictAll();
+    }
+
+
+    // ##########################################################################################
+
+
+    private Bitmap decode(Uri uri) throws IOException {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decodeStream(uri, options);
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (options.outWidth / (options.inSampleSize * 2) >= mSizePx
+                && options.outHeight / (options.inSampleSize * 2) >= mSizePx) {
+            options.inSampleSize *= 2;
+        }
+        return decodeStream(uri, options);
+    }
+
+    private Bitmap decodeStream(Uri uri, BitmapFactory.Options options) throws IOException {
+        final InputStream in = mContentResolver.openInputStream(uri);
+        if (in == null) {
+            return null;
+        }
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 一行的加载
+     */
+    final class Task implements Runnable {
+
+        private final Uri mUri;
+        private final ImageView mView;
+        private volatile boolean mCancelled;
+
+        Task(Uri uri, ImageView view) {
+            mUri = uri;
+            mView = view;
+        }
+
+        void cancel() {
+            mCancelled = true;
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            final String key = mUri.toString();
+            // Another row of the album may have decoded it meanwhile.
+            Bitmap bitmap = mCache.get(key);
+            if (bitmap == null) {
+                try {
+                    bitmap = decode(mUri);
+                } catch (IOException | RuntimeException e) {
+                    Log.w(TAG, "decode " + mUri + ": " + e);
+                }
+                if (bitmap == null) {
+                    return;
+                }
+                mCache.put(key, bitmap);
+            }
+            final Bitmap result = bitmap;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mCancelled) {
+                        mView.setImageBitmap(result);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.ui;
+
+import android.content.Context;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.widget.TextView;
+
+import com.example.android.mediasession.R;
+import com.example.android.mediasession.client.MediaBrowserManager;
+import com.example.android.mediasession.client.PagedChildren;
+import com.example.android.mediasession.service.MusicService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The browse and queue lists over the player: the library is browsed node by node from the
+ * root, the queue is {@link MusicService#QUEUE_ROOT}. Both are {@link PagedChildren}, shown
+ * by a {@link MediaItemAdapter}. Tapping a node opens it, tapping a track or a playlist plays
+ * it, and back returns to the parent node.
+ * <p>
+ * 音频库和播放列表界面
+ */
+final class LibraryPanel implements PagedChildren.Listener, MediaItemAdapter.Callback {
+
+    // 每页的子项数，约十屏；快速滑动时请求数不超过 service 对本应用的限速
+    private static final int PAGE_SIZE = 100;
+    // 图片缓存
+    private static final int ART_CACHE_BYTES = 4 * 1024 * 1024;
+
+
+    private final View mPanel;
+    private final TextView mTitleTv;
+    private final MediaBrowserManager mMediaBrowserManager;
+    private final ArtLoader mArtLoader;
+    private final MediaItemAdapter mAdapter;
+    // 打开的节点和标题，第一个为根节点
+    private final List<String> mParentIds = new ArrayList<>();
+    private final List<CharSequence> mParentTitles = new ArrayList<>();
+    // 是否显示播放列表
+    private boolean mShowingQueue;
+    // 显示中的节点，未连接时为null
+    private PagedChildren mChildren;
+
+
+    /**
+     * @param panel               包含 library_title_tv、library_btn、queue_btn 和 library_list
+     * @param mediaBrowserManager
+     */
+    LibraryPanel(View panel, MediaBrowserManager mediaBrowserManager) {
+        mPanel = panel;
+        mMediaBrowserManager = mediaBrowserManager;
+        final Context context = panel.getContext();
+        mTitleTv = (TextView) panel.findViewById(R.id.library_title_tv);
+        mArtLoader = new ArtLoader(context.getContentResolver(),
+                context.getResources().getDimensionPixelSize(R.dimen.item_art_size),
+                ART_CACHE_BYTES);
+        mAdapter = new MediaItemAdapter(LayoutInflater.from(context), mArtLoader, this);
+
+        final RecyclerView list = (RecyclerView) panel.findViewById(R.id.library_list);
+        // Rows have one height: a page loaded above does not relayout the rows below.
+        list.setHasFixedSize(true);
+        list.setLayoutManager(new LinearLayoutManager(context));
+        list.setAdapter(mAdapter);
+
+        panel.findViewById(R.id.library_btn).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                showQueue(false);
+            }
+        });
+        panel.findViewById(R.id.queue_btn).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                showQueue(true);
+            }
+        });
+    }
+
+    boolean isShown() {
+        return mPanel.getVisibility() == View.VISIBLE;
+    }
+
+    /**
+     * 显示或隐藏，隐藏时不再订阅
+     */
+    void toggle() {
+        if (isShown()) {
+            hide();
+        } else {
+            mPanel.setVisibility(View.VISIBLE);
+            open();
+        }
+    }
+
+    /**
+     * 返回上一级节点，在根节点时隐藏
+     *
+     * @return 是否处理
+     */
+    boolean onBackPressed() {
+        if (!isShown()) {
+            return false;
+        }
+        if (mShowingQueue) {
+            showQueue(false);
+        } else if (mParentIds.size() > 1) {
+            mParentIds.remove(mParentIds.size() - 1);
+            mParentTitles.remove(mParentTitles.size() - 1);
+            open();
+        } else {
+            hide();
+        }
+        return true;
+    }
+
+    /**
+     * 连接后重新订阅，上次连接的订阅已经结束
+     */
+    void onConnected() {
+        if (isShown()) {
+            open();
+        }
+    }
+
+    /**
+     * 跟随Activity的生命周期，连接断开前调用
+     */
+    void onStop() {
+        close();
+        mArtLoader.clear();
+    }
+
+    void release() {
+        close();
+        mArtLoader.release();
+    }
+
+    @Override
+    public void onChildrenChanged(PagedChildren children) {
+        if (children == mChildren) {
+            mAdapter.submitList(children.snapshot());
+        }
+    }
+
+    @Override
+    public void onBind(int position) {
+        if (mChildren != null) {
+            mChildren.loadAround(position);
+        }
+    }
+
+    @Override
+    public void onItemClick(int position, MediaBrowserCompat.MediaItem item) {
+        if (item == null || !mMediaBrowserManager.isConnected()) {
+            return;
+        }
+        if (mShowingQueue) {
+            // The queue id of an item is its position.
+            mMediaBrowserManager.skipToQueueItem(position);
+        } else if (item.isPlayable()) {
+            mMediaBrowserManager.playFromMediaId(item.getMediaId());
+        } else if (item.isBrowsable()) {
+            mParentIds.add(item.getMediaId());
+            mParentTitles.add(item.getDescription().getTitle());
+            open();
+        }
+    }
+
+
+    // ##########################################################################################
+
+
+    private void showQueue(boolean showQueue) {
+        if (mShowingQueue != showQueue) {
+            mShowingQueue = showQueue;
+            open();
+        }
+    }
+
+    private void hide() {
+        mPanel.setVisibility(View.GONE);
+        close();
+    }
+
+    /**
+     * 订阅当前节点的第一页，其他页在滚动到附近时加载
+     */
+    private void open() {
+        close();
+        if (!mMediaBrowserManager.isConnected()) {
+            return;
+        }
+        if (mParentIds.isEmpty()) {
+            mParentIds.add(mMediaBrowserManager.getRoot());
+            mParentTitles.add(mPanel.getContext().getString(R.string.label_library));
+        }
+        final String parentId;
+        if (mShowingQueue) {
+            parentId = MusicService.QUEUE_ROOT;
+            mTitleTv.setText(R.string.label_queue);
+        } else {
+            parentId = mParentIds.get(mParentIds.size() - 1);
+            mTitleTv.setText(mParentTitles.get(mParentTitles.size() - 1));
+        }
+        mChildren = new PagedChildren(mMediaBrowserManager, parentId, PAGE_SIZE, this);
+        mChildren.loadAround(0);
+    }
+
+    private void close() {
+        if (mChildren != null) {
+            mChildren.release();
+            mChildren = null;
+            mAdapter.submitList(Collections.<MediaBrowserCompat.MediaItem>emptyList());
+        }
+    }
+}
@@ -16,8 +16,13 @@
 
 package com.example.android.mediasession.ui;
 
+import android.Manifest;
+import android.content.pm.PackageManager;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.v4.app.ActivityCompat;
+import android.support.v4.content.ContextCompat;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
@@ -30,12 +35,16 @@ import android.widget.TextView;
 
 import com.example.android.mediasession.R;
 import com.example.android.mediasession.client.MediaBrowserManager;
-import com.example.android.mediasession.service.contentcatalogs.MusicLibrary;
+import com.example.android.mediasession.service.MusicService;
 
 import java.util.List;
 
 public class MainActivity extends AppCompatActivity {
 
+    // 长按播放按钮依次切换的播放速度
+    // 读取存储权限的请求码
+    private static final int REQUEST_READ_STORAGE = 1;
+    private static final float[] PLAYBACK_SPEEDS = {1.0f, 1.25f, 1.5f, 2.0f, 3.0f, 0.5f, 0.75f};
 
     /**
      * UI
@@ -51,14 +60,20 @@ public class MainActivity extends AppCompatActivity {
 
     // seekbar
     private MediaSeekBar mSeekBarAudio;
+    // 当前音频id，metadata只是更新时不重置进度
+    private String mMediaId;
 
     /**
      * 数据
      */
     // 是否正在播放的标识
     private boolean mIsPlaying;
+    // 当前播放速度在 PLAYBACK_SPEEDS 中的位置
+    private int mPlaybackSpeedIndex;
     //
     private MediaBrowserManager mMediaBrowserManager;
+    // 音频库和播放列表，点击标题显示
+    private LibraryPanel mLibraryPanel;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -69,6 +84,24 @@ public class MainActivity extends AppCompatActivity {
         initUI();
         // 初始化MediaBrowser
         initMediaBrowser();
+        // MusicService扫描Music目录需要的权限
+        if (ContextCompat.checkSelfPermission(this, Manifest.permission.READ_EXTERNAL_STORAGE)
+                != PackageManager.PERMISSION_GRANTED) {
+            ActivityCompat.requestPermissions(this,
+                    new String[]{Manifest.permission.READ_EXTERNAL_STORAGE}, REQUEST_READ_STORAGE);
+        }
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions,
+                                           @NonNull int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        if (requestCode == REQUEST_READ_STORAGE && grantResults.length > 0
+                && grantResults[0] == PackageManager.PERMISSION_GRANTED
+                && mMediaBrowserManager.isConnected()) {
+            // The service scanned without the permission when it was created.
+            mMediaBrowserManager.scanLibrary();
+        }
     }
 
 
@@ -84,6 +117,8 @@ public class MainActivity extends AppCompatActivity {
     @Override
     public void onStop() {
         super.onStop();
+        // Before the subscriptions end with the connection.
+        mLibraryPanel.onStop();
         //
         if (mMediaBrowserManager != null) {
             mMediaBrowserManager.onStop();
@@ -91,6 +126,19 @@ public class MainActivity extends AppCompatActivity {
 
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mLibraryPanel.release();
+    }
+
+    @Override
+    public void onBackPressed() {
+        if (!mLibraryPanel.onBackPressed()) {
+            super.onBackPressed();
+        }
+    }
+
 
     /**
      * 初始化UI
@@ -110,7 +158,7 @@ public class MainActivity extends AppCompatActivity {
         previousBtn.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                mMediaBrowserManager.getTransportControls().skipToPrevious();
+                mMediaBrowserManager.skipToPrevious();
             }
         });
         // 播放按钮
@@ -119,19 +167,28 @@ public class MainActivity extends AppCompatActivity {
             @Override
             public void onClick(View v) {
                 if (mIsPlaying) {
-                    mMediaBrowserManager.getTransportControls().pause();
+                    mMediaBrowserManager.pause();
                     //
                 } else {
-                    mMediaBrowserManager.getTransportControls().play();
+                    mMediaBrowserManager.play();
                 }
             }
         });
+        // 长按切换播放速度
+        playBtn.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                mPlaybackSpeedIndex = (mPlaybackSpeedIndex + 1) % PLAYBACK_SPEEDS.length;
+                mMediaBrowserManager.setPlaybackSpeed(PLAYBACK_SPEEDS[mPlaybackSpeedIndex]);
+                return true;
+            }
+        });
         // 下一首
         final Button nextBtn = (Button) findViewById(R.id.next_btn);
         nextBtn.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                mMediaBrowserManager.getTransportControls().skipToNext();
+                mMediaBrowserManager.skipToNext();
             }
         });
         // seekbar
@@ -150,7 +207,7 @@ public class MainActivity extends AppCompatActivity {
             @Override
             public void onStopTrackingTouch(SeekBar seekBar) {
                 // seek
-                mMediaBrowserManager.getTransportControls().seekTo(seekBar.getProgress());
+                mMediaBrowserManager.seekTo(seekBar.getProgress());
             }
         });
     }
@@ -161,8 +218,23 @@ public class MainActivity extends AppCompatActivity {
     private void initMediaBrowser() {
 
         mMediaBrowserManager = new MediaBrowserManager(this);
+        mLibraryPanel = new LibraryPanel(findViewById(R.id.library_panel), mMediaBrowserManager);
+        findViewById(R.id.title_layout).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                mLibraryPanel.toggle();
+            }
+        });
         mMediaBrowserManager.addOnMediaStatusListener(new MediaBrowserManager.OnMediaStatusChangeListener() {
 
+            /**
+             * 连接到service
+             */
+            @Override
+            public void onConnected() {
+                mLibraryPanel.onConnected();
+            }
+
             /**
              * 播放状态修改
              */
@@ -186,7 +258,9 @@ public class MainActivity extends AppCompatActivity {
              */
             @Override
             public void onQueueChanged(List<MediaSessionCompat.QueueItem> queue) {
-
+                // The session does not carry the queue, which can be too long for one
+                // transaction; the library panel lists MusicService.QUEUE_ROOT a page at a
+                // time, and the subscribed pages are sent again when it changes.
             }
         });
     }
@@ -228,11 +302,25 @@ public class MainActivity extends AppCompatActivity {
         /**
          * 设置播放进度
          */
-        final int progress = (int) playbackState.getPosition();
+        final float speed = playbackState.getPlaybackSpeed() > 0
+                ? playbackState.getPlaybackSpeed()
+                : 1.0f;
+        for (int i = 0; i < PLAYBACK_SPEEDS.length; i++) {
+            if (PLAYBACK_SPEEDS[i] == speed) {
+                mPlaybackSpeedIndex = i;
+            }
+        }
+        long position = playbackState.getPosition();
+        if (mIsPlaying) {
+            // The state may have been built a while ago: extrapolate at the reported speed.
+            position += (long) ((SystemClock.elapsedRealtime()
+                    - playbackState.getLastPositionUpdateTime()) * speed);
+        }
+        final int progress = (int) Math.min(position, mSeekBarAudio.getMax());
         mSeekBarAudio.setProgress(progress);
         switch (playbackState.getState()) {
             case PlaybackStateCompat.STATE_PLAYING:
-                final int timeToEnd = (int) ((mSeekBarAudio.getMax() - progress) / playbackState.getPlaybackSpeed());
+                final int timeToEnd = (int) ((mSeekBarAudio.getMax() - progress) / speed);
                 mSeekBarAudio.startProgressAnima(progress, mSeekBarAudio.getMax(), timeToEnd);
                 break;
             case PlaybackStateCompat.STATE_PAUSED:
@@ -260,9 +348,17 @@ public class MainActivity extends AppCompatActivity {
         mArtistTv.setText(
                 mediaMetadata.getString(MediaMetadataCompat.METADATA_KEY_ARTIST));
         // 音频图片
-        mAlbumArtImg.setImageBitmap(MusicLibrary.getAlbumBitmap(
-                MainActivity.this,
-                mediaMetadata.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID)));
+        // The service decoded it for the session; MusicLibrary lives in the playback process.
+        mAlbumArtImg.setImageBitmap(
+                mediaMetadata.getBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART));
+
+        // 波形，测量完成后随metadata更新
+        mSeekBarAudio.setWaveform(mediaMetadata.getString(MusicService.METADATA_KEY_WAVEFORM));
+        final String mediaId = mediaMetadata.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID);
+        if (mediaId != null && mediaId.equals(mMediaId)) {
+            return;
+        }
+        mMediaId = mediaId;
 
         // 进度条
         final int max = mediaMetadata != null
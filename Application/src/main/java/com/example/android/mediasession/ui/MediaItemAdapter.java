@@ -0,0 +1,259 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.ui;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import com.example.android.mediasession.R;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Rows of media items, {@code null} for the rows whose page is not loaded yet.
+ * <p>
+ * A new list is compared with the shown one by {@link DiffUtil} on a background thread, and
+ * only the rows that changed are rebound; with 100k rows the comparison alone would drop
+ * frames on the main thread. A list submitted while an older one is still being compared
+ * wins: the older result is dropped when it arrives. The lists must not change after they
+ * are submitted. Used on the main thread.
+ * <p>
+ * 音频列表
+ */
+final class MediaItemAdapter extends RecyclerView.Adapter<MediaItemAdapter.ViewHolder> {
+
+    // 所有列表共用，按提交顺序比较
+    private static final Executor DIFF_EXECUTOR = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "MediaItemDiff");
+                }
+            });
+
+
+    /**
+     * 行的回调
+     */
+    interface Callback {
+
+        /**
+         * 绑定了一行，用于加载后面的页
+         */
+        void onBind(int position);
+
+        /**
+         * @param item 还没有加载时为null
+         */
+        void onItemClick(int position, MediaBrowserCompat.MediaItem item);
+    }
+
+
+    private final LayoutInflater mInflater;
+    private final ArtLoader mArtLoader;
+    private final Callback mCallback;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // 显示中的列表
+    private List<MediaBrowserCompat.MediaItem> mItems = Collections.emptyList();
+    // 最后提交的列表的序号
+    private int mGeneration;
+
+
+    MediaItemAdapter(LayoutInflater inflater, ArtLoader artLoader, Callback callback) {
+        mInflater = inflater;
+        mArtLoader = artLoader;
+        mCallback = callback;
+    }
+
+    /**
+     * 显示新的列表，变化的行在后台线程计算
+     *
+     * @param items 提交后不能修改
+     */
+    void submitList(final List<MediaBrowserCompat.MediaItem> items) {
+        final int generation = ++mGeneration;
+        final List<MediaBrowserCompat.MediaItem> oldItems = mItems;
+        if (oldItems.isEmpty() || items.isEmpty()) {
+            // Nothing to compare; e.g. another node was opened.
+            mItems = items;
+            notifyDataSetChanged();
+            return;
+        }
+        DIFF_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                // Moves are not looked for: the service lists in a stable order.
+                final DiffUtil.DiffResult result =
+                        DiffUtil.calculateDiff(new ItemDiff(oldItems, items), false);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        mItems = items;
+                        result.dispatchUpdatesTo(MediaItemAdapter.this);
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        return new ViewHolder(mInflater.inflate(R.layout.item_media, parent, false));
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        holder.bind(mItems.get(position));
+        mCallback.onBind(position);
+    }
+
+    @Override
+    public void onViewRecycled(ViewHolder holder) {
+        holder.cancelArt();
+    }
+
+    @Override
+    public int getItemCount() {
+        return mItems.size();
+    }
+
+
+    // ##########################################################################################
+
+
+    /**
+     * 一行
+     */
+    final class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+
+        private final ImageView mArtImg;
+        private final TextView mTitleTv;
+        private final TextView mSubtitleTv;
+        private ArtLoader.Task mArtTask;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            mArtImg = (ImageView) itemView.findViewById(R.id.item_art_img);
+            mTitleTv = (TextView) itemView.findViewById(R.id.item_title_tv);
+            mSubtitleTv = (TextView) itemView.findViewById(R.id.item_subtitle_tv);
+            itemView.setOnClickListener(this);
+        }
+
+        void bind(MediaBrowserCompat.MediaItem item) {
+            cancelArt();
+            if (item == null) {
+                // Its page is being loaded.
+                mTitleTv.setText(null);
+                mSubtitleTv.setText(null);
+                mArtImg.setImageBitmap(null);
+                return;
+            }
+            final MediaDescriptionCompat description = item.getDescription();
+            mTitleTv.setText(description.getTitle());
+            mSubtitleTv.setText(description.getSubtitle());
+            mArtTask = mArtLoader.load(description.getIconUri(), mArtImg);
+        }
+
+        void cancelArt() {
+            if (mArtTask != null) {
+                mArtTask.cancel();
+                mArtTask = null;
+            }
+        }
+
+        @Override
+        public void onClick(View v) {
+            final int position = getAdapterPosition();
+            if (position != RecyclerView.NO_POSITION) {
+                mCallback.onItemClick(position, mItems.get(position));
+            }
+        }
+    }
+
+    /**
+     * 按音频id比较，还没有加载的行与同一位置的行相同
+     */
+    private static final class ItemDiff extends DiffUtil.Callback {
+
+        private final List<MediaBrowserCompat.MediaItem> mOldItems;
+        private final List<MediaBrowserCompat.MediaItem> mNewItems;
+
+        ItemDiff(List<MediaBrowserCompat.MediaItem> oldItems,
+                 List<MediaBrowserCompat.MediaItem> newItems) {
+            mOldItems = oldItems;
+            mNewItems = newItems;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOldItems.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNewItems.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            final MediaBrowserCompat.MediaItem oldItem = mOldItems.get(oldItemPosition);
+            final MediaBrowserCompat.MediaItem newItem = mNewItems.get(newItemPosition);
+            if (oldItem == null || newItem == null) {
+                // A loaded page changes its rows instead of replacing them.
+                return oldItemPosition == newItemPosition;
+            }
+            return TextUtils.equals(oldItem.getMediaId(), newItem.getMediaId());
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            final MediaBrowserCompat.MediaItem oldItem = mOldItems.get(oldItemPosition);
+            final MediaBrowserCompat.MediaItem newItem = mNewItems.get(newItemPosition);
+            if (oldItem == null || newItem == null) {
+                return oldItem == newItem;
+            }
+            final MediaDescriptionCompat oldDescription = oldItem.getDescription();
+            final MediaDescriptionCompat newDescription = newItem.getDescription();
+            return oldItem.getFlags() == newItem.getFlags()
+                    && TextUtils.equals(oldDescription.getTitle(), newDescription.getTitle())
+                    && TextUtils.equals(oldDescription.getSubtitle(),
+                    newDescription.getSubtitle())
+                    && (oldDescription.getIconUri() == null
+                    ? newDescription.getIconUri() == null
+                    : oldDescription.getIconUri().equals(newDescription.getIconUri()));
+        }
+    }
+}
@@ -2,33 +2,121 @@ package com.example.android.mediasession.ui;
 
 import android.animation.ValueAnimator;
 import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.support.annotation.Nullable;
+import android.support.v4.content.ContextCompat;
 import android.support.v7.widget.AppCompatSeekBar;
 import android.util.AttributeSet;
 import android.view.animation.LinearInterpolator;
 import android.widget.SeekBar;
 
+import com.example.android.mediasession.R;
+import com.example.android.mediasession.service.loudness.WaveformFile;
+
 /**
- * SeekBar
+ * SeekBar, with the waveform of the track behind the progress when there is one.
+ * <p>
+ * The waveform is read from its memory-mapped {@link WaveformFile} on every draw; the bars
+ * are drawn with preallocated paints, so a frame of the progress animation allocates nothing
+ * and costs the same for every track.
  */
 public class MediaSeekBar extends AppCompatSeekBar {
 
+    // 波形的竖条宽度和间隔 (dp)
+    private static final float BAR_WIDTH_DP = 2;
+    private static final float BAR_GAP_DP = 1;
+    // 未播放部分的颜色
+    private static final int REMAINING_COLOR = 0x33000000;
+
 
     /**
      * 数据
      */
     private boolean mIsTracking = false;
 
+    // 波形，没有时为null
+    private WaveformFile mWaveform;
+    private String mWaveformPath;
+    private final Paint mPlayedPaint = new Paint();
+    private final Paint mRemainingPaint = new Paint();
+    private float mBarWidth;
+    private float mBarGap;
+
 
     public MediaSeekBar(Context context) {
         super(context);
+        init(context);
     }
 
     public MediaSeekBar(Context context, AttributeSet attrs) {
         super(context, attrs);
+        init(context);
     }
 
     public MediaSeekBar(Context context, AttributeSet attrs, int defStyleAttr) {
         super(context, attrs, defStyleAttr);
+        init(context);
+    }
+
+    private void init(Context context) {
+        final float density = context.getResources().getDisplayMetrics().density;
+        mBarWidth = BAR_WIDTH_DP * density;
+        mBarGap = BAR_GAP_DP * density;
+        mPlayedPaint.setColor(ContextCompat.getColor(context, R.color.colorAccent));
+        mPlayedPaint.setAlpha(0x80);
+        mRemainingPaint.setColor(REMAINING_COLOR);
+    }
+
+    /**
+     * 设置波形文件
+     *
+     * @param path 波形文件路径，null表示没有波形
+     */
+    public void setWaveform(@Nullable String path) {
+        if (path == null ? mWaveformPath == null : path.equals(mWaveformPath)) {
+            return;
+        }
+        mWaveformPath = path;
+        // A 1 KB file: mapped on the main thread like a small resource.
+        mWaveform = path != null ? WaveformFile.open(path) : null;
+        invalidate();
+    }
+
+    @Override
+    protected synchronized void onDraw(Canvas canvas) {
+        drawWaveform(canvas);
+        super.onDraw(canvas);
+    }
+
+    /**
+     * 每个竖条取所覆盖的峰值中的最大值，已播放部分用强调色
+     */
+    private void drawWaveform(Canvas canvas) {
+        if (mWaveform == null || mWaveform.getBucketCount() == 0) {
+            return;
+        }
+        final int left = getPaddingLeft();
+        final int width = getWidth() - left - getPaddingRight();
+        final float halfHeight = (getHeight() - getPaddingTop() - getPaddingBottom()) / 2f;
+        if (width <= 0 || halfHeight <= 0) {
+            return;
+        }
+        final float centerY = getPaddingTop() + halfHeight;
+        final float step = mBarWidth + mBarGap;
+        final int bars = (int) (width / step);
+        final int buckets = mWaveform.getBucketCount();
+        final float playedX = left + (getMax() > 0 ? width * (float) getProgress() / getMax() : 0);
+        for (int bar = 0; bar < bars; bar++) {
+            final int from = bar * buckets / bars;
+            final int to = Math.max(from + 1, (bar + 1) * buckets / bars);
+            final float peak = mWaveform.getPeak(from, to);
+            // A flat line where the track is silent.
+            final float barHalfHeight = Math.max(mBarWidth / 2, peak * halfHeight);
+            final float x = left + bar * step;
+            canvas.drawRect(x, centerY - barHalfHeight, x + mBarWidth, centerY + barHalfHeight,
+                    x < playedX ? mPlayedPaint : mRemainingPaint);
+        }
     }
 
     @Override
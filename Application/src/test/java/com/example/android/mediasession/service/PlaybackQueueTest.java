@@ -0,0 +1,213 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service;
+
+import android.support.v4.media.MediaDescriptionCompat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Shuffle keeps its order while the queue changes: what was played is not shuffled back in.
+ * The index of the ids follows the queue through adds and removes.
+ */
+public class PlaybackQueueTest {
+
+    private static final long SEED = 42;
+
+
+    @Test
+    public void appendingKeepsTheOrderOfTheQueue() {
+        final PlaybackQueue queue = newQueue(0, 100);
+        queue.setShuffleEnabled(true, SEED);
+        final List<String> before = playOrder(queue, 100);
+        final List<String> played = skip(queue, 30);
+
+        queue.addMediaIds(ids(100, 50));
+        add(queue, 150);
+
+        // The rest of the old items follow as before, then every new item once.
+        final List<String> after = playOrder(queue, 151);
+        assertEquals(before.subList(30, 100), after.subList(0, 70));
+        assertEquals(151, new HashSet<>(after).size());
+        assertEquals(played, playOrder(queue, -30));
+    }
+
+    @Test
+    public void removingKeepsTheOrderOfTheOthers() {
+        final PlaybackQueue queue = newQueue(0, 100);
+        queue.setShuffleEnabled(true, SEED);
+        skip(queue, 10);
+        final List<String> before = playOrder(queue, 100);
+
+        final Set<String> removed = new HashSet<>();
+        for (int i = 0; i < 100; i += 7) {
+            removed.add("Track_" + i);
+        }
+        removed.remove(queue.getCurrentMediaId());
+        for (String mediaId : removed) {
+            assertTrue(queue.remove(description(mediaId)));
+        }
+
+        final List<String> expected = new ArrayList<>(before);
+        expected.removeAll(removed);
+        assertEquals(expected, playOrder(queue, queue.size()));
+    }
+
+    @Test
+    public void addThenRemoveRestoresTheOrder() {
+        final PlaybackQueue queue = newQueue(0, 1000);
+        queue.setShuffleEnabled(true, SEED);
+        final List<String> before = playOrder(queue, 1000);
+        for (int i = 0; i < 100; i++) {
+            add(queue, 1000 + i);
+            assertTrue(queue.remove(description("Track_" + (1000 + i))));
+        }
+        assertEquals(before, playOrder(queue, 1000));
+    }
+
+    @Test
+    public void indexOfFindsTheFirstCopyAfterAddsAndRemoves() {
+        final PlaybackQueue queue = newQueue(0, 20);
+        // Second copies of the first ten.
+        queue.addMediaIds(ids(0, 10));
+        assertEquals(5, queue.indexOf("Track_5"));
+        assertEquals(-1, queue.indexOf("Track_99"));
+
+        // The first copy goes, the second is found where it moved to.
+        assertTrue(queue.remove(description("Track_5")));
+        assertEquals(24, queue.indexOf("Track_5"));
+        assertEquals(6, queue.indexOf("Track_7"));
+        assertTrue(queue.remove(description("Track_5")));
+        assertEquals(-1, queue.indexOf("Track_5"));
+        assertFalse(queue.remove(description("Track_5")));
+
+        add(queue, 5);
+        assertEquals(28, queue.indexOf("Track_5"));
+        assertTrue(queue.remove(description("Track_0")));
+        assertEquals(27, queue.indexOf("Track_5"));
+        assertEquals(queue.getMediaIds().indexOf("Track_9"), queue.indexOf("Track_9"));
+
+        queue.clear();
+        assertEquals(-1, queue.indexOf("Track_9"));
+        add(queue, 9);
+        assertEquals(0, queue.indexOf("Track_9"));
+    }
+
+    @Test
+    public void indexOfMatchesALinearSearch() {
+        final PlaybackQueue queue = new PlaybackQueue();
+        final Random random = new Random(SEED);
+        for (int i = 0; i < 5000; i++) {
+            final String mediaId = "Track_" + random.nextInt(200);
+            switch (random.nextInt(3)) {
+                case 0:
+                    queue.add(description(mediaId));
+                    break;
+                case 1:
+                    assertEquals(queue.getMediaIds().contains(mediaId),
+                            queue.remove(description(mediaId)));
+                    break;
+                default:
+                    assertEquals(queue.getMediaIds().indexOf(mediaId), queue.indexOf(mediaId));
+            }
+        }
+    }
+
+    @Test
+    public void positionsAndIndicesAreInverse() {
+        final ShuffleOrder order = new ShuffleOrder(50, SEED, 17);
+        order.append(1);
+        order.append(30);
+        order.remove(17);
+        order.remove(60);
+        order.remove(3);
+        assertEquals(78, order.size());
+        final Set<Integer> indices = new HashSet<>();
+        for (int position = 0; position < order.size(); position++) {
+            final int index = order.indexAt(position);
+            assertEquals(position, order.positionOf(index));
+            indices.add(index);
+        }
+        assertEquals(78, indices.size());
+    }
+
+
+    // ##########################################################################################
+
+
+    private static PlaybackQueue newQueue(int first, int count) {
+        final PlaybackQueue queue = new PlaybackQueue();
+        for (int i = first; i < first + count; i++) {
+            add(queue, i);
+        }
+        return queue;
+    }
+
+    private static void add(PlaybackQueue queue, int track) {
+        queue.add(description("Track_" + track));
+    }
+
+    private static MediaDescriptionCompat description(String mediaId) {
+        return new MediaDescriptionCompat.Builder().setMediaId(mediaId).build();
+    }
+
+    private static List<String> ids(int first, int count) {
+        final List<String> ids = new ArrayList<>();
+        for (int i = first; i < first + count; i++) {
+            ids.add("Track_" + i);
+        }
+        return ids;
+    }
+
+    /**
+     * 从当前音频开始的播放顺序，不切换
+     *
+     * @param count 负数时向前
+     */
+    private static List<String> playOrder(PlaybackQueue queue, int count) {
+        final List<String> order = new ArrayList<>();
+        for (int i = 0; i < Math.abs(count); i++) {
+            final int offset = count > 0 ? i : i - Math.abs(count);
+            order.add(queue.getMediaId(queue.getIndexAtOffset(offset)));
+        }
+        return order;
+    }
+
+    /**
+     * 切换count次
+     *
+     * @return 切换前的各首
+     */
+    private static List<String> skip(PlaybackQueue queue, int count) {
+        final List<String> played = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            played.add(queue.getCurrentMediaId());
+            assertTrue(queue.skipToNext());
+        }
+        return played;
+    }
+}
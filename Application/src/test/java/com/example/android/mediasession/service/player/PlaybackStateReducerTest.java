@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.player;
+
+import android.support.v4.media.session.PlaybackStateCompat;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * The steady state while playing must not allocate: PlaybackStateBenchmark in the benchmarks
+ * module shows it with the gc profiler, this fails the build when it regresses.
+ */
+public class PlaybackStateReducerTest {
+
+    // 预热的调用次数，足够让JIT编译reduce()
+    private static final int WARMUP_CALLS = 200000;
+    private static final int MEASURED_CALLS = 100000;
+    private static final long STEP_MS = 250;
+
+
+    private final PlaybackStateReducer mReducer = new PlaybackStateReducer();
+    private long mPosition;
+    // 模拟的 elapsedRealtime
+    private long mNowMs;
+
+
+    @Test
+    public void reduceUnchangedAllocatesNothing() {
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+        assertNotNull(reducePlaying());
+        for (int i = 0; i < WARMUP_CALLS; i++) {
+            assertNull(reducePlaying());
+        }
+
+        // Nothing in between may allocate: the loop and the check use primitives only.
+        int sent = 0;
+        final long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED_CALLS; i++) {
+            if (reducePlaying() != null) {
+                sent++;
+            }
+        }
+        final long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals("states sent", 0, sent);
+        assertEquals("bytes allocated by " + MEASURED_CALLS + " calls", 0, allocated);
+    }
+
+    @Test
+    public void reduceSendsChanges() {
+        assertNotNull(reducePlaying());
+        assertNull(reducePlaying());
+        // A seek moves the position away from where the clients put it.
+        mPosition += 10 * STEP_MS;
+        assertNotNull(reducePlaying());
+        assertNotNull(mReducer.reduce(PlaybackStateCompat.STATE_PAUSED, mPosition, 1.0f, mNowMs));
+        mReducer.invalidate();
+        assertNotNull(mReducer.reduce(PlaybackStateCompat.STATE_PAUSED, mPosition, 1.0f, mNowMs));
+    }
+
+
+    // ##########################################################################################
+
+
+    /**
+     * 正常播放，位置与时间同步前进
+     */
+    private PlaybackStateCompat reducePlaying() {
+        mPosition += STEP_MS;
+        mNowMs += STEP_MS;
+        return mReducer.reduce(PlaybackStateCompat.STATE_PLAYING, mPosition, 1.0f, mNowMs);
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.player.source;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link HttpCacheReader} and {@link MediaCache} against a loopback HTTP server that can
+ * serve ranges or ignore them, leave out the length, send a wrong Content-Range and change
+ * the file.
+ */
+public class HttpCacheReaderTest {
+
+    // HttpCacheReader 每次请求的最大长度
+    private static final int CHUNK = 512 * 1024;
+    private static final int SIZE = CHUNK + CHUNK / 2;
+    private static final long MAX_BYTES = 4 * SIZE;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private Server mServer;
+    private File mDirectory;
+    private MediaCache mCache;
+
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new Server(content(SIZE, 1), "\"v1\"");
+        mDirectory = mFolder.newFolder("cache");
+        mCache = new MediaCache(mDirectory, MAX_BYTES);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+    }
+
+    @Test
+    public void rangeMissIsFetchedOnceThenHit() throws IOException {
+        final HttpCacheReader reader = new HttpCacheReader(mServer.url("a"), mCache);
+        try {
+            // The size comes with the first chunk, the rest is a second range.
+            assertArrayEquals(slice(mServer.mContent, CHUNK + 100, 100),
+                    read(reader, CHUNK + 100, 100));
+            assertEquals(SIZE, reader.getSize());
+            assertEquals(2, mServer.requestCount());
+            final Map<String, String> first = mServer.request(0);
+            assertEquals("bytes=0-" + (CHUNK - 1), first.get("range"));
+            assertEquals("identity", first.get("accept-encoding"));
+            // Nothing cached to validate yet.
+            assertNull(first.get("if-range"));
+            final Map<String, String> second = mServer.request(1);
+            assertEquals("bytes=" + (CHUNK + 100) + "-" + (SIZE - 1), second.get("range"));
+            assertEquals("\"v1\"", second.get("if-range"));
+
+            assertArrayEquals(slice(mServer.mContent, CHUNK + 150, 100),
+                    read(reader, CHUNK + 150, 100));
+            assertArrayEquals(slice(mServer.mContent, 0, 100), read(reader, 0, 100));
+            assertEquals(2, mServer.requestCount());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void seekBackFetchesOnlyUpToTheCachedSpan() throws IOException {
+        final HttpCacheReader reader = new HttpCacheReader(mServer.url("a"), mCache);
+        try {
+            read(reader, CHUNK + 100, 1);
+            assertArrayEquals(slice(mServer.mContent, CHUNK, 10), read(reader, CHUNK, 10));
+            assertEquals(3, mServer.requestCount());
+            assertEquals("bytes=" + CHUNK + "-" + (CHUNK + 99), mServer.request(2).get("range"));
+            // All of it is cached now.
+            assertArrayEquals(mServer.mContent, read(reader, 0, SIZE));
+            assertEquals(3, mServer.requestCount());
+        } finally {
+            reader.close();
+        }
+        assertEquals(SIZE, mCache.getCachedBytes());
+    }
+
+    @Test
+    public void serverIgnoringRangesFallsBackTo200() throws IOException {
+        mServer.mRanges = false;
+        final HttpCacheReader reader = new HttpCacheReader(mServer.url("a"), mCache);
+        try {
+            // The body starts at 0 and is skipped up to the position.
+            assertArrayEquals(slice(mServer.mContent, CHUNK + 100, 100),
+                    read(reader, CHUNK + 100, 100));
+            assertEquals(SIZE, reader.getSize());
+            assertEquals(2, mServer.requestCount());
+            // Same validator: what was cached from the first 200 is kept.
+            assertArrayEquals(slice(mServer.mContent, 0, 100), read(reader, 0, 100));
+            assertEquals(2, mServer.requestCount());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void endOfStreamWithoutALengthIsTheEndOfTheFile() throws IOException {
+        mServer.mContent = content(1000, 1);
+        mServer.mRanges = false;
+        mServer.mLength = false;
+        final HttpCacheReader reader = new HttpCacheReader(mServer.url("a"), mCache);
+        try {
+            assertArrayEquals(mServer.mContent, read(reader, 0, 2000));
+            assertEquals(1000, reader.getSize());
+            assertEquals(-1, reader.readAt(1000, new byte[10], 0, 10));
+            assertEquals(1, mServer.requestCount());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void wrongContentRangeStartFails() throws IOException {
+        mServer.mWrongStart = true;
+        final HttpCacheReader reader = new HttpCacheReader(mServer.url("a"), mCache);
+        try {
+            reader.readAt(0, new byte[10], 0, 10);
+            fail("the bytes of another range were accepted");
+        } catch (IOException expected) {
+            // Expected.
+        } finally {
+            reader.close();
+        }
+        assertEquals(0, mCache.getCachedBytes());
+    }
+
+    @Test
+    public void changedFileReplacesTheCachedBytes() throws IOException {
+        HttpCacheReader reader = new HttpCacheReader(mServer.url("a"), mCache);
+        try {
+            read(reader, 0, 10);
+        } finally {
+            reader.close();
+        }
+        mServer.mContent = content(SIZE, 2);
+        mServer.mETag = "\"v2\"";
+
+        reader = new HttpCacheReader(mServer.url("a"), mCache);
+        try {
+            // If-Range does not match: the server sends the whole new file.
+            assertArrayEquals(slice(mServer.mContent, CHUNK + 100, 10),
+                    read(reader, CHUNK + 100, 10));
+            assertEquals("\"v1\"", mServer.request(1).get("if-range"));
+            // Not the bytes of the old file that were cached there.
+            assertArrayEquals(slice(mServer.mContent, 0, 10), read(reader, 0, 10));
+            assertEquals("\"v2\"", mServer.request(2).get("if-range"));
+            assertEquals(3, mServer.requestCount());
+        } finally {
+            reader.close();
+        }
+        assertEquals(SIZE - 100, mCache.getCachedBytes());
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvicted() throws IOException {
+        final MediaCache cache = new MediaCache(mDirectory, SIZE + SIZE / 2);
+        for (String path : new String[]{"a", "b"}) {
+            final HttpCacheReader reader = new HttpCacheReader(mServer.url(path), cache);
+            try {
+                read(reader, 0, SIZE);
+            } finally {
+                reader.close();
+            }
+        }
+        assertEquals(SIZE, cache.getCachedBytes());
+        assertEquals(1, countDataFiles());
+        assertEquals(4, mServer.requestCount());
+
+        // "a" was evicted and is downloaded again.
+        final HttpCacheReader reader = new HttpCacheReader(mServer.url("a"), cache);
+        try {
+            read(reader, 0, 10);
+        } finally {
+            reader.close();
+        }
+        assertEquals(5, mServer.requestCount());
+    }
+
+    @Test
+    public void indexSurvivesReopenAndUnindexedFilesAreSwept() throws IOException {
+        final HttpCacheReader reader = new HttpCacheReader(mServer.url("a"), mCache);
+        try {
+            read(reader, 0, SIZE);
+        } finally {
+            reader.close();
+        }
+        final File orphan = new File(mDirectory, "0123.data");
+        assertTrue(orphan.createNewFile());
+
+        final MediaCache reopened = new MediaCache(mDirectory, MAX_BYTES);
+        assertEquals(SIZE, reopened.getCachedBytes());
+        assertFalse(orphan.exists());
+        assertFalse(new File(mDirectory, "cache.index.tmp").exists());
+        final MediaCache.Entry entry = reopened.acquire(mServer.url("a"));
+        final MediaCache.Entry other = reopened.acquire(mServer.url("b"));
+        try {
+            assertEquals("\"v1\"", entry.getValidator());
+            assertEquals(SIZE, entry.cachedLength(0));
+            assertEquals(0, other.cachedLength(0));
+        } finally {
+            reopened.release(entry);
+            reopened.release(other);
+        }
+    }
+
+
+    // ##########################################################################################
+
+
+    private static byte[] read(HttpCacheReader reader, long position, int size)
+            throws IOException {
+        final byte[] buffer = new byte[size];
+        int offset = 0;
+        while (offset < size) {
+            final int read = reader.readAt(position + offset, buffer, offset, size - offset);
+            if (read < 0) {
+                return Arrays.copyOf(buffer, offset);
+            }
+            offset += read;
+        }
+        return buffer;
+    }
+
+    private static byte[] content(int size, int seed) {
+        final byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (i * 31 + seed * 7 + i / 251);
+        }
+        return content;
+    }
+
+    private static byte[] slice(byte[] content, int from, int length) {
+        return Arrays.copyOfRange(content, from, from + length);
+    }
+
+    private int countDataFiles() {
+        int count = 0;
+        for (String name : mDirectory.list()) {
+            if (name.endsWith(".data")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+
+    /**
+     * 单线程的回环http服务器，每个连接一个请求
+     */
+    private static final class Server implements Runnable {
+
+        private final ServerSocket mSocket;
+        private final List<Map<String, String>> mRequests = new ArrayList<>();
+        volatile byte[] mContent;
+        volatile String mETag;
+        // 是否支持Range，是否发送Content-Length，206是否从错误的位置开始
+        volatile boolean mRanges = true;
+        volatile boolean mLength = true;
+        volatile boolean mWrongStart;
+
+        Server(byte[] content, String eTag) throws IOException {
+            mContent = content;
+            mETag = eTag;
+            mSocket = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+            final Thread thread = new Thread(this, "HttpCacheReaderTest");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String url(String path) {
+            return "http://127.0.0.1:" + mSocket.getLocalPort() + "/" + path;
+        }
+
+        synchronized int requestCount() {
+            return mRequests.size();
+        }
+
+        synchronized Map<String, String> request(int index) {
+            return mRequests.get(index);
+        }
+
+        void close() throws IOException {
+            mSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (!mSocket.isClosed()) {
+                try {
+                    final Socket socket = mSocket.accept();
+                    try {
+                        serve(socket);
+                    } finally {
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // Closed, or the client went away.
+                }
+            }
+        }
+
+        private void serve(Socket socket) throws IOException {
+            final BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+            if (in.readLine() == null) {
+                return;
+            }
+            final Map<String, String> headers = new HashMap<>();
+            String line;
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                final int colon = line.indexOf(':');
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                        line.substring(colon + 1).trim());
+            }
+            synchronized (this) {
+                mRequests.add(headers);
+            }
+
+            final byte[] content = mContent;
+            final String range = headers.get("range");
+            final String ifRange = headers.get("if-range");
+            int start = 0;
+            int end = content.length - 1;
+            final StringBuilder response = new StringBuilder();
+            if (mRanges && range != null && (ifRange == null || ifRange.equals(mETag))) {
+                final String[] bounds = range.substring("bytes=".length()).split("-");
+                start = Integer.parseInt(bounds[0]);
+                end = Math.min(end, Integer.parseInt(bounds[1]));
+                final int reported = mWrongStart ? start + 1 : start;
+                response.append("HTTP/1.1 206 Partial Content\r\n")
+                        .append("Content-Range: bytes ").append(reported).append('-')
+                        .append(end).append('/').append(content.length).append("\r\n");
+            } else {
+                response.append("HTTP/1.1 200 OK\r\n");
+            }
+            if (mLength) {
+                response.append("Content-Length: ").append(end - start + 1).append("\r\n");
+            }
+            if (mETag != null) {
+                response.append("ETag: ").append(mETag).append("\r\n");
+            }
+            response.append("Connection: close\r\n\r\n");
+            final OutputStream out = socket.getOutputStream();
+            out.write(response.toString().getBytes("ISO-8859-1"));
+            out.write(content, start, end - start + 1);
+            out.flush();
+        }
+    }
+}
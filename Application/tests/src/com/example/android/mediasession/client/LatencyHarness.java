@@ -0,0 +1,385 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.client;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.example.android.mediasession.MediaSessionApplication;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Drives {@link MediaBrowserManager} through many skip, seek and reconnect round trips
+ * against the real {@link com.example.android.mediasession.service.MusicService} and checks
+ * the p99 latency of each against a limit. Run by {@link LatencyHarnessTest} with the
+ * instrumentation arguments, which the latencyCheck task of the Application module passes
+ * on (see its build.gradle):
+ * <pre>
+ * ./gradlew :Application:latencyCheck -Platency_iterations=2000 -Platency_max_p99_skip_ms=150
+ * ./gradlew :Application:latencyCheck -Platency_cold_connect_iterations=50
+ * </pre>
+ * The second runs only the cold connects. Operations given no iterations are left out of the
+ * report.
+ * Cold connects kill the {@link MediaSessionApplication#PLAYBACK_PROCESS_SUFFIX} process
+ * before each connection, which only an app built with MusicService in its own process can
+ * do; otherwise they are skipped.
+ * The latency distribution, allocated bytes per operation (Android M and above) and a final
+ * PASS or FAIL line are logged under the tag {@value #TAG} and returned as the report. The
+ * limits and their check are those of {@link LatencyProbe}, which LatencyProbeTest in the
+ * benchmarks module checks on the JVM.
+ * <p>
+ * 往返延迟测试
+ */
+public final class LatencyHarness implements LatencyProbe.OnLatencyRecordedListener {
+
+    private static final String TAG = "LatencyHarness";
+
+    // instrumentation的参数：skip和seek的次数
+    public static final String ARG_ITERATIONS = "latency_iterations";
+    // 重新连接的次数
+    public static final String ARG_CONNECT_ITERATIONS = "latency_connect_iterations";
+    public static final String ARG_COLD_CONNECT_ITERATIONS =
+            "latency_cold_connect_iterations";
+    // p99上限 (ms)
+    public static final String ARG_MAX_P99_CONNECT_MS = "latency_max_p99_connect_ms";
+    public static final String ARG_MAX_P99_SKIP_MS = "latency_max_p99_skip_ms";
+    public static final String ARG_MAX_P99_SEEK_MS = "latency_max_p99_seek_ms";
+    public static final String ARG_MAX_P99_COLD_CONNECT_MS = "latency_max_p99_cold_connect_ms";
+
+    private static final int DEFAULT_CONNECT_ITERATIONS = 100;
+    private static final int DEFAULT_COLD_CONNECT_ITERATIONS = 20;
+
+    // 单次操作超时
+    private static final long TIMEOUT_MS = 5000;
+    // 等待首次连接的轮询间隔
+    private static final long CONNECT_POLL_MS = 100;
+    // seek的两个目标，都在最短的音频之内
+    private static final long[] SEEK_POSITIONS_MS = {10 * 1000, 30 * 1000};
+    // 执行顺序：skip会开始播放，seek需要播放器已创建
+    private static final int[] OPS = {
+            LatencyProbe.OP_SKIP, LatencyProbe.OP_SEEK, LatencyProbe.OP_CONNECT,
+            LatencyProbe.OP_COLD_CONNECT
+    };
+
+    /**
+     * 测试结束的回调
+     */
+    public interface Callback {
+        void onFinished(boolean passed, String report);
+    }
+
+
+    private final ActivityManager mActivityManager;
+    private final MediaBrowserManager mManager;
+    private final LatencyProbe mProbe;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final int[] mIterations = new int[OPS.length];
+    private final long[] mMaxP99Micros = new long[OPS.length];
+    private final int[] mTimeouts = new int[OPS.length];
+    private final long[] mAllocatedBytes = new long[OPS.length];
+    // 被杀死的播放进程
+    private int mKilledPid;
+    // 单进程构建，冷连接没有执行
+    private boolean mColdConnectSkipped;
+
+    private Callback mCallback;
+    // 当前执行的操作在 OPS 中的位置
+    private int mPhase;
+    private int mRemaining;
+    private long mPhaseStartBytes;
+    private long mStartWaitMs;
+
+    private final Runnable mNextRunnable = new Runnable() {
+        @Override
+        public void run() {
+            next();
+        }
+    };
+
+    private final Runnable mTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final int op = OPS[mPhase];
+            Log.w(TAG, "Timed out waiting for " + LatencyProbe.getOpName(op));
+            mHandler.removeCallbacks(mKillRunnable);
+            mHandler.removeCallbacks(mWaitForDeathRunnable);
+            mProbe.cancel(op);
+            mTimeouts[op]++;
+            next();
+        }
+    };
+
+    /**
+     * 停止播放后杀死播放进程，否则系统会重新启动仍在前台的service
+     */
+    private final Runnable mKillRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mKilledPid = findPlaybackPid();
+            if (mKilledPid == 0) {
+                Log.w(TAG, "MusicService does not run in its own process; no cold connects");
+                mColdConnectSkipped = true;
+                mHandler.removeCallbacks(mTimeoutRunnable);
+                mRemaining = 0;
+                mManager.onStart();
+                next();
+                return;
+            }
+            Process.killProcess(mKilledPid);
+            mHandler.postDelayed(mWaitForDeathRunnable, CONNECT_POLL_MS);
+        }
+    };
+
+    private final Runnable mWaitForDeathRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (findPlaybackPid() == mKilledPid) {
+                mHandler.postDelayed(this, CONNECT_POLL_MS);
+                return;
+            }
+            // onStart() starts timing a warm connection; this one is cold.
+            mManager.onStart();
+            mProbe.cancel(LatencyProbe.OP_CONNECT);
+            mProbe.start(LatencyProbe.OP_COLD_CONNECT);
+        }
+    };
+
+    private final Runnable mWaitForConnectionRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mManager.isConnected()) {
+                startPhase(0);
+            } else if (System.currentTimeMillis() - mStartWaitMs > TIMEOUT_MS) {
+                finish("Could not connect to MusicService");
+            } else {
+                mHandler.postDelayed(this, CONNECT_POLL_MS);
+            }
+        }
+    };
+
+
+    /**
+     * 是否需要运行：给出了任何一种操作的次数
+     *
+     * @param arguments instrumentation的参数
+     */
+    public static boolean isRequested(Bundle arguments) {
+        return getInt(arguments, ARG_ITERATIONS, 0) > 0
+                || getInt(arguments, ARG_CONNECT_ITERATIONS, 0) > 0
+                || getInt(arguments, ARG_COLD_CONNECT_ITERATIONS, 0) > 0;
+    }
+
+    /**
+     * 构造方法
+     *
+     * @param context
+     * @param manager
+     * @param arguments instrumentation的参数 (am instrument -e)，值都是字符串
+     */
+    public LatencyHarness(Context context, MediaBrowserManager manager, Bundle arguments) {
+        mActivityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        mManager = manager;
+        mProbe = manager.getLatencyProbe();
+        final int iterations = getInt(arguments, ARG_ITERATIONS, 0);
+        mIterations[LatencyProbe.OP_SKIP] = iterations;
+        mIterations[LatencyProbe.OP_SEEK] = iterations;
+        // Without skip and seek iterations only the phases asked for run, e.g. only the
+        // cold connects.
+        mIterations[LatencyProbe.OP_CONNECT] = getInt(arguments, ARG_CONNECT_ITERATIONS,
+                iterations > 0 ? DEFAULT_CONNECT_ITERATIONS : 0);
+        mIterations[LatencyProbe.OP_COLD_CONNECT] = getInt(arguments, ARG_COLD_CONNECT_ITERATIONS,
+                iterations > 0 ? DEFAULT_COLD_CONNECT_ITERATIONS : 0);
+        mMaxP99Micros[LatencyProbe.OP_CONNECT] = 1000L * getInt(arguments,
+                ARG_MAX_P99_CONNECT_MS, LatencyProbe.getDefaultMaxP99Ms(LatencyProbe.OP_CONNECT));
+        mMaxP99Micros[LatencyProbe.OP_SKIP] = 1000L * getInt(arguments,
+                ARG_MAX_P99_SKIP_MS, LatencyProbe.getDefaultMaxP99Ms(LatencyProbe.OP_SKIP));
+        mMaxP99Micros[LatencyProbe.OP_SEEK] = 1000L * getInt(arguments,
+                ARG_MAX_P99_SEEK_MS, LatencyProbe.getDefaultMaxP99Ms(LatencyProbe.OP_SEEK));
+        mMaxP99Micros[LatencyProbe.OP_COLD_CONNECT] = 1000L * getInt(arguments,
+                ARG_MAX_P99_COLD_CONNECT_MS,
+                LatencyProbe.getDefaultMaxP99Ms(LatencyProbe.OP_COLD_CONNECT));
+    }
+
+    /**
+     * 开始测试，等连接到service后执行
+     *
+     * @param callback
+     */
+    public void start(Callback callback) {
+        mCallback = callback;
+        mProbe.reset();
+        mProbe.setOnLatencyRecordedListener(this);
+        mStartWaitMs = System.currentTimeMillis();
+        mHandler.post(mWaitForConnectionRunnable);
+    }
+
+    /**
+     * 停止测试，例如Activity已销毁
+     */
+    public void cancel() {
+        mHandler.removeCallbacks(mNextRunnable);
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        mHandler.removeCallbacks(mWaitForConnectionRunnable);
+        mHandler.removeCallbacks(mKillRunnable);
+        mHandler.removeCallbacks(mWaitForDeathRunnable);
+        mProbe.setOnLatencyRecordedListener(null);
+        mCallback = null;
+    }
+
+    @Override
+    public void onLatencyRecorded(int op, long nanos) {
+        if (mPhase < OPS.length && op == OPS[mPhase]) {
+            mHandler.removeCallbacks(mTimeoutRunnable);
+            // Not from inside the controller callback that completed the measurement.
+            mHandler.post(mNextRunnable);
+        }
+    }
+
+
+    // ##########################################################################################
+
+
+    private void startPhase(int phase) {
+        mPhase = phase;
+        if (mPhase >= OPS.length) {
+            finish(null);
+            return;
+        }
+        mRemaining = mIterations[OPS[mPhase]];
+        mPhaseStartBytes = getAllocatedBytes();
+        next();
+    }
+
+    private void next() {
+        final int op = OPS[mPhase];
+        if (mRemaining == 0) {
+            final long endBytes = getAllocatedBytes();
+            mAllocatedBytes[op] = mPhaseStartBytes < 0 ? -1 : endBytes - mPhaseStartBytes;
+            startPhase(mPhase + 1);
+            return;
+        }
+        mRemaining--;
+        mHandler.postDelayed(mTimeoutRunnable, TIMEOUT_MS);
+        switch (op) {
+            case LatencyProbe.OP_SKIP:
+                mManager.skipToNext();
+                break;
+            case LatencyProbe.OP_SEEK:
+                mManager.seekTo(SEEK_POSITIONS_MS[mRemaining % SEEK_POSITIONS_MS.length]);
+                break;
+            case LatencyProbe.OP_CONNECT:
+                // onStart() starts timing the connection.
+                mManager.onStop();
+                mManager.onStart();
+                break;
+            case LatencyProbe.OP_COLD_CONNECT:
+                if (mManager.isConnected()) {
+                    mManager.getTransportControls().stop();
+                }
+                mManager.onStop();
+                // The stop reaches the service before the process is killed.
+                mHandler.postDelayed(mKillRunnable, CONNECT_POLL_MS);
+                break;
+        }
+    }
+
+    private void finish(String error) {
+        boolean passed = error == null;
+        final StringBuilder report = new StringBuilder();
+        if (error != null) {
+            report.append(error).append('\n');
+        }
+        for (int op : OPS) {
+            if (mIterations[op] == 0) {
+                continue;
+            }
+            if (op == LatencyProbe.OP_COLD_CONNECT && mColdConnectSkipped) {
+                report.append(LatencyProbe.getOpName(op))
+                        .append(": skipped, MusicService runs in the UI process\n");
+                continue;
+            }
+            final LatencyHistogram histogram = mProbe.getHistogram(op);
+            final long count = histogram.getCount();
+            final boolean opPassed = mTimeouts[op] == 0
+                    && mProbe.isWithinLimit(op, mMaxP99Micros[op]);
+            passed &= opPassed;
+            report.append(String.format(Locale.US,
+                    "%s: %s timeouts=%d alloc=%s limit p99=%dms %s%n",
+                    LatencyProbe.getOpName(op),
+                    histogram,
+                    mTimeouts[op],
+                    mAllocatedBytes[op] < 0 || count == 0
+                            ? "n/a"
+                            : (mAllocatedBytes[op] / count) + "B/op",
+                    mMaxP99Micros[op] / 1000,
+                    opPassed ? "ok" : "REGRESSED"));
+        }
+        report.append(passed ? "PASS" : "FAIL");
+        for (String line : report.toString().split("\n")) {
+            Log.i(TAG, line);
+        }
+        final Callback callback = mCallback;
+        cancel();
+        if (callback != null) {
+            callback.onFinished(passed, report.toString());
+        }
+    }
+
+    /**
+     * @return 播放进程的pid，不存在时为0
+     */
+    private int findPlaybackPid() {
+        final List<ActivityManager.RunningAppProcessInfo> processes =
+                mActivityManager.getRunningAppProcesses();
+        if (processes != null) {
+            for (ActivityManager.RunningAppProcessInfo process : processes) {
+                if (process.processName.endsWith(MediaSessionApplication.PLAYBACK_PROCESS_SUFFIX)) {
+                    return process.pid;
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static int getInt(Bundle arguments, String key, int defaultValue) {
+        final String value = arguments != null ? arguments.getString(key) : null;
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    /**
+     * 进程累计分配的字节数，包括同进程的service。Android M 以下返回-1。
+     */
+    private static long getAllocatedBytes() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(Debug.getRuntimeStat("art.gc.bytes-allocated"));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.client;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs {@link LatencyHarness} against the real service: the connect, cold connect, skip and
+ * seek round trips fail the test when a p99 is over its limit. Only run when the iterations
+ * are passed as an instrumentation argument, as the latencyCheck task does, so that the
+ * other instrumentation tests stay quick.
+ */
+@RunWith(AndroidJUnit4.class)
+public class LatencyHarnessTest {
+
+    private static final long TIMEOUT_MIN = 60;
+
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+    private final Bundle mArguments = InstrumentationRegistry.getArguments();
+    private final CountDownLatch mFinished = new CountDownLatch(1);
+    private MediaBrowserManager mManager;
+    private LatencyHarness mHarness;
+    private volatile boolean mPassed;
+    private volatile String mReport;
+
+
+    @After
+    public void tearDown() {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                if (mHarness != null) {
+                    mHarness.cancel();
+                }
+                if (mManager != null) {
+                    if (mManager.isConnected()) {
+                        mManager.getTransportControls().stop();
+                    }
+                    mManager.onStop();
+                }
+            }
+        });
+    }
+
+    @Test
+    public void roundTripsStayWithinLimits() throws InterruptedException {
+        assumeTrue(LatencyHarness.isRequested(mArguments));
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mManager = new MediaBrowserManager(mContext);
+                mManager.onStart();
+                mHarness = new LatencyHarness(mContext, mManager, mArguments);
+                mHarness.start(new LatencyHarness.Callback() {
+                    @Override
+                    public void onFinished(boolean passed, String report) {
+                        mPassed = passed;
+                        mReport = report;
+                        mFinished.countDown();
+                    }
+                });
+            }
+        });
+
+        assertTrue("not finished in " + TIMEOUT_MIN + " min",
+                mFinished.await(TIMEOUT_MIN, TimeUnit.MINUTES));
+        assertTrue(mReport, mPassed);
+    }
+
+
+    // ##########################################################################################
+
+
+    private static void runOnMainSync(Runnable runnable) {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(runnable);
+    }
+}
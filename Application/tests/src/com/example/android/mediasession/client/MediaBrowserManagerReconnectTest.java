@@ -0,0 +1,177 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.client;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Kills the playback process, presses play while the service is dead, and checks that the
+ * play is sent to the restarted service once it has its queue again, instead of being dropped.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MediaBrowserManagerReconnectTest {
+
+    private static final long TIMEOUT_S = 20;
+    private static final long POLL_MS = 20;
+
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+    private MediaBrowserManager mManager;
+    private volatile CountDownLatch mConnected = new CountDownLatch(1);
+    private volatile CountDownLatch mQueueLoaded = new CountDownLatch(1);
+    private volatile CountDownLatch mPlaying = new CountDownLatch(1);
+
+    private final MediaBrowserManager.OnMediaStatusChangeListener mListener =
+            new MediaBrowserManager.OnMediaStatusChangeListener() {
+                @Override
+                public void onConnected() {
+                    mConnected.countDown();
+                }
+
+                @Override
+                public void onPlaybackStateChanged(@NonNull PlaybackStateCompat state) {
+                    // null when the connection is lost
+                    if (state != null && state.getState() == PlaybackStateCompat.STATE_PLAYING) {
+                        mPlaying.countDown();
+                    }
+                }
+
+                @Override
+                public void onMetadataChanged(MediaMetadataCompat metadata) {
+                }
+
+                @Override
+                public void onQueueChanged(List<MediaSessionCompat.QueueItem> queue) {
+                    if (queue != null && !queue.isEmpty()) {
+                        mQueueLoaded.countDown();
+                    }
+                }
+            };
+
+
+    @Before
+    public void setUp() {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mManager = new MediaBrowserManager(mContext);
+                mManager.addOnMediaStatusListener(mListener);
+                mManager.onStart();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                if (mManager.isConnected()) {
+                    mManager.getTransportControls().stop();
+                }
+                mManager.removeOnMediaStatusListener(mListener);
+                mManager.onStop();
+            }
+        });
+    }
+
+    @Test
+    public void playWhileTheServiceIsDeadResumesPlayback() throws InterruptedException {
+        assertTrue("not connected", mConnected.await(TIMEOUT_S, TimeUnit.SECONDS));
+        assertTrue("queue not loaded", mQueueLoaded.await(TIMEOUT_S, TimeUnit.SECONDS));
+        final int pid = findPlaybackPid();
+        // Built with -PsingleProcess the service runs in this process.
+        assumeTrue(pid > 0 && pid != Process.myPid());
+
+        mConnected = new CountDownLatch(1);
+        Process.killProcess(pid);
+        // Pressed only once the manager saw the death, so that it is buffered, not lost
+        // in a call to the dead binder.
+        final long deadline = SystemClock.elapsedRealtime() + TIMEOUT_S * 1000;
+        while (isConnected()) {
+            assertTrue("death not noticed", SystemClock.elapsedRealtime() < deadline);
+            SystemClock.sleep(POLL_MS);
+        }
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                assertFalse(mManager.isConnected());
+                mManager.play();
+            }
+        });
+
+        assertTrue("not reconnected", mConnected.await(TIMEOUT_S, TimeUnit.SECONDS));
+        assertTrue("the play was dropped", mPlaying.await(TIMEOUT_S, TimeUnit.SECONDS));
+    }
+
+
+    // ##########################################################################################
+
+
+    private boolean isConnected() {
+        final boolean[] connected = new boolean[1];
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                connected[0] = mManager.isConnected();
+            }
+        });
+        return connected[0];
+    }
+
+    /**
+     * 本应用中运行 MusicService 的进程，没有时为0
+     */
+    private int findPlaybackPid() {
+        final ActivityManager activityManager =
+                (ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE);
+        final String name = mContext.getPackageName() + ":playback";
+        for (ActivityManager.RunningAppProcessInfo process
+                : activityManager.getRunningAppProcesses()) {
+            if (name.equals(process.processName)) {
+                return process.pid;
+            }
+        }
+        return 0;
+    }
+
+    private static void runOnMainSync(Runnable runnable) {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(runnable);
+    }
+}
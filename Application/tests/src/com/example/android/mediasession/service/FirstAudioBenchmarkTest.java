@@ -0,0 +1,276 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+import android.util.Log;
+
+import com.example.android.mediasession.client.LatencyHistogram;
+import com.example.android.mediasession.client.MediaBrowserManager;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Measures the time to first audio of the codec backend without and with the
+ * {@link com.example.android.mediasession.service.player.StartBufferCache start buffer}:
+ * <pre>
+ * ./gradlew :Application:connectedDebugAndroidTest -Pbenchmark_first_audio_tracks=10
+ * </pre>
+ * The start buffers are deleted while the service is stopped, then the first tracks of the
+ * queue are played from the start twice over, in reverse order so that the next track the
+ * player decodes ahead has already been measured. Each play lasts long enough for the head
+ * of the track to be cached. The times are those the player records as
+ * {@code first-audio} in the flight recorder, from the creation of its decoder until the
+ * first PCM is written, grouped by where the PCM came from.
+ * <p>
+ * The report is logged under the tag {@value #TAG}. Skipped unless the number of tracks is
+ * passed as an instrumentation argument. The backend, speed and crossfade settings are
+ * restored afterwards.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FirstAudioBenchmarkTest {
+
+    private static final String TAG = "FirstAudioBenchmark";
+
+    // instrumentation的参数：播放的音频数
+    public static final String ARG_TRACKS = "benchmark_first_audio_tracks";
+    // 每次播放的时长 (ms)，需长于缓存的开头
+    public static final String ARG_PLAY_MS = "benchmark_play_ms";
+
+    private static final int DEFAULT_PLAY_MS = 5000;
+    private static final long TIMEOUT_S = 20;
+    // e.g. {"seq":12,"nanos":...,"type":"first-audio","arg":5,"name":"start-buffer","value":41}
+    private static final Pattern FIRST_AUDIO = Pattern.compile(
+            "\\{\"seq\":(\\d+),.*\"type\":\"first-audio\",.*\"name\":\"([a-z-]+)\","
+                    + "\"value\":(\\d+)\\}");
+    private static final Pattern RECORDED = Pattern.compile("\"recorded\":(\\d+)");
+
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+    private final Bundle mArguments = InstrumentationRegistry.getArguments();
+    private final SharedPreferences mPreferences =
+            mContext.getSharedPreferences(MusicService.PREFS_NAME, Context.MODE_PRIVATE);
+    private MediaBrowserManager mManager;
+    // 修改前的设置
+    private String mSavedBackend;
+    private float mSavedSpeed;
+    private long mSavedCrossfadeMs;
+    private final CountDownLatch mConnected = new CountDownLatch(1);
+    private final CountDownLatch mQueueLoaded = new CountDownLatch(1);
+    private volatile List<MediaSessionCompat.QueueItem> mQueue;
+
+    private final MediaBrowserManager.OnMediaStatusChangeListener mListener =
+            new MediaBrowserManager.OnMediaStatusChangeListener() {
+                @Override
+                public void onConnected() {
+                    mConnected.countDown();
+                }
+
+                @Override
+                public void onPlaybackStateChanged(@NonNull PlaybackStateCompat state) {
+                }
+
+                @Override
+                public void onMetadataChanged(MediaMetadataCompat metadata) {
+                }
+
+                @Override
+                public void onQueueChanged(List<MediaSessionCompat.QueueItem> queue) {
+                    if (queue != null && !queue.isEmpty()) {
+                        mQueue = queue;
+                        mQueueLoaded.countDown();
+                    }
+                }
+            };
+
+
+    @After
+    public void tearDown() {
+        if (mManager == null) {
+            return;
+        }
+        stopService();
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mManager.removeOnMediaStatusListener(mListener);
+            }
+        });
+        if (mSavedBackend == null) {
+            return;
+        }
+        // Read again by the next service.
+        mPreferences.edit()
+                .putString(MusicService.EXTRA_PLAYER_BACKEND, mSavedBackend)
+                .putFloat(MusicService.EXTRA_PLAYBACK_SPEED, mSavedSpeed)
+                .putLong(MusicService.EXTRA_CROSSFADE_MS, mSavedCrossfadeMs)
+                .commit();
+    }
+
+    @Test
+    public void firstAudioWithoutAndWithTheStartBuffer() throws Exception {
+        final int tracks = getInt(ARG_TRACKS, 0);
+        assumeTrue(tracks > 0);
+        // The flight recorder is read with a shell command.
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP);
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mManager = new MediaBrowserManager(mContext);
+                mManager.addOnMediaStatusListener(mListener);
+            }
+        });
+
+        // Only the codec backend at normal speed plays from the start buffer.
+        stopService();
+        mSavedBackend = mPreferences.getString(MusicService.EXTRA_PLAYER_BACKEND,
+                MusicService.PLAYER_BACKEND_MEDIA_PLAYER);
+        mSavedSpeed = mPreferences.getFloat(MusicService.EXTRA_PLAYBACK_SPEED, 1.0f);
+        mSavedCrossfadeMs = mPreferences.getLong(MusicService.EXTRA_CROSSFADE_MS, 0);
+        mPreferences.edit()
+                .putString(MusicService.EXTRA_PLAYER_BACKEND, MusicService.PLAYER_BACKEND_CODEC)
+                .putFloat(MusicService.EXTRA_PLAYBACK_SPEED, 1.0f)
+                .putLong(MusicService.EXTRA_CROSSFADE_MS, 0)
+                .commit();
+        deleteRecursively(new File(mContext.getCacheDir(), MusicService.START_BUFFER_DIR));
+
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mManager.onStart();
+            }
+        });
+        assertTrue("not connected", mConnected.await(TIMEOUT_S, TimeUnit.SECONDS));
+        assertTrue("queue not loaded", mQueueLoaded.await(TIMEOUT_S, TimeUnit.SECONDS));
+        final List<MediaSessionCompat.QueueItem> queue = mQueue;
+        // Two tracks at least, so that each play changes the track and starts a decoder.
+        final int count = Math.min(tracks, queue.size());
+        assertTrue("the queue has one track", count > 1);
+
+        final long firstEvent = getRecordedCount();
+        final int playMs = getInt(ARG_PLAY_MS, DEFAULT_PLAY_MS);
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = count - 1; i >= 0; i--) {
+                final long queueId = queue.get(i).getQueueId();
+                runOnMainSync(new Runnable() {
+                    @Override
+                    public void run() {
+                        mManager.skipToQueueItem(queueId);
+                    }
+                });
+                SystemClock.sleep(playMs);
+            }
+        }
+
+        final LatencyHistogram decoder = new LatencyHistogram();
+        final LatencyHistogram startBuffer = new LatencyHistogram();
+        final Matcher matcher = FIRST_AUDIO.matcher(
+                MusicServiceProcess.dump(mContext, "recorder json"));
+        while (matcher.find()) {
+            if (Long.parseLong(matcher.group(1)) < firstEvent) {
+                continue;
+            }
+            final long nanos = Long.parseLong(matcher.group(3)) * 1000 * 1000;
+            if ("start-buffer".equals(matcher.group(2))) {
+                startBuffer.record(nanos);
+            } else {
+                decoder.record(nanos);
+            }
+        }
+        final String[] report = {
+                "Plays: " + 2 * count + ", " + playMs + " ms each",
+                "First audio without the start buffer: " + decoder,
+                "First audio with the start buffer: " + startBuffer
+        };
+        for (String line : report) {
+            Log.i(TAG, line);
+        }
+        assertTrue("no first audio recorded", decoder.getCount() + startBuffer.getCount() > 0);
+    }
+
+
+    // ##########################################################################################
+
+
+    /**
+     * 停止播放并断开连接，等 service 销毁
+     */
+    private void stopService() {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                if (mManager.isConnected()) {
+                    mManager.getTransportControls().stop();
+                }
+                mManager.onStop();
+            }
+        });
+        MusicServiceProcess.waitUntilStopped(mContext);
+    }
+
+    /**
+     * @return 已记录的事件数，之后的事件序号从它开始
+     */
+    private long getRecordedCount() throws IOException {
+        final Matcher matcher = RECORDED.matcher(
+                MusicServiceProcess.dump(mContext, "recorder json"));
+        assertTrue("no flight recorder dump", matcher.find());
+        return Long.parseLong(matcher.group(1));
+    }
+
+    private int getInt(String key, int defaultValue) {
+        final String value = mArguments != null ? mArguments.getString(key) : null;
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    private static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static void runOnMainSync(Runnable runnable) {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(runnable);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v4.media.MediaBrowserCompat;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Connects to {@link MusicService} through {@link MediaBrowserCompat}, as the UI does, and
+ * checks in the service dump that the loads were counted for this app's client of the
+ * {@code self} class, not for the anonymous one.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MusicServiceClientTest {
+
+    private static final long TIMEOUT_S = 10;
+    private static final Pattern LOADS = Pattern.compile("loads=(\\d+)");
+
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+    private final CountDownLatch mConnected = new CountDownLatch(1);
+    private final CountDownLatch mLoaded = new CountDownLatch(1);
+    private MediaBrowserCompat mMediaBrowser;
+
+    private final MediaBrowserCompat.SubscriptionCallback mSubscriptionCallback =
+            new MediaBrowserCompat.SubscriptionCallback() {
+                @Override
+                public void onChildrenLoaded(@NonNull String parentId,
+                                             @NonNull List<MediaBrowserCompat.MediaItem> children) {
+                    mLoaded.countDown();
+                }
+            };
+
+    private final MediaBrowserCompat.ConnectionCallback mConnectionCallback =
+            new MediaBrowserCompat.ConnectionCallback() {
+                @Override
+                public void onConnected() {
+                    mConnected.countDown();
+                    // Loaded through the service's onLoadChildren, where the client is looked up.
+                    mMediaBrowser.subscribe(mMediaBrowser.getRoot(), mSubscriptionCallback);
+                }
+            };
+
+
+    @After
+    public void tearDown() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                if (mMediaBrowser != null) {
+                    mMediaBrowser.disconnect();
+                }
+            }
+        });
+    }
+
+    @Test
+    public void loadsAreCountedForTheCallingApp() throws Exception {
+        // Android L and above: the root hints no longer carried the caller, and the shell
+        // command for the dump is available.
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP);
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mMediaBrowser = new MediaBrowserCompat(mContext,
+                        new ComponentName(mContext, MusicService.class), mConnectionCallback, null);
+                mMediaBrowser.connect();
+            }
+        });
+        assertTrue("not connected", mConnected.await(TIMEOUT_S, TimeUnit.SECONDS));
+        assertTrue("children not loaded", mLoaded.await(TIMEOUT_S, TimeUnit.SECONDS));
+
+        // e.g. "com.example.android.mediasession (uid 10123, self, page ...): roots=1 loads=1"
+        final String client = findLine(dumpService(),
+                mContext.getPackageName() + " (uid " + Process.myUid() + ", ");
+        assertNotNull("this app is not a client", client);
+        assertTrue(client, client.contains(", self, "));
+        final Matcher loads = LOADS.matcher(client);
+        assertTrue(client, loads.find() && Integer.parseInt(loads.group(1)) > 0);
+    }
+
+
+    // ##########################################################################################
+
+
+    private String dumpService() throws IOException {
+        final ParcelFileDescriptor output = InstrumentationRegistry.getInstrumentation()
+                .getUiAutomation().executeShellCommand("dumpsys activity service "
+                        + new ComponentName(mContext, MusicService.class).flattenToShortString());
+        final StringBuilder dump = new StringBuilder();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ParcelFileDescriptor.AutoCloseInputStream(output)));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                dump.append(line).append('\n');
+            }
+        } finally {
+            reader.close();
+        }
+        return dump.toString();
+    }
+
+    /**
+     * 以prefix开头的一行，不计缩进：系统在服务的输出前加了缩进
+     */
+    private static String findLine(String dump, String prefix) {
+        for (String line : dump.split("\n")) {
+            if (line.trim().startsWith(prefix)) {
+                return line.trim();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service;
+
+import android.app.ActivityManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The process that runs {@link MusicService}, for the benchmarks that start it cold: the
+ * {@code :playback} process, or this one in a build with {@code -PsingleProcess}.
+ * <p>
+ * 测试用：运行 MusicService 的进程
+ */
+final class MusicServiceProcess {
+
+    private static final long TIMEOUT_MS = 20 * 1000;
+    private static final long POLL_MS = 50;
+
+
+    private MusicServiceProcess() {
+    }
+
+    /**
+     * @return 运行 MusicService 的进程，没有运行时为0
+     */
+    static int findPid(Context context) {
+        final ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        final ComponentName service = new ComponentName(context, MusicService.class);
+        // Deprecated in Android O, but still lists the caller's own services.
+        final List<ActivityManager.RunningServiceInfo> services =
+                activityManager.getRunningServices(Integer.MAX_VALUE);
+        if (services != null) {
+            for (ActivityManager.RunningServiceInfo info : services) {
+                if (service.equals(info.service) && info.pid > 0) {
+                    return info.pid;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 等 service 销毁，在独立进程中时杀死该进程。调用前先停止播放并断开连接。
+     */
+    static void waitUntilStopped(Context context) {
+        // The stop reaches the service before its process is killed; a started service would
+        // be restarted by the system.
+        SystemClock.sleep(POLL_MS);
+        final int pid = findPid(context);
+        if (pid > 0 && pid != Process.myPid()) {
+            Process.killProcess(pid);
+        }
+        final long deadline = SystemClock.elapsedRealtime() + TIMEOUT_MS;
+        while (findPid(context) > 0) {
+            assertTrue("MusicService not stopped", SystemClock.elapsedRealtime() < deadline);
+            SystemClock.sleep(POLL_MS);
+        }
+    }
+
+    /**
+     * dumpsys 的输出，需要 Android L
+     *
+     * @param args 传给 {@link MusicService#dump} 的参数，例如 "recorder json"
+     */
+    static String dump(Context context, String args) throws IOException {
+        final ParcelFileDescriptor output = InstrumentationRegistry.getInstrumentation()
+                .getUiAutomation().executeShellCommand("dumpsys activity service "
+                        + new ComponentName(context, MusicService.class).flattenToShortString()
+                        + " " + args);
+        final StringBuilder dump = new StringBuilder();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ParcelFileDescriptor.AutoCloseInputStream(output)));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                dump.append(line).append('\n');
+            }
+        } finally {
+            reader.close();
+        }
+        return dump.toString();
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+import android.util.Log;
+
+import com.example.android.mediasession.MediaSessionApplication;
+import com.example.android.mediasession.client.LatencyHistogram;
+import com.example.android.mediasession.client.MediaBrowserManager;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Measures what the process layout of {@link MusicService} costs: the cold start of the
+ * service and the memory of its process while it plays with no activity in the foreground.
+ * Run once for each layout and compare the reports:
+ * <pre>
+ * ./gradlew :Application:connectedDebugAndroidTest -Pbenchmark_cold_starts=20
+ * ./gradlew :Application:connectedDebugAndroidTest -Pbenchmark_cold_starts=20 -PsingleProcess
+ * </pre>
+ * Each cold start stops the service, kills its process when it has its own, and times
+ * {@link MediaBrowserManager} until it is connected and until the queue arrives. In a single
+ * process build the process keeps running, so only the service is created again. The memory
+ * is the RSS and PSS of the service's process and the PSS of all processes of the app; in a
+ * single process build the test runner is part of it.
+ * <p>
+ * The report is logged under the tag {@value #TAG}. Skipped unless the number of cold
+ * starts is passed as an instrumentation argument.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ProcessLayoutBenchmarkTest {
+
+    private static final String TAG = "ProcessLayoutBenchmark";
+
+    // instrumentation的参数：冷启动的次数
+    public static final String ARG_COLD_STARTS = "benchmark_cold_starts";
+    // 开始播放后等待多久再读取内存 (ms)
+    public static final String ARG_SETTLE_MS = "benchmark_settle_ms";
+
+    private static final int DEFAULT_SETTLE_MS = 10 * 1000;
+    private static final long TIMEOUT_S = 20;
+
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+    private final Bundle mArguments = InstrumentationRegistry.getArguments();
+    private final ActivityManager mActivityManager =
+            (ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE);
+    private MediaBrowserManager mManager;
+    private volatile CountDownLatch mConnected = new CountDownLatch(1);
+    private volatile CountDownLatch mQueueLoaded = new CountDownLatch(1);
+    private final CountDownLatch mPlaying = new CountDownLatch(1);
+
+    private final MediaBrowserManager.OnMediaStatusChangeListener mListener =
+            new MediaBrowserManager.OnMediaStatusChangeListener() {
+                @Override
+                public void onConnected() {
+                    mConnected.countDown();
+                }
+
+                @Override
+                public void onPlaybackStateChanged(@NonNull PlaybackStateCompat state) {
+                    // null when the connection is lost
+                    if (state != null && state.getState() == PlaybackStateCompat.STATE_PLAYING) {
+                        mPlaying.countDown();
+                    }
+                }
+
+                @Override
+                public void onMetadataChanged(MediaMetadataCompat metadata) {
+                }
+
+                @Override
+                public void onQueueChanged(List<MediaSessionCompat.QueueItem> queue) {
+                    if (queue != null && !queue.isEmpty()) {
+                        mQueueLoaded.countDown();
+                    }
+                }
+            };
+
+
+    @After
+    public void tearDown() {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                if (mManager != null) {
+                    if (mManager.isConnected()) {
+                        mManager.getTransportControls().stop();
+                    }
+                    mManager.removeOnMediaStatusListener(mListener);
+                    mManager.onStop();
+                }
+            }
+        });
+    }
+
+    @Test
+    public void coldStartAndBackgroundMemory() throws InterruptedException {
+        final int coldStarts = getInt(ARG_COLD_STARTS, 0);
+        assumeTrue(coldStarts > 0);
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mManager = new MediaBrowserManager(mContext);
+                mManager.addOnMediaStatusListener(mListener);
+            }
+        });
+
+        final LatencyHistogram connected = new LatencyHistogram();
+        final LatencyHistogram queueLoaded = new LatencyHistogram();
+        for (int i = 0; i < coldStarts; i++) {
+            stopService();
+            mConnected = new CountDownLatch(1);
+            mQueueLoaded = new CountDownLatch(1);
+            final long startNanos = System.nanoTime();
+            runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    mManager.onStart();
+                }
+            });
+            assertTrue("not connected", mConnected.await(TIMEOUT_S, TimeUnit.SECONDS));
+            connected.record(System.nanoTime() - startNanos);
+            assertTrue("queue not loaded", mQueueLoaded.await(TIMEOUT_S, TimeUnit.SECONDS));
+            queueLoaded.record(System.nanoTime() - startNanos);
+        }
+
+        // No activity of this app is started: the service plays in the background.
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mManager.play();
+            }
+        });
+        assertTrue("not playing", mPlaying.await(TIMEOUT_S, TimeUnit.SECONDS));
+        SystemClock.sleep(getInt(ARG_SETTLE_MS, DEFAULT_SETTLE_MS));
+        final int pid = MusicServiceProcess.findPid(mContext);
+        assertTrue("MusicService is not running", pid > 0);
+
+        final List<String> report = new ArrayList<>();
+        report.add(pid == Process.myPid()
+                ? "Layout: single process, cold starts create only the service"
+                : "Layout: MusicService in " + MediaSessionApplication.PLAYBACK_PROCESS_SUFFIX);
+        report.add("Cold start to connected: " + connected);
+        report.add("Cold start to queue: " + queueLoaded);
+        report.add(String.format(Locale.US, "Service process: RSS %d kB, PSS %d kB",
+                MediaSessionApplication.getResidentSetKb(pid), getTotalPssKb(new int[]{pid})));
+        final int[] appPids = findAppPids();
+        report.add(String.format(Locale.US, "All %d processes of the app: PSS %d kB",
+                appPids.length, getTotalPssKb(appPids)));
+        for (String line : report) {
+            Log.i(TAG, line);
+        }
+    }
+
+
+    // ##########################################################################################
+
+
+    /**
+     * 停止播放并断开连接，等 service 销毁
+     */
+    private void stopService() {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                if (mManager.isConnected()) {
+                    mManager.getTransportControls().stop();
+                }
+                mManager.onStop();
+            }
+        });
+        MusicServiceProcess.waitUntilStopped(mContext);
+    }
+
+    /**
+     * 本应用的所有进程
+     */
+    private int[] findAppPids() {
+        final String packageName = mContext.getPackageName();
+        final List<Integer> pids = new ArrayList<>();
+        for (ActivityManager.RunningAppProcessInfo process
+                : mActivityManager.getRunningAppProcesses()) {
+            if (process.processName.equals(packageName)
+                    || process.processName.startsWith(packageName + ":")) {
+                pids.add(process.pid);
+            }
+        }
+        final int[] result = new int[pids.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = pids.get(i);
+        }
+        return result;
+    }
+
+    private int getTotalPssKb(int[] pids) {
+        int totalPss = 0;
+        for (Debug.MemoryInfo memoryInfo : mActivityManager.getProcessMemoryInfo(pids)) {
+            totalPss += memoryInfo.getTotalPss();
+        }
+        return totalPss;
+    }
+
+    private int getInt(String key, int defaultValue) {
+        final String value = mArguments != null ? mArguments.getString(key) : null;
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    private static void runOnMainSync(Runnable runnable) {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(runnable);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.playlist;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link PlaylistParser} on small playlists of each format. On a device, since XSPF is read
+ * with the platform's pull parser.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PlaylistParserTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String M3U = "\uFEFF#EXTM3U\r\n"
+            + "#EXTINF:123,Artist - Title\r\n"
+            + "Music/one.mp3\r\n"
+            + "\r\n"
+            + "   # indented comment\r\n"
+            + "  /sdcard/Music/two.ogg  \r\n"
+            + "http://example.com/three.mp3\r\n";
+    private static final String PLS = "[playlist]\n"
+            + "NumberOfEntries=3\n"
+            + "File1=one.mp3\n"
+            + "Title1=One\n"
+            + "Length1=-1\n"
+            + "file2 = two.ogg\n"
+            + "File3=\n"
+            + "File4=http://example.com/a=b.mp3\n"
+            + "Version=2\n";
+    // The default namespace, a location of the playlist itself and a track with two.
+    private static final String XSPF = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<playlist version=\"1\" xmlns=\"http://xspf.org/ns/0/\">\n"
+            + "  <title>Mix</title>\n"
+            + "  <location>http://example.com/mix.xspf</location>\n"
+            + "  <trackList>\n"
+            + "    <track>\n"
+            + "      <title>One</title>\n"
+            + "      <location> file:///sdcard/Music/one.mp3 </location>\n"
+            + "      <location>http://example.com/one.mp3</location>\n"
+            + "    </track>\n"
+            + "    <track><location>two.ogg</location></track>\n"
+            + "    <track><title>No location</title></track>\n"
+            + "    <track><location>three.flac</location></track>\n"
+            + "  </trackList>\n"
+            + "</playlist>\n";
+
+
+    @Test
+    public void m3uSkipsByteOrderMarkCommentsAndBlankLines() throws IOException {
+        assertEquals(Arrays.asList("Music/one.mp3", "/sdcard/Music/two.ogg",
+                "http://example.com/three.mp3"), parse(M3U, PlaylistParser.FORMAT_M3U, -1));
+    }
+
+    @Test
+    public void plsReadsOnlyFileEntries() throws IOException {
+        assertEquals(Arrays.asList("one.mp3", "two.ogg", "http://example.com/a=b.mp3"),
+                parse(PLS, PlaylistParser.FORMAT_PLS, -1));
+        // No [playlist] header, and a byte order mark before the first entry.
+        assertEquals(Arrays.asList("one.mp3"),
+                parse("\uFEFFFile1=one.mp3\r\n", PlaylistParser.FORMAT_PLS, -1));
+    }
+
+    @Test
+    public void xspfTakesTheFirstLocationOfEachTrack() throws IOException {
+        assertEquals(Arrays.asList("file:///sdcard/Music/one.mp3", "two.ogg", "three.flac"),
+                parse(XSPF, PlaylistParser.FORMAT_XSPF, -1));
+    }
+
+    @Test(expected = IOException.class)
+    public void malformedXspfFails() throws IOException {
+        parse(XSPF.substring(0, XSPF.indexOf("</track>")) + "</trackList>",
+                PlaylistParser.FORMAT_XSPF, -1);
+    }
+
+    @Test
+    public void formatIsDetectedByExtension() throws IOException {
+        // The extension wins over the content.
+        assertEquals(PlaylistParser.FORMAT_M3U, detect(XSPF, "Mix.M3U8"));
+        assertEquals(PlaylistParser.FORMAT_M3U, detect(PLS, "mix.m3u"));
+        assertEquals(PlaylistParser.FORMAT_PLS, detect(M3U, "radio.PLS"));
+        assertEquals(PlaylistParser.FORMAT_XSPF, detect(M3U, "mix.xspf"));
+    }
+
+    @Test
+    public void formatIsSniffedWithoutAKnownExtension() throws IOException {
+        assertEquals(PlaylistParser.FORMAT_XSPF, detect(XSPF, null));
+        assertEquals(PlaylistParser.FORMAT_XSPF, detect("\uFEFF\n  " + XSPF, "playlist"));
+        assertEquals(PlaylistParser.FORMAT_PLS, detect(PLS, "playlist.txt"));
+        assertEquals(PlaylistParser.FORMAT_PLS, detect("\uFEFF\r\n" + PLS, null));
+        assertEquals(PlaylistParser.FORMAT_M3U, detect(M3U, null));
+        // A bare list of paths.
+        assertEquals(PlaylistParser.FORMAT_M3U, detect("one.mp3\n<two>.mp3\n", null));
+        assertEquals(PlaylistParser.FORMAT_M3U, detect("", null));
+    }
+
+    @Test
+    public void sniffingLeavesTheStreamAtTheStart() throws IOException {
+        final InputStream in = stream("\uFEFF" + PLS);
+        assertEquals(PlaylistParser.FORMAT_PLS, PlaylistParser.detectFormat(in, null));
+        final List<String> entries = new ArrayList<>();
+        PlaylistParser.parse(in, PlaylistParser.FORMAT_PLS, collect(entries, -1));
+        assertEquals(Arrays.asList("one.mp3", "two.ogg", "http://example.com/a=b.mp3"),
+                entries);
+    }
+
+    @Test
+    public void parsingStopsWhenTheHandlerReturnsFalse() throws IOException {
+        assertEquals(Arrays.asList("Music/one.mp3", "/sdcard/Music/two.ogg"),
+                parse(M3U, PlaylistParser.FORMAT_M3U, 2));
+        assertEquals(Arrays.asList("one.mp3"), parse(PLS, PlaylistParser.FORMAT_PLS, 1));
+        assertEquals(Arrays.asList("file:///sdcard/Music/one.mp3", "two.ogg"),
+                parse(XSPF, PlaylistParser.FORMAT_XSPF, 2));
+    }
+
+
+    // ##########################################################################################
+
+
+    /**
+     * @param limit 收到这么多条目后返回false，-1为不限
+     */
+    private static List<String> parse(String playlist, int format, int limit)
+            throws IOException {
+        final List<String> entries = new ArrayList<>();
+        PlaylistParser.parse(stream(playlist), format, collect(entries, limit));
+        return entries;
+    }
+
+    private static PlaylistParser.EntryHandler collect(final List<String> entries,
+                                                       final int limit) {
+        return new PlaylistParser.EntryHandler() {
+            @Override
+            public boolean onEntry(String location) {
+                entries.add(location);
+                return entries.size() != limit;
+            }
+        };
+    }
+
+    private static int detect(String playlist, String name) throws IOException {
+        return PlaylistParser.detectFormat(stream(playlist), name);
+    }
+
+    private static InputStream stream(String playlist) {
+        return new BufferedInputStream(new ByteArrayInputStream(playlist.getBytes(UTF_8)));
+    }
+}
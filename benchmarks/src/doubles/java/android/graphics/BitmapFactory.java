@@ -0,0 +1,45 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.graphics;
+
+import android.content.res.Resources;
+
+/**
+ * JVM double: every resource decodes to a 512x512 bitmap without touching any pixels.
+ */
+public class BitmapFactory {
+
+    private static final int SIZE = 512;
+
+    public static class Options {
+        public boolean inJustDecodeBounds;
+        public int inSampleSize;
+        public int outWidth;
+        public int outHeight;
+    }
+
+    public static Bitmap decodeResource(Resources res, int id) {
+        return new Bitmap(SIZE, SIZE);
+    }
+
+    public static Bitmap decodeResource(Resources res, int id, Options opts) {
+        final int sampleSize = Math.max(1, opts.inSampleSize);
+        opts.outWidth = SIZE / sampleSize;
+        opts.outHeight = SIZE / sampleSize;
+        return opts.inJustDecodeBounds ? null : new Bitmap(opts.outWidth, opts.outHeight);
+    }
+}
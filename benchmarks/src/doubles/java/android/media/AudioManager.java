@@ -0,0 +1,47 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.media;
+
+/**
+ * JVM double: only what the code under benchmark calls.
+ */
+public class AudioManager {
+
+    public static final String ACTION_AUDIO_BECOMING_NOISY =
+            "android.media.AUDIO_BECOMING_NOISY";
+
+    public static final int STREAM_MUSIC = 3;
+
+    public static final int AUDIOFOCUS_GAIN = 1;
+    public static final int AUDIOFOCUS_LOSS = -1;
+    public static final int AUDIOFOCUS_LOSS_TRANSIENT = -2;
+    public static final int AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK = -3;
+    public static final int AUDIOFOCUS_REQUEST_GRANTED = 1;
+
+    public interface OnAudioFocusChangeListener {
+        void onAudioFocusChange(int focusChange);
+    }
+
+    public int requestAudioFocus(OnAudioFocusChangeListener listener, int streamType,
+                                 int durationHint) {
+        return AUDIOFOCUS_REQUEST_GRANTED;
+    }
+
+    public int abandonAudioFocus(OnAudioFocusChangeListener listener) {
+        return AUDIOFOCUS_REQUEST_GRANTED;
+    }
+}
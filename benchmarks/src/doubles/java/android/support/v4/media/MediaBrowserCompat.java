@@ -0,0 +1,49 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.v4.media;
+
+/**
+ * JVM double: only what the code under benchmark calls.
+ */
+public final class MediaBrowserCompat {
+
+    public static class MediaItem {
+
+        public static final int FLAG_BROWSABLE = 1;
+        public static final int FLAG_PLAYABLE = 1 << 1;
+
+        private final MediaDescriptionCompat mDescription;
+        private final int mFlags;
+
+        public MediaItem(MediaDescriptionCompat description, int flags) {
+            mDescription = description;
+            mFlags = flags;
+        }
+
+        public MediaDescriptionCompat getDescription() {
+            return mDescription;
+        }
+
+        public String getMediaId() {
+            return mDescription.getMediaId();
+        }
+
+        public int getFlags() {
+            return mFlags;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.v4.media;
+
+import android.graphics.Bitmap;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * JVM double backed by a map, like the Bundle of the real class. The description is built
+ * once and cached, as in the support library.
+ */
+public final class MediaMetadataCompat {
+
+    public static final String METADATA_KEY_TITLE = "android.media.metadata.TITLE";
+    public static final String METADATA_KEY_ARTIST = "android.media.metadata.ARTIST";
+    public static final String METADATA_KEY_DURATION = "android.media.metadata.DURATION";
+    public static final String METADATA_KEY_ALBUM = "android.media.metadata.ALBUM";
+    public static final String METADATA_KEY_GENRE = "android.media.metadata.GENRE";
+    public static final String METADATA_KEY_ALBUM_ART = "android.media.metadata.ALBUM_ART";
+    public static final String METADATA_KEY_ALBUM_ART_URI = "android.media.metadata.ALBUM_ART_URI";
+    public static final String METADATA_KEY_DISPLAY_ICON_URI =
+            "android.media.metadata.DISPLAY_ICON_URI";
+    public static final String METADATA_KEY_MEDIA_ID = "android.media.metadata.MEDIA_ID";
+
+    private final Map<String, Object> mValues;
+    private MediaDescriptionCompat mDescription;
+
+    MediaMetadataCompat(Map<String, Object> values) {
+        mValues = values;
+    }
+
+    public boolean containsKey(String key) {
+        return mValues.containsKey(key);
+    }
+
+    public String getString(String key) {
+        final Object value = mValues.get(key);
+        return value != null ? value.toString() : null;
+    }
+
+    public long getLong(String key) {
+        final Object value = mValues.get(key);
+        return value instanceof Long ? (Long) value : 0;
+    }
+
+    public Bitmap getBitmap(String key) {
+        final Object value = mValues.get(key);
+        return value instanceof Bitmap ? (Bitmap) value : null;
+    }
+
+    public MediaDescriptionCompat getDescription() {
+        if (mDescription == null) {
+            mDescription = new MediaDescriptionCompat.Builder()
+                    .setMediaId(getString(METADATA_KEY_MEDIA_ID))
+                    .setTitle(getString(METADATA_KEY_TITLE))
+                    .setSubtitle(getString(METADATA_KEY_ARTIST))
+                    .setDescription(getString(METADATA_KEY_ALBUM))
+                    .setIconBitmap(getBitmap(METADATA_KEY_ALBUM_ART))
+                    .build();
+        }
+        return mDescription;
+    }
+
+    public static final class Builder {
+
+        private final Map<String, Object> mValues = new HashMap<>();
+
+        public Builder putString(String key, String value) {
+            mValues.put(key, value);
+            return this;
+        }
+
+        public Builder putLong(String key, long value) {
+            mValues.put(key, value);
+            return this;
+        }
+
+        public Builder putBitmap(String key, Bitmap value) {
+            mValues.put(key, value);
+            return this;
+        }
+
+        public MediaMetadataCompat build() {
+            return new MediaMetadataCompat(new HashMap<>(mValues));
+        }
+    }
+}
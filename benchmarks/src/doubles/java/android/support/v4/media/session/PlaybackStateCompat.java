@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.v4.media.session;
+
+/**
+ * JVM double: only what the code under benchmark calls.
+ */
+public final class PlaybackStateCompat {
+
+    public @interface State {
+    }
+
+    public @interface Actions {
+    }
+
+    public @interface RepeatMode {
+    }
+
+    public static final long ACTION_STOP = 1L;
+    public static final long ACTION_PAUSE = 1L << 1;
+    public static final long ACTION_PLAY = 1L << 2;
+    public static final long ACTION_SKIP_TO_PREVIOUS = 1L << 4;
+    public static final long ACTION_SKIP_TO_NEXT = 1L << 5;
+    public static final long ACTION_SEEK_TO = 1L << 8;
+    public static final long ACTION_PLAY_PAUSE = 1L << 9;
+    public static final long ACTION_PLAY_FROM_MEDIA_ID = 1L << 10;
+    public static final long ACTION_PLAY_FROM_SEARCH = 1L << 11;
+    public static final long ACTION_SKIP_TO_QUEUE_ITEM = 1L << 12;
+    public static final long ACTION_SET_REPEAT_MODE = 1L << 18;
+    public static final long ACTION_SET_SHUFFLE_MODE = 1L << 21;
+
+    public static final int REPEAT_MODE_NONE = 0;
+    public static final int REPEAT_MODE_ONE = 1;
+    public static final int REPEAT_MODE_ALL = 2;
+    public static final int REPEAT_MODE_GROUP = 3;
+
+    public static final int STATE_NONE = 0;
+    public static final int STATE_STOPPED = 1;
+    public static final int STATE_PAUSED = 2;
+    public static final int STATE_PLAYING = 3;
+    public static final int STATE_BUFFERING = 6;
+
+    private final int mState;
+    private final long mPosition;
+    private final float mSpeed;
+    private final long mUpdateTime;
+    private final long mActions;
+
+    PlaybackStateCompat(int state, long position, float speed, long updateTime, long actions) {
+        mState = state;
+        mPosition = position;
+        mSpeed = speed;
+        mUpdateTime = updateTime;
+        mActions = actions;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    public long getPosition() {
+        return mPosition;
+    }
+
+    public float getPlaybackSpeed() {
+        return mSpeed;
+    }
+
+    public long getLastPositionUpdateTime() {
+        return mUpdateTime;
+    }
+
+    public long getActions() {
+        return mActions;
+    }
+
+    public static final class Builder {
+
+        private int mState;
+        private long mPosition;
+        private float mSpeed;
+        private long mUpdateTime;
+        private long mActions;
+
+        public Builder setState(int state, long position, float playbackSpeed, long updateTime) {
+            mState = state;
+            mPosition = position;
+            mSpeed = playbackSpeed;
+            mUpdateTime = updateTime;
+            return this;
+        }
+
+        public Builder setActions(long actions) {
+            mActions = actions;
+            return this;
+        }
+
+        public PlaybackStateCompat build() {
+            return new PlaybackStateCompat(mState, mPosition, mSpeed, mUpdateTime, mActions);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service;
+
+import android.support.v4.media.MediaDescriptionCompat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The queue operations behind {@code MediaSessionCallback}: enqueue, dequeue and skipping,
+ * in list order and shuffled.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PlaybackQueueBenchmark {
+
+    @Param({"10", "1000", "100000", "1000000"})
+    public int queueSize;
+
+    @Param({"false", "true"})
+    public boolean shuffle;
+
+    private PlaybackQueue mQueue;
+    private MediaDescriptionCompat mExtra;
+
+    @Setup
+    public void setUp() {
+        mQueue = new PlaybackQueue();
+        for (int i = 0; i < queueSize; i++) {
+            mQueue.add(new MediaDescriptionCompat.Builder()
+                    .setMediaId("Track_" + i)
+                    .setTitle("Track " + i)
+                    .build());
+        }
+        mExtra = new MediaDescriptionCompat.Builder()
+                .setMediaId("Extra")
+                .setTitle("Extra")
+                .build();
+        mQueue.setShuffleEnabled(shuffle, 42);
+    }
+
+    /**
+     * onAddQueueItem followed by onRemoveQueueItem of the same item (at the end of the queue)
+     */
+    @Benchmark
+    public boolean addThenRemove() {
+        mQueue.add(mExtra);
+        return mQueue.remove(mExtra);
+    }
+
+    @Benchmark
+    public String skipToNext() {
+        mQueue.skipToNext();
+        return mQueue.getCurrentMediaId();
+    }
+
+    @Benchmark
+    public String skipToPrevious() {
+        mQueue.skipToPrevious();
+        return mQueue.getCurrentMediaId();
+    }
+
+    /**
+     * What updateNextMedia() looks up after every prepare
+     */
+    @Benchmark
+    public String nextMediaId() {
+        return mQueue.getMediaId(mQueue.getNextIndex());
+    }
+
+    /**
+     * onSetShuffleMode: must not depend on the queue size
+     */
+    @Benchmark
+    public int toggleShuffle() {
+        mQueue.setShuffleEnabled(!mQueue.isShuffleEnabled(), queueSize);
+        return mQueue.getNextIndex();
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.contentcatalogs;
+
+import android.content.Context;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaMetadataCompat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Catalog lookups: the browse listing and the per-track lookups done on every prepare and
+ * skip. The catalog is filled with {@code catalogSize} synthetic tracks next to the bundled
+ * ones.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MusicLibraryBenchmark {
+
+    @Param({"10", "1000", "100000", "1000000"})
+    public int catalogSize;
+
+    private final Context mContext = new Context() {
+    };
+    private String[] mMediaIds;
+    private int mCursor;
+
+    @Setup
+    public void setUp() {
+        mMediaIds = new String[catalogSize];
+        for (int i = 0; i < catalogSize; i++) {
+            final String mediaId = "Track_" + i;
+            MusicLibrary.createMediaMetadataCompat(
+                    mediaId,
+                    "Track " + i,
+                    "Artist " + (i % 997),
+                    "Album " + (i % 4999),
+                    "Genre " + (i % 31),
+                    180,
+                    TimeUnit.SECONDS,
+                    "track_" + i + ".mp3",
+                    0,
+                    "album_jazz_blues");
+            mMediaIds[i] = mediaId;
+        }
+    }
+
+    private String nextMediaId() {
+        mCursor = mCursor + 1 < mMediaIds.length ? mCursor + 1 : 0;
+        return mMediaIds[mCursor];
+    }
+
+    @Benchmark
+    public List<MediaBrowserCompat.MediaItem> getMediaItems() {
+        return MusicLibrary.getMediaItems();
+    }
+
+    @Benchmark
+    public MediaMetadataCompat getMetadata() {
+        return MusicLibrary.getMetadata(mContext, nextMediaId());
+    }
+
+    @Benchmark
+    public MediaMetadataCompat getMetadataSized() {
+        return MusicLibrary.getMetadata(mContext, nextMediaId(), 128, 128);
+    }
+
+    @Benchmark
+    public MediaMetadataCompat getMetadataWithoutBitmap() {
+        return MusicLibrary.getMetadataWithoutBitmap(nextMediaId());
+    }
+
+    @Benchmark
+    public String getMusicFilename() {
+        return MusicLibrary.getMusicFilename(nextMediaId());
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.loudness;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the loudness analysis without the decoder: one op measures one second of PCM
+ * in codec-sized blocks on one thread, so ops/s is the seconds of audio analysed per
+ * CPU-second. The merge of the per-segment meters is included, with a segment per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LoudnessMeterBenchmark {
+
+    // Same block size as a typical MediaCodec output buffer
+    private static final int BLOCK_FRAMES = 1024;
+
+    @Param({"44100", "48000"})
+    public int sampleRate;
+
+    @Param({"1", "2"})
+    public int channels;
+
+    private short[] mInput;
+    private LoudnessMeter mTrack;
+
+    @Setup
+    public void setUp() {
+        // Music-like content: a chord with some noise.
+        mInput = new short[sampleRate * channels];
+        final Random random = new Random(42);
+        for (int frame = 0; frame < sampleRate; frame++) {
+            final double t = (double) frame / sampleRate;
+            final double value = 0.3 * Math.sin(2 * Math.PI * 220 * t)
+                    + 0.2 * Math.sin(2 * Math.PI * 277 * t)
+                    + 0.2 * Math.sin(2 * Math.PI * 330 * t)
+                    + 0.05 * random.nextGaussian();
+            for (int channel = 0; channel < channels; channel++) {
+                mInput[frame * channels + channel] = (short) (value * Short.MAX_VALUE);
+            }
+        }
+        mTrack = new LoudnessMeter(sampleRate, channels);
+    }
+
+    @Benchmark
+    public double analyseOneSecond() {
+        final LoudnessMeter segment = new LoudnessMeter(sampleRate, channels);
+        for (int frame = 0; frame < sampleRate; frame += BLOCK_FRAMES) {
+            segment.process(mInput, frame * channels, Math.min(BLOCK_FRAMES, sampleRate - frame));
+        }
+        mTrack.merge(segment);
+        return segment.getIntegratedLoudness();
+    }
+}
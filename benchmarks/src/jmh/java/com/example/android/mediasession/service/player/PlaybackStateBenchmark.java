@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.player;
+
+import android.support.v4.media.session.PlaybackStateCompat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The work done by the players' setNewState() on every state change, seek and speed change.
+ * <p>
+ * The reducer benchmarks are read with the gc profiler: {@code reduceUnchanged}, the steady
+ * state while playing, must show a gc.alloc.rate.norm of 0 B/op; PlaybackStateReducerTest,
+ * in the unit tests of the Application module, asserts it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PlaybackStateBenchmark {
+
+    private static final int[] STATES = {
+            PlaybackStateCompat.STATE_STOPPED,
+            PlaybackStateCompat.STATE_PLAYING,
+            PlaybackStateCompat.STATE_PAUSED,
+            PlaybackStateCompat.STATE_BUFFERING
+    };
+
+    private final PlaybackStateReducer mReducer = new PlaybackStateReducer();
+
+    private int mCursor;
+    private long mPosition;
+    // 模拟的 elapsedRealtime
+    private long mNowMs;
+
+    private int nextState() {
+        mCursor = (mCursor + 1) & 3;
+        return STATES[mCursor];
+    }
+
+    @Benchmark
+    public long getAvailableActions() {
+        return PlayerAdapter.getAvailableActions(nextState());
+    }
+
+    /**
+     * Same steps as MediaPlayerManager.setNewState()
+     */
+    @Benchmark
+    public PlaybackStateCompat buildPlaybackState() {
+        final int state = nextState();
+        final PlaybackStateCompat.Builder stateBuilder = new PlaybackStateCompat.Builder();
+        stateBuilder.setActions(PlayerAdapter.getAvailableActions(state));
+        stateBuilder.setState(state,
+                mPosition += 250,
+                1.0f,
+                System.nanoTime() / 1000000);
+        return stateBuilder.build();
+    }
+
+    /**
+     * Same steps as the players' setNewState() with the reducer, every call a new state
+     */
+    @Benchmark
+    public PlaybackStateCompat reduceChanged() {
+        return mReducer.reduce(nextState(), mPosition += 250, 1.0f, mNowMs += 250);
+    }
+
+    /**
+     * Playing on with the position where the clients expect it: nothing is sent
+     */
+    @Benchmark
+    public PlaybackStateCompat reduceUnchanged() {
+        mNowMs += 250;
+        return mReducer.reduce(PlaybackStateCompat.STATE_PLAYING, mPosition += 250, 1.0f, mNowMs);
+    }
+}
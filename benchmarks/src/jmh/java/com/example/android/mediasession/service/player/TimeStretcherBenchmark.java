@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.player;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU cost of the pre-M speed change: one op stretches one second of 44.1 kHz stereo PCM, so
+ * the average time is the CPU time per second of audio.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TimeStretcherBenchmark {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CHANNELS = 2;
+    // Same block size as a typical MediaCodec output buffer
+    private static final int BLOCK_FRAMES = 1024;
+
+    @Param({"0.5", "0.75", "1.0", "1.25", "1.5", "2.0", "3.0"})
+    public float speed;
+
+    private TimeStretcher mStretcher;
+    private short[] mInput;
+    private short[] mOutput;
+
+    @Setup
+    public void setUp() {
+        mStretcher = new TimeStretcher(SAMPLE_RATE, CHANNELS);
+        mStretcher.setSpeed(speed);
+        // Music-like content: a chord with some noise, so the correlation search has work.
+        mInput = new short[SAMPLE_RATE * CHANNELS];
+        final Random random = new Random(42);
+        for (int frame = 0; frame < SAMPLE_RATE; frame++) {
+            final double t = (double) frame / SAMPLE_RATE;
+            final double value = 0.3 * Math.sin(2 * Math.PI * 220 * t)
+                    + 0.2 * Math.sin(2 * Math.PI * 277 * t)
+                    + 0.2 * Math.sin(2 * Math.PI * 330 * t)
+                    + 0.05 * random.nextGaussian();
+            for (int channel = 0; channel < CHANNELS; channel++) {
+                mInput[frame * CHANNELS + channel] = (short) (value * Short.MAX_VALUE);
+            }
+        }
+        mOutput = new short[BLOCK_FRAMES * 4 * CHANNELS];
+    }
+
+    @Benchmark
+    public int stretchOneSecond() {
+        int produced = 0;
+        for (int frame = 0; frame < SAMPLE_RATE; frame += BLOCK_FRAMES) {
+            final int frames = Math.min(BLOCK_FRAMES, SAMPLE_RATE - frame);
+            mStretcher.putSamples(mInput, frame * CHANNELS, frames);
+            int received;
+            while ((received = mStretcher.receiveSamples(mOutput, 0, BLOCK_FRAMES * 4)) > 0) {
+                produced += received;
+            }
+        }
+        return produced;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.service.recorder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of recording one event, which must stay well under a microsecond and show a
+ * gc.alloc.rate.norm of 0 B/op. The contended case has the main thread, a decoder thread
+ * and two workers recording at once, far more than playback ever does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FlightRecorderBenchmark {
+
+    private long mValue;
+
+    @Benchmark
+    public void record() {
+        FlightRecorder.record(FlightRecorder.EVENT_STATE, 3, mValue += 250);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended() {
+        FlightRecorder.record(FlightRecorder.EVENT_STATE, 3, mValue += 250);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.mediasession.client;
+
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The probe, the histogram and the p99 limit check of LatencyHarness, on the JVM: the round
+ * trips go through a worker thread standing in for the service. The round trips to the real
+ * service are checked on a device by LatencyHarnessTest (./gradlew :Application:latencyCheck).
+ */
+public class LatencyProbeTest {
+
+    private static final int ITERATIONS = 2000;
+    private static final long MS = 1000L * 1000;
+    private static final long TIMEOUT_MS = 5000;
+
+
+    private final LatencyProbe mProbe = new LatencyProbe();
+    // 模拟的service线程，结果经队列回到测试线程，与MediaControllerCompat回调到主线程相同
+    private final ExecutorService mService = Executors.newSingleThreadExecutor();
+    private final BlockingQueue<Object> mCallbacks = new ArrayBlockingQueue<>(1);
+
+
+    @After
+    public void tearDown() {
+        mService.shutdownNow();
+    }
+
+    @Test
+    public void roundTripsStayWithinDefaultLimits() throws InterruptedException {
+        final MediaMetadataCompat metadata = new MediaMetadataCompat.Builder()
+                .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, "track")
+                .build();
+        for (int i = 0; i < ITERATIONS; i++) {
+            mProbe.start(LatencyProbe.OP_SKIP);
+            mProbe.onMetadataChanged((MediaMetadataCompat) roundTrip(metadata));
+
+            final long targetMs = (i % 2 + 1) * 10 * 1000;
+            mProbe.startSeek(targetMs);
+            mProbe.onPlaybackStateChanged((PlaybackStateCompat) roundTrip(stateAt(targetMs)));
+        }
+
+        for (int op : new int[]{LatencyProbe.OP_SKIP, LatencyProbe.OP_SEEK}) {
+            final LatencyHistogram histogram = mProbe.getHistogram(op);
+            assertEquals(LatencyProbe.getOpName(op), ITERATIONS, histogram.getCount());
+            assertTrue(LatencyProbe.getOpName(op) + ": " + histogram, mProbe.isWithinLimit(op,
+                    LatencyProbe.getDefaultMaxP99Ms(op) * 1000L));
+        }
+    }
+
+    @Test
+    public void slowTailOverOnePercentFailsTheLimit() {
+        final long limitMicros = LatencyProbe.getDefaultMaxP99Ms(LatencyProbe.OP_SKIP) * 1000L;
+        final LatencyHistogram histogram = mProbe.getHistogram(LatencyProbe.OP_SKIP);
+        for (int i = 0; i < 99; i++) {
+            histogram.record(10 * MS);
+        }
+        // One slow round trip in a hundred is the 1% above p99.
+        histogram.record(2 * limitMicros * 1000);
+        assertTrue(histogram.toString(), mProbe.isWithinLimit(LatencyProbe.OP_SKIP, limitMicros));
+
+        histogram.record(2 * limitMicros * 1000);
+        assertFalse(histogram.toString(), mProbe.isWithinLimit(LatencyProbe.OP_SKIP, limitMicros));
+    }
+
+    @Test
+    public void seekCompletesOnlyAtTheTarget() {
+        mProbe.startSeek(30 * 1000);
+        mProbe.onPlaybackStateChanged(stateAt(0));
+        assertEquals(0, mProbe.getHistogram(LatencyProbe.OP_SEEK).getCount());
+        mProbe.onPlaybackStateChanged(stateAt(30 * 1000 + 500));
+        assertEquals(1, mProbe.getHistogram(LatencyProbe.OP_SEEK).getCount());
+        // Not timed again until the next seek starts.
+        mProbe.onPlaybackStateChanged(stateAt(30 * 1000));
+        assertEquals(1, mProbe.getHistogram(LatencyProbe.OP_SEEK).getCount());
+    }
+
+    @Test
+    public void percentilesAreWithinOneBucket() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int ms = 1; ms <= 10000; ms++) {
+            histogram.record(ms * MS);
+        }
+        // Every power of two is split into 8 buckets: off by at most 12.5%.
+        assertEquals(5000 * 1000, histogram.getPercentileMicros(50), 5000 * 1000 / 8);
+        assertEquals(9900 * 1000, histogram.getPercentileMicros(99), 9900 * 1000 / 8);
+        assertEquals(10000 * 1000, histogram.getMaxMicros());
+    }
+
+
+    // ##########################################################################################
+
+
+    /**
+     * 在service线程上转一圈后返回
+     */
+    private Object roundTrip(final Object result) throws InterruptedException {
+        mService.execute(new Runnable() {
+            @Override
+            public void run() {
+                mCallbacks.offer(result);
+            }
+        });
+        final Object received = mCallbacks.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull("no callback in " + TIMEOUT_MS + " ms", received);
+        return received;
+    }
+
+    private static PlaybackStateCompat stateAt(long positionMs) {
+        return new PlaybackStateCompat.Builder()
+                .setState(PlaybackStateCompat.STATE_PLAYING, positionMs, 1.0f, 0)
+                .build();
+    }
+}